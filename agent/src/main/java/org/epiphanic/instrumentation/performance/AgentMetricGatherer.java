@@ -0,0 +1,233 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An implementation of {@link org.epiphanic.instrumentation.performance.AbstractMetricGatherer} for code woven by
+ * {@link org.epiphanic.instrumentation.performance.InstrumentationAgent}, rather than intercepted by Spring. It turns the
+ * timings woven methods report into {@link org.epiphanic.instrumentation.performance.MethodCallStatistic}s and hands
+ * them to the same {@link org.epiphanic.instrumentation.performance.IStatisticsLogger} pipeline as {@link
+ * org.epiphanic.instrumentation.performance.AOPMetricGatherer} does, honoring the same pooling and capture policy
+ * options.<p/>
+ *
+ * Woven code reports to whichever gatherer was most recently started, so wire up exactly one - via Spring or
+ * otherwise - and call {@link #start()} once its logger is ready. Operations are named by their fully qualified
+ * signature. Given an {@link org.epiphanic.instrumentation.performance.OperationDictionary} - the same one handed to a
+ * {@link org.epiphanic.instrumentation.performance.JdbcBatchWriter}, say - they also carry their ID in it, resolved as
+ * each call is recorded rather than woven in, so the dictionary may be loaded from its table at any time before it
+ * hands out its first ID.<p/>
+ *
+ * A woven method's capture policy is consulted once it has returned, both before and after the fact, as there's no
+ * call into Thoreau on the way in. Anything that goes wrong recording a call is counted by {@link
+ * #getFailedRecordingCount()} rather than thrown into the instrumented code. As with {@link
+ * org.epiphanic.instrumentation.performance.AOPMetricGatherer}, a failure is only rendered into metadata by our {@link
+ * #getFailureFormatter()} once a writer reads it, never on the instrumented thread.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class AgentMetricGatherer extends AbstractMetricGatherer<MethodCallStatistic>
+{
+	/**
+	 * Holds the pool we take our statistics from, if any.
+	 */
+	private MethodCallStatisticPool _statisticPool;
+
+	/**
+	 * Holds the dictionary we resolve our operations through, if any.
+	 */
+	private OperationDictionary _operationDictionary;
+
+	/**
+	 * Holds the policy deciding which calls we record, if any.
+	 */
+	private ICapturePolicy _capturePolicy;
+
+	/**
+	 * Holds the formatter our failed calls' metadata is rendered with.
+	 */
+	private FailureFormatter _failureFormatter = new FailureFormatter();
+
+	/**
+	 * Holds the number of calls we failed to record.
+	 */
+	private final LongAdder _failedRecordings = new LongAdder();
+
+	/**
+	 * Gets the dictionary we resolve our operations through.
+	 *
+	 * @return Our {@link org.epiphanic.instrumentation.performance.OperationDictionary}, or <code>null</code> if we name
+	 * operations by signature alone.
+	 */
+	public OperationDictionary getOperationDictionary()
+	{
+		return _operationDictionary;
+	}
+
+	/**
+	 * Sets the dictionary we resolve our operations through.
+	 *
+	 * @param operationDictionary An {@link org.epiphanic.instrumentation.performance.OperationDictionary}, or
+	 * <code>null</code> (the default) to name operations by signature alone, leaving any writer with a dictionary to
+	 * resolve them.
+	 */
+	public void setOperationDictionary(final OperationDictionary operationDictionary)
+	{
+		_operationDictionary = operationDictionary;
+	}
+
+	/**
+	 * Gets the policy deciding which calls we record.
+	 *
+	 * @return Our {@link org.epiphanic.instrumentation.performance.ICapturePolicy}, or <code>null</code> if we record
+	 * every call.
+	 */
+	public ICapturePolicy getCapturePolicy()
+	{
+		return _capturePolicy;
+	}
+
+	/**
+	 * Sets the policy deciding which calls we record.
+	 *
+	 * @param capturePolicy An {@link org.epiphanic.instrumentation.performance.ICapturePolicy}, or <code>null</code>
+	 * (the default) to record every call with a sample weight of one.
+	 */
+	public void setCapturePolicy(final ICapturePolicy capturePolicy)
+	{
+		_capturePolicy = capturePolicy;
+	}
+
+	/**
+	 * Gets the formatter our failed calls' metadata is rendered with.
+	 *
+	 * @return A non-<code>null</code> {@link org.epiphanic.instrumentation.performance.FailureFormatter}.
+	 */
+	public FailureFormatter getFailureFormatter()
+	{
+		return _failureFormatter;
+	}
+
+	/**
+	 * Sets the formatter our failed calls' metadata is rendered with.
+	 *
+	 * @param failureFormatter A non-<code>null</code> {@link org.epiphanic.instrumentation.performance.FailureFormatter}.
+	 * Defaults to one rendering the failure's description alone, cut to fit the <code>METADATA</code> column.
+	 */
+	public void setFailureFormatter(final FailureFormatter failureFormatter)
+	{
+		_failureFormatter = failureFormatter;
+	}
+
+	/**
+	 * Gets the pool we take our statistics from.
+	 *
+	 * @return Our {@link org.epiphanic.instrumentation.performance.MethodCallStatisticPool}, or <code>null</code> if we
+	 * allocate a new statistic per call.
+	 */
+	public MethodCallStatisticPool getStatisticPool()
+	{
+		return _statisticPool;
+	}
+
+	/**
+	 * Sets the pool we take our statistics from.
+	 *
+	 * @param statisticPool A {@link org.epiphanic.instrumentation.performance.MethodCallStatisticPool}, or
+	 * <code>null</code> (the default) to allocate a new statistic per call.
+	 */
+	public void setStatisticPool(final MethodCallStatisticPool statisticPool)
+	{
+		_statisticPool = statisticPool;
+	}
+
+	/**
+	 * Gets the number of calls we failed to record, because our logger or capture policy threw - even an {@link Error}.
+	 *
+	 * @return The number of calls lost.
+	 */
+	public long getFailedRecordingCount()
+	{
+		return _failedRecordings.sum();
+	}
+
+	/**
+	 * Starts receiving the timings of woven methods, in place of any other gatherer.
+	 */
+	public void start()
+	{
+		WovenMethodTimer.install(this);
+	}
+
+	/**
+	 * Stops receiving the timings of woven methods.
+	 */
+	public void stop()
+	{
+		WovenMethodTimer.uninstall(this);
+	}
+
+	/**
+	 * Records a call to a woven method. Never throws.
+	 *
+	 * @param wovenId The index the method was registered with when it was woven.
+	 * @param startNanos The reading of {@link System#nanoTime()} taken when the method was entered.
+	 * @param completionNanos The reading of {@link System#nanoTime()} taken when the method exited.
+	 * @param thrown Whatever the method threw, or <code>null</code> if it returned normally.
+	 */
+	void record(final int wovenId, final long startNanos, final long completionNanos, final Throwable thrown)
+	{
+		try
+		{
+			final String operationName = WovenMethodTimer.getOperationName(wovenId);
+			final long durationNanos = completionNanos - startNanos;
+			final boolean successful = thrown == null;
+			final ICapturePolicy capturePolicy = getCapturePolicy();
+			double sampleWeight = 1.0;
+
+			if (capturePolicy != null)
+			{
+				sampleWeight = capturePolicy.afterInvocation(operationName, durationNanos, successful,
+						capturePolicy.beforeInvocation(operationName));
+			}
+
+			if (sampleWeight <= 0.0)
+			{
+				return;
+			}
+
+			final MethodCallStatisticPool statisticPool = getStatisticPool();
+			final MethodCallStatistic metric = statisticPool == null ? new MethodCallStatistic() : statisticPool.acquire();
+			metric.setOperationName(operationName);
+
+			final OperationDictionary operationDictionary = getOperationDictionary();
+
+			if (operationDictionary != null)
+			{
+				metric.setOperationId(operationDictionary.getOperationId(operationName));
+			}
+
+			// One wall-clock reading, on the way out; the start is worked back from the measured duration.
+			metric.markOperationStart(System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(durationNanos), startNanos);
+			metric.markOperationCompletion(completionNanos);
+			metric.setOperationSuccessful(successful);
+			metric.setSampleWeight(sampleWeight);
+
+			if (thrown != null)
+			{
+				metric.setFailure(thrown, getFailureFormatter());
+			}
+
+			getStatisticsLogger().writeStatistic(metric);
+		}
+		catch (final Throwable ex)
+		{
+			_failedRecordings.increment();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The <code>-javaagent</code> entry point, weaving timing into the classes it's told to as they're loaded. Start the
+ * JVM with the <code>javaagent</code> classified jar of this module:
+ * <pre>
+ * -javaagent:thoreau-agent-1.0.0.0-javaagent.jar=include=com.example.service.,com.example.dao.;exclude=com.example.dao.generated.
+ * </pre>
+ * The arguments are <code>;</code> separated <code>key=value</code> pairs, each value a <code>,</code> separated list
+ * of class name prefixes:
+ * <ul>
+ * <li><code>include</code>: the classes to weave. Nothing is woven without it.</li>
+ * <li><code>exclude</code>: classes never to weave, in addition to {@link
+ * org.epiphanic.instrumentation.performance.TimingClassFileTransformer#DEFAULT_EXCLUDES}.</li>
+ * </ul>
+ * The agent only weaves; nothing is recorded until the application starts an {@link
+ * org.epiphanic.instrumentation.performance.AgentMetricGatherer} with a logger, typically from the same Spring
+ * context as the rest of its Thoreau wiring. Classes loaded before the agent starts are left alone.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class InstrumentationAgent
+{
+	/**
+	 * Holds the transformer installed by {@link #premain(String, java.lang.instrument.Instrumentation)}, if any.
+	 */
+	private static volatile TimingClassFileTransformer _transformer;
+
+	/**
+	 * Prevents instantiation; everything here is static.
+	 */
+	private InstrumentationAgent()
+	{
+	}
+
+	/**
+	 * Installs our transformer, as called by the JVM before <code>main</code>.
+	 *
+	 * @param arguments The agent arguments, as described in the class documentation. May be <code>null</code>.
+	 * @param instrumentation The JVM's instrumentation services.
+	 */
+	public static void premain(final String arguments, final Instrumentation instrumentation)
+	{
+		final TimingClassFileTransformer transformer = createTransformer(arguments);
+		instrumentation.addTransformer(transformer);
+		_transformer = transformer;
+	}
+
+	/**
+	 * Gets the transformer installed by the agent, to check on what it has woven.
+	 *
+	 * @return Our {@link org.epiphanic.instrumentation.performance.TimingClassFileTransformer}, or <code>null</code> if
+	 * the JVM wasn't started with the agent.
+	 */
+	public static TimingClassFileTransformer getTransformer()
+	{
+		return _transformer;
+	}
+
+	/**
+	 * Creates a transformer configured by agent arguments.
+	 *
+	 * @param arguments The agent arguments, as described in the class documentation. May be <code>null</code>.
+	 *
+	 * @return A configured transformer.
+	 *
+	 * @throws IllegalArgumentException If the arguments can't be understood.
+	 */
+	static TimingClassFileTransformer createTransformer(final String arguments)
+	{
+		final TimingClassFileTransformer transformer = new TimingClassFileTransformer();
+
+		if (arguments == null || arguments.trim().isEmpty())
+		{
+			return transformer;
+		}
+
+		final List<String> excludes = new ArrayList<>(TimingClassFileTransformer.DEFAULT_EXCLUDES);
+
+		for (final String argument : arguments.split(";"))
+		{
+			final int separator = argument.indexOf('=');
+			final String key = separator < 0 ? argument.trim() : argument.substring(0, separator).trim();
+			final List<String> values = new ArrayList<>();
+
+			if (separator >= 0)
+			{
+				for (final String value : argument.substring(separator + 1).split(","))
+				{
+					// An empty prefix would match every class there is.
+					if (!value.trim().isEmpty())
+					{
+						values.add(value.trim());
+					}
+				}
+			}
+
+			if ("include".equals(key))
+			{
+				transformer.setIncludes(values);
+			}
+			else if ("exclude".equals(key))
+			{
+				excludes.addAll(values);
+			}
+			else if (!key.isEmpty())
+			{
+				throw new IllegalArgumentException("Unknown Thoreau agent argument: " + key);
+			}
+		}
+
+		transformer.setExcludes(excludes);
+		return transformer;
+	}
+}
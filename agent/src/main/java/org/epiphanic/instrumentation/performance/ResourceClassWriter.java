@@ -0,0 +1,103 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link org.objectweb.asm.ClassWriter} that works out common super classes, which it needs to compute stack map
+ * frames, by reading class files as resources rather than loading classes. Loading classes from inside a {@link
+ * java.lang.instrument.ClassFileTransformer} would load them before they could be woven themselves, and can fail
+ * outright while the class being transformed is still being defined.<p/>
+ *
+ * Interfaces, and any class whose file can't be found, are treated as {@link java.lang.Object}, which is what the
+ * verifier does with interfaces anyway.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class ResourceClassWriter extends ClassWriter
+{
+	/**
+	 * Holds the internal name of {@link java.lang.Object}.
+	 */
+	private static final String OBJECT = "java/lang/Object";
+
+	/**
+	 * Holds the loader we read class files through.
+	 */
+	private final ClassLoader _loader;
+
+	/**
+	 * Creates a writer computing frames for a class read by the given reader.
+	 *
+	 * @param classReader The reader of the class being transformed.
+	 * @param loader The loader defining the class, or <code>null</code> for the bootstrap loader.
+	 */
+	ResourceClassWriter(final ClassReader classReader, final ClassLoader loader)
+	{
+		super(classReader, ClassWriter.COMPUTE_FRAMES);
+		_loader = loader == null ? ClassLoader.getSystemClassLoader() : loader;
+	}
+
+	@Override
+	protected String getCommonSuperClass(final String type1, final String type2)
+	{
+		final Set<String> ancestors = new HashSet<>();
+
+		for (String type = type1; type != null; type = getSuperClass(type))
+		{
+			ancestors.add(type);
+		}
+
+		for (String type = type2; type != null; type = getSuperClass(type))
+		{
+			if (ancestors.contains(type))
+			{
+				return type;
+			}
+		}
+
+		return OBJECT;
+	}
+
+	/**
+	 * Gets the super class of a class from its class file.
+	 *
+	 * @param type The internal name of the class.
+	 *
+	 * @return The internal name of its super class, or <code>null</code> if the type is {@link java.lang.Object}, an
+	 * interface, or can't be read.
+	 */
+	private String getSuperClass(final String type)
+	{
+		if (OBJECT.equals(type))
+		{
+			return null;
+		}
+
+		try (InputStream classFile = _loader.getResourceAsStream(type + ".class"))
+		{
+			if (classFile == null)
+			{
+				return OBJECT;
+			}
+
+			final ClassReader classReader = new ClassReader(classFile);
+			return (classReader.getAccess() & Opcodes.ACC_INTERFACE) != 0 ? OBJECT : classReader.getSuperName();
+		}
+		catch (final IOException ex)
+		{
+			return OBJECT;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.objectweb.asm.ClassReader;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link java.lang.instrument.ClassFileTransformer} that weaves timing into every eligible method of the classes it
+ * is told to include, as described by {@link org.epiphanic.instrumentation.performance.TimingClassVisitor} and {@link
+ * org.epiphanic.instrumentation.performance.TimingMethodAdapter}. Unlike {@link
+ * org.epiphanic.instrumentation.performance.AOPMetricGatherer}, this covers classes that aren't Spring beans, and calls
+ * a class makes to its own methods.<p/>
+ *
+ * Classes are chosen by name prefix: a class is woven if its name starts with one of {@link #getIncludes()} and none of
+ * {@link #getExcludes()}. Nothing is included by default. Thoreau's own classes are never woven where they were
+ * loaded alongside the agent, as timing the code that records timings would never end.<p/>
+ *
+ * A class that can't be woven for whatever reason is left as it was and counted by {@link #getFailedClassCount()};
+ * a transformer must never stop a class from loading.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class TimingClassFileTransformer implements ClassFileTransformer
+{
+	/**
+	 * Holds the prefixes excluded by default: the JDK, and the copy of ASM we weave with.
+	 */
+	public static final List<String> DEFAULT_EXCLUDES = Collections.unmodifiableList(Arrays.asList("java.", "javax.",
+			"jdk.", "sun.", "com.sun.", "org.objectweb.asm."));
+
+	/**
+	 * Holds the internal name prefix of Thoreau's own classes.
+	 */
+	private static final String THOREAU_PACKAGE = "org/epiphanic/instrumentation/performance/";
+
+	/**
+	 * Holds the prefixes, as internal names, of the classes we weave.
+	 */
+	private volatile String[] _includes = new String[0];
+
+	/**
+	 * Holds the prefixes, as internal names, of the classes we never weave.
+	 */
+	private volatile String[] _excludes = toInternalNames(DEFAULT_EXCLUDES);
+
+	/**
+	 * Holds the number of classes woven.
+	 */
+	private final LongAdder _wovenClasses = new LongAdder();
+
+	/**
+	 * Holds the number of methods woven.
+	 */
+	private final LongAdder _wovenMethods = new LongAdder();
+
+	/**
+	 * Holds the number of classes we failed to weave.
+	 */
+	private final LongAdder _failedClasses = new LongAdder();
+
+	/**
+	 * Gets the prefixes of the classes we weave.
+	 *
+	 * @return The class name prefixes, with dots.
+	 */
+	public List<String> getIncludes()
+	{
+		return toClassNames(_includes);
+	}
+
+	/**
+	 * Sets the prefixes of the classes we weave, such as <code>com.example.service.</code> for a package and everything
+	 * under it, or <code>com.example.service.OrderService</code> for a class and its nested classes.
+	 *
+	 * @param includes The class name prefixes, with dots. Must not be <code>null</code>.
+	 */
+	public void setIncludes(final List<String> includes)
+	{
+		_includes = toInternalNames(includes);
+	}
+
+	/**
+	 * Gets the prefixes of the classes we never weave.
+	 *
+	 * @return The class name prefixes, with dots.
+	 */
+	public List<String> getExcludes()
+	{
+		return toClassNames(_excludes);
+	}
+
+	/**
+	 * Sets the prefixes of the classes we never weave, even if included.
+	 *
+	 * @param excludes The class name prefixes, with dots. Must not be <code>null</code>. Defaults to {@link
+	 * #DEFAULT_EXCLUDES}, which should generally be kept.
+	 */
+	public void setExcludes(final List<String> excludes)
+	{
+		_excludes = toInternalNames(excludes);
+	}
+
+	/**
+	 * Gets the number of classes woven.
+	 *
+	 * @return The number of classes woven.
+	 */
+	public long getWovenClassCount()
+	{
+		return _wovenClasses.sum();
+	}
+
+	/**
+	 * Gets the number of methods woven.
+	 *
+	 * @return The number of methods woven.
+	 */
+	public long getWovenMethodCount()
+	{
+		return _wovenMethods.sum();
+	}
+
+	/**
+	 * Gets the number of classes we were asked to weave but couldn't.
+	 *
+	 * @return The number of classes left as they were because weaving failed.
+	 */
+	public long getFailedClassCount()
+	{
+		return _failedClasses.sum();
+	}
+
+	/**
+	 * Indicates whether or not a class is one we weave, going by its name alone.
+	 *
+	 * @param className The internal name of the class, with slashes. May be <code>null</code>.
+	 *
+	 * @return <code>True</code> if the class is included and not excluded.
+	 */
+	public boolean isIncluded(final String className)
+	{
+		return className != null && startsWithAny(className, _includes) && !startsWithAny(className, _excludes);
+	}
+
+	@Override
+	public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
+			final ProtectionDomain protectionDomain, final byte[] classfileBuffer)
+	{
+		if (!isIncluded(className) || isThoreau(loader, className))
+		{
+			return null;
+		}
+
+		try
+		{
+			final ClassReader classReader = new ClassReader(classfileBuffer);
+			final ResourceClassWriter classWriter = new ResourceClassWriter(classReader, loader);
+			final TimingClassVisitor classVisitor = new TimingClassVisitor(classWriter);
+			classReader.accept(classVisitor, ClassReader.SKIP_FRAMES);
+
+			if (classVisitor.getWovenMethodCount() == 0)
+			{
+				return null;
+			}
+
+			final byte[] woven = classWriter.toByteArray();
+			_wovenClasses.increment();
+			_wovenMethods.add(classVisitor.getWovenMethodCount());
+			return woven;
+		}
+		catch (final Throwable ex)
+		{
+			_failedClasses.increment();
+			return null;
+		}
+	}
+
+	/**
+	 * Indicates whether or not a class is part of the copy of Thoreau the agent itself runs on.
+	 *
+	 * @param loader The loader defining the class.
+	 * @param className The internal name of the class.
+	 *
+	 * @return <code>True</code> if the class must not be woven.
+	 */
+	private static boolean isThoreau(final ClassLoader loader, final String className)
+	{
+		return className.startsWith(THOREAU_PACKAGE) && loader == TimingClassFileTransformer.class.getClassLoader();
+	}
+
+	/**
+	 * Indicates whether or not a name starts with any of the given prefixes.
+	 *
+	 * @param name The name to check.
+	 * @param prefixes The prefixes to check for.
+	 *
+	 * @return <code>True</code> if the name starts with at least one of the prefixes.
+	 */
+	private static boolean startsWithAny(final String name, final String[] prefixes)
+	{
+		for (final String prefix : prefixes)
+		{
+			if (name.startsWith(prefix))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Converts class name prefixes to internal name prefixes.
+	 *
+	 * @param classNames The prefixes, with dots.
+	 *
+	 * @return The prefixes, with slashes.
+	 */
+	private static String[] toInternalNames(final List<String> classNames)
+	{
+		final String[] internalNames = new String[classNames.size()];
+
+		for (int i = 0; i < internalNames.length; i++)
+		{
+			internalNames[i] = classNames.get(i).trim().replace('.', '/');
+		}
+
+		return internalNames;
+	}
+
+	/**
+	 * Converts internal name prefixes back to class name prefixes.
+	 *
+	 * @param internalNames The prefixes, with slashes.
+	 *
+	 * @return The prefixes, with dots.
+	 */
+	private static List<String> toClassNames(final String[] internalNames)
+	{
+		final List<String> classNames = new ArrayList<>(internalNames.length);
+
+		for (final String internalName : internalNames)
+		{
+			classNames.add(internalName.replace('/', '.'));
+		}
+
+		return classNames;
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Weaves timing into every eligible method of a class via {@link
+ * org.epiphanic.instrumentation.performance.TimingMethodAdapter}, registering each with {@link
+ * org.epiphanic.instrumentation.performance.WovenMethodTimer} as it goes. Interfaces are left alone, as are
+ * constructors, static initializers, and abstract, native, synthetic and bridge methods - the last two of which
+ * include lambda bodies and the compiler's forwarding methods, which would otherwise time the same call twice.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class TimingClassVisitor extends ClassVisitor
+{
+	/**
+	 * Holds the access flags that rule a method out.
+	 */
+	private static final int SKIPPED_METHODS = Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_SYNTHETIC
+			| Opcodes.ACC_BRIDGE;
+
+	/**
+	 * Holds the class name, with dots, that our operation names start with.
+	 */
+	private String _className;
+
+	/**
+	 * Indicates whether or not the class is one we weave at all.
+	 */
+	private boolean _weaving;
+
+	/**
+	 * Holds the number of methods woven.
+	 */
+	private int _wovenMethodCount;
+
+	/**
+	 * Creates a visitor writing to the given visitor.
+	 *
+	 * @param classVisitor The visitor to write the woven class to.
+	 */
+	TimingClassVisitor(final ClassVisitor classVisitor)
+	{
+		super(Opcodes.ASM9, classVisitor);
+	}
+
+	/**
+	 * Gets the number of methods woven.
+	 *
+	 * @return The number of methods woven, zero if the class was left alone.
+	 */
+	int getWovenMethodCount()
+	{
+		return _wovenMethodCount;
+	}
+
+	@Override
+	public void visit(final int version, final int access, final String name, final String signature,
+			final String superName, final String[] interfaces)
+	{
+		_className = Type.getObjectType(name).getClassName();
+		_weaving = (access & (Opcodes.ACC_INTERFACE | Opcodes.ACC_ANNOTATION)) == 0;
+		super.visit(version, access, name, signature, superName, interfaces);
+	}
+
+	@Override
+	public MethodVisitor visitMethod(final int access, final String name, final String descriptor,
+			final String signature, final String[] exceptions)
+	{
+		final MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+		if (!_weaving || (access & SKIPPED_METHODS) != 0 || name.startsWith("<"))
+		{
+			return methodVisitor;
+		}
+
+		_wovenMethodCount++;
+		return new TimingMethodAdapter(methodVisitor, access, name, descriptor,
+				WovenMethodTimer.register(describe(name, descriptor)));
+	}
+
+	/**
+	 * Describes a method the way {@link org.epiphanic.instrumentation.performance.OperationDictionary} describes a {@link
+	 * java.lang.reflect.Method}, so the two agree on names.
+	 *
+	 * @param name The method's name.
+	 * @param descriptor The method's descriptor.
+	 *
+	 * @return The method's fully qualified signature.
+	 */
+	private String describe(final String name, final String descriptor)
+	{
+		final StringBuilder operationName = new StringBuilder(_className).append('.').append(name).append('(');
+		final Type[] argumentTypes = Type.getArgumentTypes(descriptor);
+
+		for (int i = 0; i < argumentTypes.length; i++)
+		{
+			if (i > 0)
+			{
+				operationName.append(", ");
+			}
+
+			operationName.append(argumentTypes[i].getClassName());
+		}
+
+		return operationName.append(')').toString();
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Weaves timing into a single method. The woven method reads {@link System#nanoTime()} into a fresh local on entry, and
+ * calls {@link org.epiphanic.instrumentation.performance.WovenMethodTimer#exit(Throwable, int, long)} before each of its
+ * returns. The whole original body is wrapped in a catch-all handler that does the same with whatever was thrown, and
+ * re-throws it, so the method behaves exactly as before.<p/>
+ *
+ * The handler is added after the method's own, so anything the method catches itself never reaches it. The calls made
+ * on the way to each return are left out of its range, so that anything escaping them can't be mistaken for a failure
+ * of the method, recorded a second time and thrown at its caller. Stack map frames are left to the {@link
+ * org.objectweb.asm.ClassWriter} to compute.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class TimingMethodAdapter extends AdviceAdapter
+{
+	/**
+	 * Holds {@link System#nanoTime()}, as woven code calls it.
+	 */
+	private static final Method NANO_TIME = Method.getMethod("long nanoTime()");
+
+	/**
+	 * Holds {@link org.epiphanic.instrumentation.performance.WovenMethodTimer#exit(Throwable, int, long)}, as woven code
+	 * calls it.
+	 */
+	private static final Method EXIT = new Method(WovenMethodTimer.EXIT_METHOD, WovenMethodTimer.EXIT_DESCRIPTOR);
+
+	/**
+	 * Holds the type of {@link java.lang.System}.
+	 */
+	private static final Type SYSTEM = Type.getType(System.class);
+
+	/**
+	 * Holds the type of {@link org.epiphanic.instrumentation.performance.WovenMethodTimer}.
+	 */
+	private static final Type TIMER = Type.getObjectType(WovenMethodTimer.INTERNAL_NAME);
+
+	/**
+	 * Holds the index the method was registered with.
+	 */
+	private final int _wovenId;
+
+	/**
+	 * Holds the start and end of each range of code our handler covers, in pairs.
+	 */
+	private final List<Label> _coveredRanges = new ArrayList<Label>();
+
+	/**
+	 * Marks our handler, and the end of the last range of code it covers.
+	 */
+	private final Label _handler = new Label();
+
+	/**
+	 * Marks the start of the range of code our handler covers that is yet to be ended.
+	 */
+	private Label _rangeStart;
+
+	/**
+	 * Holds the index of the local our start time is kept in.
+	 */
+	private int _startNanos;
+
+	/**
+	 * Creates an adapter for a single method.
+	 *
+	 * @param methodVisitor The visitor to write the woven method to.
+	 * @param access The method's access flags.
+	 * @param name The method's name.
+	 * @param descriptor The method's descriptor.
+	 * @param wovenId The index the method was registered with.
+	 */
+	TimingMethodAdapter(final MethodVisitor methodVisitor, final int access, final String name, final String descriptor,
+			final int wovenId)
+	{
+		super(Opcodes.ASM9, methodVisitor, access, name, descriptor);
+		_wovenId = wovenId;
+	}
+
+	@Override
+	protected void onMethodEnter()
+	{
+		_startNanos = newLocal(Type.LONG_TYPE);
+		invokeStatic(SYSTEM, NANO_TIME);
+		storeLocal(_startNanos);
+		_rangeStart = mark();
+	}
+
+	@Override
+	protected void onMethodExit(final int opcode)
+	{
+		// Throws are left to our handler, which also sees those the method doesn't catch itself.
+		if (opcode != ATHROW)
+		{
+			visitInsn(ACONST_NULL);
+			pushExitArguments();
+
+			// Our handler covers the arguments, so that no range is ever empty, and the return, but not the call.
+			_coveredRanges.add(_rangeStart);
+			_coveredRanges.add(mark());
+			invokeStatic(TIMER, EXIT);
+			_rangeStart = mark();
+		}
+	}
+
+	@Override
+	public void visitMaxs(final int maxStack, final int maxLocals)
+	{
+		_coveredRanges.add(_rangeStart);
+		_coveredRanges.add(_handler);
+
+		for (int i = 0; i < _coveredRanges.size(); i += 2)
+		{
+			visitTryCatchBlock(_coveredRanges.get(i), _coveredRanges.get(i + 1), _handler, "java/lang/Throwable");
+		}
+
+		mark(_handler);
+		dup();
+		pushExitArguments();
+		invokeStatic(TIMER, EXIT);
+		throwException();
+		super.visitMaxs(maxStack, maxLocals);
+	}
+
+	/**
+	 * Pushes the arguments our timer's exit method takes after whatever was thrown, which must already be on the stack.
+	 */
+	private void pushExitArguments()
+	{
+		push(_wovenId);
+		loadLocal(_startNanos);
+	}
+}
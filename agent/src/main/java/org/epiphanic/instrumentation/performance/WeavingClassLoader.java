@@ -0,0 +1,112 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link java.lang.ClassLoader} that defines the classes a {@link
+ * org.epiphanic.instrumentation.performance.TimingClassFileTransformer} includes itself, woven, and leaves every other
+ * class to its parent. This weaves without <code>-javaagent</code>, for plugin-style containers that load code through
+ * a loader of their own, and for tests and benchmarks.<p/>
+ *
+ * Classes it defines are distinct from the parent's copies of the same classes: hand them out through types the
+ * parent defines, such as interfaces.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class WeavingClassLoader extends ClassLoader
+{
+	static
+	{
+		registerAsParallelCapable();
+	}
+
+	/**
+	 * Holds the transformer we weave with.
+	 */
+	private final TimingClassFileTransformer _transformer;
+
+	/**
+	 * Creates a loader weaving the classes the given transformer includes.
+	 *
+	 * @param parent The loader to read class files from, and to delegate every other class to.
+	 * @param transformer The transformer to weave with. Must not be <code>null</code>.
+	 */
+	public WeavingClassLoader(final ClassLoader parent, final TimingClassFileTransformer transformer)
+	{
+		super(parent);
+		_transformer = transformer;
+	}
+
+	@Override
+	protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException
+	{
+		final String internalName = name.replace('.', '/');
+
+		if (!_transformer.isIncluded(internalName))
+		{
+			return super.loadClass(name, resolve);
+		}
+
+		synchronized (getClassLoadingLock(name))
+		{
+			Class<?> loaded = findLoadedClass(name);
+
+			if (loaded == null)
+			{
+				final byte[] classFile = readClassFile(internalName);
+				final byte[] woven = _transformer.transform(this, internalName, null, null, classFile);
+				loaded = woven == null ? defineClass(name, classFile, 0, classFile.length)
+						: defineClass(name, woven, 0, woven.length);
+			}
+
+			if (resolve)
+			{
+				resolveClass(loaded);
+			}
+
+			return loaded;
+		}
+	}
+
+	/**
+	 * Reads a class file from our parent.
+	 *
+	 * @param internalName The internal name of the class.
+	 *
+	 * @return The contents of the class file.
+	 *
+	 * @throws ClassNotFoundException If the class file could not be found or read.
+	 */
+	private byte[] readClassFile(final String internalName) throws ClassNotFoundException
+	{
+		try (InputStream classFile = getParent().getResourceAsStream(internalName + ".class"))
+		{
+			if (classFile == null)
+			{
+				throw new ClassNotFoundException(internalName.replace('/', '.'));
+			}
+
+			final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			int read;
+
+			while ((read = classFile.read(buffer)) != -1)
+			{
+				contents.write(buffer, 0, read);
+			}
+
+			return contents.toByteArray();
+		}
+		catch (final IOException ex)
+		{
+			throw new ClassNotFoundException(internalName.replace('/', '.'), ex);
+		}
+	}
+}
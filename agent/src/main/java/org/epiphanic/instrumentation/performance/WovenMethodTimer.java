@@ -0,0 +1,134 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * The static entry point that code woven by {@link org.epiphanic.instrumentation.performance.TimingClassFileTransformer}
+ * calls on the way out of every instrumented method. Woven methods read {@link System#nanoTime()} themselves on the
+ * way in, so this is the only call they make into Thoreau.<p/>
+ *
+ * Operations are identified by the index their signature was given when the class was woven; the index is a constant
+ * in the woven code. Classes are woven as they load, usually well before any persisted {@link
+ * org.epiphanic.instrumentation.performance.OperationDictionary} could be started, so the index only means anything
+ * within this JVM: {@link org.epiphanic.instrumentation.performance.AgentMetricGatherer} maps it back to the signature,
+ * and through a dictionary of its own if it has one, when it records a call. Until an {@link
+ * org.epiphanic.instrumentation.performance.AgentMetricGatherer} is started, calls cost a clock reading and a volatile
+ * read, and nothing is recorded.<p/>
+ *
+ * This class is public only because woven classes in other packages must be able to call it.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class WovenMethodTimer
+{
+	/**
+	 * Holds the internal name of this class, as woven code refers to it.
+	 */
+	static final String INTERNAL_NAME = "org/epiphanic/instrumentation/performance/WovenMethodTimer";
+
+	/**
+	 * Holds the name of the method woven code calls on exit.
+	 */
+	static final String EXIT_METHOD = "exit";
+
+	/**
+	 * Holds the descriptor of the method woven code calls on exit.
+	 */
+	static final String EXIT_DESCRIPTOR = "(Ljava/lang/Throwable;IJ)V";
+
+	/**
+	 * Holds the index of every woven operation. It is never persisted, so no table can reassign the indices already
+	 * woven into code.
+	 */
+	private static final OperationDictionary WOVEN_OPERATIONS = new OperationDictionary();
+
+	/**
+	 * Holds the gatherer we hand our timings to, if one has been started.
+	 */
+	private static volatile AgentMetricGatherer _metricGatherer;
+
+	/**
+	 * Prevents instantiation; everything here is static.
+	 */
+	private WovenMethodTimer()
+	{
+	}
+
+	/**
+	 * Registers an operation about to be woven.
+	 *
+	 * @param operationName The fully qualified signature of the method, as per {@link
+	 * org.epiphanic.instrumentation.performance.OperationDictionary}.
+	 *
+	 * @return The index to weave into the method.
+	 */
+	static int register(final String operationName)
+	{
+		return WOVEN_OPERATIONS.getOperationId(operationName);
+	}
+
+	/**
+	 * Gets the signature behind the index woven into a method.
+	 *
+	 * @param wovenId The index the method was registered with.
+	 *
+	 * @return The fully qualified signature of the method, or <code>null</code> if no such index was handed out.
+	 */
+	static String getOperationName(final int wovenId)
+	{
+		return WOVEN_OPERATIONS.getOperationName(wovenId);
+	}
+
+	/**
+	 * Makes a gatherer the one our timings are handed to, replacing any other.
+	 *
+	 * @param metricGatherer The gatherer to install. Must not be <code>null</code>.
+	 */
+	static void install(final AgentMetricGatherer metricGatherer)
+	{
+		_metricGatherer = metricGatherer;
+	}
+
+	/**
+	 * Stops handing our timings to a gatherer, if it's still the one installed.
+	 *
+	 * @param metricGatherer The gatherer to uninstall.
+	 */
+	static void uninstall(final AgentMetricGatherer metricGatherer)
+	{
+		if (_metricGatherer == metricGatherer)
+		{
+			_metricGatherer = null;
+		}
+	}
+
+	/**
+	 * Records the completion of a woven method. Called by woven code only. Never throws, not even an {@link Error}: the
+	 * method has already finished, and how it finished is none of our business to change.
+	 *
+	 * @param thrown Whatever the method threw, or <code>null</code> if it returned normally. It's re-thrown by the
+	 * woven code, not here.
+	 * @param wovenId The index the method was registered with.
+	 * @param startNanos The reading of {@link System#nanoTime()} taken when the method was entered.
+	 */
+	public static void exit(final Throwable thrown, final int wovenId, final long startNanos)
+	{
+		try
+		{
+			final long completionNanos = System.nanoTime();
+			final AgentMetricGatherer metricGatherer = _metricGatherer;
+
+			if (metricGatherer != null)
+			{
+				metricGatherer.record(wovenId, startNanos, completionNanos, thrown);
+			}
+		}
+		catch (final Throwable ex)
+		{
+			// The gatherer counts what it can; anything else, such as running out of stack counting it, is dropped.
+		}
+	}
+}
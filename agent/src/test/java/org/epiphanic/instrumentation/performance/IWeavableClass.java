@@ -0,0 +1,47 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Provides an interface for {@link org.epiphanic.instrumentation.performance.WeavableClass}, so that tests can call the
+ * woven copy of the class through a type their own class loader knows.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IWeavableClass
+{
+	/**
+	 * Calculates a fibonacci number by calling itself, which no proxy could see.
+	 *
+	 * @param n The index of the number to calculate.
+	 *
+	 * @return The <code>n</code>th fibonacci number.
+	 */
+	int fibonacciSequenceRecursive(int n);
+
+	/**
+	 * Throws, to be recorded as a failure.
+	 *
+	 * @param message The message to throw with.
+	 */
+	void exceptionThrowingMethod(String message);
+
+	/**
+	 * Throws and catches an exception of its own, to be recorded as a success.
+	 *
+	 * @return The number of exceptions caught.
+	 */
+	int exceptionCatchingMethod();
+
+	/**
+	 * Adds up some numbers via an overload, to be told apart from it.
+	 *
+	 * @param values The numbers to add up.
+	 *
+	 * @return The total.
+	 */
+	double sum(double[] values);
+}
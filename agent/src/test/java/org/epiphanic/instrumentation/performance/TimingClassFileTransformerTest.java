@@ -0,0 +1,283 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests the weaving done by our {@link org.epiphanic.instrumentation.performance.TimingClassFileTransformer}, loading
+ * a woven copy of {@link org.epiphanic.instrumentation.performance.WeavableClass} through a {@link
+ * org.epiphanic.instrumentation.performance.WeavingClassLoader} rather than starting a JVM with the agent.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class TimingClassFileTransformerTest
+{
+	/**
+	 * Holds the name every operation of our woven class starts with.
+	 */
+	private static final String CLASS_NAME = WeavableClass.class.getName();
+
+	/**
+	 * Holds the statistics recorded by our woven class.
+	 */
+	private final List<MethodCallStatistic> _statistics = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Holds the gatherer our woven class reports to.
+	 */
+	private AgentMetricGatherer _metricGatherer;
+
+	/**
+	 * Holds the dictionary our gatherer resolves operations through.
+	 */
+	private OperationDictionary _operationDictionary;
+
+	/**
+	 * Holds the transformer under test.
+	 */
+	private TimingClassFileTransformer _transformer;
+
+	/**
+	 * Holds a woven instance of our class.
+	 */
+	private IWeavableClass _woven;
+
+	/**
+	 * Weaves our class and starts recording what it does.
+	 */
+	@Before
+	public void setUp() throws Exception
+	{
+		// Something other than our woven class has already been given the first ID, as a persisted dictionary would.
+		_operationDictionary = new OperationDictionary();
+		_operationDictionary.getOperationId("com.example.Unrelated.operation()");
+
+		_metricGatherer = new AgentMetricGatherer();
+		_metricGatherer.setStatisticsLogger(_statistics::add);
+		_metricGatherer.setOperationDictionary(_operationDictionary);
+		_metricGatherer.start();
+
+		_transformer = new TimingClassFileTransformer();
+		_transformer.setIncludes(Collections.singletonList(CLASS_NAME));
+
+		final Class<?> woven = new WeavingClassLoader(getClass().getClassLoader(), _transformer).loadClass(CLASS_NAME);
+		Assert.assertNotSame(WeavableClass.class, woven);
+		_woven = (IWeavableClass)woven.newInstance();
+	}
+
+	/**
+	 * Stops recording.
+	 */
+	@After
+	public void tearDown()
+	{
+		_metricGatherer.stop();
+	}
+
+	/**
+	 * Makes sure that every eligible method was woven, and nothing was left to fail.
+	 */
+	@Test
+	public void testWeaving()
+	{
+		Assert.assertEquals(1, _transformer.getWovenClassCount());
+		Assert.assertEquals(5, _transformer.getWovenMethodCount());
+		Assert.assertEquals(0, _transformer.getFailedClassCount());
+		Assert.assertEquals(0, _statistics.size());
+	}
+
+	/**
+	 * Makes sure that calls a class makes to itself are recorded, which a proxy could never do.
+	 */
+	@Test
+	public void testSelfInvocation()
+	{
+		Assert.assertEquals(5, _woven.fibonacciSequenceRecursive(5));
+
+		// fib(5) makes fifteen calls in all.
+		Assert.assertEquals(15, _statistics.size());
+
+		for (final MethodCallStatistic statistic : _statistics)
+		{
+			Assert.assertEquals(CLASS_NAME + ".fibonacciSequenceRecursive(int)", statistic.getOperationName());
+			Assert.assertEquals(statistic.getOperationName(), _operationDictionary.getOperationName(statistic.getOperationId()));
+			Assert.assertTrue(statistic.isOperationSuccessful());
+			Assert.assertTrue(statistic.getDurationNanos() >= 0);
+			Assert.assertNotNull(statistic.getOperationStart());
+		}
+
+		// The outermost call completes last, and covers every other.
+		final MethodCallStatistic outermost = _statistics.get(_statistics.size() - 1);
+
+		for (final MethodCallStatistic statistic : _statistics)
+		{
+			Assert.assertTrue(outermost.getDurationNanos() >= statistic.getDurationNanos());
+		}
+	}
+
+	/**
+	 * Makes sure that a throwing method is recorded as a failure, and still throws exactly what it did before.
+	 */
+	@Test
+	public void testFailure()
+	{
+		try
+		{
+			_woven.exceptionThrowingMethod("Danger Will Robinson.");
+			Assert.fail();
+		}
+		catch (final IllegalStateException ex)
+		{
+			Assert.assertEquals("Danger Will Robinson.", ex.getMessage());
+		}
+
+		Assert.assertEquals(1, _statistics.size());
+		Assert.assertFalse(_statistics.get(0).isOperationSuccessful());
+		Assert.assertEquals(new IllegalStateException("Danger Will Robinson.").toString(), _statistics.get(0).getMetaData());
+	}
+
+	/**
+	 * Makes sure that a failure is rendered by our gatherer's formatter.
+	 */
+	@Test
+	public void testFailureFormatter()
+	{
+		final FailureFormatter failureFormatter = new FailureFormatter();
+		failureFormatter.setMaxLength(20);
+		_metricGatherer.setFailureFormatter(failureFormatter);
+
+		try
+		{
+			_woven.exceptionThrowingMethod("Danger Will Robinson.");
+			Assert.fail();
+		}
+		catch (final IllegalStateException ex)
+		{
+			// Expected.
+		}
+
+		Assert.assertEquals(1, _statistics.size());
+		Assert.assertEquals("java.lang.Illegal...", _statistics.get(0).getMetaData());
+	}
+
+	/**
+	 * Makes sure that an exception a method catches itself doesn't make it a failure.
+	 */
+	@Test
+	public void testCaughtException()
+	{
+		Assert.assertEquals(1, _woven.exceptionCatchingMethod());
+		Assert.assertEquals(2, _statistics.size());
+
+		Assert.assertEquals(CLASS_NAME + ".exceptionThrowingMethod(java.lang.String)", _statistics.get(0).getOperationName());
+		Assert.assertFalse(_statistics.get(0).isOperationSuccessful());
+		Assert.assertEquals(CLASS_NAME + ".exceptionCatchingMethod()", _statistics.get(1).getOperationName());
+		Assert.assertTrue(_statistics.get(1).isOperationSuccessful());
+	}
+
+	/**
+	 * Makes sure that overloads, static methods and wide return types are woven correctly, and told apart.
+	 */
+	@Test
+	public void testOverloads()
+	{
+		Assert.assertEquals(6.0, _woven.sum(new double[] {1.0, 2.0, 3.0}), 0.0);
+		Assert.assertEquals(4, _statistics.size());
+
+		for (int i = 0; i < 3; i++)
+		{
+			Assert.assertEquals(CLASS_NAME + ".sum(double, double)", _statistics.get(i).getOperationName());
+		}
+
+		Assert.assertEquals(CLASS_NAME + ".sum(double[])", _statistics.get(3).getOperationName());
+		Assert.assertFalse(_statistics.get(0).getOperationId() == _statistics.get(3).getOperationId());
+	}
+
+	/**
+	 * Makes sure that a stopped gatherer records nothing, and that the woven code carries on regardless.
+	 */
+	@Test
+	public void testStopped()
+	{
+		_metricGatherer.stop();
+		Assert.assertEquals(1, _woven.exceptionCatchingMethod());
+		Assert.assertEquals(0, _statistics.size());
+	}
+
+	/**
+	 * Makes sure that a logger that throws doesn't break the code being measured.
+	 */
+	@Test
+	public void testFailingLogger()
+	{
+		_metricGatherer.setStatisticsLogger(statistic -> {
+			throw new IllegalStateException("The database is on fire.");
+		});
+
+		Assert.assertEquals(5, _woven.fibonacciSequenceRecursive(5));
+		Assert.assertEquals(15, _metricGatherer.getFailedRecordingCount());
+	}
+
+	/**
+	 * Makes sure that an {@link Error} thrown recording a normal return is neither thrown at the caller nor mistaken for
+	 * a failure of the method, which would record it a second time.
+	 */
+	@Test
+	public void testFailingLoggerError()
+	{
+		_metricGatherer.setStatisticsLogger(statistic -> {
+			throw new AssertionError("The database is on fire, and so is the JVM.");
+		});
+
+		Assert.assertEquals(5, _woven.fibonacciSequenceRecursive(5));
+		Assert.assertEquals(1, _woven.exceptionCatchingMethod());
+		Assert.assertEquals(17, _metricGatherer.getFailedRecordingCount());
+	}
+
+	/**
+	 * Makes sure that agent arguments are understood, and that our own classes are never woven where the agent runs.
+	 */
+	@Test
+	public void testAgentArguments()
+	{
+		final TimingClassFileTransformer transformer = InstrumentationAgent.createTransformer(
+				"include=com.example.service., com.example.dao.;exclude=com.example.dao.generated.,");
+
+		Assert.assertEquals(Arrays.asList("com.example.service.", "com.example.dao."), transformer.getIncludes());
+		Assert.assertTrue(transformer.getExcludes().containsAll(TimingClassFileTransformer.DEFAULT_EXCLUDES));
+		Assert.assertTrue(transformer.getExcludes().contains("com.example.dao.generated."));
+
+		Assert.assertTrue(transformer.isIncluded("com/example/dao/OrderDao"));
+		Assert.assertFalse(transformer.isIncluded("com/example/dao/generated/OrderDaoImpl"));
+		Assert.assertFalse(transformer.isIncluded("com/example/web/OrderController"));
+
+		Assert.assertTrue(InstrumentationAgent.createTransformer(null).getIncludes().isEmpty());
+
+		// Included or not, the agent's own copy of Thoreau is left alone.
+		_transformer.setIncludes(Collections.singletonList("org.epiphanic.instrumentation.performance."));
+		Assert.assertNull(_transformer.transform(getClass().getClassLoader(), WovenMethodTimer.INTERNAL_NAME, null, null,
+				new byte[0]));
+
+		try
+		{
+			InstrumentationAgent.createTransformer("inclued=com.example.");
+			Assert.fail();
+		}
+		catch (final IllegalArgumentException ex)
+		{
+			// Expected.
+		}
+	}
+}
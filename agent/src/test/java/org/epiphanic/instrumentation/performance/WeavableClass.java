@@ -0,0 +1,66 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * This class is never seen by Spring; it's woven by our agent's transformer instead.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class WeavableClass implements IWeavableClass
+{
+	@Override
+	public int fibonacciSequenceRecursive(final int n)
+	{
+		return n < 2 ? n : fibonacciSequenceRecursive(n - 1) + fibonacciSequenceRecursive(n - 2);
+	}
+
+	@Override
+	public void exceptionThrowingMethod(final String message)
+	{
+		throw new IllegalStateException(message);
+	}
+
+	@Override
+	public int exceptionCatchingMethod()
+	{
+		try
+		{
+			exceptionThrowingMethod("Caught before it gets anywhere.");
+			return 0;
+		}
+		catch (final IllegalStateException ex)
+		{
+			return 1;
+		}
+	}
+
+	@Override
+	public double sum(final double[] values)
+	{
+		double total = 0;
+
+		for (final double value : values)
+		{
+			total = sum(total, value);
+		}
+
+		return total;
+	}
+
+	/**
+	 * Adds two numbers.
+	 *
+	 * @param a The first number.
+	 * @param b The second number.
+	 *
+	 * @return The sum of the numbers.
+	 */
+	static double sum(final double a, final double b)
+	{
+		return a + b;
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.List;
+
+/**
+ * The management interface of an aggregating statistics logger, such as <code>AggregatingStatisticsLogger</code>,
+ * exposing the per-operation aggregates of the interval in progress so that they can be watched live rather than only
+ * once they've been written.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IAggregatingLoggerMXBean
+{
+	/**
+	 * Gets how often the logger ends an interval and writes its rollups.
+	 *
+	 * @return The flush interval in milliseconds.
+	 */
+	long getFlushIntervalMillis();
+
+	/**
+	 * Gets the start of the interval in progress.
+	 *
+	 * @return The interval start, in milliseconds since the epoch.
+	 */
+	long getIntervalStartMillis();
+
+	/**
+	 * Gets a live summary of every operation called so far this interval.
+	 *
+	 * @return The aggregates, in no particular order. Will not be <code>null</code>.
+	 */
+	List<IOperationAggregate> getOperationAggregates();
+}
@@ -0,0 +1,102 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * The management interface of an asynchronous statistics logger, such as <code>GenericAsynchronousLogger</code>,
+ * reporting on how well it keeps up: how much is waiting, how long producers spend handing statistics over, how long
+ * write operations take, and how many statistics have been given up on. Alert on these before the logger starts
+ * dropping data.<p/>
+ *
+ * Counters only ever go up, so that monitoring tools can take rates of them. Latencies are in nanoseconds, and their
+ * maxima are kept until {@link #resetLatencyMaxima()} is called.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IAsynchronousLoggerMXBean
+{
+	/**
+	 * Gets the capacity of the logger's own buffer.
+	 *
+	 * @return The number of statistics that may be pending, or zero if the logger leaves any bound to its executor.
+	 */
+	int getCapacity();
+
+	/**
+	 * Gets the number of statistics accepted but not yet handed to a write operation.
+	 *
+	 * @return The approximate queue depth.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * Gets the number of statistics handed to the logger.
+	 *
+	 * @return The number of statistics logged.
+	 */
+	long getEnqueuedStatisticCount();
+
+	/**
+	 * Gets the mean time producers spent handing a statistic to the logger. Loggers may time only a sample of calls.
+	 *
+	 * @return The mean enqueue latency in nanoseconds, or zero if nothing has been logged.
+	 */
+	double getMeanEnqueueNanos();
+
+	/**
+	 * Gets the longest time a producer spent handing a statistic to the logger, among the calls that were timed.
+	 *
+	 * @return The maximum enqueue latency in nanoseconds.
+	 */
+	long getMaxEnqueueNanos();
+
+	/**
+	 * Gets the number of write operations that completed.
+	 *
+	 * @return The number of statistics written.
+	 */
+	long getWrittenStatisticCount();
+
+	/**
+	 * Gets the number of write operations that threw.
+	 *
+	 * @return The number of failed writes.
+	 */
+	long getFailedWriteCount();
+
+	/**
+	 * Gets the mean time taken by a write operation, successful or not.
+	 *
+	 * @return The mean write latency in nanoseconds, or zero if nothing has been written.
+	 */
+	double getMeanWriteNanos();
+
+	/**
+	 * Gets the longest time taken by a write operation.
+	 *
+	 * @return The maximum write latency in nanoseconds.
+	 */
+	long getMaxWriteNanos();
+
+	/**
+	 * Gets the number of statistics given up on, because there was no room for them or the executor rejected them.
+	 *
+	 * @return The number of statistics dropped.
+	 */
+	long getDroppedStatisticCount();
+
+	/**
+	 * Gets the number of statistics aggregated rather than written, because there was no room for them.
+	 *
+	 * @return The number of statistics aggregated.
+	 */
+	long getAggregatedStatisticCount();
+
+	/**
+	 * Starts the latency maxima afresh, so that they reflect only what happens from now on.
+	 */
+	void resetLatencyMaxima();
+}
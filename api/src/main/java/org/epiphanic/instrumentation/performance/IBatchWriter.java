@@ -0,0 +1,28 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.List;
+
+/**
+ * Provides an interface for writing a batch of statistics of type T (unbounded) to some data store in one go. This is
+ * the batch-aware counterpart of {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory}, for data
+ * stores where writing many entities at once is much cheaper than writing them one at a time.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IBatchWriter<T>
+{
+	/**
+	 * Writes the given batch of statistics to the data store. Either the whole batch is written or, if an exception is
+	 * thrown, none of it should be considered written.
+	 *
+	 * @param batch The statistics to write. Must not be <code>null</code>, may be empty.
+	 *
+	 * @throws Exception If the batch could not be written.
+	 */
+	void writeBatch(List<T> batch) throws Exception;
+}
@@ -0,0 +1,79 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * The management interface of a monitored {@link org.epiphanic.instrumentation.performance.IBatchWriter}, reporting on
+ * the batches reaching the data store: how many, how big, how long they take and how many fail.<p/>
+ *
+ * Counters only ever go up, so that monitoring tools can take rates of them. Latencies are in nanoseconds, and maxima
+ * are kept until {@link #resetMaxima()} is called.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IBatchWriterMXBean
+{
+	/**
+	 * Gets the number of batches written successfully.
+	 *
+	 * @return The number of batches written.
+	 */
+	long getWrittenBatchCount();
+
+	/**
+	 * Gets the number of statistics in the batches written successfully.
+	 *
+	 * @return The number of statistics written.
+	 */
+	long getWrittenStatisticCount();
+
+	/**
+	 * Gets the number of batches that failed.
+	 *
+	 * @return The number of failed batches.
+	 */
+	long getFailedBatchCount();
+
+	/**
+	 * Gets the number of statistics in the batches that failed.
+	 *
+	 * @return The number of statistics not written.
+	 */
+	long getFailedStatisticCount();
+
+	/**
+	 * Gets the mean size of the batches written, successfully or not.
+	 *
+	 * @return The mean number of statistics per batch, or zero if there have been no batches.
+	 */
+	double getMeanBatchSize();
+
+	/**
+	 * Gets the size of the largest batch written, successfully or not.
+	 *
+	 * @return The maximum number of statistics in a batch.
+	 */
+	long getMaxBatchSize();
+
+	/**
+	 * Gets the mean time taken to write a batch, successfully or not.
+	 *
+	 * @return The mean write latency in nanoseconds, or zero if there have been no batches.
+	 */
+	double getMeanWriteNanos();
+
+	/**
+	 * Gets the longest time taken to write a batch.
+	 *
+	 * @return The maximum write latency in nanoseconds.
+	 */
+	long getMaxWriteNanos();
+
+	/**
+	 * Starts the maxima afresh, so that they reflect only what happens from now on.
+	 */
+	void resetMaxima();
+}
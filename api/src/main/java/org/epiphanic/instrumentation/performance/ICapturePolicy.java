@@ -0,0 +1,44 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Provides an interface for deciding which method calls get recorded at all. A metric gatherer asks the policy once
+ * before the call, while there is nothing to record yet, and once after, when the outcome is known; a statistic is
+ * only created if the second answer is positive.<p/>
+ *
+ * Policies answer with a sample weight: the number of calls the recorded statistic stands for. A call recorded at a 1%
+ * sampling rate has a weight of 100, so summing the weights of the recorded statistics estimates the number of calls
+ * actually made. A weight of zero means "don't record".<p/>
+ *
+ * Implementations are called on the request path of every instrumented method, so must be thread-safe and cheap.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface ICapturePolicy
+{
+	/**
+	 * Decides, before the call is made, whether it should be recorded.
+	 *
+	 * @param operationName The name of the operation about to be called. Will not be <code>null</code>.
+	 *
+	 * @return The sample weight to record the call with, or zero if the call has not been selected.
+	 */
+	double beforeInvocation(String operationName);
+
+	/**
+	 * Makes the final decision, once the call has completed, as to whether it should be recorded. This gives policies a
+	 * chance to keep calls they passed over beforehand, such as failures.
+	 *
+	 * @param operationName The name of the operation that was called. Will not be <code>null</code>.
+	 * @param durationNanos How long the call took, in nanoseconds.
+	 * @param successful <code>True</code> if the call completed without throwing an exception.
+	 * @param sampleWeight The weight returned by {@link #beforeInvocation(String)} for this call.
+	 *
+	 * @return The sample weight to record the call with, or zero if it should not be recorded.
+	 */
+	double afterInvocation(String operationName, long durationNanos, boolean successful, double sampleWeight);
+}
@@ -0,0 +1,30 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Provides an interface for the time source calls are timed by: a wall clock to anchor each call in time, and a
+ * monotonic clock to measure how long it took. Implementations trade resolution for the cost of a reading.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IClock
+{
+	/**
+	 * Reads the wall clock. Must be thread-safe.
+	 *
+	 * @return The current time in milliseconds since the epoch, as per {@link System#currentTimeMillis()}.
+	 */
+	long currentTimeMillis();
+
+	/**
+	 * Reads the monotonic clock. Must be thread-safe, and never go backwards.
+	 *
+	 * @return The current monotonic time in nanoseconds, as per {@link System#nanoTime()}. Only meaningful relative to
+	 *         another reading of the same clock.
+	 */
+	long nanoTime();
+}
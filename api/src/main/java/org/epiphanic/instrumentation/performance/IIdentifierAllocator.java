@@ -0,0 +1,24 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Provides an interface for handing out unique primary key values to statistics writers that assign their own keys,
+ * rather than leaving them to the data store.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IIdentifierAllocator
+{
+	/**
+	 * Gets the next unique identifier. Implementations must be safe to call from multiple threads.
+	 *
+	 * @return A positive identifier that has never been handed out before.
+	 *
+	 * @throws Exception If a new identifier could not be obtained from the backing store.
+	 */
+	long nextId() throws Exception;
+}
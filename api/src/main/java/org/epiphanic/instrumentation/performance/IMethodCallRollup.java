@@ -0,0 +1,126 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.Date;
+
+/**
+ * Provides an interface for a method call rollup POJO. Summarizes every call to a given operation over an interval of
+ * time - how many calls there were, how many failed, and how their latencies were distributed - in place of one
+ * {@link org.epiphanic.instrumentation.performance.IMethodCallStatistic} per call.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IMethodCallRollup
+{
+	/**
+	 * Gets the unique identifier for the rollup.
+	 *
+	 * @return The unique identifier for the rollup.
+	 */
+	Long getId();
+
+	/**
+	 * Gets the name of the operation summarized.
+	 *
+	 * @return The name of the operation. Will not be <code>null</code>.
+	 */
+	String getOperationName();
+
+	/**
+	 * Gets the start of the interval summarized.
+	 *
+	 * @return The {@link java.util.Date} the interval started. Will not be <code>null</code>.
+	 */
+	Date getIntervalStart();
+
+	/**
+	 * Gets the end of the interval summarized.
+	 *
+	 * @return The {@link java.util.Date} the interval ended. Will not be <code>null</code>.
+	 */
+	Date getIntervalEnd();
+
+	/**
+	 * Gets the number of calls recorded that succeeded.
+	 *
+	 * @return The number of successful calls recorded during the interval.
+	 */
+	long getSuccessCount();
+
+	/**
+	 * Gets the number of calls recorded that failed.
+	 *
+	 * @return The number of failed calls recorded during the interval.
+	 */
+	long getFailureCount();
+
+	/**
+	 * Gets the estimated number of calls actually made, as the sum of the sample weights of the calls recorded. Equal to
+	 * the number of calls recorded when nothing is sampled.
+	 *
+	 * @return The estimated number of calls made during the interval.
+	 */
+	double getEstimatedCallCount();
+
+	/**
+	 * Gets the total time spent in the calls recorded.
+	 *
+	 * @return The sum of the durations of the calls recorded, in nanoseconds.
+	 */
+	long getTotalDurationNanos();
+
+	/**
+	 * Gets the shortest call recorded, to within the precision of the histogram it was recorded in.
+	 *
+	 * @return The shortest duration in nanoseconds.
+	 */
+	long getMinNanos();
+
+	/**
+	 * Gets the longest call recorded, to within the precision of the histogram it was recorded in.
+	 *
+	 * @return The longest duration in nanoseconds.
+	 */
+	long getMaxNanos();
+
+	/**
+	 * Gets the median duration of the calls recorded.
+	 *
+	 * @return The 50th percentile duration in nanoseconds.
+	 */
+	long getP50Nanos();
+
+	/**
+	 * Gets the 90th percentile duration of the calls recorded.
+	 *
+	 * @return The 90th percentile duration in nanoseconds.
+	 */
+	long getP90Nanos();
+
+	/**
+	 * Gets the 99th percentile duration of the calls recorded.
+	 *
+	 * @return The 99th percentile duration in nanoseconds.
+	 */
+	long getP99Nanos();
+
+	/**
+	 * Gets the 99.9th percentile duration of the calls recorded.
+	 *
+	 * @return The 99.9th percentile duration in nanoseconds.
+	 */
+	long getP999Nanos();
+
+	/**
+	 * Gets a mergeable sketch of the durations of the calls recorded, from which any quantile can be read to within a
+	 * known relative error. Sketches from different intervals or nodes can be merged to get quantiles across all of
+	 * them, which the percentile columns alone can't provide.
+	 *
+	 * @return The serialized sketch, or <code>null</code> if none was kept.
+	 */
+	byte[] getLatencySketch();
+}
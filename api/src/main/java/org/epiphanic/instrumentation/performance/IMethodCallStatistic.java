@@ -51,6 +51,15 @@ public interface IMethodCallStatistic
 	 */
 	Date getOperationCompletion();
 
+	/**
+	 * Gets how long the operation took, in nanoseconds. Where the statistic was captured with a monotonic clock this is
+	 * measured directly, and is immune to wall-clock adjustments; otherwise it is derived from {@link
+	 * #getOperationStart()} and {@link #getOperationCompletion()} at millisecond resolution.
+	 *
+	 * @return The duration of the operation in nanoseconds.
+	 */
+	long getDurationNanos();
+
 	/**
 	 * Gets an optional string of metadata about the operation. This may contain information such as an amalgamated
 	 * stack trace (if {@link #isOperationSuccessful()} indicates failure) or custom metadata.
@@ -67,4 +76,13 @@ public interface IMethodCallStatistic
 	 * @return <code>True</code> if the method call under instrumentation succeeded, else <code>false</code>.
 	 */
 	boolean isOperationSuccessful();
+
+	/**
+	 * Gets the number of calls this statistic stands for. Statistics recorded for every call have a weight of one; where
+	 * calls are sampled, each recorded statistic stands for the calls that weren't, so counts should be scaled back up
+	 * by summing weights rather than counting rows.
+	 *
+	 * @return The sample weight of the statistic. At least one for anything recorded.
+	 */
+	double getSampleWeight();
 }
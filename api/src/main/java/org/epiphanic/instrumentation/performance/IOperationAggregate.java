@@ -0,0 +1,65 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * A live summary of the calls to one operation in the current, unfinished interval of an aggregating logger - what
+ * its rollup would say were the interval to end now. Figures are read while calls are still being recorded, so they
+ * are approximate, and needn't agree with each other exactly.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IOperationAggregate
+{
+	/**
+	 * Gets the name of the operation.
+	 *
+	 * @return The operation name.
+	 */
+	String getOperationName();
+
+	/**
+	 * Gets the number of successful calls recorded so far this interval.
+	 *
+	 * @return The success count.
+	 */
+	long getSuccessCount();
+
+	/**
+	 * Gets the number of failed calls recorded so far this interval.
+	 *
+	 * @return The failure count.
+	 */
+	long getFailureCount();
+
+	/**
+	 * Gets the number of calls the recorded calls stand for, once sampling is taken into account.
+	 *
+	 * @return The estimated call count.
+	 */
+	double getEstimatedCallCount();
+
+	/**
+	 * Gets the mean duration of the calls recorded so far this interval.
+	 *
+	 * @return The mean duration in nanoseconds.
+	 */
+	double getMeanNanos();
+
+	/**
+	 * Gets the longest duration recorded so far this interval.
+	 *
+	 * @return The maximum duration in nanoseconds.
+	 */
+	long getMaxNanos();
+
+	/**
+	 * Gets the 99th percentile of the durations recorded so far this interval.
+	 *
+	 * @return The 99th percentile duration in nanoseconds.
+	 */
+	long getP99Nanos();
+}
@@ -0,0 +1,21 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Provides an interface for statistics that may be handed out from, and returned to, a pool rather than being left for
+ * the garbage collector. Writers call {@link #recycle()} once the data store no longer holds any reference to the
+ * statistic; after that point, the writer must not touch the statistic again.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IRecyclable
+{
+	/**
+	 * Returns the statistic to whatever pool it came from, if any. Statistics that didn't come from a pool ignore this.
+	 */
+	void recycle();
+}
@@ -0,0 +1,22 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Provides an interface for a sampling strategy applied to the calls of a single operation, such as a fixed
+ * probability or a rate limit. Used by capture policies to decide which calls to record.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface ISampler
+{
+	/**
+	 * Decides whether the current call is selected, and if so how many calls it stands for. Must be thread-safe.
+	 *
+	 * @return The sample weight of the call if selected (at least one), or zero if not.
+	 */
+	double sample();
+}
@@ -0,0 +1,25 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * A trivial implementation of {@link org.epiphanic.instrumentation.performance.IBenchmarkTarget}: a few arithmetic
+ * operations, cheap enough that instrumentation overhead dominates, but not so cheap the JIT can drop the call.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class BenchmarkTarget implements IBenchmarkTarget
+{
+	@Override
+	public long compute(final long input)
+	{
+		long x = input;
+		x ^= x << 13;
+		x ^= x >>> 7;
+		x ^= x << 17;
+		return x;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures both sides of the trade a {@link org.epiphanic.instrumentation.performance.CachedClock} makes against the
+ * {@link org.epiphanic.instrumentation.performance.SystemClock}:
+ * <ul>
+ * <li><code>nanoTime</code> and <code>currentTimeMillis</code>: the cost of a reading, which is what every
+ * instrumented call pays twice;</li>
+ * <li><code>resolution</code>: how long it takes for a reading to change, which is the smallest duration that can be
+ * told apart from zero.</li>
+ * </ul>
+ * The clocks are <code>system</code>, and <code>cached</code> ticking every {@link #_tickMicros} microseconds. A cached
+ * clock's resolution is its tick plus however long its ticker waits to be scheduled, so run with <code>-t</code> set
+ * to the number of threads the application really has busy: readers spinning on every core will delay the ticker.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ClockBenchmark
+{
+	/**
+	 * Holds the clock being measured; see the class documentation.
+	 */
+	@Param({"system", "cached"})
+	private String _clockType;
+
+	/**
+	 * Holds the tick interval of the cached clock, in microseconds. Ignored for the system clock.
+	 */
+	@Param({"100", "1000"})
+	private long _tickMicros;
+
+	/**
+	 * Holds the clock under test.
+	 */
+	private IClock _clock;
+
+	/**
+	 * Creates and starts our clock.
+	 */
+	@Setup
+	public void setUp()
+	{
+		if ("cached".equals(_clockType))
+		{
+			final CachedClock clock = new CachedClock();
+			clock.setTickMicros(_tickMicros);
+			clock.start();
+			_clock = clock;
+		}
+		else
+		{
+			_clock = SystemClock.INSTANCE;
+		}
+	}
+
+	/**
+	 * Stops our clock, if it needs stopping.
+	 *
+	 * @throws InterruptedException If interrupted waiting for the ticker.
+	 */
+	@TearDown
+	public void tearDown() throws InterruptedException
+	{
+		if (_clock instanceof CachedClock)
+		{
+			((CachedClock)_clock).stop();
+		}
+	}
+
+	/**
+	 * Takes one monotonic reading.
+	 *
+	 * @return The reading.
+	 */
+	@Benchmark
+	public long nanoTime()
+	{
+		return _clock.nanoTime();
+	}
+
+	/**
+	 * Takes one wall-clock reading.
+	 *
+	 * @return The reading.
+	 */
+	@Benchmark
+	public long currentTimeMillis()
+	{
+		return _clock.currentTimeMillis();
+	}
+
+	/**
+	 * Waits for the monotonic reading to change, so that the time per operation is the clock's effective resolution.
+	 *
+	 * @return The new reading.
+	 */
+	@Benchmark
+	public long resolution()
+	{
+		final long start = _clock.nanoTime();
+		long reading = start;
+
+		while (reading == start)
+		{
+			reading = _clock.nanoTime();
+		}
+
+		return reading;
+	}
+}
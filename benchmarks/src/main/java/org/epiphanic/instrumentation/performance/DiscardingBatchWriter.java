@@ -0,0 +1,29 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.List;
+
+/**
+ * An implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter} that throws batches away,
+ * recycling whatever can be recycled as a real writer would.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class DiscardingBatchWriter<T> implements IBatchWriter<T>
+{
+	@Override
+	public void writeBatch(final List<T> batch)
+	{
+		for (final T entity : batch)
+		{
+			if (entity instanceof IRecyclable)
+			{
+				((IRecyclable)entity).recycle();
+			}
+		}
+	}
+}
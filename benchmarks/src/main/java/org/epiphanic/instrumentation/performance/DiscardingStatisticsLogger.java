@@ -0,0 +1,47 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.Callable;
+
+/**
+ * An implementation of {@link org.epiphanic.instrumentation.performance.IStatisticsLogger} and {@link
+ * org.epiphanic.instrumentation.performance.IWriteOperationFactory} that throws statistics away, recycling them as a
+ * real writer would. Lets benchmarks measure one stage of the pipeline without the cost of the stages after it.<p/>
+ *
+ * As a write operation factory, statistics are recycled as soon as their (shared, empty) write operation is created,
+ * so only use it with unpooled statistics there.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class DiscardingStatisticsLogger implements IStatisticsLogger<MethodCallStatistic>,
+		IWriteOperationFactory<MethodCallStatistic>
+{
+	/**
+	 * Holds our write operation. It does nothing, so one serves for every statistic.
+	 */
+	private static final Callable<Void> NO_OP = new Callable<Void>()
+	{
+		@Override
+		public Void call()
+		{
+			return null;
+		}
+	};
+
+	@Override
+	public void writeStatistic(final MethodCallStatistic statistic)
+	{
+		statistic.recycle();
+	}
+
+	@Override
+	public Callable<Void> createWriteOperation(final MethodCallStatistic statisticsEntity)
+	{
+		statisticsEntity.recycle();
+		return NO_OP;
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many statistics per second a {@link org.epiphanic.instrumentation.performance.RollingFileBatchWriter}
+ * can write on a single thread, in each {@link org.epiphanic.instrumentation.performance.StatisticFileFormat}, to a
+ * scratch directory that is deleted afterwards. Each invocation writes a batch of {@link #BATCH_SIZE} statistics; the
+ * same statistics are written every time, since unpooled statistics are left alone when recycled, so that what's
+ * measured is encoding and writing rather than creating them. Files roll every 64MB, uncompressed.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FileWriterBenchmark
+{
+	/**
+	 * Holds the number of statistics written per invocation.
+	 */
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * Holds the format being measured.
+	 */
+	@Param({"NDJSON", "CSV"})
+	private StatisticFileFormat _format;
+
+	/**
+	 * Holds our scratch directory.
+	 */
+	private File _directory;
+
+	/**
+	 * Holds the writer under test.
+	 */
+	private RollingFileBatchWriter _writer;
+
+	/**
+	 * Holds the batch we write over and over.
+	 */
+	private final List<MethodCallStatistic> _batch = new ArrayList<>(BATCH_SIZE);
+
+	/**
+	 * Creates our scratch directory, writer and statistics.
+	 *
+	 * @throws IOException If the directory could not be created.
+	 */
+	@Setup
+	public void setUp() throws IOException
+	{
+		_directory = Files.createTempDirectory("thoreau-file-benchmark").toFile();
+
+		_writer = new RollingFileBatchWriter();
+		_writer.setDirectory(_directory);
+		_writer.setFormat(_format);
+		_writer.setMaxFileSizeBytes(64L * 1024 * 1024);
+
+		final long now = System.currentTimeMillis();
+
+		for (int i = 0; i < BATCH_SIZE; i++)
+		{
+			final MethodCallStatistic statistic = new MethodCallStatistic();
+			statistic.setOperationName("com.example.service.OrderService.placeOrder");
+			statistic.markOperationStart(now, 0L);
+			statistic.markOperationCompletion(1000L + i);
+			statistic.setOperationSuccessful(true);
+			_batch.add(statistic);
+		}
+	}
+
+	/**
+	 * Closes our writer and deletes everything it wrote.
+	 *
+	 * @throws Exception If the writer could not be closed.
+	 */
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		_writer.stop();
+
+		for (final File file : _directory.listFiles())
+		{
+			Files.delete(file.toPath());
+		}
+
+		Files.delete(_directory.toPath());
+	}
+
+	/**
+	 * Writes a batch of statistics.
+	 *
+	 * @throws Exception If the write failed.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void write() throws Exception
+	{
+		_writer.writeBatch(_batch);
+	}
+}
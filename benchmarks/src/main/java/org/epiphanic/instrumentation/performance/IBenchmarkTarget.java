@@ -0,0 +1,24 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Provides an interface for the method our benchmarks instrument, so that it can be proxied the way an application's
+ * services would be.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public interface IBenchmarkTarget
+{
+	/**
+	 * Does a small, fixed amount of work.
+	 *
+	 * @param input Something to work on, so the work can't be constant-folded.
+	 *
+	 * @return The result of the work.
+	 */
+	long compute(long input);
+}
@@ -0,0 +1,241 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.aop.framework.ProxyFactory;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what {@link org.epiphanic.instrumentation.performance.AOPMetricGatherer} costs per call. Every mode calls
+ * the same trivial {@link org.epiphanic.instrumentation.performance.BenchmarkTarget}; statistics go to a {@link
+ * org.epiphanic.instrumentation.performance.DiscardingStatisticsLogger}, so only the capture path is measured. The
+ * modes are:
+ * <ul>
+ * <li><code>raw</code>: a plain call, as the baseline;</li>
+ * <li><code>proxy</code>: a Spring proxy with no interceptors, to separate the cost of proxying from ours;</li>
+ * <li><code>instrumented</code>: a Spring proxy with our interceptor, allocating a statistic per call;</li>
+ * <li><code>pooled</code>: as above, with statistics taken from a {@link
+ * org.epiphanic.instrumentation.performance.MethodCallStatisticPool};</li>
+ * <li><code>sampled</code>: as above, recording one call in a hundred via a {@link
+ * org.epiphanic.instrumentation.performance.SamplingCapturePolicy};</li>
+ * <li><code>tail</code>: as above, forwarding only calls slower than a millisecond via a {@link
+ * org.epiphanic.instrumentation.performance.TailCapturePolicy};</li>
+ * <li><code>cachedClock</code>: as <code>pooled</code>, timed by a {@link
+ * org.epiphanic.instrumentation.performance.CachedClock} ticking every millisecond rather than by the system clock;
+ * </li>
+ * <li><code>failing</code>: as <code>pooled</code>, with every call throwing an exception with a four kilobyte message,
+ * as a database error might; the logger discards the statistic without reading its metadata, so this is what an error
+ * storm costs the failing calls themselves;</li>
+ * <li><code>woven</code>: no proxy at all, the target's bytecode woven by a {@link
+ * org.epiphanic.instrumentation.performance.TimingClassFileTransformer} and reporting to an {@link
+ * org.epiphanic.instrumentation.performance.AgentMetricGatherer}, as <code>-javaagent</code> would;</li>
+ * <li><code>wovenPooled</code>: as above, with statistics taken from a pool.</li>
+ * </ul>
+ * Compare <code>woven</code> against <code>instrumented</code>, and <code>wovenPooled</code> against
+ * <code>pooled</code>, for what weaving saves over the proxy's reflective invocation chain.
+ * Run with <code>-prof gc</code> to compare allocation per call (<code>gc.alloc.rate.norm</code>) across modes.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class InterceptorBenchmark
+{
+	/**
+	 * Holds the mode being measured; see the class documentation.
+	 */
+	@Param({"raw", "proxy", "instrumented", "pooled", "sampled", "tail", "cachedClock", "failing", "woven", "wovenPooled"})
+	private String _mode;
+
+	/**
+	 * Holds the exception our target throws, in the <code>failing</code> mode. It's made once, so that only our cost of
+	 * recording it is measured.
+	 */
+	private static final IllegalStateException FAILURE = createFailure();
+
+	/**
+	 * Holds the target we call, proxied or not depending on the mode.
+	 */
+	private IBenchmarkTarget _target;
+
+	/**
+	 * Holds the input to our calls, changed every call.
+	 */
+	private long _input = 1;
+
+	/**
+	 * Holds the gatherer our woven target reports to, in the woven modes.
+	 */
+	private AgentMetricGatherer _agentMetricGatherer;
+
+	/**
+	 * Holds the clock our interceptor reads, in the <code>cachedClock</code> mode.
+	 */
+	private CachedClock _cachedClock;
+
+	/**
+	 * Builds our target for the mode being measured.
+	 */
+	@Setup
+	public void setUp() throws Exception
+	{
+		final IBenchmarkTarget target = "failing".equals(_mode) ? new IBenchmarkTarget()
+		{
+			@Override
+			public long compute(final long input)
+			{
+				throw FAILURE;
+			}
+		} : new BenchmarkTarget();
+
+		if ("raw".equals(_mode))
+		{
+			_target = target;
+			return;
+		}
+
+		if (_mode.startsWith("woven"))
+		{
+			_agentMetricGatherer = new AgentMetricGatherer();
+			_agentMetricGatherer.setStatisticsLogger(new DiscardingStatisticsLogger());
+
+			if ("wovenPooled".equals(_mode))
+			{
+				_agentMetricGatherer.setStatisticPool(createPool());
+			}
+
+			_agentMetricGatherer.start();
+
+			final TimingClassFileTransformer transformer = new TimingClassFileTransformer();
+			transformer.setIncludes(Collections.singletonList(BenchmarkTarget.class.getName()));
+			_target = (IBenchmarkTarget)new WeavingClassLoader(getClass().getClassLoader(), transformer)
+					.loadClass(BenchmarkTarget.class.getName()).newInstance();
+			return;
+		}
+
+		final ProxyFactory proxyFactory = new ProxyFactory(target);
+		proxyFactory.addInterface(IBenchmarkTarget.class);
+
+		if (!"proxy".equals(_mode))
+		{
+			final AOPMetricGatherer metricGatherer = new AOPMetricGatherer();
+			metricGatherer.setStatisticsLogger(new DiscardingStatisticsLogger());
+
+			if ("pooled".equals(_mode) || "failing".equals(_mode))
+			{
+				metricGatherer.setStatisticPool(createPool());
+			}
+			else if ("cachedClock".equals(_mode))
+			{
+				_cachedClock = new CachedClock();
+				_cachedClock.start();
+				metricGatherer.setStatisticPool(createPool());
+				metricGatherer.setClock(_cachedClock);
+			}
+			else if ("sampled".equals(_mode))
+			{
+				final SamplingCapturePolicy capturePolicy = new SamplingCapturePolicy();
+				capturePolicy.setDefaultSampler(new ProbabilisticSampler(0.01));
+				metricGatherer.setCapturePolicy(capturePolicy);
+			}
+			else if ("tail".equals(_mode))
+			{
+				final TailCapturePolicy capturePolicy = new TailCapturePolicy();
+				capturePolicy.setThresholdsMillis(Collections.singletonMap("compute", 1L));
+				metricGatherer.setCapturePolicy(capturePolicy);
+			}
+
+			proxyFactory.addAdvice(metricGatherer);
+		}
+
+		_target = (IBenchmarkTarget)proxyFactory.getProxy();
+	}
+
+	/**
+	 * Stops our woven target reporting, and our cached clock ticking, if we have them.
+	 *
+	 * @throws InterruptedException If interrupted waiting for the clock's ticker.
+	 */
+	@TearDown
+	public void tearDown() throws InterruptedException
+	{
+		if (_agentMetricGatherer != null)
+		{
+			_agentMetricGatherer.stop();
+		}
+
+		if (_cachedClock != null)
+		{
+			_cachedClock.stop();
+		}
+	}
+
+	/**
+	 * Makes one call to our target.
+	 *
+	 * @return The result of the call, so that it isn't optimized away.
+	 */
+	@Benchmark
+	public long call()
+	{
+		try
+		{
+			return _target.compute(_input++);
+		}
+		catch (final IllegalStateException ex)
+		{
+			return _input;
+		}
+	}
+
+	/**
+	 * Creates the exception our failing target throws: one with a long message, such as a database error with the
+	 * offending statement in it.
+	 *
+	 * @return A new {@link IllegalStateException}.
+	 */
+	private static IllegalStateException createFailure()
+	{
+		final StringBuilder message = new StringBuilder("ORA-00001: unique constraint violated:");
+
+		while (message.length() < 4096)
+		{
+			message.append(" INSERT INTO ORDERS (ORDER_ID, CUSTOMER_ID) VALUES (?, ?);");
+		}
+
+		return new IllegalStateException(message.toString());
+	}
+
+	/**
+	 * Creates a pool of statistics, ready filled.
+	 *
+	 * @return A prefilled {@link org.epiphanic.instrumentation.performance.MethodCallStatisticPool}.
+	 */
+	private static MethodCallStatisticPool createPool()
+	{
+		final MethodCallStatisticPool pool = new MethodCallStatisticPool(1024);
+		pool.prefill(1024);
+		return pool;
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link org.epiphanic.instrumentation.performance.IStatisticsLogger#writeStatistic(Object)} throughput at 1,
+ * 4, 16 and 64 producer threads - that is, how fast request threads can hand statistics off. Write operations are
+ * discarded, so this is the cost of the hand-off alone. The loggers are:
+ * <ul>
+ * <li><code>executor</code>: a {@link org.epiphanic.instrumentation.performance.MethodCallAsynchronousLogger} with no
+ * buffer of its own, submitting each write straight to a single-threaded executor. The executor's queue is bounded at
+ * the ring buffer's default capacity, with callers running the write themselves when it's full, so that it applies
+ * back-pressure like the ring buffer does instead of growing without bound for the length of the run;</li>
+ * <li><code>ringBuffer</code>: a {@link org.epiphanic.instrumentation.performance.MethodCallRingBufferLogger},
+ * blocking producers when full rather than dropping, for the same reason;</li>
+ * <li><code>aggregating</code>: an {@link org.epiphanic.instrumentation.performance.AggregatingStatisticsLogger},
+ * flushing to nowhere once a second.</li>
+ * </ul>
+ *
+ * @author Greg Feigenson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LoggerBenchmark
+{
+	/**
+	 * Holds the logger being measured; see the class documentation.
+	 */
+	@Param({"executor", "ringBuffer", "aggregating"})
+	private String _logger;
+
+	/**
+	 * Holds our logger.
+	 */
+	private IStatisticsLogger<MethodCallStatistic> _statisticsLogger;
+
+	/**
+	 * Holds the executor behind our executor-based logger, if that's what we're measuring.
+	 */
+	private ExecutorService _executor;
+
+	/**
+	 * Holds our ring-buffer logger, if that's what we're measuring.
+	 */
+	private MethodCallRingBufferLogger _ringBufferLogger;
+
+	/**
+	 * Holds our aggregating logger, if that's what we're measuring.
+	 */
+	private AggregatingStatisticsLogger _aggregatingLogger;
+
+	/**
+	 * Builds and starts the logger being measured.
+	 */
+	@Setup
+	public void setUp()
+	{
+		final DiscardingStatisticsLogger discard = new DiscardingStatisticsLogger();
+
+		if ("executor".equals(_logger))
+		{
+			_executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(RingBufferAsynchronousLogger.DEFAULT_CAPACITY),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+
+			final MethodCallAsynchronousLogger logger = new MethodCallAsynchronousLogger();
+			logger.setCapacity(0);
+			logger.setMessageProcessor(_executor);
+			logger.setWriteOperationFactory(discard);
+			_statisticsLogger = logger;
+		}
+		else if ("ringBuffer".equals(_logger))
+		{
+			_ringBufferLogger = new MethodCallRingBufferLogger();
+			_ringBufferLogger.setWriteOperationFactory(discard);
+			_ringBufferLogger.setOverflowPolicy(OverflowPolicy.BLOCK);
+			_ringBufferLogger.setBlockTimeoutMillis(1000);
+			_ringBufferLogger.start();
+			_statisticsLogger = _ringBufferLogger;
+		}
+		else
+		{
+			_aggregatingLogger = new AggregatingStatisticsLogger();
+			_aggregatingLogger.setFlushIntervalMillis(1000);
+			_aggregatingLogger.setRollupWriter(new DiscardingBatchWriter<MethodCallRollup>());
+			_aggregatingLogger.start();
+			_statisticsLogger = _aggregatingLogger;
+		}
+	}
+
+	/**
+	 * Stops whatever we started.
+	 *
+	 * @throws Exception If the logger could not be stopped cleanly.
+	 */
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		if (_executor != null)
+		{
+			_executor.shutdown();
+			_executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+
+		if (_ringBufferLogger != null)
+		{
+			_ringBufferLogger.stop();
+		}
+
+		if (_aggregatingLogger != null)
+		{
+			_aggregatingLogger.stop();
+		}
+	}
+
+	/**
+	 * Writes one statistic from a single producer thread.
+	 */
+	@Benchmark
+	@Threads(1)
+	public void producers01()
+	{
+		writeStatistic();
+	}
+
+	/**
+	 * Writes one statistic from each of four producer threads.
+	 */
+	@Benchmark
+	@Threads(4)
+	public void producers04()
+	{
+		writeStatistic();
+	}
+
+	/**
+	 * Writes one statistic from each of sixteen producer threads.
+	 */
+	@Benchmark
+	@Threads(16)
+	public void producers16()
+	{
+		writeStatistic();
+	}
+
+	/**
+	 * Writes one statistic from each of sixty-four producer threads.
+	 */
+	@Benchmark
+	@Threads(64)
+	public void producers64()
+	{
+		writeStatistic();
+	}
+
+	/**
+	 * Creates a statistic the way our interceptor would, and hands it to our logger.
+	 */
+	private void writeStatistic()
+	{
+		final long now = System.nanoTime();
+		final MethodCallStatistic statistic = new MethodCallStatistic();
+		statistic.setOperationName("compute");
+		statistic.markOperationStart(System.currentTimeMillis(), now);
+		statistic.markOperationCompletion(now + 1000);
+		statistic.setOperationSuccessful(true);
+
+		_statisticsLogger.writeStatistic(statistic);
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.hibernate.SessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.orm.hibernate3.annotation.AnnotationSessionFactoryBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many statistics per second our writers can persist to an embedded, in-memory HSQLDB, so that runs are
+ * reproducible without a database server. Each invocation writes {@link #BATCH_SIZE} freshly created statistics, and
+ * scores are per statistic. The writers are:
+ * <ul>
+ * <li><code>perEntity</code>: a {@link org.epiphanic.instrumentation.performance.HibernateWriteOperation} per
+ * statistic, each with its own session and transaction, as {@link
+ * org.epiphanic.instrumentation.performance.HibernateWriteOperationFactory} does by default;</li>
+ * <li><code>statelessBatch</code>: a {@link org.epiphanic.instrumentation.performance.HibernateStatelessBatchWriter};
+ * </li>
+ * <li><code>jdbcBatch</code>: a {@link org.epiphanic.instrumentation.performance.JdbcBatchWriter}.</li>
+ * </ul>
+ * The table is emptied before each iteration. Run with <code>-prof gc</code> to compare allocation per statistic.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class WriterBenchmark
+{
+	/**
+	 * Holds the number of statistics written per invocation.
+	 */
+	private static final int BATCH_SIZE = 100;
+
+	/**
+	 * Holds the writer being measured; see the class documentation.
+	 */
+	@Param({"perEntity", "statelessBatch", "jdbcBatch"})
+	private String _writer;
+
+	/**
+	 * Holds our connection pool.
+	 */
+	private BasicDataSource _dataSource;
+
+	/**
+	 * Holds the factory bean behind our session factory, so that we can close it down.
+	 */
+	private AnnotationSessionFactoryBean _sessionFactoryBean;
+
+	/**
+	 * Holds our factory for per-entity writes.
+	 */
+	private HibernateWriteOperationFactory _writeOperationFactory;
+
+	/**
+	 * Holds the batch writer being measured, if it's a batch writer.
+	 */
+	private IBatchWriter<MethodCallStatistic> _batchWriter;
+
+	/**
+	 * Holds a template for clearing out our table.
+	 */
+	private JdbcTemplate _jdbcTemplate;
+
+	/**
+	 * Sets up our database, schema and writers.
+	 *
+	 * @throws Exception If the session factory could not be built.
+	 */
+	@Setup
+	public void setUp() throws Exception
+	{
+		_dataSource = new BasicDataSource();
+		_dataSource.setDriverClassName("org.hsqldb.jdbcDriver");
+		_dataSource.setUrl("jdbc:hsqldb:mem:writer-benchmark");
+		_dataSource.setUsername("sa");
+		_dataSource.setPassword("");
+
+		final Properties hibernateProperties = new Properties();
+		hibernateProperties.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect");
+		hibernateProperties.setProperty("hibernate.hbm2ddl.auto", "create");
+		hibernateProperties.setProperty("hibernate.jdbc.batch_size", String.valueOf(BATCH_SIZE));
+
+		_sessionFactoryBean = new AnnotationSessionFactoryBean();
+		_sessionFactoryBean.setDataSource(_dataSource);
+		_sessionFactoryBean.setAnnotatedClasses(new Class<?>[] {MethodCallStatistic.class});
+		_sessionFactoryBean.setHibernateProperties(hibernateProperties);
+		_sessionFactoryBean.afterPropertiesSet();
+
+		final SessionFactory sessionFactory = _sessionFactoryBean.getObject();
+
+		_writeOperationFactory = new HibernateWriteOperationFactory();
+		_writeOperationFactory.setSessionFactory(sessionFactory);
+
+		if ("statelessBatch".equals(_writer))
+		{
+			final HibernateStatelessBatchWriter<MethodCallStatistic> batchWriter = new HibernateStatelessBatchWriter<>();
+			batchWriter.setSessionFactory(sessionFactory);
+			_batchWriter = batchWriter;
+		}
+		else if ("jdbcBatch".equals(_writer))
+		{
+			final JdbcBatchWriter batchWriter = new JdbcBatchWriter();
+			batchWriter.setDataSource(_dataSource);
+			_batchWriter = batchWriter;
+		}
+
+		_jdbcTemplate = new JdbcTemplate(_dataSource);
+	}
+
+	/**
+	 * Empties our table, so every iteration starts from the same place.
+	 */
+	@Setup(Level.Iteration)
+	public void clearTable()
+	{
+		_jdbcTemplate.update("delete from METHOD_PERFORMANCE");
+	}
+
+	/**
+	 * Closes down our database.
+	 *
+	 * @throws Exception If anything could not be closed cleanly.
+	 */
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		_sessionFactoryBean.destroy();
+		_jdbcTemplate.execute("shutdown");
+		_dataSource.close();
+	}
+
+	/**
+	 * Writes a batch's worth of statistics.
+	 *
+	 * @throws Exception If the write failed.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void write() throws Exception
+	{
+		final List<MethodCallStatistic> batch = new ArrayList<>(BATCH_SIZE);
+		final long now = System.currentTimeMillis();
+
+		for (int i = 0; i < BATCH_SIZE; i++)
+		{
+			final MethodCallStatistic statistic = new MethodCallStatistic();
+			statistic.setOperationName("compute");
+			statistic.markOperationStart(now, 0L);
+			statistic.markOperationCompletion(1000L + i);
+			statistic.setOperationSuccessful(true);
+			statistic.setMetaData("benchmark");
+			batch.add(statistic);
+		}
+
+		if (_batchWriter != null)
+		{
+			_batchWriter.writeBatch(batch);
+			return;
+		}
+
+		for (final MethodCallStatistic statistic : batch)
+		{
+			_writeOperationFactory.createWriteOperation(statistic).call();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how many statistics per second make it through a {@link
+ * org.epiphanic.instrumentation.performance.GenericAsynchronousLogger}, a {@link
+ * org.epiphanic.instrumentation.performance.BatchingWriteOperationFactory} and a {@link
+ * org.epiphanic.instrumentation.performance.ConnectionLimitingBatchWriter} to a data store that takes {@link
+ * #_latencyMicros} to write each batch - time spent blocked, as on a JDBC round trip, rather than computing. The
+ * executors running the write operations are:
+ * <ul>
+ * <li><code>fixed</code>: a fixed pool of as many platform threads as there are connections, as one would hand-tune;
+ * </li>
+ * <li><code>virtual</code>: {@link WriterExecutors#newWriterExecutor(int)}, a virtual thread per write operation - on
+ * a JVM without virtual threads, this falls back to the same fixed pool.</li>
+ * </ul>
+ * Each invocation logs {@link #STATISTICS} statistics and waits for every one of them to be written.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class WriterPoolBenchmark
+{
+	/**
+	 * Holds the number of statistics logged per invocation.
+	 */
+	private static final int STATISTICS = 1000;
+
+	/**
+	 * Holds the number of statistics per batch.
+	 */
+	private static final int BATCH_SIZE = 10;
+
+	/**
+	 * Holds the executor being measured; see the class documentation.
+	 */
+	@Param({"fixed", "virtual"})
+	private String _executor;
+
+	/**
+	 * Holds the number of batches that may be written at once.
+	 */
+	@Param({"8"})
+	private int _connections;
+
+	/**
+	 * Holds how long each batch takes to write, in microseconds.
+	 */
+	@Param({"500"})
+	private int _latencyMicros;
+
+	/**
+	 * Holds the executor running our write operations.
+	 */
+	private ExecutorService _messageProcessor;
+
+	/**
+	 * Holds the logger under test.
+	 */
+	private GenericAsynchronousLogger<MethodCallStatistic> _logger;
+
+	/**
+	 * Holds the number of statistics written so far.
+	 */
+	private final AtomicLong _written = new AtomicLong();
+
+	/**
+	 * Holds the statistic we log over and over; nothing downstream keeps it.
+	 */
+	private final MethodCallStatistic _statistic = new MethodCallStatistic();
+
+	/**
+	 * Wires up our logger and writers.
+	 */
+	@Setup
+	public void setUp()
+	{
+		_messageProcessor = "virtual".equals(_executor) ? WriterExecutors.newWriterExecutor(_connections)
+				: WriterExecutors.newFixedWriterExecutor(_connections);
+
+		final ConnectionLimitingBatchWriter<MethodCallStatistic> connectionLimitingWriter =
+				new ConnectionLimitingBatchWriter<>();
+		connectionLimitingWriter.setMaxConcurrentWrites(_connections);
+		connectionLimitingWriter.setBatchWriter(new BlockingBatchWriter(_latencyMicros, _written));
+
+		final BatchingWriteOperationFactory<MethodCallStatistic> writeOperationFactory =
+				new BatchingWriteOperationFactory<>();
+		writeOperationFactory.setBatchSize(BATCH_SIZE);
+		writeOperationFactory.setBatchWriter(connectionLimitingWriter);
+
+		// Unbuffered, so that writes run concurrently rather than one drain task at a time.
+		_logger = new GenericAsynchronousLogger<>();
+		_logger.setCapacity(0);
+		_logger.setMessageProcessor(_messageProcessor);
+		_logger.setWriteOperationFactory(writeOperationFactory);
+
+		_statistic.setOperationName("compute");
+		_statistic.markOperationStart(System.currentTimeMillis(), 0L);
+		_statistic.markOperationCompletion(1000L);
+		_statistic.setOperationSuccessful(true);
+	}
+
+	/**
+	 * Shuts down our executor.
+	 *
+	 * @throws InterruptedException If interrupted waiting for it.
+	 */
+	@TearDown
+	public void tearDown() throws InterruptedException
+	{
+		_messageProcessor.shutdown();
+		_messageProcessor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Logs a run of statistics and waits for them all to be written.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(STATISTICS)
+	public void write()
+	{
+		final long target = _written.get() + STATISTICS;
+
+		for (int i = 0; i < STATISTICS; i++)
+		{
+			_logger.writeStatistic(_statistic);
+		}
+
+		while (_written.get() < target)
+		{
+			LockSupport.parkNanos(10000L);
+		}
+	}
+
+	/**
+	 * Stands in for a database: blocks for a while per batch, then counts it as written.
+	 */
+	private static final class BlockingBatchWriter implements IBatchWriter<MethodCallStatistic>
+	{
+		/**
+		 * Holds how long each batch takes, in nanoseconds.
+		 */
+		private final long _latencyNanos;
+
+		/**
+		 * Holds the number of statistics written so far.
+		 */
+		private final AtomicLong _written;
+
+		/**
+		 * Creates a writer.
+		 *
+		 * @param latencyMicros How long each batch takes, in microseconds.
+		 * @param written Where to count the statistics written.
+		 */
+		BlockingBatchWriter(final int latencyMicros, final AtomicLong written)
+		{
+			_latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+			_written = written;
+		}
+
+		@Override
+		public void writeBatch(final List<MethodCallStatistic> batch)
+		{
+			final long deadline = System.nanoTime() + _latencyNanos;
+
+			// Parking may return early, but never ties up a carrier thread.
+			for (long remaining = _latencyNanos; remaining > 0; remaining = deadline - System.nanoTime())
+			{
+				LockSupport.parkNanos(remaining);
+			}
+
+			_written.addAndGet(batch.size());
+		}
+	}
+}
@@ -7,8 +7,12 @@ package org.epiphanic.instrumentation.performance;
 
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.support.AopUtils;
 
-import java.util.Date;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * An AOP based implementation of {@link org.epiphanic.instrumentation.performance.AbstractMetricGatherer}, uses the
@@ -19,15 +23,233 @@ import java.util.Date;
  * Wire this class into your application via Spring or other IoC configuration to provide pure runtime instrumentation,
  * no modification of source required.<p/>
  *
+ * Set a {@link org.epiphanic.instrumentation.performance.MethodCallStatisticPool} via {@link
+ * #setStatisticPool(MethodCallStatisticPool)} to capture statistics into recycled instances instead of allocating a new
+ * one per call. This only pays off when the configured logger and writers recycle what they've persisted, as all of the
+ * writers in this package do.<p/>
+ *
+ * Set an {@link org.epiphanic.instrumentation.performance.ICapturePolicy} via {@link
+ * #setCapturePolicy(ICapturePolicy)} to sample calls rather than record every one. The decision is made before any
+ * statistic is allocated, and recorded statistics carry the sample weight the policy gave them.<p/>
+ *
+ * Set an {@link org.epiphanic.instrumentation.performance.OperationDictionary} via {@link
+ * #setOperationDictionary(OperationDictionary)} to name operations by their fully qualified signature rather than
+ * their bare method name, so that overloads and same-named methods on different classes are told apart. Each method is
+ * described once; after that a call costs one lookup, and the statistic carries the name's integer ID too. A call
+ * made through an interface, as through a JDK proxy, is named after the method of the target's class it runs, so that
+ * implementations of the same interface are told apart; the class is looked up once per method and target class.<p/>
+ *
+ * Turn on {@link #setSpanTracing(boolean)} to link each call to the instrumented call it was made from, and to record
+ * how much of its time was its own, so that a slow call can be traced to the nested call responsible.<p/>
+ *
+ * Calls returning a {@link java.util.concurrent.CompletableFuture} or another future we can listen to, such as a
+ * <code>ListenableFuture</code>, are timed until the future completes rather than until it is returned, and a future
+ * that completes exceptionally is recorded as a failure. Nothing waits for the future: the call is recorded by
+ * whichever thread completes it.<p/>
+ *
+ * Calls are timed by {@link SystemClock} unless another {@link org.epiphanic.instrumentation.performance.IClock} is
+ * set via {@link #setClock(IClock)}; a {@link org.epiphanic.instrumentation.performance.CachedClock} makes each reading
+ * a field read instead of a clock call, at the cost of resolution.<p/>
+ *
+ * A failed call's statistic only holds on to the failure. Its metadata is rendered by our {@link
+ * org.epiphanic.instrumentation.performance.FailureFormatter} when a writer first reads it, so that a storm of
+ * exceptions with large messages doesn't slow the failing calls further. Set one via {@link
+ * #setFailureFormatter(FailureFormatter)} to include stack frames or change the length limit.<p/>
+ *
  * This class is non-final for testing purposes.
  *
  * @author Greg Feigenson
  */
 public class AOPMetricGatherer extends AbstractMetricGatherer<MethodCallStatistic> implements MethodInterceptor
 {
+	/**
+	 * Holds the pool we take our statistics from, if any.
+	 */
+	private MethodCallStatisticPool _statisticPool;
+
+	/**
+	 * Holds the policy deciding which calls we record, if any.
+	 */
+	private ICapturePolicy _capturePolicy;
+
+	/**
+	 * Holds the dictionary we resolve our operations through, if any.
+	 */
+	private OperationDictionary _operationDictionary;
+
+	/**
+	 * Indicates whether or not we trace calls as spans of a call tree.
+	 */
+	private boolean _spanTracing;
+
+	/**
+	 * Holds the clock we time calls by.
+	 */
+	private IClock _clock = SystemClock.INSTANCE;
+
+	/**
+	 * Holds the formatter our failed calls' metadata is rendered with.
+	 */
+	private FailureFormatter _failureFormatter = new FailureFormatter();
+
+	/**
+	 * Holds the methods our calls actually run, by target class and the method they were made through.
+	 */
+	private final ConcurrentMap<Class<?>, ConcurrentMap<Method, Method>> _specificMethods = new ConcurrentHashMap<>();
+
+	/**
+	 * Holds the number of asynchronous calls we failed to record.
+	 */
+	private final LongAdder _failedRecordings = new LongAdder();
+
+	/**
+	 * Gets the number of asynchronous calls we failed to record, because our logger or capture policy threw on the
+	 * thread that completed them. Failures recording other calls are thrown to the caller instead.
+	 *
+	 * @return The number of asynchronous calls lost.
+	 */
+	public long getFailedRecordingCount()
+	{
+		return _failedRecordings.sum();
+	}
+
+	/**
+	 * Gets the clock we time calls by.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IClock}.
+	 */
+	public IClock getClock()
+	{
+		return _clock;
+	}
+
+	/**
+	 * Sets the clock we time calls by.
+	 *
+	 * @param clock A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IClock}.
+	 * Defaults to {@link SystemClock#INSTANCE}.
+	 */
+	public void setClock(final IClock clock)
+	{
+		_clock = clock;
+	}
+
+	/**
+	 * Gets the formatter our failed calls' metadata is rendered with.
+	 *
+	 * @return A non-<code>null</code> {@link org.epiphanic.instrumentation.performance.FailureFormatter}.
+	 */
+	public FailureFormatter getFailureFormatter()
+	{
+		return _failureFormatter;
+	}
+
+	/**
+	 * Sets the formatter our failed calls' metadata is rendered with.
+	 *
+	 * @param failureFormatter A non-<code>null</code> {@link org.epiphanic.instrumentation.performance.FailureFormatter}.
+	 * Defaults to one rendering the failure's description alone, cut to fit the <code>METADATA</code> column.
+	 */
+	public void setFailureFormatter(final FailureFormatter failureFormatter)
+	{
+		_failureFormatter = failureFormatter;
+	}
+
+	/**
+	 * Indicates whether or not we trace calls as spans of a call tree.
+	 *
+	 * @return <code>True</code> if each statistic carries its span, parent span and self time.
+	 */
+	public boolean isSpanTracing()
+	{
+		return _spanTracing;
+	}
+
+	/**
+	 * Sets whether or not we trace calls as spans of a call tree, via the current thread's {@link
+	 * org.epiphanic.instrumentation.performance.SpanStack}. Calls passed over by our capture policy still take part, so
+	 * that the self time of the calls around them is right, but their statistics - and so the links to them - are lost.
+	 *
+	 * @param spanTracing <code>True</code> to trace spans, or <code>false</code> (the default) not to.
+	 */
+	public void setSpanTracing(final boolean spanTracing)
+	{
+		_spanTracing = spanTracing;
+	}
+
+	/**
+	 * Gets the dictionary we resolve our operations through.
+	 *
+	 * @return Our {@link org.epiphanic.instrumentation.performance.OperationDictionary}, or <code>null</code> if we name
+	 * operations by method name alone.
+	 */
+	public OperationDictionary getOperationDictionary()
+	{
+		return _operationDictionary;
+	}
+
+	/**
+	 * Sets the dictionary we resolve our operations through.
+	 *
+	 * @param operationDictionary An {@link org.epiphanic.instrumentation.performance.OperationDictionary}, or
+	 * <code>null</code> (the default) to name operations by {@link #getMethodName(MethodInvocation)}.
+	 */
+	public void setOperationDictionary(final OperationDictionary operationDictionary)
+	{
+		_operationDictionary = operationDictionary;
+	}
+
+	/**
+	 * Gets the policy deciding which calls we record.
+	 *
+	 * @return Our {@link org.epiphanic.instrumentation.performance.ICapturePolicy}, or <code>null</code> if we record
+	 * every call.
+	 */
+	public ICapturePolicy getCapturePolicy()
+	{
+		return _capturePolicy;
+	}
+
+	/**
+	 * Sets the policy deciding which calls we record, such as a {@link
+	 * org.epiphanic.instrumentation.performance.SamplingCapturePolicy}.
+	 *
+	 * @param capturePolicy An {@link org.epiphanic.instrumentation.performance.ICapturePolicy}, or <code>null</code>
+	 * (the default) to record every call with a sample weight of one.
+	 */
+	public void setCapturePolicy(final ICapturePolicy capturePolicy)
+	{
+		_capturePolicy = capturePolicy;
+	}
+
+	/**
+	 * Gets the pool we take our statistics from.
+	 *
+	 * @return Our {@link org.epiphanic.instrumentation.performance.MethodCallStatisticPool}, or <code>null</code> if we
+	 * allocate a new statistic per call.
+	 */
+	public MethodCallStatisticPool getStatisticPool()
+	{
+		return _statisticPool;
+	}
+
+	/**
+	 * Sets the pool we take our statistics from.
+	 *
+	 * @param statisticPool A {@link org.epiphanic.instrumentation.performance.MethodCallStatisticPool}, or
+	 * <code>null</code> (the default) to allocate a new statistic per call.
+	 */
+	public void setStatisticPool(final MethodCallStatisticPool statisticPool)
+	{
+		_statisticPool = statisticPool;
+	}
+
 	/**
 	 * Intercepts a method call and computes some statistics about it. If we catch an exception in our interception we log
-	 * it and re-throw it, so as to preserve the line numbers for debugging purposes.
+	 * it and re-throw it, so as to preserve the line numbers for debugging purposes.<p/>
+	 *
+	 * Timing is taken into locals, and the statistic is only created once our capture policy, if any, has agreed to
+	 * record the call; calls that are passed over cost two clock readings and the policy's decisions.
 	 *
 	 * @param methodInvocation The {@link org.aopalliance.intercept.MethodInvocation} to be invoked.
 	 *
@@ -42,16 +264,23 @@ public class AOPMetricGatherer extends AbstractMetricGatherer<MethodCallStatisti
 		Object result = null;
 		Exception ex = null;
 
-		final MethodCallStatistic metric = createMethodCallStatistic();
+		final OperationDictionary operationDictionary = getOperationDictionary();
+		final int operationId = operationDictionary == null ? OperationDictionary.NO_OPERATION_ID
+				: operationDictionary.getOperationId(getSpecificMethod(methodInvocation));
+		final String operationName = operationDictionary == null ? getMethodName(methodInvocation)
+				: operationDictionary.getOperationName(operationId);
+		final ICapturePolicy capturePolicy = getCapturePolicy();
+		final double sampleWeight = capturePolicy == null ? 1.0 : capturePolicy.beforeInvocation(operationName);
+		final SpanStack spanStack = isSpanTracing() ? SpanStack.current() : null;
+		final long parentSpanId = spanStack == null ? SpanStack.NO_SPAN : spanStack.getCurrentSpanId();
+		final long spanId = spanStack == null ? SpanStack.NO_SPAN : spanStack.push();
+		final long startMillis = getCurrentTimeMillis();
+		final long startNanos = getNanoTime();
 
 		try
 		{
-			metric.setOperationName(getMethodName(methodInvocation));
-			metric.setOperationStart(getCurrentDate());
-
 			// Call the operation that we've intercepted.
 			result = methodInvocation.proceed();
-
 		}
 		catch (final Exception e)
 		{
@@ -59,18 +288,21 @@ public class AOPMetricGatherer extends AbstractMetricGatherer<MethodCallStatisti
 		}
 		finally
 		{
-			metric.setOperationCompletion(getCurrentDate());
-			metric.setOperationSuccessful(true);
+			final long returnNanos = getNanoTime();
+			final long selfTimeNanos = spanStack == null ? MethodCallStatistic.UNKNOWN_TIME
+					: spanStack.pop(spanId, returnNanos - startNanos);
 
-			// If we caught an exception, make sure we log the failure.
-			if (ex != null)
+			if (ex == null && AsynchronousResults.isAsynchronous(result))
 			{
-				metric.setOperationSuccessful(false);
-				metric.setMetaData(ex.toString());
+				// The call has only started; record it once it's done, on whichever thread finishes it.
+				awaitCompletion(result, operationName, operationId, capturePolicy, sampleWeight, spanId, parentSpanId,
+						selfTimeNanos, startMillis, startNanos, returnNanos);
+			}
+			else
+			{
+				recordInvocation(operationName, operationId, capturePolicy, sampleWeight, spanId, parentSpanId,
+						selfTimeNanos, startMillis, startNanos, returnNanos, ex);
 			}
-
-			// Persist our entity.
-			getStatisticsLogger().writeStatistic(metric);
 
 			// Re-throw our exception, if any was caught.
 			if (ex != null)
@@ -85,6 +317,117 @@ public class AOPMetricGatherer extends AbstractMetricGatherer<MethodCallStatisti
 		return result;
 	}
 
+	/**
+	 * Records an asynchronous call once its result completes. The calling thread is never blocked; if we can't listen
+	 * for completion after all, the call is recorded as of its return, as any other.
+	 *
+	 * @param result The asynchronous result the call returned.
+	 * @param operationName The name of the operation.
+	 * @param operationId The ID of the operation, or {@link OperationDictionary#NO_OPERATION_ID}.
+	 * @param capturePolicy Our capture policy, or <code>null</code>.
+	 * @param sampleWeight The sample weight our capture policy gave the call before it was made.
+	 * @param spanId The span ID of the call, or {@link SpanStack#NO_SPAN}.
+	 * @param parentSpanId The span ID of its parent, or {@link SpanStack#NO_SPAN}.
+	 * @param selfTimeNanos The self time of the call up to its return, or {@link MethodCallStatistic#UNKNOWN_TIME}.
+	 * @param startMillis The wall-clock time the call started.
+	 * @param startNanos The monotonic time the call started.
+	 * @param returnNanos The monotonic time the call returned.
+	 */
+	private void awaitCompletion(final Object result, final String operationName, final int operationId,
+			final ICapturePolicy capturePolicy, final double sampleWeight, final long spanId, final long parentSpanId,
+			final long selfTimeNanos, final long startMillis, final long startNanos, final long returnNanos)
+	{
+		final AsynchronousResults.CompletionListener listener = new AsynchronousResults.CompletionListener()
+		{
+			@Override
+			void completed(final Throwable failure)
+			{
+				final long completionNanos = getNanoTime();
+
+				// Time spent waiting on the result was spent in no instrumented call we know of, so it's the call's own.
+				final long asynchronousSelfTimeNanos = selfTimeNanos == MethodCallStatistic.UNKNOWN_TIME
+						? MethodCallStatistic.UNKNOWN_TIME : selfTimeNanos + completionNanos - returnNanos;
+
+				try
+				{
+					recordInvocation(operationName, operationId, capturePolicy, sampleWeight, spanId, parentSpanId,
+							asynchronousSelfTimeNanos, startMillis, startNanos, completionNanos, failure);
+				}
+				catch (final RuntimeException ex)
+				{
+					// Whoever completed the result has no use for our problems.
+					_failedRecordings.increment();
+				}
+			}
+		};
+
+		try
+		{
+			AsynchronousResults.whenComplete(result, listener);
+		}
+		catch (final RuntimeException ex)
+		{
+			recordInvocation(operationName, operationId, capturePolicy, sampleWeight, spanId, parentSpanId,
+					selfTimeNanos, startMillis, startNanos, returnNanos, null);
+		}
+	}
+
+	/**
+	 * Records a completed call, if our capture policy agrees.
+	 *
+	 * @param operationName The name of the operation.
+	 * @param operationId The ID of the operation, or {@link OperationDictionary#NO_OPERATION_ID}.
+	 * @param capturePolicy Our capture policy, or <code>null</code>.
+	 * @param sampleWeight The sample weight our capture policy gave the call before it was made.
+	 * @param spanId The span ID of the call, or {@link SpanStack#NO_SPAN}.
+	 * @param parentSpanId The span ID of its parent, or {@link SpanStack#NO_SPAN}.
+	 * @param selfTimeNanos The self time of the call, or {@link MethodCallStatistic#UNKNOWN_TIME}.
+	 * @param startMillis The wall-clock time the call started.
+	 * @param startNanos The monotonic time the call started.
+	 * @param completionNanos The monotonic time the call completed.
+	 * @param failure Why the call failed, or <code>null</code> if it succeeded.
+	 */
+	private void recordInvocation(final String operationName, final int operationId, final ICapturePolicy capturePolicy,
+			final double sampleWeight, final long spanId, final long parentSpanId, final long selfTimeNanos,
+			final long startMillis, final long startNanos, final long completionNanos, final Throwable failure)
+	{
+		final boolean successful = failure == null;
+		final double recordedWeight = capturePolicy == null ? sampleWeight
+				: capturePolicy.afterInvocation(operationName, completionNanos - startNanos, successful, sampleWeight);
+
+		if (recordedWeight > 0.0)
+		{
+			final MethodCallStatistic metric = createMethodCallStatistic();
+			metric.setOperationName(operationName);
+
+			if (operationId != OperationDictionary.NO_OPERATION_ID)
+			{
+				metric.setOperationId(operationId);
+			}
+
+			if (spanId != SpanStack.NO_SPAN)
+			{
+				metric.setSpanId(spanId);
+				metric.setParentSpanId(parentSpanId);
+				metric.setSelfTimeNanos(selfTimeNanos);
+			}
+
+			metric.markOperationStart(startMillis, startNanos);
+			metric.markOperationCompletion(completionNanos);
+			metric.setOperationSuccessful(successful);
+			metric.setSampleWeight(recordedWeight);
+
+			// If we caught an exception, make sure we log the failure. It's rendered later, by whoever writes it.
+			if (failure != null)
+			{
+				metric.setFailure(failure, getFailureFormatter());
+			}
+
+			// Persist our entity.
+			getStatisticsLogger().writeStatistic(metric);
+		}
+	}
+
 	/**
 	 * A convenience method to aid in testing - {@link java.lang.reflect.Method} is final and our interceptor returns
 	 * a concrete class so we can't mock by interface. <p/>
@@ -99,9 +442,53 @@ public class AOPMetricGatherer extends AbstractMetricGatherer<MethodCallStatisti
 		return methodInvocation.getMethod().getName();
 	}
 
+	/**
+	 * Gets the method a call actually runs: the one on the target's class, rather than the interface method a JDK proxy
+	 * was called through. Each pair of method and target class is resolved once.
+	 *
+	 * @param methodInvocation Our {@link org.aopalliance.intercept.MethodInvocation} to resolve.
+	 *
+	 * @return The most specific method. Will not be <code>null</code>.
+	 */
+	private Method getSpecificMethod(final MethodInvocation methodInvocation)
+	{
+		final Method method = methodInvocation.getMethod();
+		final Object target = methodInvocation.getThis();
+
+		if (target == null)
+		{
+			// A static method, or no target to speak of; there's nothing more specific to find.
+			return method;
+		}
+
+		final Class<?> targetClass = AopUtils.getTargetClass(target);
+		ConcurrentMap<Method, Method> specificMethods = _specificMethods.get(targetClass);
+
+		if (specificMethods == null)
+		{
+			final ConcurrentMap<Method, Method> created = new ConcurrentHashMap<>();
+			specificMethods = _specificMethods.putIfAbsent(targetClass, created);
+
+			if (specificMethods == null)
+			{
+				specificMethods = created;
+			}
+		}
+
+		Method specificMethod = specificMethods.get(method);
+
+		if (specificMethod == null)
+		{
+			specificMethod = AopUtils.getMostSpecificMethod(method, targetClass);
+			specificMethods.putIfAbsent(method, specificMethod);
+		}
+
+		return specificMethod;
+	}
+
 	/**
 	 * Another convenience method to aid in testing. Creates an instance of our {@link org.epiphanic.instrumentation.performance.MethodCallStatistic}
-	 * so that we can instrument it with mocks.<p/>
+	 * so that we can instrument it with mocks. If we have a pool, the instance comes from there.<p/>
 	 *
 	 * This is package-protected for unit testing. 
 	 *
@@ -109,18 +496,34 @@ public class AOPMetricGatherer extends AbstractMetricGatherer<MethodCallStatisti
 	 */
 	MethodCallStatistic createMethodCallStatistic()
 	{
-		return new MethodCallStatistic();		
+		final MethodCallStatisticPool statisticPool = getStatisticPool();
+		return statisticPool == null ? new MethodCallStatistic() : statisticPool.acquire();
+	}
+
+	/**
+	 * Another convenience method to aid in testing. Returns the current wall-clock time from our clock, used once per
+	 * call to anchor the statistic in time.<p/>
+	 *
+	 * This is package-protected for unit testing.
+	 *
+	 * @return The current time in milliseconds since the epoch.
+	 */
+	long getCurrentTimeMillis()
+	{
+		// Read the field rather than the getter, so that spying tests see only the calls they expect.
+		return _clock.currentTimeMillis();
 	}
 
 	/**
-	 * Another convenience method to aid in testing. Returns the current {@link java.util.Date}.<p/>
+	 * Another convenience method to aid in testing. Returns the current reading of our monotonic clock, used to measure
+	 * how long the call took.<p/>
 	 *
 	 * This is package-protected for unit testing.
 	 *
-	 * @return The current date. Will not be <code>null</code>.
+	 * @return The current monotonic time in nanoseconds. Only meaningful relative to another reading.
 	 */
-	Date getCurrentDate()
+	long getNanoTime()
 	{
-		return new Date();	
+		return _clock.nanoTime();
 	}
 }
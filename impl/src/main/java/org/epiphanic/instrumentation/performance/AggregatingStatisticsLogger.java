@@ -0,0 +1,391 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An implementation of {@link org.epiphanic.instrumentation.performance.IStatisticsLogger} that aggregates statistics in
+ * memory rather than writing them one by one. Per operation name, it keeps a {@link
+ * org.epiphanic.instrumentation.performance.LatencyHistogram} of durations alongside striped success, failure, duration
+ * and sample weight counters, and a mergeable {@link org.epiphanic.instrumentation.performance.DDSketch}; once per
+ * interval it writes a single {@link
+ * org.epiphanic.instrumentation.performance.MethodCallRollup} per operation to the injected {@link
+ * org.epiphanic.instrumentation.performance.IBatchWriter}, such as a {@link
+ * org.epiphanic.instrumentation.performance.HibernateStatelessBatchWriter}. Database load becomes proportional to the
+ * number of operations and intervals, rather than the number of calls.<p/>
+ *
+ * Recording never takes a lock and never waits on a flush. Intervals are double-buffered: recording threads write into
+ * the active set of intervals inside a {@link org.epiphanic.instrumentation.performance.WriterReaderPhaser} critical
+ * section, and a flush swaps in the other set, flips the phaser to wait out any recording still in flight, and then has
+ * the old set to itself. Interval objects are reset and reused, so steady-state recording doesn't allocate either.
+ * Statistics are recycled as soon as they've been recorded.<p/>
+ *
+ * Each interval costs about 33 KB at the default sketch accuracy - a 1,888 bucket histogram and a sketch of some 2,200
+ * bins, both of longs - and an operation being recorded has one in each set, so budget about 65 KB per operation
+ * called within the last two intervals. An interval that records nothing for a whole turn as the active set is dropped
+ * when that set is next flushed, so operations that stop being called cost nothing after two intervals; one called
+ * only every few intervals allocates its interval afresh each time.<p/>
+ *
+ * This class must be started via {@link #start()} for interval flushes to happen, and should be stopped via {@link
+ * #stop()} so that the final partial interval is written - when wiring with Spring, use these as the
+ * <code>init-method</code> and <code>destroy-method</code> respectively. If a flush fails, that interval's rollups are
+ * lost.<p/>
+ *
+ * We report the interval in progress as an {@link org.epiphanic.instrumentation.performance.IAggregatingLoggerMXBean},
+ * so that per-operation aggregates can be watched live over JMX as well as written once per interval.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class AggregatingStatisticsLogger implements IStatisticsLogger<MethodCallStatistic>, IAggregatingLoggerMXBean
+{
+	/**
+	 * Holds the default length of an interval, in milliseconds.
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 60000;
+
+	/**
+	 * Holds the length of an interval, in milliseconds.
+	 */
+	private long _flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+
+	/**
+	 * Holds the relative accuracy of our latency sketches.
+	 */
+	private double _sketchRelativeAccuracy = DDSketch.DEFAULT_RELATIVE_ACCURACY;
+
+	/**
+	 * Holds our injected {@link org.epiphanic.instrumentation.performance.IBatchWriter} that writes our rollups.
+	 */
+	private IBatchWriter<MethodCallRollup> _rollupWriter;
+
+	/**
+	 * Coordinates recording threads with flushes.
+	 */
+	private final WriterReaderPhaser _phaser = new WriterReaderPhaser();
+
+	/**
+	 * Holds the intervals currently being recorded into, keyed by operation name.
+	 */
+	private volatile ConcurrentMap<String, OperationInterval> _active = new ConcurrentHashMap<>();
+
+	/**
+	 * Holds the intervals not currently being recorded into, keyed by operation name. Guarded by our phaser's reader
+	 * lock.
+	 */
+	private ConcurrentMap<String, OperationInterval> _inactive = new ConcurrentHashMap<>();
+
+	/**
+	 * Holds the time, in milliseconds since the epoch, that the active interval started. Guarded by our phaser's reader
+	 * lock.
+	 */
+	private long _intervalStartMillis = System.currentTimeMillis();
+
+	/**
+	 * Holds our timer for interval flushes, created when we are started.
+	 */
+	private ScheduledExecutorService _flushTimer;
+
+	/**
+	 * Gets the length of an interval, in milliseconds.
+	 *
+	 * @return The flush interval in milliseconds.
+	 */
+	@Override
+	public long getFlushIntervalMillis()
+	{
+		return _flushIntervalMillis;
+	}
+
+	/**
+	 * Sets the length of an interval, in milliseconds. This only takes effect when the logger is next started.
+	 *
+	 * @param flushIntervalMillis The flush interval in milliseconds. Must be positive.
+	 */
+	public void setFlushIntervalMillis(final long flushIntervalMillis)
+	{
+		_flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Gets the relative accuracy of our latency sketches.
+	 *
+	 * @return The relative accuracy, between zero and one.
+	 */
+	public double getSketchRelativeAccuracy()
+	{
+		return _sketchRelativeAccuracy;
+	}
+
+	/**
+	 * Sets the relative accuracy of our latency sketches. Only sketches with the same accuracy can be merged, so set
+	 * this the same on every node, and before the first statistic is recorded.
+	 *
+	 * @param sketchRelativeAccuracy The relative accuracy, between zero and one exclusive. Defaults to {@link
+	 * DDSketch#DEFAULT_RELATIVE_ACCURACY}.
+	 */
+	public void setSketchRelativeAccuracy(final double sketchRelativeAccuracy)
+	{
+		_sketchRelativeAccuracy = sketchRelativeAccuracy;
+	}
+
+	/**
+	 * Gets our injected {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public IBatchWriter<MethodCallRollup> getRollupWriter()
+	{
+		return _rollupWriter;
+	}
+
+	/**
+	 * Sets the {@link org.epiphanic.instrumentation.performance.IBatchWriter} to hand our rollups to.
+	 *
+	 * @param rollupWriter A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public void setRollupWriter(final IBatchWriter<MethodCallRollup> rollupWriter)
+	{
+		_rollupWriter = rollupWriter;
+	}
+
+	/**
+	 * Starts our timer for interval flushes. Calling this on a started logger does nothing.
+	 */
+	public synchronized void start()
+	{
+		if (_flushTimer != null)
+		{
+			return;
+		}
+
+		_flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				final Thread thread = new Thread(runnable, "thoreau-rollup-flush");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		_flushTimer.scheduleAtFixedRate(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					flush();
+				}
+				catch (final Exception ex)
+				{
+					// Nobody to report this to, and an exception would cancel the timer's future runs.
+				}
+			}
+		}, getFlushIntervalMillis(), getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops our flush timer and writes the current partial interval. Calling this on a stopped logger just writes the
+	 * current partial interval.
+	 *
+	 * @throws Exception If the final rollups could not be written.
+	 */
+	public synchronized void stop() throws Exception
+	{
+		if (_flushTimer != null)
+		{
+			_flushTimer.shutdown();
+			_flushTimer.awaitTermination(getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+			_flushTimer = null;
+		}
+
+		flush();
+	}
+
+	@Override
+	public long getIntervalStartMillis()
+	{
+		final ReentrantLock readerLock = _phaser.readerLock();
+		readerLock.lock();
+
+		try
+		{
+			return _intervalStartMillis;
+		}
+		finally
+		{
+			readerLock.unlock();
+		}
+	}
+
+	/**
+	 * Summarizes every operation called so far this interval. Holding the phaser's reader lock keeps a flush from
+	 * swapping or resetting the intervals as we read them; recording carries on regardless, so the figures are
+	 * approximate.
+	 *
+	 * @return A new list of {@link org.epiphanic.instrumentation.performance.IOperationAggregate}s.
+	 */
+	@Override
+	public List<IOperationAggregate> getOperationAggregates()
+	{
+		final List<IOperationAggregate> aggregates = new ArrayList<>();
+		final ReentrantLock readerLock = _phaser.readerLock();
+		readerLock.lock();
+
+		try
+		{
+			for (final Map.Entry<String, OperationInterval> entry : _active.entrySet())
+			{
+				if (!entry.getValue().isEmpty())
+				{
+					aggregates.add(entry.getValue().toAggregate(entry.getKey()));
+				}
+			}
+		}
+		finally
+		{
+			readerLock.unlock();
+		}
+
+		return aggregates;
+	}
+
+	/**
+	 * Records a statistic into the current interval for its operation, then recycles it.
+	 *
+	 * @param statistic The statistic to record. Must not be <code>null</code>.
+	 */
+	@Override
+	public void writeStatistic(final MethodCallStatistic statistic)
+	{
+		final long criticalValue = _phaser.writerCriticalSectionEnter();
+
+		try
+		{
+			getOrCreateInterval(_active, statistic.getOperationName())
+					.record(statistic.getDurationNanos(), statistic.isOperationSuccessful(), statistic.getSampleWeight());
+		}
+		finally
+		{
+			_phaser.writerCriticalSectionExit(criticalValue);
+		}
+
+		statistic.recycle();
+	}
+
+	/**
+	 * Gets the number of intervals we're holding on to, in both sets.<p/>
+	 *
+	 * This is package-protected for unit testing.
+	 *
+	 * @return The number of intervals held.
+	 */
+	int getIntervalCount()
+	{
+		final ReentrantLock readerLock = _phaser.readerLock();
+		readerLock.lock();
+
+		try
+		{
+			return _active.size() + _inactive.size();
+		}
+		finally
+		{
+			readerLock.unlock();
+		}
+	}
+
+	/**
+	 * Ends the current interval, writing one rollup for every operation recorded during it, and dropping the intervals
+	 * of operations that weren't.
+	 *
+	 * @throws Exception If the rollups could not be written.
+	 */
+	public void flush() throws Exception
+	{
+		final ReentrantLock readerLock = _phaser.readerLock();
+		readerLock.lock();
+
+		try
+		{
+			final long intervalStartMillis = _intervalStartMillis;
+			final long intervalEndMillis = System.currentTimeMillis();
+
+			// Swap buffers, then wait out anyone still recording into the old ones.
+			final ConcurrentMap<String, OperationInterval> finished = _active;
+			_active = _inactive;
+			_inactive = finished;
+			_intervalStartMillis = intervalEndMillis;
+			_phaser.flipPhase();
+
+			final List<MethodCallRollup> rollups = new ArrayList<>();
+
+			final Iterator<Map.Entry<String, OperationInterval>> intervals = finished.entrySet().iterator();
+
+			while (intervals.hasNext())
+			{
+				final Map.Entry<String, OperationInterval> entry = intervals.next();
+				final OperationInterval interval = entry.getValue();
+
+				if (interval.isEmpty())
+				{
+					// Not called for a whole interval, so not worth its memory; it's created again if need be.
+					intervals.remove();
+				}
+				else
+				{
+					rollups.add(interval.toRollup(entry.getKey(), intervalStartMillis, intervalEndMillis));
+					interval.reset();
+				}
+			}
+
+			if (!rollups.isEmpty())
+			{
+				getRollupWriter().writeBatch(rollups);
+			}
+		}
+		finally
+		{
+			readerLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the interval for an operation from a set of intervals, creating it if need be.
+	 *
+	 * @param intervals The set of intervals to look in.
+	 * @param operationName The name of the operation.
+	 *
+	 * @return The operation's non-<code>null</code> interval.
+	 */
+	private OperationInterval getOrCreateInterval(final ConcurrentMap<String, OperationInterval> intervals,
+			final String operationName)
+	{
+		final OperationInterval interval = intervals.get(operationName);
+
+		if (interval != null)
+		{
+			return interval;
+		}
+
+		final OperationInterval created = new OperationInterval(getSketchRelativeAccuracy());
+		final OperationInterval existing = intervals.putIfAbsent(operationName, created);
+		return existing == null ? created : existing;
+	}
+}
@@ -0,0 +1,333 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+/**
+ * Recognizes the results of asynchronous methods, and tells us when they complete without blocking anyone to find out.
+ * A result is asynchronous if it is:
+ * <ul>
+ * <li>a {@link java.util.concurrent.CompletionStage}, such as a {@link java.util.concurrent.CompletableFuture};</li>
+ * <li>anything with a public <code>completable()</code> method returning one, such as Spring 5's
+ * <code>ListenableFuture</code>;</li>
+ * <li>a {@link java.util.concurrent.Future} with a public <code>addListener(Runnable, Executor)</code> method, such as
+ * Guava's <code>ListenableFuture</code>.</li>
+ * </ul>
+ * The last two are found reflectively, so that we depend on neither library, and what was found is remembered per
+ * class. Plain {@link java.util.concurrent.Future}s offer no way of being told, and are treated as any other result,
+ * as are classes whose methods we aren't allowed to call - such as private classes in a module that doesn't open its
+ * package to us, on Java 9 and later.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class AsynchronousResults
+{
+	/**
+	 * Runs listeners on whichever thread completes the future, as they only ever do a little bookkeeping.
+	 */
+	private static final Executor DIRECT_EXECUTOR = new Executor()
+	{
+		@Override
+		public void execute(final Runnable command)
+		{
+			command.run();
+		}
+	};
+
+	/**
+	 * Holds the adapter for results that aren't asynchronous.
+	 */
+	private static final Adapter SYNCHRONOUS = new Adapter()
+	{
+		@Override
+		void whenComplete(final Object result, final CompletionListener listener)
+		{
+			throw new IllegalArgumentException("Not an asynchronous result: " + result);
+		}
+	};
+
+	/**
+	 * Holds the adapter for {@link java.util.concurrent.CompletionStage}s.
+	 */
+	private static final Adapter COMPLETION_STAGE = new Adapter()
+	{
+		@Override
+		void whenComplete(final Object result, final CompletionListener listener)
+		{
+			listen((CompletionStage<?>)result, listener);
+		}
+	};
+
+	/**
+	 * Holds the adapter for each class of result we've seen.
+	 */
+	private static final ConcurrentMap<Class<?>, Adapter> ADAPTERS = new ConcurrentHashMap<>();
+
+	/**
+	 * Prevents instantiation; everything here is static.
+	 */
+	private AsynchronousResults()
+	{
+	}
+
+	/**
+	 * Indicates whether or not a result is one we can be told the completion of.
+	 *
+	 * @param result The result of a method. May be <code>null</code>.
+	 *
+	 * @return <code>True</code> if {@link #whenComplete(Object, CompletionListener)} will accept the result.
+	 */
+	static boolean isAsynchronous(final Object result)
+	{
+		return result != null && getAdapter(result.getClass()) != SYNCHRONOUS;
+	}
+
+	/**
+	 * Arranges for a listener to be told when an asynchronous result completes. If it already has, the listener is told
+	 * straight away, on the calling thread.
+	 *
+	 * @param result The result of a method, for which {@link #isAsynchronous(Object)} is <code>true</code>.
+	 * @param listener The listener to tell, exactly once.
+	 *
+	 * @throws IllegalArgumentException If the result isn't asynchronous.
+	 */
+	static void whenComplete(final Object result, final CompletionListener listener)
+	{
+		getAdapter(result.getClass()).whenComplete(result, listener);
+	}
+
+	/**
+	 * Gets the adapter for a class of result, working it out the first time.
+	 *
+	 * @param resultClass The class of the result.
+	 *
+	 * @return The adapter to use. Will not be <code>null</code>.
+	 */
+	private static Adapter getAdapter(final Class<?> resultClass)
+	{
+		Adapter adapter = ADAPTERS.get(resultClass);
+
+		if (adapter == null)
+		{
+			adapter = createAdapter(resultClass);
+			ADAPTERS.putIfAbsent(resultClass, adapter);
+		}
+
+		return adapter;
+	}
+
+	/**
+	 * Works out how to be told of the completion of a class of result.
+	 *
+	 * @param resultClass The class of the result.
+	 *
+	 * @return The adapter to use. Will not be <code>null</code>.
+	 */
+	private static Adapter createAdapter(final Class<?> resultClass)
+	{
+		if (CompletionStage.class.isAssignableFrom(resultClass))
+		{
+			return COMPLETION_STAGE;
+		}
+
+		final Method completable = findPublicMethod(resultClass, "completable");
+
+		if (completable != null && CompletionStage.class.isAssignableFrom(completable.getReturnType()))
+		{
+			return new Adapter()
+			{
+				@Override
+				void whenComplete(final Object result, final CompletionListener listener)
+				{
+					listen((CompletionStage<?>)invoke(completable, result), listener);
+				}
+			};
+		}
+
+		if (!Future.class.isAssignableFrom(resultClass))
+		{
+			return SYNCHRONOUS;
+		}
+
+		final Method addListener = findPublicMethod(resultClass, "addListener", Runnable.class, Executor.class);
+
+		if (addListener != null)
+		{
+			return new Adapter()
+			{
+				@Override
+				void whenComplete(final Object result, final CompletionListener listener)
+				{
+					invoke(addListener, result, new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							listener.completed(getFailure((Future<?>)result));
+						}
+					}, DIRECT_EXECUTOR);
+				}
+			};
+		}
+
+		return SYNCHRONOUS;
+	}
+
+	/**
+	 * Tells a listener when a stage completes.
+	 *
+	 * @param stage The stage to listen to.
+	 * @param listener The listener to tell.
+	 */
+	private static void listen(final CompletionStage<?> stage, final CompletionListener listener)
+	{
+		stage.whenComplete(new BiConsumer<Object, Throwable>()
+		{
+			@Override
+			public void accept(final Object value, final Throwable failure)
+			{
+				// Dependent stages report their source's failure wrapped.
+				listener.completed(failure instanceof CompletionException && failure.getCause() != null
+						? failure.getCause() : failure);
+			}
+		});
+	}
+
+	/**
+	 * Gets the failure of a completed future, if any. Never blocks, as the future has already completed.
+	 *
+	 * @param future The completed future.
+	 *
+	 * @return Why the future failed, or <code>null</code> if it succeeded.
+	 */
+	private static Throwable getFailure(final Future<?> future)
+	{
+		try
+		{
+			future.get();
+			return null;
+		}
+		catch (final ExecutionException ex)
+		{
+			return ex.getCause() == null ? ex : ex.getCause();
+		}
+		catch (final CancellationException ex)
+		{
+			return ex;
+		}
+		catch (final InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			return ex;
+		}
+	}
+
+	/**
+	 * Finds a public method, callable through a public type, by name and parameter types.
+	 *
+	 * @param type The class to look in.
+	 * @param name The name of the method.
+	 * @param parameterTypes The types of its parameters.
+	 *
+	 * @return The method, or <code>null</code> if there's no such method we can call - including one we aren't allowed
+	 * to make accessible.
+	 */
+	private static Method findPublicMethod(final Class<?> type, final String name, final Class<?>... parameterTypes)
+	{
+		try
+		{
+			final Method method = type.getMethod(name, parameterTypes);
+
+			if (Modifier.isStatic(method.getModifiers()))
+			{
+				return null;
+			}
+
+			// Implementations are often private classes; the method is reachable through their public interface.
+			if (!Modifier.isPublic(method.getDeclaringClass().getModifiers()))
+			{
+				method.setAccessible(true);
+			}
+
+			return method;
+		}
+		catch (final NoSuchMethodException ex)
+		{
+			return null;
+		}
+		catch (final RuntimeException ex)
+		{
+			// A SecurityException, or the InaccessibleObjectException of a module that doesn't open the package to us.
+			return null;
+		}
+	}
+
+	/**
+	 * Invokes a method found by {@link #findPublicMethod(Class, String, Class[])}.
+	 *
+	 * @param method The method to invoke.
+	 * @param target The object to invoke it on.
+	 * @param arguments Its arguments.
+	 *
+	 * @return What it returned.
+	 *
+	 * @throws IllegalStateException If the method couldn't be invoked, or threw.
+	 */
+	private static Object invoke(final Method method, final Object target, final Object... arguments)
+	{
+		try
+		{
+			return method.invoke(target, arguments);
+		}
+		catch (final IllegalAccessException ex)
+		{
+			throw new IllegalStateException("Could not listen for the completion of " + target, ex);
+		}
+		catch (final InvocationTargetException ex)
+		{
+			throw new IllegalStateException("Could not listen for the completion of " + target, ex.getCause());
+		}
+	}
+
+	/**
+	 * Told when an asynchronous result completes.
+	 */
+	abstract static class CompletionListener
+	{
+		/**
+		 * Called once the result has completed, on whichever thread completed it.
+		 *
+		 * @param failure Why the result failed or was cancelled, or <code>null</code> if it succeeded.
+		 */
+		abstract void completed(Throwable failure);
+	}
+
+	/**
+	 * Listens for the completion of one kind of asynchronous result.
+	 */
+	private abstract static class Adapter
+	{
+		/**
+		 * Arranges for a listener to be told when a result completes.
+		 *
+		 * @param result The result to listen to.
+		 * @param listener The listener to tell.
+		 */
+		abstract void whenComplete(Object result, CompletionListener listener);
+	}
+}
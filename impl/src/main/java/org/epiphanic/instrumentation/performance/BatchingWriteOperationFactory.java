@@ -0,0 +1,493 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An implementation of {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory} that collects statistics
+ * into batches instead of writing them one at a time. The write operations it produces simply add their statistic to
+ * the pending batch; the batch is handed to the injected {@link org.epiphanic.instrumentation.performance.IBatchWriter}
+ * as soon as {@link #getBatchSize()} statistics are pending, or once the oldest pending statistic has waited for
+ * {@link #getFlushIntervalMillis()} milliseconds - whichever comes first.<p/>
+ *
+ * Size-triggered flushes happen on whatever thread runs the write operation (usually the logger's message processor),
+ * and time-triggered flushes happen on a small timer thread owned by this factory. This class must be started via
+ * {@link #start()} for time-triggered flushes to happen, and should be stopped via {@link #stop()} so that the final
+ * partial batch is written - when wiring with Spring, use these as the <code>init-method</code> and
+ * <code>destroy-method</code> respectively.<p/>
+ *
+ * A batch the batch writer fails to write, however its flush was triggered, is handed to the {@link
+ * #setFallbackBatchWriter(IBatchWriter) fallback writer}, if there is one, and counted by {@link #getFailedFlushCount()}
+ * either way. Statistics that end up written nowhere are counted by {@link #getLostStatisticCount()} and recycled if
+ * they can be; a size-triggered or explicit flush then throws the batch writer's failure to its caller, like any other
+ * write operation, while a time-triggered one has no caller to throw to. To lose nothing, make the batch writer itself a
+ * {@link org.epiphanic.instrumentation.performance.SpillingBatchWriter}, or give that as the fallback.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class BatchingWriteOperationFactory<T> implements IWriteOperationFactory<T>
+{
+	/**
+	 * Holds the default maximum number of statistics in a batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * Holds the default maximum time, in milliseconds, that a statistic waits before its batch is written.
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * Holds our maximum batch size.
+	 */
+	private int _batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * Holds the maximum time, in milliseconds, that a statistic waits before its batch is written.
+	 */
+	private long _flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+
+	/**
+	 * Holds our injected {@link org.epiphanic.instrumentation.performance.IBatchWriter} that writes our batches.
+	 */
+	private IBatchWriter<T> _batchWriter;
+
+	/**
+	 * Holds the writer that batches our batch writer failed to write are handed to, if any.
+	 */
+	private IBatchWriter<T> _fallbackBatchWriter;
+
+	/**
+	 * Holds the number of flushes whose batch writer threw.
+	 */
+	private final LongAdder _failedFlushes = new LongAdder();
+
+	/**
+	 * Holds the number of statistics from failed flushes that no writer took.
+	 */
+	private final LongAdder _lostStatistics = new LongAdder();
+
+	/**
+	 * Guards our pending batch. We deliberately use a {@link java.util.concurrent.locks.ReentrantLock} rather than a
+	 * monitor, and never hold it while writing.
+	 */
+	private final ReentrantLock _pendingLock = new ReentrantLock();
+
+	/**
+	 * Holds the statistics waiting to be written. Guarded by {@link #_pendingLock}.
+	 */
+	private List<T> _pending = new ArrayList<>();
+
+	/**
+	 * Holds the time, in milliseconds, that the oldest pending statistic was added. Guarded by {@link #_pendingLock}.
+	 */
+	private long _oldestPendingMillis;
+
+	/**
+	 * Holds our timer for time-triggered flushes, created when we are started.
+	 */
+	private ScheduledExecutorService _flushTimer;
+
+	/**
+	 * Guards starting and stopping. Stopping writes the final batch, so this is no monitor either: a virtual thread
+	 * blocking on the database while holding one would pin its carrier.
+	 */
+	private final ReentrantLock _lifecycleLock = new ReentrantLock();
+
+	/**
+	 * Gets the maximum number of statistics in a batch.
+	 *
+	 * @return The maximum batch size.
+	 */
+	public int getBatchSize()
+	{
+		return _batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of statistics in a batch. As soon as this many statistics are pending, they're written.
+	 *
+	 * @param batchSize The maximum batch size. Must be positive.
+	 */
+	public void setBatchSize(final int batchSize)
+	{
+		_batchSize = batchSize;
+	}
+
+	/**
+	 * Gets the maximum time, in milliseconds, that a statistic waits before its batch is written.
+	 *
+	 * @return The flush interval in milliseconds.
+	 */
+	public long getFlushIntervalMillis()
+	{
+		return _flushIntervalMillis;
+	}
+
+	/**
+	 * Sets the maximum time, in milliseconds, that a statistic waits before its batch is written. This only takes effect
+	 * when the factory is next started.
+	 *
+	 * @param flushIntervalMillis The flush interval in milliseconds. Must be positive.
+	 */
+	public void setFlushIntervalMillis(final long flushIntervalMillis)
+	{
+		_flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Gets our injected {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public IBatchWriter<T> getBatchWriter()
+	{
+		return _batchWriter;
+	}
+
+	/**
+	 * Sets the {@link org.epiphanic.instrumentation.performance.IBatchWriter} to hand our batches to.
+	 *
+	 * @param batchWriter A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public void setBatchWriter(final IBatchWriter<T> batchWriter)
+	{
+		_batchWriter = batchWriter;
+	}
+
+	/**
+	 * Gets the writer that batches our batch writer failed to write are handed to.
+	 *
+	 * @return An implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}, or <code>null</code>
+	 *         if such batches are lost.
+	 */
+	public IBatchWriter<T> getFallbackBatchWriter()
+	{
+		return _fallbackBatchWriter;
+	}
+
+	/**
+	 * Sets the writer to hand a batch to when our batch writer fails to write it, such as a {@link
+	 * org.epiphanic.instrumentation.performance.SpillingBatchWriter} or a {@link
+	 * org.epiphanic.instrumentation.performance.RollingFileBatchWriter}.
+	 *
+	 * @param fallbackBatchWriter An implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}, or
+	 * <code>null</code> to only count such batches as lost.
+	 */
+	public void setFallbackBatchWriter(final IBatchWriter<T> fallbackBatchWriter)
+	{
+		_fallbackBatchWriter = fallbackBatchWriter;
+	}
+
+	/**
+	 * Gets the number of flushes, of any kind, whose batch could not be written, whether or not the fallback writer took
+	 * it.
+	 *
+	 * @return The number of failed flushes.
+	 */
+	public long getFailedFlushCount()
+	{
+		return _failedFlushes.sum();
+	}
+
+	/**
+	 * Gets the number of statistics lost by failed flushes: those the fallback writer also failed to write, or all of
+	 * them if there is none.
+	 *
+	 * @return The number of statistics lost.
+	 */
+	public long getLostStatisticCount()
+	{
+		return _lostStatistics.sum();
+	}
+
+	/**
+	 * Gets the number of statistics waiting to be written.
+	 *
+	 * @return The number of pending statistics.
+	 */
+	public int getPendingStatisticCount()
+	{
+		_pendingLock.lock();
+
+		try
+		{
+			return _pending.size();
+		}
+		finally
+		{
+			_pendingLock.unlock();
+		}
+	}
+
+	/**
+	 * Starts our timer for time-triggered flushes. Calling this on a started factory does nothing.
+	 */
+	public void start()
+	{
+		_lifecycleLock.lock();
+
+		try
+		{
+			if (_flushTimer != null)
+			{
+				return;
+			}
+
+			_flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					final Thread thread = new Thread(runnable, "thoreau-batch-flush");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			// Check a few times per interval so that nothing waits much longer than it's allowed to.
+			final long period = Math.max(1, getFlushIntervalMillis() / 4);
+
+			_flushTimer.scheduleWithFixedDelay(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					flushIfStale();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+		finally
+		{
+			_lifecycleLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops our flush timer and writes whatever is still pending. Calling this on a stopped factory just writes whatever is
+	 * pending.
+	 *
+	 * @throws Exception If the final batch could not be written.
+	 */
+	public void stop() throws Exception
+	{
+		_lifecycleLock.lock();
+
+		try
+		{
+			if (_flushTimer != null)
+			{
+				_flushTimer.shutdown();
+				_flushTimer.awaitTermination(getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+				_flushTimer = null;
+			}
+
+			flush();
+		}
+		finally
+		{
+			_lifecycleLock.unlock();
+		}
+	}
+
+	@Override
+	public Callable<Void> createWriteOperation(final T statisticsEntity)
+	{
+		return new Callable<Void>()
+		{
+			@Override
+			public Void call() throws Exception
+			{
+				add(statisticsEntity);
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Adds a statistic to the pending batch, writing the batch if it's full.
+	 *
+	 * @param statistic The statistic to add. Must not be <code>null</code>.
+	 *
+	 * @throws Exception If the batch was full and could be written neither by our batch writer nor our fallback.
+	 */
+	void add(final T statistic) throws Exception
+	{
+		List<T> fullBatch = null;
+
+		_pendingLock.lock();
+
+		try
+		{
+			if (_pending.isEmpty())
+			{
+				_oldestPendingMillis = System.currentTimeMillis();
+			}
+
+			_pending.add(statistic);
+
+			if (_pending.size() >= getBatchSize())
+			{
+				fullBatch = takePending();
+			}
+		}
+		finally
+		{
+			_pendingLock.unlock();
+		}
+
+		if (fullBatch != null)
+		{
+			writeBatch(fullBatch);
+		}
+	}
+
+	/**
+	 * Writes whatever is pending, regardless of how much there is or how long it's been waiting.
+	 *
+	 * @throws Exception If the batch could be written neither by our batch writer nor our fallback.
+	 */
+	public void flush() throws Exception
+	{
+		final List<T> batch;
+
+		_pendingLock.lock();
+
+		try
+		{
+			batch = takePending();
+		}
+		finally
+		{
+			_pendingLock.unlock();
+		}
+
+		if (!batch.isEmpty())
+		{
+			writeBatch(batch);
+		}
+	}
+
+	/**
+	 * Run by our flush timer: writes the pending batch if its oldest statistic has waited for too long.
+	 */
+	private void flushIfStale()
+	{
+		List<T> staleBatch = null;
+
+		_pendingLock.lock();
+
+		try
+		{
+			if (!_pending.isEmpty() && System.currentTimeMillis() - _oldestPendingMillis >= getFlushIntervalMillis())
+			{
+				staleBatch = takePending();
+			}
+		}
+		finally
+		{
+			_pendingLock.unlock();
+		}
+
+		if (staleBatch != null)
+		{
+			try
+			{
+				writeBatch(staleBatch);
+			}
+			catch (final Exception ex)
+			{
+				// Nobody to throw this to, and an exception would cancel the timer's future runs. It's been counted.
+			}
+		}
+	}
+
+	/**
+	 * Hands a batch to our batch writer, or to our fallback writer if that fails. A batch neither could write is
+	 * counted as lost and its statistics recycled, if they can be.
+	 *
+	 * @param batch The batch to write.
+	 *
+	 * @throws Exception What our batch writer threw, if the batch was lost.
+	 */
+	private void writeBatch(final List<T> batch) throws Exception
+	{
+		try
+		{
+			getBatchWriter().writeBatch(batch);
+			return;
+		}
+		catch (final Exception ex)
+		{
+			final boolean lost = !writeFallback(batch);
+			_failedFlushes.increment();
+
+			if (lost)
+			{
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * Hands a batch our batch writer failed to write to the fallback writer, counting it as lost if there is none or
+	 * that fails too.
+	 *
+	 * @param batch The batch that could not be written.
+	 *
+	 * @return <code>True</code> if the fallback writer took the batch, else <code>false</code>.
+	 */
+	private boolean writeFallback(final List<T> batch)
+	{
+		final IBatchWriter<T> fallbackBatchWriter = getFallbackBatchWriter();
+
+		if (fallbackBatchWriter != null)
+		{
+			try
+			{
+				fallbackBatchWriter.writeBatch(batch);
+				return true;
+			}
+			catch (final Exception ex)
+			{
+				// Counted below, as if there were no fallback at all.
+			}
+		}
+
+		_lostStatistics.add(batch.size());
+
+		for (final T statistic : batch)
+		{
+			if (statistic instanceof IRecyclable)
+			{
+				((IRecyclable)statistic).recycle();
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Swaps out the pending batch for a fresh one. Must be called with {@link #_pendingLock} held.
+	 *
+	 * @return The statistics that were pending. Will not be <code>null</code>.
+	 */
+	private List<T> takePending()
+	{
+		final List<T> batch = _pending;
+		_pending = new ArrayList<>(Math.min(getBatchSize(), 1024));
+		return batch;
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link org.epiphanic.instrumentation.performance.ConcurrentRingBuffer} of pending statistics that applies an {@link
+ * org.epiphanic.instrumentation.performance.OverflowPolicy} when it is full, and counts every statistic that doesn't make
+ * it in. Shared by our bounded asynchronous loggers, which supply the policy on each call so that it may be reconfigured
+ * while they run.<p/>
+ *
+ * Statistics that are discarded are recycled if they are {@link org.epiphanic.instrumentation.performance.IRecyclable},
+ * since nobody else holds a reference to them.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class BoundedStatisticBuffer<T>
+{
+	/**
+	 * Holds the number of times a blocked producer spins before it starts parking.
+	 */
+	private static final int SPINS_BEFORE_PARKING = 64;
+
+	/**
+	 * Holds how long, in nanoseconds, a blocked producer parks for between attempts.
+	 */
+	private static final long PARK_NANOS = 50000;
+
+	/**
+	 * Holds our pending statistics.
+	 */
+	private final ConcurrentRingBuffer<T> _ringBuffer;
+
+	/**
+	 * Holds the number of statistics that were discarded.
+	 */
+	private final LongAdder _dropped = new LongAdder();
+
+	/**
+	 * Holds the number of statistics handed to an overflow logger instead.
+	 */
+	private final LongAdder _aggregated = new LongAdder();
+
+	/**
+	 * Creates a buffer holding at least the given number of pending statistics.
+	 *
+	 * @param capacity The number of statistics that may be pending at any one time. Rounded up to the next power of two,
+	 * and to at least two, since a single-slot ring buffer can't tell a full slot from a free one when producers race.
+	 */
+	BoundedStatisticBuffer(final int capacity)
+	{
+		_ringBuffer = new ConcurrentRingBuffer<>(Math.max(2, capacity));
+	}
+
+	/**
+	 * Attempts to add a statistic to the buffer, applying the given policy if the buffer is full. This never throws and,
+	 * whatever the policy, never waits for longer than the given timeout.
+	 *
+	 * @param statistic The statistic to add. Must not be <code>null</code>.
+	 * @param overflowPolicy The {@link org.epiphanic.instrumentation.performance.OverflowPolicy} to apply if the buffer is
+	 * full. Must not be <code>null</code>.
+	 * @param blockTimeoutNanos How long to wait for room under {@link OverflowPolicy#BLOCK}, in nanoseconds.
+	 * @param overflowLogger Where statistics go under {@link OverflowPolicy#AGGREGATE}. May be <code>null</code>.
+	 * @param drainHint Run before and while waiting for room under {@link OverflowPolicy#BLOCK}, to make sure somebody is
+	 * draining the buffer we're waiting on. Must not be <code>null</code>, and must not block.
+	 *
+	 * @return <code>True</code> if the statistic is now pending in the buffer, else <code>false</code>.
+	 */
+	boolean offer(final T statistic, final OverflowPolicy overflowPolicy, final long blockTimeoutNanos,
+			final IStatisticsLogger<T> overflowLogger, final Runnable drainHint)
+	{
+		if (_ringBuffer.offer(statistic))
+		{
+			return true;
+		}
+
+		switch (overflowPolicy)
+		{
+			case DROP_OLDEST:
+				return evictAndOffer(statistic);
+
+			case BLOCK:
+				return waitAndOffer(statistic, blockTimeoutNanos, drainHint);
+
+			case AGGREGATE:
+				aggregate(statistic, overflowLogger);
+				return false;
+
+			default:
+				discard(statistic);
+				return false;
+		}
+	}
+
+	/**
+	 * Evicts the oldest pending statistics until our statistic fits. Other producers may claim the freed slot first, so
+	 * this goes around as often as it needs to; each lap evicts one statistic, so progress is guaranteed.
+	 *
+	 * @param statistic The statistic to add.
+	 *
+	 * @return Always <code>true</code>.
+	 */
+	private boolean evictAndOffer(final T statistic)
+	{
+		do
+		{
+			final T oldest = _ringBuffer.poll();
+
+			if (oldest != null)
+			{
+				discard(oldest);
+			}
+		}
+		while (!_ringBuffer.offer(statistic));
+
+		return true;
+	}
+
+	/**
+	 * Waits for room in the buffer, spinning briefly and then parking, and discards our statistic if none turns up
+	 * within the timeout. The drain hint is run before we start waiting and again each time we give up the processor:
+	 * if whatever drains the buffer isn't running - say its last attempt to schedule itself was rejected - nobody else
+	 * would ever make room for us.
+	 *
+	 * @param statistic The statistic to add.
+	 * @param blockTimeoutNanos How long to wait, in nanoseconds.
+	 * @param drainHint Makes sure the buffer is being drained.
+	 *
+	 * @return <code>True</code> if the statistic is now pending, else <code>false</code>.
+	 */
+	private boolean waitAndOffer(final T statistic, final long blockTimeoutNanos, final Runnable drainHint)
+	{
+		final long deadline = System.nanoTime() + blockTimeoutNanos;
+		int spins = 0;
+
+		while (deadline - System.nanoTime() > 0)
+		{
+			drainHint.run();
+
+			if (spins++ < SPINS_BEFORE_PARKING)
+			{
+				Thread.yield();
+			}
+			else
+			{
+				LockSupport.parkNanos(this, PARK_NANOS);
+			}
+
+			if (_ringBuffer.offer(statistic))
+			{
+				return true;
+			}
+		}
+
+		discard(statistic);
+		return false;
+	}
+
+	/**
+	 * Hands a statistic that didn't fit to the overflow logger, or discards it if there isn't one (or it fails).
+	 *
+	 * @param statistic The statistic that didn't fit.
+	 * @param overflowLogger The logger to hand it to. May be <code>null</code>.
+	 */
+	private void aggregate(final T statistic, final IStatisticsLogger<T> overflowLogger)
+	{
+		if (overflowLogger == null)
+		{
+			discard(statistic);
+			return;
+		}
+
+		try
+		{
+			overflowLogger.writeStatistic(statistic);
+			_aggregated.increment();
+		}
+		catch (final RuntimeException ex)
+		{
+			// The overflow logger is our last resort; if it can't cope either, the statistic is lost rather than the call.
+			_dropped.increment();
+		}
+	}
+
+	/**
+	 * Counts a statistic as dropped, and recycles it if possible.
+	 *
+	 * @param statistic The statistic being given up on.
+	 */
+	void discard(final T statistic)
+	{
+		_dropped.increment();
+
+		if (statistic instanceof IRecyclable)
+		{
+			((IRecyclable)statistic).recycle();
+		}
+	}
+
+	/**
+	 * Removes the oldest pending statistic.
+	 *
+	 * @return The oldest pending statistic, or <code>null</code> if there are none.
+	 */
+	T poll()
+	{
+		return _ringBuffer.poll();
+	}
+
+	/**
+	 * Gets the number of statistics the buffer can hold.
+	 *
+	 * @return The capacity of the buffer, which is always a power of two.
+	 */
+	int capacity()
+	{
+		return _ringBuffer.capacity();
+	}
+
+	/**
+	 * Gets the number of pending statistics.
+	 *
+	 * @return The approximate number of statistics in the buffer.
+	 */
+	int size()
+	{
+		return _ringBuffer.size();
+	}
+
+	/**
+	 * Gets the number of statistics discarded so far, whether because they didn't fit, were evicted, or timed out.
+	 *
+	 * @return The number of statistics dropped.
+	 */
+	long getDroppedCount()
+	{
+		return _dropped.sum();
+	}
+
+	/**
+	 * Gets the number of statistics handed to an overflow logger so far.
+	 *
+	 * @return The number of statistics aggregated rather than buffered.
+	 */
+	long getAggregatedCount()
+	{
+		return _aggregated.sum();
+	}
+}
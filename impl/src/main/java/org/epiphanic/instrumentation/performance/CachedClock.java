@@ -0,0 +1,187 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A coarse {@link org.epiphanic.instrumentation.performance.IClock}: a ticker thread reads the system clocks every
+ * {@link #getTickMicros()} microseconds and publishes the readings to volatile fields, so that a reading is a plain
+ * volatile load rather than a clock call. Use it for very high-frequency operations where the clock calls themselves
+ * are a noticeable part of the instrumentation's cost, and where durations to within a tick are good enough.<p/>
+ *
+ * The price is resolution. Readings only change once a tick, and the ticker parks between ticks, which on most
+ * systems takes at least fifty microseconds or so however short the tick asked for. A call shorter than a tick is
+ * recorded as taking either no time at all or a whole tick, so only totals and averages over many calls are
+ * meaningful - percentiles of short calls are not. <code>ClockBenchmark</code> in the benchmarks module measures both
+ * sides of the trade for a given machine: the cost of a reading, and how long the reading takes to change.<p/>
+ *
+ * This class must be started via {@link #start()} before use and should be stopped via {@link #stop()} - when wiring
+ * with Spring, use these as the <code>init-method</code> and <code>destroy-method</code> respectively. Until started,
+ * and once stopped, readings stand still.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class CachedClock implements IClock
+{
+	/**
+	 * Holds the default interval between ticks, in microseconds.
+	 */
+	public static final long DEFAULT_TICK_MICROS = 1000;
+
+	/**
+	 * Holds the interval between ticks, in microseconds.
+	 */
+	private long _tickMicros = DEFAULT_TICK_MICROS;
+
+	/**
+	 * Holds the wall-clock reading as of the last tick.
+	 */
+	private volatile long _currentTimeMillis = System.currentTimeMillis();
+
+	/**
+	 * Holds the monotonic reading as of the last tick.
+	 */
+	private volatile long _nanoTime = System.nanoTime();
+
+	/**
+	 * Guards starting and stopping.
+	 */
+	private final ReentrantLock _lifecycleLock = new ReentrantLock();
+
+	/**
+	 * Holds our ticker thread, while we're started. Guarded by our lifecycle lock.
+	 */
+	private Thread _ticker;
+
+	/**
+	 * Indicates whether our ticker should keep ticking.
+	 */
+	private volatile boolean _running;
+
+	/**
+	 * Gets the interval between ticks.
+	 *
+	 * @return The tick interval in microseconds.
+	 */
+	public long getTickMicros()
+	{
+		return _tickMicros;
+	}
+
+	/**
+	 * Sets the interval between ticks, which is the resolution of our readings. This only takes effect when the clock
+	 * is next started.
+	 *
+	 * @param tickMicros The tick interval in microseconds. Must be positive. Defaults to {@link #DEFAULT_TICK_MICROS}.
+	 */
+	public void setTickMicros(final long tickMicros)
+	{
+		if (tickMicros <= 0)
+		{
+			throw new IllegalArgumentException("The tick interval must be positive: " + tickMicros);
+		}
+
+		_tickMicros = tickMicros;
+	}
+
+	@Override
+	public long currentTimeMillis()
+	{
+		return _currentTimeMillis;
+	}
+
+	@Override
+	public long nanoTime()
+	{
+		return _nanoTime;
+	}
+
+	/**
+	 * Starts our ticker thread. Calling this on a started clock does nothing.
+	 */
+	public void start()
+	{
+		_lifecycleLock.lock();
+
+		try
+		{
+			if (_ticker != null)
+			{
+				return;
+			}
+
+			final long tickNanos = TimeUnit.MICROSECONDS.toNanos(getTickMicros());
+			tick();
+			_running = true;
+
+			_ticker = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					while (_running)
+					{
+						LockSupport.parkNanos(tickNanos);
+						tick();
+					}
+				}
+			}, "thoreau-clock");
+
+			_ticker.setDaemon(true);
+			_ticker.start();
+		}
+		finally
+		{
+			_lifecycleLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops our ticker thread, waiting for it to finish. Calling this on a stopped clock does nothing.
+	 *
+	 * @throws InterruptedException If interrupted waiting for the ticker.
+	 */
+	public void stop() throws InterruptedException
+	{
+		_lifecycleLock.lock();
+
+		try
+		{
+			if (_ticker == null)
+			{
+				return;
+			}
+
+			_running = false;
+			LockSupport.unpark(_ticker);
+			_ticker.join();
+			_ticker = null;
+		}
+		finally
+		{
+			_lifecycleLock.unlock();
+		}
+	}
+
+	/**
+	 * Publishes fresh readings of the system clocks. The monotonic reading is only ever moved forwards, so that even a
+	 * misbehaving system clock can't make a duration negative.
+	 */
+	private void tick()
+	{
+		_currentTimeMillis = System.currentTimeMillis();
+
+		final long nanoTime = System.nanoTime();
+
+		if (nanoTime - _nanoTime > 0)
+		{
+			_nanoTime = nanoTime;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, preallocated, lock-free ring buffer of entries of type E. Slots are claimed by sequence number in the
+ * style of the LMAX Disruptor (or Dmitry Vyukov's bounded MPMC queue): every slot carries its own sequence number, and
+ * a producer (or consumer) that sees the sequence it expects claims the slot with a single CAS on the shared cursor. Nothing is allocated on either {@link #offer(Object)} or {@link #poll()}.<p/>
+ *
+ * Any number of threads may offer and poll concurrently, although the loggers in this package use it with many
+ * producers and a single draining consumer.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class ConcurrentRingBuffer<E>
+{
+	/**
+	 * Holds the mask used to turn a sequence into a slot index. The capacity is always a power of two.
+	 */
+	private final int _mask;
+
+	/**
+	 * Holds our preallocated slots. Visibility of a slot's contents is piggy-backed on the write to its sequence.
+	 */
+	private final Object[] _entries;
+
+	/**
+	 * Holds the sequence number of each slot, telling producers and consumers whose turn it is to use the slot.
+	 */
+	private final AtomicLongArray _sequences;
+
+	/**
+	 * Holds the next sequence a producer will claim.
+	 */
+	private final AtomicLong _producerSequence = new AtomicLong();
+
+	/**
+	 * Holds the next sequence a consumer will claim.
+	 */
+	private final AtomicLong _consumerSequence = new AtomicLong();
+
+	/**
+	 * Creates a new ring buffer, rounding the requested capacity up to the next power of two.
+	 *
+	 * @param capacity The minimum number of entries the buffer must be able to hold. Must be positive.
+	 */
+	public ConcurrentRingBuffer(final int capacity)
+	{
+		if (capacity < 1 || capacity > (1 << 30))
+		{
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30, got: " + capacity);
+		}
+
+		final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+
+		_mask = size - 1;
+		_entries = new Object[size];
+		_sequences = new AtomicLongArray(size);
+
+		for (int i = 0; i < size; i++)
+		{
+			_sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Attempts to add an entry to the buffer without blocking.
+	 *
+	 * @param entry The entry to add. Must not be <code>null</code>.
+	 *
+	 * @return <code>True</code> if the entry was added, <code>false</code> if the buffer was full.
+	 */
+	public boolean offer(final E entry)
+	{
+		while (true)
+		{
+			final long sequence = _producerSequence.get();
+			final int index = (int)sequence & _mask;
+			final long difference = _sequences.get(index) - sequence;
+
+			if (difference == 0)
+			{
+				if (_producerSequence.compareAndSet(sequence, sequence + 1))
+				{
+					_entries[index] = entry;
+
+					// Publish the slot to consumers. The ordered store keeps the entry write from floating below it.
+					_sequences.lazySet(index, sequence + 1);
+					return true;
+				}
+			}
+			else if (difference < 0)
+			{
+				// The consumer hasn't freed this slot yet, so we've lapped it.
+				return false;
+			}
+
+			// Otherwise another producer beat us to the slot, so go around again.
+		}
+	}
+
+	/**
+	 * Attempts to remove the oldest entry from the buffer without blocking.
+	 *
+	 * @return The oldest entry in the buffer, or <code>null</code> if the buffer was empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll()
+	{
+		while (true)
+		{
+			final long sequence = _consumerSequence.get();
+			final int index = (int)sequence & _mask;
+			final long difference = _sequences.get(index) - (sequence + 1);
+
+			if (difference == 0)
+			{
+				if (_consumerSequence.compareAndSet(sequence, sequence + 1))
+				{
+					final E entry = (E)_entries[index];
+					_entries[index] = null;
+
+					// Hand the slot back to producers for their next lap.
+					_sequences.lazySet(index, sequence + _mask + 1);
+					return entry;
+				}
+			}
+			else if (difference < 0)
+			{
+				// Nothing has been published to this slot yet.
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Gets an approximation of the number of entries currently held. This is exact when the buffer is quiescent.
+	 *
+	 * @return The approximate number of entries in the buffer, between zero and {@link #capacity()}.
+	 */
+	public int size()
+	{
+		final long size = _producerSequence.get() - _consumerSequence.get();
+		return (int)Math.max(0, Math.min(size, capacity()));
+	}
+
+	/**
+	 * Gets the number of entries the buffer can hold.
+	 *
+	 * @return The capacity of the buffer, always a power of two.
+	 */
+	public int capacity()
+	{
+		return _mask + 1;
+	}
+}
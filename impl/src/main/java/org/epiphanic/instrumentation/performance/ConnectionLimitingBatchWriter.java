@@ -0,0 +1,183 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decorates another {@link org.epiphanic.instrumentation.performance.IBatchWriter} so that no more than a set number
+ * of batches are written at once, and so no more than that many database connections are ever taken by our writes -
+ * however many threads are writing. This is what makes it safe to run write operations on an unbounded number of
+ * virtual threads, as {@link WriterExecutors#newWriterExecutor(int)} does: the threads are cheap, the connections
+ * aren't.<p/>
+ *
+ * Writers waiting for a permit park on a fair {@link java.util.concurrent.Semaphore}, which never pins a virtual
+ * thread, and are served in the order they arrived. A writer still waiting after {@link #getAcquireTimeoutMillis()}
+ * gives up with a {@link java.util.concurrent.TimeoutException}; decorate this with a {@link
+ * org.epiphanic.instrumentation.performance.SpillingBatchWriter} to keep those batches rather than lose them.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class ConnectionLimitingBatchWriter<T> implements IBatchWriter<T>
+{
+	/**
+	 * Holds the default number of batches written at once.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_WRITES = 4;
+
+	/**
+	 * Holds the default amount of time, in milliseconds, that a writer waits for its turn.
+	 */
+	public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * Holds the writer we limit.
+	 */
+	private IBatchWriter<T> _batchWriter;
+
+	/**
+	 * Holds the permits to write, one per connection.
+	 */
+	private volatile Semaphore _permits = new Semaphore(DEFAULT_MAX_CONCURRENT_WRITES, true);
+
+	/**
+	 * Holds the number of batches that may be written at once.
+	 */
+	private volatile int _maxConcurrentWrites = DEFAULT_MAX_CONCURRENT_WRITES;
+
+	/**
+	 * Holds how long, in nanoseconds, a writer waits for its turn.
+	 */
+	private volatile long _acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+
+	/**
+	 * Holds the number of batches given up on because no permit came in time.
+	 */
+	private final LongAdder _timedOut = new LongAdder();
+
+	/**
+	 * Gets the writer we limit.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public IBatchWriter<T> getBatchWriter()
+	{
+		return _batchWriter;
+	}
+
+	/**
+	 * Sets the writer we limit.
+	 *
+	 * @param batchWriter A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public void setBatchWriter(final IBatchWriter<T> batchWriter)
+	{
+		_batchWriter = batchWriter;
+	}
+
+	/**
+	 * Gets the number of batches that may be written at once.
+	 *
+	 * @return The number of concurrent writes allowed.
+	 */
+	public int getMaxConcurrentWrites()
+	{
+		return _maxConcurrentWrites;
+	}
+
+	/**
+	 * Sets the number of batches that may be written at once: at most the size of the connection pool, less whatever
+	 * the application needs for itself. This should be set before any batches are written.
+	 *
+	 * @param maxConcurrentWrites The number of concurrent writes allowed. Must be positive.
+	 */
+	public void setMaxConcurrentWrites(final int maxConcurrentWrites)
+	{
+		if (maxConcurrentWrites <= 0)
+		{
+			throw new IllegalArgumentException("At least one write must be allowed at a time: " + maxConcurrentWrites);
+		}
+
+		_permits = new Semaphore(maxConcurrentWrites, true);
+		_maxConcurrentWrites = maxConcurrentWrites;
+	}
+
+	/**
+	 * Gets how long a writer waits for its turn.
+	 *
+	 * @return The acquire timeout in milliseconds.
+	 */
+	public long getAcquireTimeoutMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(_acquireTimeoutNanos);
+	}
+
+	/**
+	 * Sets how long a writer waits for its turn before giving up on its batch.
+	 *
+	 * @param acquireTimeoutMillis The acquire timeout in milliseconds. Must not be negative.
+	 */
+	public void setAcquireTimeoutMillis(final long acquireTimeoutMillis)
+	{
+		_acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+	}
+
+	/**
+	 * Gets the number of batches being written right now.
+	 *
+	 * @return The number of permits in use.
+	 */
+	public int getActiveWriteCount()
+	{
+		return _maxConcurrentWrites - _permits.availablePermits();
+	}
+
+	/**
+	 * Gets the number of writers waiting for their turn.
+	 *
+	 * @return An estimate of the number of writers queued for a permit.
+	 */
+	public int getWaitingWriteCount()
+	{
+		return _permits.getQueueLength();
+	}
+
+	/**
+	 * Gets the number of batches given up on because their turn didn't come in time.
+	 *
+	 * @return The number of batches that timed out.
+	 */
+	public long getTimedOutBatchCount()
+	{
+		return _timedOut.sum();
+	}
+
+	@Override
+	public void writeBatch(final List<T> batch) throws Exception
+	{
+		final Semaphore permits = _permits;
+
+		if (!permits.tryAcquire(_acquireTimeoutNanos, TimeUnit.NANOSECONDS))
+		{
+			_timedOut.increment();
+			throw new TimeoutException("Gave up on a batch of " + batch.size() + " after waiting "
+					+ getAcquireTimeoutMillis() + "ms for one of " + getMaxConcurrentWrites() + " connections");
+		}
+
+		try
+		{
+			getBatchWriter().writeBatch(batch);
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+}
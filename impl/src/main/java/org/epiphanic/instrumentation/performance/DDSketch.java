@@ -0,0 +1,369 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A mergeable quantile sketch with bounded relative error, after Masson, Rim and Lee's DDSketch. Positive values are
+ * counted in logarithmically sized bins, bin <i>i</i> holding the values in (&gamma;<sup><i>i</i>-1</sup>,
+ * &gamma;<sup><i>i</i></sup>] where &gamma; = (1 + &alpha;) / (1 - &alpha;); reporting a bin's midpoint is then within
+ * a fraction &alpha; of any value in it. Values below one are counted separately as zero. Since bins depend only on
+ * &alpha;, two sketches with the same accuracy merge by adding their bins, and a merged sketch answers with the same
+ * bound as one that had seen every value itself - which is what makes cluster-wide percentiles possible.<p/>
+ *
+ * Recording is one logarithm and one atomic increment into a dense {@link
+ * java.util.concurrent.atomic.AtomicLongArray} covering every positive <code>long</code>; at the default one percent
+ * accuracy, that's about 2,200 bins. Reads are not atomic with respect to concurrent recording.<p/>
+ *
+ * The serialized form from {@link #toByteArray()} lists only the non-empty bins, as variable-length deltas, so a
+ * sketch of latencies spread over a couple of orders of magnitude takes well under a kilobyte.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class DDSketch
+{
+	/**
+	 * Holds the default relative accuracy.
+	 */
+	public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+	/**
+	 * Holds the version of our serialized form.
+	 */
+	private static final byte SERIAL_VERSION = 1;
+
+	/**
+	 * Holds the relative accuracy we guarantee.
+	 */
+	private final double _relativeAccuracy;
+
+	/**
+	 * Holds the base of our logarithmic bins.
+	 */
+	private final double _gamma;
+
+	/**
+	 * Holds the reciprocal of the natural logarithm of our base, to save a division per value.
+	 */
+	private final double _inverseLogGamma;
+
+	/**
+	 * Holds the count of values below one.
+	 */
+	private final AtomicLong _zeroCount = new AtomicLong();
+
+	/**
+	 * Holds our bin counts, indexed by bin.
+	 */
+	private final AtomicLongArray _bins;
+
+	/**
+	 * Creates a sketch with {@link #DEFAULT_RELATIVE_ACCURACY}.
+	 */
+	public DDSketch()
+	{
+		this(DEFAULT_RELATIVE_ACCURACY);
+	}
+
+	/**
+	 * Creates a sketch with the given relative accuracy.
+	 *
+	 * @param relativeAccuracy The relative accuracy to guarantee, between zero and one exclusive. Memory grows as this
+	 * shrinks: roughly 22 bins at ten percent, 2,200 at one percent and 22,000 at a tenth of a percent.
+	 */
+	public DDSketch(final double relativeAccuracy)
+	{
+		if (!(relativeAccuracy > 0.0 && relativeAccuracy < 1.0))
+		{
+			throw new IllegalArgumentException("Relative accuracy must be in (0, 1), was " + relativeAccuracy);
+		}
+
+		_relativeAccuracy = relativeAccuracy;
+		_gamma = (1.0 + relativeAccuracy) / (1.0 - relativeAccuracy);
+		_inverseLogGamma = 1.0 / Math.log(_gamma);
+		_bins = new AtomicLongArray(binFor(Long.MAX_VALUE) + 1);
+	}
+
+	/**
+	 * Gets the relative accuracy we guarantee.
+	 *
+	 * @return Our relative accuracy, between zero and one.
+	 */
+	public double getRelativeAccuracy()
+	{
+		return _relativeAccuracy;
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value The value to record. Anything below one is counted as zero.
+	 */
+	public void recordValue(final long value)
+	{
+		if (value < 1)
+		{
+			_zeroCount.incrementAndGet();
+		}
+		else
+		{
+			_bins.incrementAndGet(binFor(value));
+		}
+	}
+
+	/**
+	 * Gets the number of values recorded.
+	 *
+	 * @return The total count.
+	 */
+	public long getCount()
+	{
+		long count = _zeroCount.get();
+
+		for (int i = 0; i < _bins.length(); i++)
+		{
+			count += _bins.get(i);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Gets the value at a given quantile. The answer is within {@link #getRelativeAccuracy()} of the recorded value of
+	 * rank <code>floor(quantile * (count - 1))</code>, counting from zero.
+	 *
+	 * @param quantile The quantile, from zero to one; 0.99 is the 99th percentile.
+	 *
+	 * @return The estimated value at the quantile, or zero if nothing has been recorded.
+	 */
+	public double getValueAtQuantile(final double quantile)
+	{
+		final long count = getCount();
+
+		if (count == 0)
+		{
+			return 0.0;
+		}
+
+		final double rank = Math.min(1.0, Math.max(0.0, quantile)) * (count - 1);
+		long seen = _zeroCount.get();
+
+		if (seen > rank)
+		{
+			return 0.0;
+		}
+
+		for (int i = 0; i < _bins.length(); i++)
+		{
+			seen += _bins.get(i);
+
+			if (seen > rank)
+			{
+				return valueOf(i);
+			}
+		}
+
+		// Only reachable if something was recorded while we were reading.
+		return valueOf(_bins.length() - 1);
+	}
+
+	/**
+	 * Adds every count in another sketch to this one.
+	 *
+	 * @param other The sketch to add. Not changed.
+	 *
+	 * @throws IllegalArgumentException If the other sketch has a different relative accuracy, as its bins wouldn't line
+	 * up with ours.
+	 */
+	public void merge(final DDSketch other)
+	{
+		checkCompatible(other._relativeAccuracy);
+
+		_zeroCount.addAndGet(other._zeroCount.get());
+
+		for (int i = 0; i < _bins.length(); i++)
+		{
+			final long count = other._bins.get(i);
+
+			if (count != 0)
+			{
+				_bins.addAndGet(i, count);
+			}
+		}
+	}
+
+	/**
+	 * Clears every count.
+	 */
+	public void reset()
+	{
+		_zeroCount.set(0L);
+
+		for (int i = 0; i < _bins.length(); i++)
+		{
+			_bins.set(i, 0L);
+		}
+	}
+
+	/**
+	 * Serializes this sketch. The format is a version byte, the relative accuracy as an IEEE double, the zero count and
+	 * the number of non-empty bins as variable-length integers, and then for each non-empty bin the gap since the
+	 * previous one and its count, likewise.
+	 *
+	 * @return The compact serialized form. Will not be <code>null</code>.
+	 */
+	public byte[] toByteArray()
+	{
+		// Take a snapshot first, so the size we work out is the size we write.
+		final long zeroCount = _zeroCount.get();
+		final long[] counts = new long[_bins.length()];
+		int nonEmpty = 0;
+		int size = 1 + 8 + Varints.sizeOfVarLong(zeroCount);
+		int previous = 0;
+
+		for (int i = 0; i < counts.length; i++)
+		{
+			counts[i] = _bins.get(i);
+
+			if (counts[i] != 0)
+			{
+				nonEmpty++;
+				size += Varints.sizeOfVarLong(i - previous) + Varints.sizeOfVarLong(counts[i]);
+				previous = i;
+			}
+		}
+
+		size += Varints.sizeOfVarLong(nonEmpty);
+
+		final ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.put(SERIAL_VERSION);
+		buffer.putDouble(_relativeAccuracy);
+		Varints.putVarLong(buffer, zeroCount);
+		Varints.putVarLong(buffer, nonEmpty);
+		previous = 0;
+
+		for (int i = 0; i < counts.length; i++)
+		{
+			if (counts[i] != 0)
+			{
+				Varints.putVarLong(buffer, i - previous);
+				Varints.putVarLong(buffer, counts[i]);
+				previous = i;
+			}
+		}
+
+		return buffer.array();
+	}
+
+	/**
+	 * Adds the counts of a serialized sketch to this one, without creating an intermediate sketch.
+	 *
+	 * @param serialized A sketch as serialized by {@link #toByteArray()}.
+	 *
+	 * @throws IllegalArgumentException If the serialized sketch is malformed, or has a different relative accuracy.
+	 */
+	public void merge(final byte[] serialized)
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap(serialized);
+
+		try
+		{
+			final byte version = buffer.get();
+
+			if (version != SERIAL_VERSION)
+			{
+				throw new IllegalArgumentException("Unknown sketch version " + version);
+			}
+
+			checkCompatible(buffer.getDouble());
+			_zeroCount.addAndGet(Varints.getVarLong(buffer));
+
+			final long nonEmpty = Varints.getVarLong(buffer);
+			long bin = 0;
+
+			for (long i = 0; i < nonEmpty; i++)
+			{
+				bin += Varints.getVarLong(buffer);
+
+				if (bin >= _bins.length())
+				{
+					throw new IllegalArgumentException("Sketch bin " + bin + " is out of range");
+				}
+
+				_bins.addAndGet((int)bin, Varints.getVarLong(buffer));
+			}
+		}
+		catch (final BufferUnderflowException ex)
+		{
+			throw new IllegalArgumentException("Truncated sketch", ex);
+		}
+	}
+
+	/**
+	 * Deserializes a sketch.
+	 *
+	 * @param serialized A sketch as serialized by {@link #toByteArray()}.
+	 *
+	 * @return A new sketch with the same relative accuracy and counts.
+	 *
+	 * @throws IllegalArgumentException If the serialized sketch is malformed.
+	 */
+	public static DDSketch fromByteArray(final byte[] serialized)
+	{
+		if (serialized.length < 9)
+		{
+			throw new IllegalArgumentException("Truncated sketch");
+		}
+
+		final DDSketch sketch = new DDSketch(ByteBuffer.wrap(serialized, 1, 8).getDouble());
+		sketch.merge(serialized);
+		return sketch;
+	}
+
+	/**
+	 * Works out which bin a value falls into.
+	 *
+	 * @param value A value of at least one.
+	 *
+	 * @return The index of the value's bin.
+	 */
+	private int binFor(final long value)
+	{
+		return (int)Math.ceil(Math.log(value) * _inverseLogGamma);
+	}
+
+	/**
+	 * Gets the value we report for a bin: the point within a fraction alpha of both of its ends.
+	 *
+	 * @param bin The index of the bin.
+	 *
+	 * @return The bin's representative value.
+	 */
+	private double valueOf(final int bin)
+	{
+		return 2.0 * Math.pow(_gamma, bin) / (_gamma + 1.0);
+	}
+
+	/**
+	 * Makes sure another sketch's bins line up with ours.
+	 *
+	 * @param relativeAccuracy The other sketch's relative accuracy.
+	 *
+	 * @throws IllegalArgumentException If it doesn't match ours.
+	 */
+	private void checkCompatible(final double relativeAccuracy)
+	{
+		if (Double.compare(relativeAccuracy, _relativeAccuracy) != 0)
+		{
+			throw new IllegalArgumentException("Cannot merge a sketch with relative accuracy " + relativeAccuracy
+					+ " into one with relative accuracy " + _relativeAccuracy);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.util.Date;
+
+/**
+ * Holds a single entry of {@link org.epiphanic.instrumentation.performance.FailureFingerprints}: the text behind a
+ * <code>FINGERPRINT_ID</code> in <code>METHOD_PERFORMANCE</code>, along with when it was first and last seen and how
+ * many times. Join the two on that column to get failures back out of rows written without their metadata.<p/>
+ *
+ * Entries are written by the fingerprints themselves over JDBC; this mapping exists so that the table can be created
+ * and queried alongside {@link org.epiphanic.instrumentation.performance.MethodCallStatistic}. IDs are hashes of the
+ * fingerprint, never generated.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@Entity
+@Table(name = "FAILURE_FINGERPRINT")
+public class FailureFingerprintEntry
+{
+	/**
+	 * Holds the width of the <code>FAILURE_TEXT</code> column.
+	 */
+	public static final int FAILURE_TEXT_LENGTH = 4000;
+
+	/**
+	 * Our primary key, the hash of the fingerprint.
+	 */
+	private Long _fingerprintId;
+
+	/**
+	 * Holds the text of the first failure seen with this fingerprint.
+	 */
+	private String _failureText;
+
+	/**
+	 * Holds when a failure with this fingerprint was first seen.
+	 */
+	private Date _firstSeen;
+
+	/**
+	 * Holds when a failure with this fingerprint was last seen.
+	 */
+	private Date _lastSeen;
+
+	/**
+	 * Holds how many rows have been written with this fingerprint.
+	 */
+	private long _failureCount;
+
+	/**
+	 * Gets the ID of the fingerprint.
+	 *
+	 * @return The ID of the fingerprint.
+	 */
+	@Id
+	@Column(name = "FINGERPRINT_ID")
+	public Long getFingerprintId()
+	{
+		return _fingerprintId;
+	}
+
+	/**
+	 * Sets the ID of the fingerprint.
+	 *
+	 * @param fingerprintId The ID of the fingerprint.
+	 */
+	public void setFingerprintId(final Long fingerprintId)
+	{
+		_fingerprintId = fingerprintId;
+	}
+
+	/**
+	 * Gets the text of the first failure seen with this fingerprint, including its stack frames if any were asked for.
+	 *
+	 * @return The failure's text.
+	 */
+	@Column(name = "FAILURE_TEXT", length = FAILURE_TEXT_LENGTH, nullable = false)
+	public String getFailureText()
+	{
+		return _failureText;
+	}
+
+	/**
+	 * Sets the text of the first failure seen with this fingerprint.
+	 *
+	 * @param failureText The failure's text.
+	 */
+	public void setFailureText(final String failureText)
+	{
+		_failureText = failureText;
+	}
+
+	/**
+	 * Gets when a failure with this fingerprint was first seen.
+	 *
+	 * @return The time of the first failure.
+	 */
+	@Column(name = "FIRST_SEEN")
+	public Date getFirstSeen()
+	{
+		return _firstSeen;
+	}
+
+	/**
+	 * Sets when a failure with this fingerprint was first seen.
+	 *
+	 * @param firstSeen The time of the first failure.
+	 */
+	public void setFirstSeen(final Date firstSeen)
+	{
+		_firstSeen = firstSeen;
+	}
+
+	/**
+	 * Gets when a failure with this fingerprint was last seen.
+	 *
+	 * @return The time of the latest failure.
+	 */
+	@Column(name = "LAST_SEEN")
+	public Date getLastSeen()
+	{
+		return _lastSeen;
+	}
+
+	/**
+	 * Sets when a failure with this fingerprint was last seen.
+	 *
+	 * @param lastSeen The time of the latest failure.
+	 */
+	public void setLastSeen(final Date lastSeen)
+	{
+		_lastSeen = lastSeen;
+	}
+
+	/**
+	 * Gets how many rows have been written with this fingerprint.
+	 *
+	 * @return The number of failures.
+	 */
+	@Column(name = "FAILURE_COUNT")
+	public long getFailureCount()
+	{
+		return _failureCount;
+	}
+
+	/**
+	 * Sets how many rows have been written with this fingerprint.
+	 *
+	 * @param failureCount The number of failures.
+	 */
+	public void setFailureCount(final long failureCount)
+	{
+		_failureCount = failureCount;
+	}
+}
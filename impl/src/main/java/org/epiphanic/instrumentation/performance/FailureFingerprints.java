@@ -0,0 +1,774 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Deduplicates failures by fingerprint, so that the same failure repeated through an incident has its text stored once
+ * rather than once per row. A failure's fingerprint is its class, its message with numbers and quoted literals
+ * normalized away, and the top {@link #getStackFrames()} frames of its stack; the ID of a fingerprint is a 64-bit hash
+ * of it. {@link org.epiphanic.instrumentation.performance.JdbcBatchWriter} calls {@link
+ * #recordFailure(MethodCallStatistic)} for each failed statistic, stores the ID in the row's
+ * <code>FINGERPRINT_ID</code> in place of its <code>METADATA</code>, and calls {@link #persist()} before the batch.<p/>
+ *
+ * Given a {@link javax.sql.DataSource}, fingerprints are backed by the <code>FAILURE_FINGERPRINT</code> table mapped by
+ * {@link org.epiphanic.instrumentation.performance.FailureFingerprintEntry}: the text of the first failure seen with a
+ * fingerprint is inserted once, and each persist after adds to its count and moves its last seen time on.<p/>
+ *
+ * Only the {@link #getCapacity()} most recently seen fingerprints are kept in memory. Since an ID depends on nothing but
+ * its fingerprint, one that's been forgotten and turns up again gets the same ID, and several nodes can share one
+ * table. Statistics carrying only rendered metadata - those replayed from a spill journal, say - are fingerprinted
+ * from that text instead, so won't share the fingerprint of the failure they were rendered from. Counts are of rows
+ * handed to us, so a batch that fails to write after being fingerprinted has been counted all the same.<p/>
+ *
+ * This all happens on the writer's thread, never the capture path's.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class FailureFingerprints
+{
+	/**
+	 * Holds the ID meaning that a statistic has no fingerprint.
+	 */
+	public static final long NO_FINGERPRINT = 0;
+
+	/**
+	 * Holds the default number of fingerprints we keep in memory.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Holds the default number of stack frames in a fingerprint.
+	 */
+	public static final int DEFAULT_STACK_FRAMES = 3;
+
+	/**
+	 * Holds the statement we add to the count of a fingerprint already in our table with.
+	 */
+	static final String UPDATE_SQL = "update FAILURE_FINGERPRINT set LAST_SEEN = ?, FAILURE_COUNT = FAILURE_COUNT + ? "
+			+ "where FINGERPRINT_ID = ?";
+
+	/**
+	 * Holds the statement we persist new fingerprints with.
+	 */
+	static final String INSERT_SQL = "insert into FAILURE_FINGERPRINT "
+			+ "(FINGERPRINT_ID, FAILURE_TEXT, FIRST_SEEN, LAST_SEEN, FAILURE_COUNT) values (?, ?, ?, ?, ?)";
+
+	/**
+	 * Holds the name of the savepoint we insert new fingerprints under. Named, as not every driver supports unnamed ones.
+	 */
+	static final String SAVEPOINT_NAME = "FAILURE_FINGERPRINT_INSERT";
+
+	/**
+	 * Holds the fingerprints we know of, least recently seen first. Guarded by our lock.
+	 */
+	private final Map<String, Fingerprint> _fingerprints = createFingerprints();
+
+	/**
+	 * Holds fingerprints forgotten with occurrences yet to be persisted. Guarded by our lock.
+	 */
+	private final List<Fingerprint> _evicted = new ArrayList<>();
+
+	/**
+	 * Guards our fingerprints.
+	 */
+	private final ReentrantLock _lock = new ReentrantLock();
+
+	/**
+	 * Serializes writes to our table.
+	 */
+	private final ReentrantLock _persistLock = new ReentrantLock();
+
+	/**
+	 * Holds the formatter we render the text of new fingerprints with.
+	 */
+	private final FailureFormatter _failureFormatter = createFailureFormatter();
+
+	/**
+	 * Holds the most fingerprints we keep in memory.
+	 */
+	private int _capacity = DEFAULT_CAPACITY;
+
+	/**
+	 * Holds our injected {@link javax.sql.DataSource}, if we're backed by a table.
+	 */
+	private DataSource _dataSource;
+
+	/**
+	 * Gets our injected {@link javax.sql.DataSource}.
+	 *
+	 * @return An implementation of {@link javax.sql.DataSource}, or <code>null</code> if we only live in memory.
+	 */
+	public DataSource getDataSource()
+	{
+		return _dataSource;
+	}
+
+	/**
+	 * Sets the {@link javax.sql.DataSource} holding our <code>FAILURE_FINGERPRINT</code> table.
+	 *
+	 * @param dataSource A fully configured implementation of {@link javax.sql.DataSource}, or <code>null</code> (the
+	 * default) to keep fingerprints in memory only.
+	 */
+	public void setDataSource(final DataSource dataSource)
+	{
+		_dataSource = dataSource;
+	}
+
+	/**
+	 * Gets the most fingerprints we keep in memory.
+	 *
+	 * @return Our capacity.
+	 */
+	public int getCapacity()
+	{
+		return _capacity;
+	}
+
+	/**
+	 * Sets the most fingerprints we keep in memory. The least recently seen are forgotten first.
+	 *
+	 * @param capacity Our capacity. Must be positive. Defaults to {@link #DEFAULT_CAPACITY}.
+	 */
+	public void setCapacity(final int capacity)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+		}
+
+		_capacity = capacity;
+	}
+
+	/**
+	 * Gets how many stack frames are part of a fingerprint.
+	 *
+	 * @return The number of frames from the top of the stack.
+	 */
+	public int getStackFrames()
+	{
+		return _failureFormatter.getStackFrames();
+	}
+
+	/**
+	 * Sets how many stack frames are part of a fingerprint, and of the text stored for it. More frames tell apart the
+	 * same failure thrown from different places; fewer fold them together. Changing this changes every fingerprint, so
+	 * set it once.
+	 *
+	 * @param stackFrames The number of frames from the top of the stack. Must not be negative. Defaults to {@link
+	 * #DEFAULT_STACK_FRAMES}.
+	 */
+	public void setStackFrames(final int stackFrames)
+	{
+		_failureFormatter.setStackFrames(stackFrames);
+	}
+
+	/**
+	 * Gets the number of fingerprints we have in memory.
+	 *
+	 * @return The number of fingerprints, at most our capacity.
+	 */
+	public int size()
+	{
+		_lock.lock();
+
+		try
+		{
+			return _fingerprints.size();
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Records a failed statistic under its fingerprint.
+	 *
+	 * @param statistic The statistic. Must not be <code>null</code>.
+	 *
+	 * @return The ID of the statistic's fingerprint, or {@link #NO_FINGERPRINT} if it succeeded or carries neither a
+	 * failure nor metadata.
+	 */
+	public long recordFailure(final MethodCallStatistic statistic)
+	{
+		if (statistic.isOperationSuccessful())
+		{
+			return NO_FINGERPRINT;
+		}
+
+		final Throwable failure = statistic.getFailure();
+		final String metaData = failure == null ? statistic.getMetaData() : null;
+
+		if (failure == null && metaData == null)
+		{
+			return NO_FINGERPRINT;
+		}
+
+		final String key = failure != null ? describe(failure) : normalize(metaData);
+		final long completionMillis = statistic.getOperationCompletionMillis();
+		final long seenMillis = completionMillis == MethodCallStatistic.UNKNOWN_TIME ? System.currentTimeMillis()
+				: completionMillis;
+
+		_lock.lock();
+
+		try
+		{
+			Fingerprint fingerprint = _fingerprints.get(key);
+
+			if (fingerprint == null)
+			{
+				final String text = failure != null ? _failureFormatter.format(failure)
+						: FailureFormatter.truncate(metaData, FailureFingerprintEntry.FAILURE_TEXT_LENGTH);
+				fingerprint = new Fingerprint(key, text, seenMillis);
+				_fingerprints.put(key, fingerprint);
+			}
+
+			fingerprint.seen(seenMillis);
+			return fingerprint._id;
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes every occurrence recorded since the last call to our table, in a transaction of its own: new fingerprints
+	 * are inserted with their text, and known ones have their count and last seen time updated. Does nothing if we have
+	 * no {@link javax.sql.DataSource}, or nothing has failed since.
+	 *
+	 * @return The number of fingerprints written.
+	 *
+	 * @throws SQLException If the fingerprints could not be written. They'll be tried again next time.
+	 */
+	public int persist() throws SQLException
+	{
+		if (getDataSource() == null)
+		{
+			return 0;
+		}
+
+		_persistLock.lock();
+
+		try
+		{
+			final List<Occurrences> pending = drain();
+
+			if (pending.isEmpty())
+			{
+				return 0;
+			}
+
+			try (Connection connection = getDataSource().getConnection())
+			{
+				final boolean autoCommit = connection.getAutoCommit();
+				connection.setAutoCommit(false);
+
+				try
+				{
+					write(connection, pending);
+					connection.commit();
+				}
+				catch (final SQLException ex)
+				{
+					connection.rollback();
+					throw ex;
+				}
+				finally
+				{
+					connection.setAutoCommit(autoCommit);
+				}
+			}
+			catch (final SQLException ex)
+			{
+				restore(pending);
+				throw ex;
+			}
+
+			markPersisted(pending);
+			return pending.size();
+		}
+		finally
+		{
+			_persistLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes occurrences on the given connection, without committing. Fingerprints we've persisted before are updated in
+	 * one batch; the rest are updated one at a time, as a batch's update counts can't be relied on, and inserted if they
+	 * weren't there to update. Should another node sharing our table insert one in between, our insert is rolled back to
+	 * a savepoint and updated after all, rather than failing the lot.
+	 *
+	 * @param connection The connection to use.
+	 * @param pending The occurrences to write.
+	 *
+	 * @throws SQLException If anything goes wrong talking to the database.
+	 */
+	private static void write(final Connection connection, final List<Occurrences> pending) throws SQLException
+	{
+		final List<Occurrences> inserts = new ArrayList<>();
+
+		try (PreparedStatement update = connection.prepareStatement(UPDATE_SQL))
+		{
+			for (final Occurrences occurrences : pending)
+			{
+				if (!occurrences._persisted)
+				{
+					bindUpdate(update, occurrences);
+
+					if (update.executeUpdate() == 0)
+					{
+						inserts.add(occurrences);
+					}
+				}
+			}
+
+			boolean batched = false;
+
+			for (final Occurrences occurrences : pending)
+			{
+				if (occurrences._persisted)
+				{
+					bindUpdate(update, occurrences);
+					update.addBatch();
+					batched = true;
+				}
+			}
+
+			if (batched)
+			{
+				update.executeBatch();
+			}
+		}
+
+		if (inserts.isEmpty())
+		{
+			return;
+		}
+
+		try (PreparedStatement insert = connection.prepareStatement(INSERT_SQL);
+			 PreparedStatement update = connection.prepareStatement(UPDATE_SQL))
+		{
+			for (final Occurrences occurrences : inserts)
+			{
+				final Fingerprint fingerprint = occurrences._fingerprint;
+				insert.setLong(1, fingerprint._id);
+				insert.setString(2, fingerprint._text);
+				insert.setTimestamp(3, new Timestamp(fingerprint._firstSeenMillis));
+				insert.setTimestamp(4, new Timestamp(occurrences._lastSeenMillis));
+				insert.setLong(5, occurrences._count);
+
+				final Savepoint savepoint = connection.setSavepoint(SAVEPOINT_NAME);
+
+				try
+				{
+					insert.executeUpdate();
+					connection.releaseSavepoint(savepoint);
+				}
+				catch (final SQLException ex)
+				{
+					if (!SqlStates.isDuplicateKey(ex))
+					{
+						throw ex;
+					}
+
+					connection.rollback(savepoint);
+					bindUpdate(update, occurrences);
+					update.executeUpdate();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Binds occurrences of a fingerprint to the parameters of our update statement.
+	 *
+	 * @param update The prepared update statement.
+	 * @param occurrences The occurrences to bind.
+	 *
+	 * @throws SQLException If a parameter could not be bound.
+	 */
+	private static void bindUpdate(final PreparedStatement update, final Occurrences occurrences) throws SQLException
+	{
+		update.setTimestamp(1, new Timestamp(occurrences._lastSeenMillis));
+		update.setLong(2, occurrences._count);
+		update.setLong(3, occurrences._fingerprint._id);
+	}
+
+	/**
+	 * Takes every occurrence yet to be persisted, leaving none behind.
+	 *
+	 * @return The occurrences taken, one per fingerprint seen since they were last taken.
+	 */
+	private List<Occurrences> drain()
+	{
+		_lock.lock();
+
+		try
+		{
+			final List<Occurrences> pending = new ArrayList<>();
+
+			for (final Fingerprint fingerprint : _evicted)
+			{
+				pending.add(fingerprint.take());
+			}
+
+			_evicted.clear();
+
+			for (final Fingerprint fingerprint : _fingerprints.values())
+			{
+				if (fingerprint._count > 0)
+				{
+					pending.add(fingerprint.take());
+				}
+			}
+
+			return pending;
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts occurrences we failed to persist back, to be tried again next time.
+	 *
+	 * @param pending The occurrences to put back.
+	 */
+	private void restore(final List<Occurrences> pending)
+	{
+		_lock.lock();
+
+		try
+		{
+			for (final Occurrences occurrences : pending)
+			{
+				final Fingerprint fingerprint = occurrences._fingerprint;
+				final boolean wasPending = fingerprint._count > 0;
+				fingerprint._count += occurrences._count;
+				fingerprint._lastSeenMillis = Math.max(fingerprint._lastSeenMillis, occurrences._lastSeenMillis);
+
+				if (!fingerprint._cached && !wasPending)
+				{
+					_evicted.add(fingerprint);
+				}
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Notes that the fingerprints behind some occurrences are now in our table.
+	 *
+	 * @param pending The occurrences just persisted.
+	 */
+	private void markPersisted(final List<Occurrences> pending)
+	{
+		_lock.lock();
+
+		try
+		{
+			for (final Occurrences occurrences : pending)
+			{
+				occurrences._fingerprint._persisted = true;
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Describes a failure by its fingerprint: its class, its normalized message, and the top of its stack.
+	 *
+	 * @param failure The failure to describe.
+	 *
+	 * @return The failure's fingerprint.
+	 */
+	String describe(final Throwable failure)
+	{
+		final StringBuilder key = new StringBuilder(failure.getClass().getName());
+		String message;
+
+		try
+		{
+			message = failure.getMessage();
+		}
+		catch (final RuntimeException ex)
+		{
+			message = null;
+		}
+
+		if (message != null)
+		{
+			key.append(": ").append(normalize(message));
+		}
+
+		final StackTraceElement[] stackTrace = failure.getStackTrace();
+
+		for (int i = 0; i < getStackFrames() && i < stackTrace.length; i++)
+		{
+			key.append(" at ").append(stackTrace[i]);
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * Normalizes the text of a failure so that failures differing only in the values they mention share a fingerprint:
+	 * every run of digits becomes <code>#</code>, and every quoted literal <code>?</code>. A quote only starts a literal
+	 * where it doesn't follow a letter and is closed later on, so that apostrophes are left alone.
+	 *
+	 * @param text The text to normalize.
+	 *
+	 * @return The normalized text.
+	 */
+	static String normalize(final String text)
+	{
+		final StringBuilder normalized = new StringBuilder(text.length());
+		final int length = text.length();
+		int i = 0;
+
+		while (i < length)
+		{
+			final char c = text.charAt(i);
+
+			if (Character.isDigit(c))
+			{
+				normalized.append('#');
+
+				while (i < length && Character.isDigit(text.charAt(i)))
+				{
+					i++;
+				}
+			}
+			else if ((c == '\'' || c == '"') && (i == 0 || !Character.isLetter(text.charAt(i - 1))))
+			{
+				final int close = text.indexOf(c, i + 1);
+
+				if (close < 0)
+				{
+					normalized.append(c);
+					i++;
+				}
+				else
+				{
+					normalized.append('?');
+					i = close + 1;
+				}
+			}
+			else
+			{
+				normalized.append(c);
+				i++;
+			}
+		}
+
+		return normalized.toString();
+	}
+
+	/**
+	 * Hashes a fingerprint into its ID, with 64-bit FNV-1a.
+	 *
+	 * @param key The fingerprint.
+	 *
+	 * @return The fingerprint's ID. Never {@link #NO_FINGERPRINT}.
+	 */
+	static long fingerprint(final String key)
+	{
+		long hash = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < key.length(); i++)
+		{
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		return hash == NO_FINGERPRINT ? 1 : hash;
+	}
+
+	/**
+	 * Creates our map of fingerprints, in access order and forgetting the least recently seen beyond our capacity.
+	 *
+	 * @return An empty map.
+	 */
+	private Map<String, Fingerprint> createFingerprints()
+	{
+		return new LinkedHashMap<String, Fingerprint>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Fingerprint> eldest)
+			{
+				if (size() <= getCapacity())
+				{
+					return false;
+				}
+
+				final Fingerprint fingerprint = eldest.getValue();
+				fingerprint._cached = false;
+
+				if (fingerprint._count > 0 && getDataSource() != null)
+				{
+					_evicted.add(fingerprint);
+				}
+
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Creates the formatter we render the text of new fingerprints with, as long as our table allows.
+	 *
+	 * @return A new {@link org.epiphanic.instrumentation.performance.FailureFormatter}.
+	 */
+	private static FailureFormatter createFailureFormatter()
+	{
+		final FailureFormatter failureFormatter = new FailureFormatter();
+		failureFormatter.setMaxLength(FailureFingerprintEntry.FAILURE_TEXT_LENGTH);
+		failureFormatter.setStackFrames(DEFAULT_STACK_FRAMES);
+		return failureFormatter;
+	}
+
+	/**
+	 * Holds a fingerprint we know of, and its occurrences yet to be persisted. Mutable fields are guarded by our lock.
+	 */
+	private static final class Fingerprint
+	{
+		/**
+		 * Holds the fingerprint's ID.
+		 */
+		final long _id;
+
+		/**
+		 * Holds the text of the first failure seen with the fingerprint.
+		 */
+		final String _text;
+
+		/**
+		 * Holds when we first saw the fingerprint.
+		 */
+		final long _firstSeenMillis;
+
+		/**
+		 * Holds when we last saw the fingerprint.
+		 */
+		long _lastSeenMillis;
+
+		/**
+		 * Holds the number of occurrences yet to be persisted.
+		 */
+		long _count;
+
+		/**
+		 * Indicates whether the fingerprint is known to be in our table.
+		 */
+		boolean _persisted;
+
+		/**
+		 * Indicates whether the fingerprint is still in our map.
+		 */
+		boolean _cached = true;
+
+		/**
+		 * Creates a fingerprint.
+		 *
+		 * @param key The fingerprint itself.
+		 * @param text The text of the first failure seen with it.
+		 * @param firstSeenMillis When it was first seen.
+		 */
+		Fingerprint(final String key, final String text, final long firstSeenMillis)
+		{
+			_id = fingerprint(key);
+			_text = text;
+			_firstSeenMillis = firstSeenMillis;
+			_lastSeenMillis = firstSeenMillis;
+		}
+
+		/**
+		 * Records an occurrence.
+		 *
+		 * @param seenMillis When it occurred.
+		 */
+		void seen(final long seenMillis)
+		{
+			_count++;
+			_lastSeenMillis = Math.max(_lastSeenMillis, seenMillis);
+		}
+
+		/**
+		 * Takes the occurrences yet to be persisted, leaving none.
+		 *
+		 * @return The occurrences taken.
+		 */
+		Occurrences take()
+		{
+			final Occurrences occurrences = new Occurrences(this, _lastSeenMillis, _count, _persisted);
+			_count = 0;
+			return occurrences;
+		}
+	}
+
+	/**
+	 * Holds occurrences of a fingerprint taken to be persisted.
+	 */
+	private static final class Occurrences
+	{
+		/**
+		 * Holds the fingerprint that occurred.
+		 */
+		final Fingerprint _fingerprint;
+
+		/**
+		 * Holds when it last occurred.
+		 */
+		final long _lastSeenMillis;
+
+		/**
+		 * Holds how many times it occurred.
+		 */
+		final long _count;
+
+		/**
+		 * Indicates whether the fingerprint was known to be in our table when taken.
+		 */
+		final boolean _persisted;
+
+		/**
+		 * Creates occurrences of a fingerprint.
+		 *
+		 * @param fingerprint The fingerprint that occurred.
+		 * @param lastSeenMillis When it last occurred.
+		 * @param count How many times it occurred.
+		 * @param persisted Whether it was known to be in our table.
+		 */
+		Occurrences(final Fingerprint fingerprint, final long lastSeenMillis, final long count, final boolean persisted)
+		{
+			_fingerprint = fingerprint;
+			_lastSeenMillis = lastSeenMillis;
+			_count = count;
+			_persisted = persisted;
+		}
+	}
+}
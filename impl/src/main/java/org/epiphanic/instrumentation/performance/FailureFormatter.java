@@ -0,0 +1,159 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Renders the failure of an operation into the metadata of its {@link
+ * org.epiphanic.instrumentation.performance.MethodCallStatistic}: the failure's {@link Throwable#toString()}, followed
+ * by the top {@link #getStackFrames()} frames of its stack trace if asked for, cut down to {@link #getMaxLength()}
+ * characters.<p/>
+ *
+ * The capture path never calls this. It only hands the statistic the failure and this formatter via {@link
+ * MethodCallStatistic#setFailure(Throwable, FailureFormatter)}, and the text is rendered when the metadata is first
+ * read - by whichever writer persists the statistic, on its own thread. Exceptions with enormous messages, such as SQL
+ * errors or validation dumps, then cost the failing request no more than any other.<p/>
+ *
+ * Configure this before handing it to an {@link org.epiphanic.instrumentation.performance.AOPMetricGatherer}, as
+ * statistics already captured may be rendered at any time after.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class FailureFormatter
+{
+	/**
+	 * Holds what we end truncated metadata with, so that readers know there was more.
+	 */
+	static final String ELLIPSIS = "...";
+
+	/**
+	 * Holds the longest metadata we render.
+	 */
+	private int _maxLength = MethodCallStatistic.META_DATA_LENGTH;
+
+	/**
+	 * Holds how many stack frames we render.
+	 */
+	private int _stackFrames;
+
+	/**
+	 * Gets the longest metadata we render.
+	 *
+	 * @return The maximum length, in characters.
+	 */
+	public int getMaxLength()
+	{
+		return _maxLength;
+	}
+
+	/**
+	 * Sets the longest metadata we render. Longer text is cut short and ends with an ellipsis.
+	 *
+	 * @param maxLength The maximum length, in characters. Must be positive. Defaults to {@link
+	 * MethodCallStatistic#META_DATA_LENGTH}, the width of the <code>METADATA</code> column; raise it only if the column
+	 * has been widened to match.
+	 */
+	public void setMaxLength(final int maxLength)
+	{
+		if (maxLength <= 0)
+		{
+			throw new IllegalArgumentException("The maximum length must be positive: " + maxLength);
+		}
+
+		_maxLength = maxLength;
+	}
+
+	/**
+	 * Gets how many stack frames we render.
+	 *
+	 * @return The number of frames following the failure's description.
+	 */
+	public int getStackFrames()
+	{
+		return _stackFrames;
+	}
+
+	/**
+	 * Sets how many stack frames we render after the failure's description, from the top of the stack, to show where
+	 * the failure was thrown from.
+	 *
+	 * @param stackFrames The number of frames. Must not be negative. Defaults to zero, rendering the description alone.
+	 */
+	public void setStackFrames(final int stackFrames)
+	{
+		if (stackFrames < 0)
+		{
+			throw new IllegalArgumentException("The number of stack frames must not be negative: " + stackFrames);
+		}
+
+		_stackFrames = stackFrames;
+	}
+
+	/**
+	 * Renders a failure. Never throws: a failure whose description can't be rendered is described by its class name.
+	 *
+	 * @param failure The failure to render. May not be <code>null</code>.
+	 *
+	 * @return The rendered metadata, at most {@link #getMaxLength()} characters long.
+	 */
+	public String format(final Throwable failure)
+	{
+		final int maxLength = getMaxLength();
+		final StringBuilder text = new StringBuilder(Math.min(maxLength + 1, 128));
+
+		try
+		{
+			text.append(failure.toString());
+
+			final int stackFrames = getStackFrames();
+
+			if (stackFrames > 0)
+			{
+				final StackTraceElement[] stackTrace = failure.getStackTrace();
+
+				for (int i = 0; i < stackFrames && i < stackTrace.length && text.length() <= maxLength; i++)
+				{
+					text.append(" at ").append(stackTrace[i]);
+				}
+			}
+		}
+		catch (final RuntimeException ex)
+		{
+			// Somebody's getMessage() is broken. We're on a writer's thread and it has better things to do.
+			text.setLength(0);
+			text.append(failure.getClass().getName());
+		}
+
+		return truncate(text, maxLength);
+	}
+
+	/**
+	 * Cuts text down to length, ending it with an ellipsis if it was cut and there's room for one. Never splits a
+	 * surrogate pair.
+	 *
+	 * @param text The text to truncate.
+	 * @param maxLength The maximum length, in characters.
+	 *
+	 * @return The text, at most <code>maxLength</code> characters long.
+	 */
+	static String truncate(final CharSequence text, final int maxLength)
+	{
+		if (text.length() <= maxLength)
+		{
+			return text.toString();
+		}
+
+		final boolean ellipsis = maxLength > ELLIPSIS.length();
+		int end = ellipsis ? maxLength - ELLIPSIS.length() : maxLength;
+
+		if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1)))
+		{
+			end--;
+		}
+
+		final String truncated = text.subSequence(0, end).toString();
+		return ellipsis ? truncated + ELLIPSIS : truncated;
+	}
+}
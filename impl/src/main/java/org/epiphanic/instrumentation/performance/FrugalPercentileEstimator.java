@@ -0,0 +1,162 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps a running estimate of a percentile of a stream of values in constant space, using frugal streaming: each value
+ * above the estimate nudges it up with probability q, each value below nudges it down with probability 1 - q, and the
+ * estimate settles where values land above it a fraction 1 - q of the time, which is the q-th quantile. Nudges are
+ * multiplicative, so the estimate homes in on latencies of any magnitude at the same relative rate, and tracks shifts
+ * in the distribution over time.<p/>
+ *
+ * An estimate isn't worth much until it has seen enough values to have settled, so the estimator counts its first few
+ * observations and reports itself warm after that many; see {@link #isWarm()}.<p/>
+ *
+ * Updates are deliberately unsynchronized: concurrent updates may occasionally overwrite each other, which costs a
+ * nudge (or a count during warm-up) but never corrupts the estimate. That's a fine trade for something updated on every instrumented call.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class FrugalPercentileEstimator
+{
+	/**
+	 * Holds the quantile we're estimating, between zero and one.
+	 */
+	private final double _quantile;
+
+	/**
+	 * Holds the factor by which each nudge moves the estimate.
+	 */
+	private final double _stepFactor;
+
+	/**
+	 * Holds our current estimate, or {@link Double#NaN} before the first value.
+	 */
+	private volatile double _estimate = Double.NaN;
+
+	/**
+	 * Holds the number of observations needed before the estimate is considered settled.
+	 */
+	private final int _warmUpCount;
+
+	/**
+	 * Holds the number of observations so far, counted only until we're warm.
+	 */
+	private volatile int _observations;
+
+	/**
+	 * Indicates whether we've seen enough observations for the estimate to be settled.
+	 */
+	private volatile boolean _warm;
+
+	/**
+	 * Creates an estimator for the given quantile.
+	 *
+	 * @param quantile The quantile to estimate, between zero and one exclusive; 0.99 is the 99th percentile.
+	 * @param stepSize The relative size of each nudge, such as 0.01 for one percent. Larger steps track changes faster
+	 * but jitter more.
+	 * @param warmUpCount The number of observations after which the estimate is considered settled.
+	 */
+	public FrugalPercentileEstimator(final double quantile, final double stepSize, final int warmUpCount)
+	{
+		if (!(quantile > 0.0 && quantile < 1.0))
+		{
+			throw new IllegalArgumentException("Quantile must be in (0, 1), was " + quantile);
+		}
+
+		if (!(stepSize > 0.0))
+		{
+			throw new IllegalArgumentException("Step size must be positive, was " + stepSize);
+		}
+
+		_quantile = quantile;
+		_stepFactor = 1.0 + stepSize;
+		_warmUpCount = warmUpCount;
+		_warm = warmUpCount <= 0;
+	}
+
+	/**
+	 * Feeds a value into the estimate.
+	 *
+	 * @param value The value observed. Values below one are treated as one, since the estimate moves multiplicatively.
+	 */
+	public void update(final long value)
+	{
+		update(value, ThreadLocalRandom.current().nextDouble());
+	}
+
+	/**
+	 * Feeds a value into the estimate, deciding whether to nudge it with the given random number.<p/>
+	 *
+	 * This is package-protected for unit testing.
+	 *
+	 * @param value The value observed. Values below one are treated as one, since the estimate moves multiplicatively.
+	 * @param uniform A random number, uniformly distributed between zero inclusive and one exclusive.
+	 */
+	void update(final long value, final double uniform)
+	{
+		final double observed = Math.max(1.0, value);
+		final double estimate = _estimate;
+
+		if (!_warm)
+		{
+			//noinspection NonAtomicOperationOnVolatileField
+			final int observations = ++_observations;
+			_warm = observations >= _warmUpCount;
+		}
+
+		if (Double.isNaN(estimate))
+		{
+			_estimate = observed;
+		}
+		else if (observed > estimate)
+		{
+			if (uniform < _quantile)
+			{
+				_estimate = estimate * _stepFactor;
+			}
+		}
+		else if (observed < estimate)
+		{
+			if (uniform >= _quantile)
+			{
+				_estimate = estimate / _stepFactor;
+			}
+		}
+	}
+
+	/**
+	 * Gets the quantile we're estimating.
+	 *
+	 * @return A quantile between zero and one.
+	 */
+	public double getQuantile()
+	{
+		return _quantile;
+	}
+
+	/**
+	 * Indicates whether we've seen enough observations for our estimate to be settled.
+	 *
+	 * @return <code>True</code> once the warm-up count of observations has been seen.
+	 */
+	public boolean isWarm()
+	{
+		return _warm;
+	}
+
+	/**
+	 * Gets our current estimate.
+	 *
+	 * @return The estimated value at our quantile, or {@link Double#NaN} if nothing has been observed yet.
+	 */
+	public double getEstimate()
+	{
+		return _estimate;
+	}
+}
@@ -6,6 +6,12 @@
 package org.epiphanic.instrumentation.performance;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Given an entity of type T, unbounded, wires together all the pieces necessary to log it to a persistent context: when
@@ -14,12 +20,49 @@ import java.util.concurrent.ExecutorService;
  * {@link java.util.concurrent.ExecutorService} that is also injected.<p/>
  *
  * The effect of this is that a delayed write operation is queued and persisted at a nondeterministic point in time, in
- * a non-blocking manner.
+ * a non-blocking manner.<p/>
+ *
+ * <b>Note that writes are serialized by default.</b> Earlier versions submitted every write operation straight to the
+ * executor, so an executor with several threads ran several writes at once; now only one of its threads writes at a
+ * time. Set the {@link #setCapacity(int) capacity} to zero to go back to concurrent, unbounded submission - for
+ * instance, when each write operation blocks on a data store for long enough that one thread can't keep up.<p/>
+ *
+ * By default we buffer statistics ourselves: they wait in a bounded buffer of {@link #DEFAULT_CAPACITY} statistics, a
+ * single drain task at a time is submitted to the executor to write them, and when the buffer is full the configured
+ * {@link org.epiphanic.instrumentation.performance.OverflowPolicy} decides what happens - by default, the new statistic
+ * is dropped. Setting the {@link #setCapacity(int) capacity} to zero submits each write operation straight to the
+ * executor instead, leaving the only bound on pending writes to whatever the executor's queue imposes - for the usual
+ * <code>newSingleThreadExecutor</code>, none at all, so a stalled data store fills the heap. Either way, a statistic the
+ * executor rejects is dropped rather than thrown back at the instrumented application, and every statistic we give up
+ * on is counted.<p/>
+ *
+ * We report on ourselves as an {@link org.epiphanic.instrumentation.performance.IAsynchronousLoggerMXBean}: register
+ * us under a name of your choosing with Spring's <code>MBeanExporter</code>, or directly with an
+ * <code>MBeanServer</code>, to watch our queue depth, enqueue and write latencies, and failures. Producers pay for one
+ * striped counter update per statistic; only one call in {@link #getEnqueueSampleInterval()} also reads the clock
+ * twice to time its enqueue. Writes are timed by the drain task, one clock reading per statistic, and so are only
+ * counted while we buffer - with a capacity of zero, each write operation is submitted to the executor as is, and a
+ * {@link org.epiphanic.instrumentation.performance.MonitoredBatchWriter} is the place to count them.
  *
  * @author Greg Feigenson
  */
-public class GenericAsynchronousLogger<T> implements IStatisticsLogger<T>
+public class GenericAsynchronousLogger<T> implements IStatisticsLogger<T>, IAsynchronousLoggerMXBean
 {
+	/**
+	 * Holds the default number of statistics that may be waiting in our buffer.
+	 */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * Holds the default amount of time, in milliseconds, that producers wait for room under {@link OverflowPolicy#BLOCK}.
+	 */
+	public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 10;
+
+	/**
+	 * Holds the default number of calls to {@link #writeStatistic(Object)} per call whose enqueue is timed.
+	 */
+	public static final int DEFAULT_ENQUEUE_SAMPLE_INTERVAL = 64;
+
 	/**
 	 * Holds our {@link java.util.concurrent.ExecutorService} that will consume our callables created by our {@link
 	 * org.epiphanic.instrumentation.performance.IWriteOperationFactory}.
@@ -32,6 +75,86 @@ public class GenericAsynchronousLogger<T> implements IStatisticsLogger<T>
 	 */
 	private IWriteOperationFactory<T> _writeOperationFactory;
 
+	/**
+	 * Holds our bounded buffer of pending statistics, or <code>null</code> if we submit straight to the executor.
+	 */
+	private volatile BoundedStatisticBuffer<T> _buffer = new BoundedStatisticBuffer<>(DEFAULT_CAPACITY);
+
+	/**
+	 * Holds what we do with statistics when our buffer is full.
+	 */
+	private volatile OverflowPolicy _overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+	/**
+	 * Holds how long, in nanoseconds, producers wait for room under {@link OverflowPolicy#BLOCK}.
+	 */
+	private volatile long _blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BLOCK_TIMEOUT_MILLIS);
+
+	/**
+	 * Holds the logger that statistics go to under {@link OverflowPolicy#AGGREGATE}, if any.
+	 */
+	private volatile IStatisticsLogger<T> _overflowLogger;
+
+	/**
+	 * Holds the number of statistics dropped because the executor rejected them.
+	 */
+	private final LongAdder _rejected = new LongAdder();
+
+	/**
+	 * Holds the number of statistics handed to us.
+	 */
+	private final LongAdder _enqueued = new LongAdder();
+
+	/**
+	 * Holds the number of calls to {@link #writeStatistic(Object)} per call whose enqueue is timed, or zero if none are.
+	 */
+	private volatile int _enqueueSampleInterval = DEFAULT_ENQUEUE_SAMPLE_INTERVAL;
+
+	/**
+	 * Holds the time producers spend in {@link #writeStatistic(Object)}, for those calls that are timed.
+	 */
+	private final StripedLatencyCounter _enqueueLatencies = new StripedLatencyCounter();
+
+	/**
+	 * Holds the time write operations take, successful or not.
+	 */
+	private final StripedLatencyCounter _writeLatencies = new StripedLatencyCounter();
+
+	/**
+	 * Holds the number of write operations that threw.
+	 */
+	private final LongAdder _failedWrites = new LongAdder();
+
+	/**
+	 * Indicates whether or not a drain task is currently submitted or running.
+	 */
+	private final AtomicBoolean _drainScheduled = new AtomicBoolean();
+
+	/**
+	 * Holds the task that drains our buffer, so that scheduling it doesn't allocate.
+	 */
+	private final Runnable _drainTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			drain();
+		}
+	};
+
+	/**
+	 * Makes sure our drain task is scheduled, for producers waiting on it under {@link OverflowPolicy#BLOCK}; preallocated
+	 * so that waiting doesn't allocate.
+	 */
+	private final Runnable _drainHint = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			scheduleDrain();
+		}
+	};
+
 	/**
 	 * Gets our injected {@link java.util.concurrent.ExecutorService} for consuming our write operation callables.
 	 *
@@ -76,9 +199,363 @@ public class GenericAsynchronousLogger<T> implements IStatisticsLogger<T>
 		_writeOperationFactory = writeOperationFactory;
 	}
 
+	/**
+	 * Gets the capacity of our buffer.
+	 *
+	 * @return The number of statistics that may be pending at any one time, or zero if we submit every statistic straight
+	 * to the executor. Defaults to {@link #DEFAULT_CAPACITY}.
+	 */
+	@Override
+	public int getCapacity()
+	{
+		final BoundedStatisticBuffer<T> buffer = _buffer;
+		return buffer == null ? 0 : buffer.capacity();
+	}
+
+	/**
+	 * Sets the capacity of our buffer. This should be set before any statistics are written, as anything pending in a
+	 * previous buffer is abandoned.
+	 *
+	 * @param capacity The number of statistics that may be pending at any one time, rounded up to the next power of two;
+	 * or zero to submit every statistic straight to the executor, leaving any bound to its queue.
+	 */
+	public void setCapacity(final int capacity)
+	{
+		_buffer = capacity > 0 ? new BoundedStatisticBuffer<T>(capacity) : null;
+	}
+
+	/**
+	 * Gets what we do with statistics when our buffer is full.
+	 *
+	 * @return The {@link org.epiphanic.instrumentation.performance.OverflowPolicy} in effect. Defaults to {@link
+	 * OverflowPolicy#DROP_NEWEST}.
+	 */
+	public OverflowPolicy getOverflowPolicy()
+	{
+		return _overflowPolicy;
+	}
+
+	/**
+	 * Sets what we do with statistics when our buffer is full. This may be changed while we are running, and has no
+	 * effect unless we have a {@link #setCapacity(int) capacity}. Only opt in to {@link OverflowPolicy#BLOCK} if losing
+	 * statistics is worse than slowing the instrumented application down by up to {@link #getBlockTimeoutMillis()} per
+	 * call while the data store is stalled.
+	 *
+	 * @param overflowPolicy The {@link org.epiphanic.instrumentation.performance.OverflowPolicy} to apply. Must not be
+	 * <code>null</code>.
+	 */
+	public void setOverflowPolicy(final OverflowPolicy overflowPolicy)
+	{
+		_overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Gets how long producers wait for room in a full buffer under {@link OverflowPolicy#BLOCK}.
+	 *
+	 * @return The block timeout in milliseconds.
+	 */
+	public long getBlockTimeoutMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(_blockTimeoutNanos);
+	}
+
+	/**
+	 * Sets how long producers wait for room in a full buffer under {@link OverflowPolicy#BLOCK} before giving up on
+	 * their statistic. This bounds the latency that instrumentation can ever add to a call.
+	 *
+	 * @param blockTimeoutMillis The block timeout in milliseconds. Must not be negative. Defaults to {@link
+	 * #DEFAULT_BLOCK_TIMEOUT_MILLIS}.
+	 */
+	public void setBlockTimeoutMillis(final long blockTimeoutMillis)
+	{
+		_blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+	}
+
+	/**
+	 * Gets how often producers time their enqueue.
+	 *
+	 * @return The number of calls to {@link #writeStatistic(Object)} per call that is timed, or zero if none are.
+	 */
+	public int getEnqueueSampleInterval()
+	{
+		return _enqueueSampleInterval;
+	}
+
+	/**
+	 * Sets how often producers time their enqueue. Timing a call costs it two clock readings, which on some platforms
+	 * cost more than the enqueue itself; the calls timed are picked at random, so the mean is unbiased, though a rare
+	 * slow enqueue may be missed by the maximum.
+	 *
+	 * @param enqueueSampleInterval The number of calls per call that is timed: one to time every call, or zero to time
+	 * none. Must not be negative. Defaults to {@link #DEFAULT_ENQUEUE_SAMPLE_INTERVAL}.
+	 */
+	public void setEnqueueSampleInterval(final int enqueueSampleInterval)
+	{
+		if (enqueueSampleInterval < 0)
+		{
+			throw new IllegalArgumentException("The enqueue sample interval must not be negative: "
+					+ enqueueSampleInterval);
+		}
+
+		_enqueueSampleInterval = enqueueSampleInterval;
+	}
+
+	/**
+	 * Gets the logger that statistics go to under {@link OverflowPolicy#AGGREGATE}.
+	 *
+	 * @return The overflow {@link org.epiphanic.instrumentation.performance.IStatisticsLogger}, or <code>null</code> if
+	 * there is none.
+	 */
+	public IStatisticsLogger<T> getOverflowLogger()
+	{
+		return _overflowLogger;
+	}
+
+	/**
+	 * Sets the logger that statistics go to under {@link OverflowPolicy#AGGREGATE} - typically an {@link
+	 * org.epiphanic.instrumentation.performance.AggregatingStatisticsLogger}.
+	 *
+	 * @param overflowLogger The overflow {@link org.epiphanic.instrumentation.performance.IStatisticsLogger}. May be
+	 * <code>null</code>, in which case statistics that don't fit are dropped.
+	 */
+	public void setOverflowLogger(final IStatisticsLogger<T> overflowLogger)
+	{
+		_overflowLogger = overflowLogger;
+	}
+
+	/**
+	 * Gets the number of statistics currently waiting in our buffer.
+	 *
+	 * @return The approximate number of pending statistics, or zero if we have no buffer.
+	 */
+	public int getPendingStatisticCount()
+	{
+		final BoundedStatisticBuffer<T> buffer = _buffer;
+		return buffer == null ? 0 : buffer.size();
+	}
+
+	/**
+	 * Gets the number of statistics we have given up on, whether because our buffer was full or because the executor
+	 * rejected them.
+	 *
+	 * @return The number of statistics dropped.
+	 */
+	@Override
+	public long getDroppedStatisticCount()
+	{
+		final BoundedStatisticBuffer<T> buffer = _buffer;
+		return _rejected.sum() + (buffer == null ? 0 : buffer.getDroppedCount());
+	}
+
+	/**
+	 * Gets the number of statistics handed to our overflow logger because our buffer was full.
+	 *
+	 * @return The number of statistics aggregated rather than written.
+	 */
+	@Override
+	public long getAggregatedStatisticCount()
+	{
+		final BoundedStatisticBuffer<T> buffer = _buffer;
+		return buffer == null ? 0 : buffer.getAggregatedCount();
+	}
+
+	@Override
+	public int getQueueDepth()
+	{
+		final BoundedStatisticBuffer<T> buffer = _buffer;
+
+		if (buffer != null)
+		{
+			return buffer.size();
+		}
+
+		// Without a buffer of our own, whatever waits is in the executor's queue - if we can see it.
+		final ExecutorService messageProcessor = getMessageProcessor();
+		return messageProcessor instanceof ThreadPoolExecutor
+				? ((ThreadPoolExecutor)messageProcessor).getQueue().size() : 0;
+	}
+
+	@Override
+	public long getEnqueuedStatisticCount()
+	{
+		return _enqueued.sum();
+	}
+
+	@Override
+	public double getMeanEnqueueNanos()
+	{
+		return _enqueueLatencies.getMean();
+	}
+
+	@Override
+	public long getMaxEnqueueNanos()
+	{
+		return _enqueueLatencies.getMax();
+	}
+
+	@Override
+	public long getWrittenStatisticCount()
+	{
+		return _writeLatencies.getCount() - _failedWrites.sum();
+	}
+
+	@Override
+	public long getFailedWriteCount()
+	{
+		return _failedWrites.sum();
+	}
+
+	@Override
+	public double getMeanWriteNanos()
+	{
+		return _writeLatencies.getMean();
+	}
+
+	@Override
+	public long getMaxWriteNanos()
+	{
+		return _writeLatencies.getMax();
+	}
+
+	@Override
+	public void resetLatencyMaxima()
+	{
+		_enqueueLatencies.resetMax();
+		_writeLatencies.resetMax();
+	}
+
 	@Override
 	public void writeStatistic(final T statistic)
 	{
-		getMessageProcessor().submit(getWriteOperationFactory().createWriteOperation(statistic));
+		_enqueued.increment();
+		final int enqueueSampleInterval = _enqueueSampleInterval;
+
+		if (enqueueSampleInterval == 0
+				|| (enqueueSampleInterval > 1 && ThreadLocalRandom.current().nextInt(enqueueSampleInterval) != 0))
+		{
+			enqueue(statistic);
+			return;
+		}
+
+		final long startNanos = System.nanoTime();
+		enqueue(statistic);
+		_enqueueLatencies.record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Hands a statistic over to be written: straight to the executor, or into our buffer if we have one.
+	 *
+	 * @param statistic The statistic to write. Must not be <code>null</code>.
+	 */
+	private void enqueue(final T statistic)
+	{
+		final BoundedStatisticBuffer<T> buffer = _buffer;
+
+		if (buffer == null)
+		{
+			try
+			{
+				getMessageProcessor().submit(getWriteOperationFactory().createWriteOperation(statistic));
+			}
+			catch (final RejectedExecutionException ex)
+			{
+				// The executor is saturated or shut down; either way, the statistic is lost rather than the call.
+				_rejected.increment();
+			}
+
+			return;
+		}
+
+		if (buffer.offer(statistic, _overflowPolicy, _blockTimeoutNanos, _overflowLogger, _drainHint))
+		{
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Submits our drain task to the executor, unless it is already submitted or running.
+	 */
+	private void scheduleDrain()
+	{
+		if (!_drainScheduled.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		try
+		{
+			getMessageProcessor().execute(_drainTask);
+		}
+		catch (final RejectedExecutionException ex)
+		{
+			// Leave the statistics pending; the next write, or a producer waiting for room, will try again, and the buffer
+			// bounds them in the meantime.
+			_drainScheduled.set(false);
+		}
+	}
+
+	/**
+	 * The body of our drain task: writes pending statistics until the buffer is empty. Only one drain task is ever
+	 * scheduled at a time, so that a stalled data store ties up one executor thread rather than all of them.
+	 */
+	private void drain()
+	{
+		final BoundedStatisticBuffer<T> buffer = _buffer;
+
+		if (buffer == null)
+		{
+			_drainScheduled.set(false);
+			return;
+		}
+
+		while (true)
+		{
+			long lastNanos = System.nanoTime();
+			T statistic;
+
+			while ((statistic = buffer.poll()) != null)
+			{
+				final boolean written = write(statistic);
+
+				// Each write is timed from the end of the last, so that it takes one clock reading rather than two.
+				final long nowNanos = System.nanoTime();
+				_writeLatencies.record(nowNanos - lastNanos);
+				lastNanos = nowNanos;
+
+				if (!written)
+				{
+					_failedWrites.increment();
+				}
+			}
+
+			_drainScheduled.set(false);
+
+			// A producer may have published after our last poll but before we cleared the flag, and seen it still set.
+			if (buffer.size() == 0 || !_drainScheduled.compareAndSet(false, true))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Creates and immediately runs a write operation for the given statistic on the drain task's thread.
+	 *
+	 * @param statistic The statistic to write. Must not be <code>null</code>.
+	 *
+	 * @return <code>True</code> if the write operation completed, or <code>false</code> if it threw.
+	 */
+	private boolean write(final T statistic)
+	{
+		try
+		{
+			getWriteOperationFactory().createWriteOperation(statistic).call();
+			return true;
+		}
+		catch (final Exception ex)
+		{
+			// Just as the executor would swallow a failed Future, there's nobody to report this to but our counters.
+			return false;
+		}
 	}
 }
@@ -0,0 +1,98 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+
+import java.util.List;
+
+/**
+ * A Hibernate-based implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}. Given a batch of
+ * entities of type T, unbounded, inserts them all through a single {@link org.hibernate.StatelessSession} and commits
+ * them as one transaction.<p/>
+ *
+ * Compared to {@link org.epiphanic.instrumentation.performance.HibernateWriteOperation}, which opens a full
+ * {@link org.hibernate.Session} per entity, this skips the first-level cache and dirty checking entirely, checks out
+ * one connection per batch rather than one per entity, and lets Hibernate group the inserts into JDBC batches of
+ * <code>hibernate.jdbc.batch_size</code> (where the identifier generator allows it). Once a batch is committed, its
+ * {@link org.epiphanic.instrumentation.performance.IRecyclable} entities are recycled.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class HibernateStatelessBatchWriter<T> implements IBatchWriter<T>
+{
+	/**
+	 * Holds our injected {@link org.hibernate.SessionFactory} that we use for persisting our entities.
+	 */
+	private SessionFactory _sessionFactory;
+
+	/**
+	 * Gets our injected instance of {@link SessionFactory} to use for dealing with anything we've configured for
+	 * Hibernate.
+	 *
+	 * @return A non-<code>null</code> instance of {@link org.hibernate.SessionFactory}.
+	 */
+	public SessionFactory getSessionFactory()
+	{
+		return _sessionFactory;
+	}
+
+	/**
+	 * Sets an instance of {@link org.hibernate.SessionFactory} to use for our Hibernate operations.
+	 *
+	 * @param sessionFactory A non-<code>null</code>, fully configured instance of {@link org.hibernate.SessionFactory}.
+	 */
+	public void setSessionFactory(final SessionFactory sessionFactory)
+	{
+		_sessionFactory = sessionFactory;
+	}
+
+	@Override
+	public void writeBatch(final List<T> batch) throws Exception
+	{
+		if (batch.isEmpty())
+		{
+			return;
+		}
+
+		final StatelessSession session = getSessionFactory().openStatelessSession();
+
+		try
+		{
+			final Transaction transaction = session.beginTransaction();
+
+			try
+			{
+				for (final T entity : batch)
+				{
+					session.insert(entity);
+				}
+
+				transaction.commit();
+			}
+			catch (final Exception ex)
+			{
+				transaction.rollback();
+				throw ex;
+			}
+		}
+		finally
+		{
+			session.close();
+		}
+
+		// A stateless session keeps no references, so our entities are free to go.
+		for (final T entity : batch)
+		{
+			if (entity instanceof IRecyclable)
+			{
+				((IRecyclable)entity).recycle();
+			}
+		}
+	}
+}
@@ -13,7 +13,8 @@ import java.util.concurrent.Callable;
 /**
  * A Hibernate-based write operation, to be produced by an implementation of {@link
  * org.epiphanic.instrumentation.performance.IWriteOperationFactory}. Given an entity of type T, unbounded, attempts to
- * write it to our configured Hibernate {@link org.hibernate.SessionFactory}.<p/>
+ * write it to our configured Hibernate {@link org.hibernate.SessionFactory}. Once written, a {@link
+ * org.epiphanic.instrumentation.performance.IRecyclable} entity is recycled and forgotten.<p/>
  *
  * @author Greg Feigenson
  */
@@ -85,6 +86,15 @@ public final class HibernateWriteOperation<T> implements Callable<Void>
 		session.flush();
 		session.close();
 
+		// The session is gone, so nothing in Hibernate refers to our entity any more.
+		final T entity = getEntityToWrite();
+		setEntityToWrite(null);
+
+		if (entity instanceof IRecyclable)
+		{
+			((IRecyclable)entity).recycle();
+		}
+
 		return null;
 	}
 }
@@ -14,7 +14,15 @@ import java.util.concurrent.Callable;
  * factory takes a injected {@link org.hibernate.SessionFactory} and, given a {@link org.epiphanic.instrumentation.performance.MethodCallStatistic},
  * creates a Hibernate-based write operation.<p/>
  *
- * Think of this like a cross between a DAO and a traditional factory.
+ * Think of this like a cross between a DAO and a traditional factory.<p/>
+ *
+ * By default every statistic gets its own {@link org.hibernate.Session}. Setting {@link #setStatelessBatching(boolean)}
+ * instead collects statistics into batches of {@link #getBatchSize()} (or whatever has accumulated after
+ * {@link #getFlushIntervalMillis()} milliseconds) and writes each batch through a single {@link
+ * org.hibernate.StatelessSession} via a {@link org.epiphanic.instrumentation.performance.HibernateStatelessBatchWriter}.
+ * Set <code>hibernate.jdbc.batch_size</code> on the session factory to match. In that mode this factory must be
+ * started via {@link #start()} and stopped via {@link #stop()} - when wiring with Spring, use these as the
+ * <code>init-method</code> and <code>destroy-method</code> respectively.
  *
  * @author Greg Feigenson
  */
@@ -25,6 +33,26 @@ public class HibernateWriteOperationFactory implements IWriteOperationFactory<Me
 	 */
 	private SessionFactory _sessionFactory;
 
+	/**
+	 * Indicates whether we batch our statistics through a stateless session rather than using a session per statistic.
+	 */
+	private boolean _statelessBatching;
+
+	/**
+	 * Holds our maximum batch size, when batching.
+	 */
+	private int _batchSize = BatchingWriteOperationFactory.DEFAULT_BATCH_SIZE;
+
+	/**
+	 * Holds the maximum time, in milliseconds, that a statistic waits before its batch is written, when batching.
+	 */
+	private long _flushIntervalMillis = BatchingWriteOperationFactory.DEFAULT_FLUSH_INTERVAL_MILLIS;
+
+	/**
+	 * Holds the factory we delegate to when batching, created when we are started.
+	 */
+	private volatile BatchingWriteOperationFactory<MethodCallStatistic> _batchingFactory;
+
 	/**
 	 * Gets our injected {@link org.hibernate.SessionFactory} to use for interacting with our persistence context.
 	 *
@@ -45,9 +73,118 @@ public class HibernateWriteOperationFactory implements IWriteOperationFactory<Me
 		_sessionFactory = sessionFactory;
 	}
 
+	/**
+	 * Indicates whether we batch our statistics through a stateless session rather than using a session per statistic.
+	 *
+	 * @return <code>True</code> if we batch through a stateless session, else <code>false</code>.
+	 */
+	public boolean isStatelessBatching()
+	{
+		return _statelessBatching;
+	}
+
+	/**
+	 * Sets whether we batch our statistics through a stateless session rather than using a session per statistic. This
+	 * only takes effect when the factory is next started.
+	 *
+	 * @param statelessBatching <code>True</code> to batch through a stateless session, <code>false</code> (the default)
+	 * to use a session per statistic.
+	 */
+	public void setStatelessBatching(final boolean statelessBatching)
+	{
+		_statelessBatching = statelessBatching;
+	}
+
+	/**
+	 * Gets the maximum number of statistics in a batch, when batching.
+	 *
+	 * @return The maximum batch size.
+	 */
+	public int getBatchSize()
+	{
+		return _batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of statistics in a batch, when batching.
+	 *
+	 * @param batchSize The maximum batch size. Must be positive.
+	 */
+	public void setBatchSize(final int batchSize)
+	{
+		_batchSize = batchSize;
+	}
+
+	/**
+	 * Gets the maximum time, in milliseconds, that a statistic waits before its batch is written, when batching.
+	 *
+	 * @return The flush interval in milliseconds.
+	 */
+	public long getFlushIntervalMillis()
+	{
+		return _flushIntervalMillis;
+	}
+
+	/**
+	 * Sets the maximum time, in milliseconds, that a statistic waits before its batch is written, when batching.
+	 *
+	 * @param flushIntervalMillis The flush interval in milliseconds. Must be positive.
+	 */
+	public void setFlushIntervalMillis(final long flushIntervalMillis)
+	{
+		_flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Sets up our stateless batching, if configured. Calling this on a started factory, or when not batching, does
+	 * nothing.
+	 */
+	public synchronized void start()
+	{
+		if (!isStatelessBatching() || _batchingFactory != null)
+		{
+			return;
+		}
+
+		final HibernateStatelessBatchWriter<MethodCallStatistic> batchWriter = new HibernateStatelessBatchWriter<>();
+		batchWriter.setSessionFactory(getSessionFactory());
+
+		final BatchingWriteOperationFactory<MethodCallStatistic> batchingFactory = new BatchingWriteOperationFactory<>();
+		batchingFactory.setBatchWriter(batchWriter);
+		batchingFactory.setBatchSize(getBatchSize());
+		batchingFactory.setFlushIntervalMillis(getFlushIntervalMillis());
+		batchingFactory.start();
+
+		_batchingFactory = batchingFactory;
+	}
+
+	/**
+	 * Tears down our stateless batching, writing any statistics still pending. Calling this on a stopped factory, or
+	 * when not batching, does nothing.
+	 *
+	 * @throws Exception If the final batch could not be written.
+	 */
+	public synchronized void stop() throws Exception
+	{
+		final BatchingWriteOperationFactory<MethodCallStatistic> batchingFactory = _batchingFactory;
+
+		if (batchingFactory != null)
+		{
+			_batchingFactory = null;
+			batchingFactory.stop();
+		}
+	}
+
 	@Override
 	public Callable<Void> createWriteOperation(final MethodCallStatistic statisticsEntity)
 	{
+		final BatchingWriteOperationFactory<MethodCallStatistic> batchingFactory = _batchingFactory;
+
+		if (batchingFactory != null)
+		{
+			return batchingFactory.createWriteOperation(statisticsEntity);
+		}
+
 		final HibernateWriteOperation<MethodCallStatistic> writeOperation = new HibernateWriteOperation<>();
 		
 		writeOperation.setEntityToWrite(statisticsEntity);
@@ -0,0 +1,423 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A plain JDBC implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}, writing batches of
+ * {@link org.epiphanic.instrumentation.performance.MethodCallStatistic} rows into the same <code>METHOD_PERFORMANCE</code>
+ * table that the Hibernate mapping uses. Each batch is sent with a single {@link java.sql.PreparedStatement#executeBatch()}
+ * on one connection and committed as one transaction, after which its statistics are recycled.<p/>
+ *
+ * Wire this into a {@link org.epiphanic.instrumentation.performance.BatchingWriteOperationFactory} in place of a
+ * {@link org.epiphanic.instrumentation.performance.HibernateWriteOperationFactory} to avoid a round trip per statistic.
+ * By default primary keys are left to the database, which matches what the "native" mapping of
+ * {@link org.epiphanic.instrumentation.performance.MethodCallStatistic} produces on identity-column databases such as
+ * HSQLDB or MySQL. On sequence-based databases, inject an {@link org.epiphanic.instrumentation.performance.IIdentifierAllocator}
+ * such as {@link org.epiphanic.instrumentation.performance.SequenceBlockIdentifierAllocator} so that keys don't cost a
+ * round trip per row. Keys are allocated before the batch's connection is checked out, so an allocator that needs a
+ * connection of its own never waits on a pool we're holding one from.<p/>
+ *
+ * Inject an {@link org.epiphanic.instrumentation.performance.OperationDictionary} to store a small integer
+ * <code>OPERATION_ID</code> per row in place of the operation name, shrinking both the table and any index on the
+ * operation.<p/>
+ *
+ * Likewise, inject {@link org.epiphanic.instrumentation.performance.FailureFingerprints} to store a
+ * <code>FINGERPRINT_ID</code> per failed row in place of its <code>METADATA</code>, with the text of each distinct
+ * failure written once to <code>FAILURE_FINGERPRINT</code>. Under a storm of identical failures this takes the text out
+ * of all but the first row.<p/>
+ *
+ * Neither side table is worth losing a batch over: should the dictionary or fingerprints fail to persist, the failure
+ * is counted by {@link #getFailedDictionaryPersistCount()} or {@link #getFailedFingerprintPersistCount()} and the batch
+ * is written regardless. Its IDs are still in memory, and are persisted with the next batch.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class JdbcBatchWriter implements IBatchWriter<MethodCallStatistic>
+{
+	/**
+	 * Holds the statement we use to insert our rows when we supply the primary key ourselves.
+	 */
+	static final String INSERT_SQL = "insert into METHOD_PERFORMANCE "
+			+ "(METRIC_ID, USER_ID, OPERATION_NAME, OPERATION_ID, START_TIME, END_TIME, DURATION_NANOS, METADATA, SUCCESS, "
+			+ "SAMPLE_WEIGHT, SPAN_ID, PARENT_SPAN_ID, SELF_TIME_NANOS, FINGERPRINT_ID) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	/**
+	 * Holds the statement we use to insert our rows when the database generates the primary key.
+	 */
+	static final String INSERT_GENERATED_ID_SQL = "insert into METHOD_PERFORMANCE "
+			+ "(USER_ID, OPERATION_NAME, OPERATION_ID, START_TIME, END_TIME, DURATION_NANOS, METADATA, SUCCESS, SAMPLE_WEIGHT, "
+			+ "SPAN_ID, PARENT_SPAN_ID, SELF_TIME_NANOS, FINGERPRINT_ID) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	/**
+	 * Holds our injected {@link javax.sql.DataSource} that we write our batches to.
+	 */
+	private DataSource _dataSource;
+
+	/**
+	 * Holds the allocator that hands out our primary keys, if we're not letting the database generate them.
+	 */
+	private IIdentifierAllocator _identifierAllocator;
+
+	/**
+	 * Holds the dictionary our operation names are stored in, if we're not storing them in each row.
+	 */
+	private OperationDictionary _operationDictionary;
+
+	/**
+	 * Holds the fingerprints our failures are stored under, if we're not storing their metadata in each row.
+	 */
+	private FailureFingerprints _failureFingerprints;
+
+	/**
+	 * Holds the number of times our dictionary failed to persist.
+	 */
+	private final LongAdder _failedDictionaryPersists = new LongAdder();
+
+	/**
+	 * Holds the number of times our fingerprints failed to persist.
+	 */
+	private final LongAdder _failedFingerprintPersists = new LongAdder();
+
+	/**
+	 * Gets our injected {@link javax.sql.DataSource}.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link javax.sql.DataSource}.
+	 */
+	public DataSource getDataSource()
+	{
+		return _dataSource;
+	}
+
+	/**
+	 * Sets the {@link javax.sql.DataSource} to write our batches to.
+	 *
+	 * @param dataSource A non-<code>null</code>, fully configured implementation of {@link javax.sql.DataSource}.
+	 */
+	public void setDataSource(final DataSource dataSource)
+	{
+		_dataSource = dataSource;
+	}
+
+	/**
+	 * Gets the allocator that hands out our primary keys.
+	 *
+	 * @return An implementation of {@link org.epiphanic.instrumentation.performance.IIdentifierAllocator}, or
+	 * <code>null</code> if the database generates our primary keys.
+	 */
+	public IIdentifierAllocator getIdentifierAllocator()
+	{
+		return _identifierAllocator;
+	}
+
+	/**
+	 * Sets the allocator that hands out our primary keys.
+	 *
+	 * @param identifierAllocator An implementation of {@link org.epiphanic.instrumentation.performance.IIdentifierAllocator},
+	 * or <code>null</code> to let the database generate our primary keys.
+	 */
+	public void setIdentifierAllocator(final IIdentifierAllocator identifierAllocator)
+	{
+		_identifierAllocator = identifierAllocator;
+	}
+
+	/**
+	 * Gets the dictionary our operation names are stored in.
+	 *
+	 * @return An {@link org.epiphanic.instrumentation.performance.OperationDictionary}, or <code>null</code> if each row
+	 * carries its operation name.
+	 */
+	public OperationDictionary getOperationDictionary()
+	{
+		return _operationDictionary;
+	}
+
+	/**
+	 * Sets the dictionary our operation names are stored in. Each row then carries only the <code>OPERATION_ID</code> of
+	 * its name, and any names new to the dictionary are persisted ahead of the batch that uses them. Statistics that
+	 * weren't resolved through the dictionary on capture - those replayed from a spill journal, say - are resolved here
+	 * by name.
+	 *
+	 * @param operationDictionary An {@link org.epiphanic.instrumentation.performance.OperationDictionary} backed by the
+	 * same database, or <code>null</code> (the default) to store the operation name in each row.
+	 */
+	public void setOperationDictionary(final OperationDictionary operationDictionary)
+	{
+		_operationDictionary = operationDictionary;
+	}
+
+	/**
+	 * Gets the fingerprints our failures are stored under.
+	 *
+	 * @return Our {@link org.epiphanic.instrumentation.performance.FailureFingerprints}, or <code>null</code> if each
+	 * row carries its metadata.
+	 */
+	public FailureFingerprints getFailureFingerprints()
+	{
+		return _failureFingerprints;
+	}
+
+	/**
+	 * Sets the fingerprints our failures are stored under. Each failed row then carries only the
+	 * <code>FINGERPRINT_ID</code> of its failure, and the fingerprints are persisted ahead of the batch that uses them.
+	 *
+	 * @param failureFingerprints {@link org.epiphanic.instrumentation.performance.FailureFingerprints} backed by the
+	 * same database, or <code>null</code> (the default) to store metadata in each row.
+	 */
+	public void setFailureFingerprints(final FailureFingerprints failureFingerprints)
+	{
+		_failureFingerprints = failureFingerprints;
+	}
+
+	/**
+	 * Gets the number of times our dictionary failed to persist new entries ahead of a batch, which was written anyway.
+	 *
+	 * @return The number of failed dictionary persists.
+	 */
+	public long getFailedDictionaryPersistCount()
+	{
+		return _failedDictionaryPersists.sum();
+	}
+
+	/**
+	 * Gets the number of times our fingerprints failed to persist ahead of a batch, which was written anyway.
+	 *
+	 * @return The number of failed fingerprint persists.
+	 */
+	public long getFailedFingerprintPersistCount()
+	{
+		return _failedFingerprintPersists.sum();
+	}
+
+	@Override
+	public void writeBatch(final List<MethodCallStatistic> batch) throws Exception
+	{
+		if (batch.isEmpty())
+		{
+			return;
+		}
+
+		final OperationDictionary operationDictionary = getOperationDictionary();
+
+		if (operationDictionary != null)
+		{
+			resolveOperationIds(operationDictionary, batch);
+		}
+
+		final FailureFingerprints failureFingerprints = getFailureFingerprints();
+
+		if (failureFingerprints != null)
+		{
+			resolveFingerprints(failureFingerprints, batch);
+		}
+
+		final IIdentifierAllocator identifierAllocator = getIdentifierAllocator();
+
+		if (identifierAllocator != null)
+		{
+			allocateIds(identifierAllocator, batch);
+		}
+
+		try (Connection connection = getDataSource().getConnection())
+		{
+			final boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+
+			try
+			{
+				insert(connection, batch);
+				connection.commit();
+
+				for (final MethodCallStatistic statistic : batch)
+				{
+					statistic.recycle();
+				}
+			}
+			catch (final Exception ex)
+			{
+				connection.rollback();
+				throw ex;
+			}
+			finally
+			{
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+	}
+
+	/**
+	 * Makes sure every statistic in a batch has an ID for its operation name, and tries to persist those IDs.
+	 *
+	 * @param operationDictionary The dictionary to resolve names through.
+	 * @param batch The statistics to resolve.
+	 */
+	private void resolveOperationIds(final OperationDictionary operationDictionary,
+			final List<MethodCallStatistic> batch)
+	{
+		for (final MethodCallStatistic statistic : batch)
+		{
+			if (statistic.getOperationId() == OperationDictionary.NO_OPERATION_ID && statistic.getOperationName() != null)
+			{
+				statistic.setOperationId(operationDictionary.getOperationId(statistic.getOperationName()));
+			}
+		}
+
+		try
+		{
+			operationDictionary.persist();
+		}
+		catch (final SQLException ex)
+		{
+			// The entries stay pending in the dictionary, and the rows can be joined to them once they're persisted.
+			_failedDictionaryPersists.increment();
+		}
+	}
+
+	/**
+	 * Makes sure every failed statistic in a batch has been fingerprinted, and tries to persist those fingerprints. A
+	 * statistic already fingerprinted, as when a failed batch is tried again, isn't counted twice.
+	 *
+	 * @param failureFingerprints The fingerprints to record failures under.
+	 * @param batch The statistics to fingerprint.
+	 */
+	private void resolveFingerprints(final FailureFingerprints failureFingerprints,
+			final List<MethodCallStatistic> batch)
+	{
+		for (final MethodCallStatistic statistic : batch)
+		{
+			if (statistic.getFingerprintId() == FailureFingerprints.NO_FINGERPRINT)
+			{
+				statistic.setFingerprintId(failureFingerprints.recordFailure(statistic));
+			}
+		}
+
+		try
+		{
+			failureFingerprints.persist();
+		}
+		catch (final SQLException ex)
+		{
+			// The occurrences stay pending in the fingerprints, text and all, to be persisted with the next batch.
+			_failedFingerprintPersists.increment();
+		}
+	}
+
+	/**
+	 * Assigns a new primary key to every statistic in a batch.
+	 *
+	 * @param identifierAllocator The allocator to take keys from.
+	 * @param batch The statistics to assign keys to.
+	 *
+	 * @throws Exception If the allocator couldn't hand out keys.
+	 */
+	private static void allocateIds(final IIdentifierAllocator identifierAllocator,
+			final List<MethodCallStatistic> batch) throws Exception
+	{
+		for (final MethodCallStatistic statistic : batch)
+		{
+			statistic.setId(identifierAllocator.nextId());
+		}
+	}
+
+	/**
+	 * Inserts the given batch on the given connection, without committing. Primary keys must already be allocated if we
+	 * have an allocator.
+	 *
+	 * @param connection The connection to use. Must not be <code>null</code>.
+	 * @param batch The statistics to insert. Must not be <code>null</code>.
+	 *
+	 * @throws Exception If anything goes wrong talking to the database.
+	 */
+	private void insert(final Connection connection, final List<MethodCallStatistic> batch) throws Exception
+	{
+		final boolean storeNames = getOperationDictionary() == null;
+
+		if (getIdentifierAllocator() == null)
+		{
+			try (PreparedStatement insert = connection.prepareStatement(INSERT_GENERATED_ID_SQL))
+			{
+				for (final MethodCallStatistic statistic : batch)
+				{
+					bind(insert, 1, statistic, storeNames);
+					insert.addBatch();
+				}
+
+				insert.executeBatch();
+			}
+
+			return;
+		}
+
+		try (PreparedStatement insert = connection.prepareStatement(INSERT_SQL))
+		{
+			for (final MethodCallStatistic statistic : batch)
+			{
+				insert.setLong(1, statistic.getId());
+				bind(insert, 2, statistic, storeNames);
+				insert.addBatch();
+			}
+
+			insert.executeBatch();
+		}
+	}
+
+	/**
+	 * Binds the non-key columns of a statistic to the parameters of an insert statement.
+	 *
+	 * @param insert The prepared insert statement.
+	 * @param firstParameter The index of the parameter for <code>USER_ID</code>, the first non-key column.
+	 * @param statistic The statistic to bind.
+	 * @param storeName Whether to store the operation name, or leave it to the <code>OPERATION_ID</code>.
+	 *
+	 * @throws SQLException If a parameter could not be bound.
+	 */
+	static void bind(final PreparedStatement insert, final int firstParameter, final MethodCallStatistic statistic,
+			final boolean storeName) throws SQLException
+	{
+		if (statistic.getUserId() == null)
+		{
+			insert.setNull(firstParameter, Types.BIGINT);
+		}
+		else
+		{
+			insert.setLong(firstParameter, statistic.getUserId());
+		}
+
+		insert.setString(firstParameter + 1, storeName ? statistic.getOperationName() : null);
+		insert.setInt(firstParameter + 2, statistic.getOperationId());
+		insert.setTimestamp(firstParameter + 3, toTimestamp(statistic.getOperationStartMillis()));
+		insert.setTimestamp(firstParameter + 4, toTimestamp(statistic.getOperationCompletionMillis()));
+		insert.setLong(firstParameter + 5, statistic.getDurationNanos());
+		insert.setString(firstParameter + 6, statistic.getFingerprintId() == FailureFingerprints.NO_FINGERPRINT
+				? statistic.getMetaData() : null);
+		insert.setBoolean(firstParameter + 7, statistic.isOperationSuccessful());
+		insert.setDouble(firstParameter + 8, statistic.getSampleWeight());
+		insert.setLong(firstParameter + 9, statistic.getSpanId());
+		insert.setLong(firstParameter + 10, statistic.getParentSpanId());
+		insert.setLong(firstParameter + 11, statistic.getSelfTimeNanos());
+		insert.setLong(firstParameter + 12, statistic.getFingerprintId());
+	}
+
+	/**
+	 * Converts a time in milliseconds to a {@link java.sql.Timestamp}, preserving an unknown time as <code>null</code>.
+	 *
+	 * @param millis The time to convert, or {@link MethodCallStatistic#UNKNOWN_TIME} if unknown.
+	 *
+	 * @return The equivalent timestamp, or <code>null</code> if the time was unknown.
+	 */
+	private static Timestamp toTimestamp(final long millis)
+	{
+		return millis == MethodCallStatistic.UNKNOWN_TIME ? null : new Timestamp(millis);
+	}
+}
@@ -0,0 +1,354 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A single fixed-size, memory-mapped file of a {@link org.epiphanic.instrumentation.performance.SpillJournal}. Appenders
+ * claim space with a CAS on the write position and then copy their record into the mapping independently of each
+ * other, so appends never take a lock.<p/>
+ *
+ * The file starts with a magic number and is followed by records, each of which is an <code>int</code> length, an
+ * <code>int</code> CRC-32 of the payload, and the payload itself. The length is written last, so a reader - including
+ * one recovering the segment after a crash - stops at the first record whose length is zero, runs off the end of the
+ * segment, or whose checksum doesn't match.<p/>
+ *
+ * The mapping is released as soon as the segment is closed, rather than whenever the garbage collector gets round to
+ * it, so that closed segments hold neither address space nor - on Windows - a lock against their deletion once they've
+ * been replayed. Readers copy segments onto the heap instead of mapping them, for the same reason.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class JournalSegment
+{
+	/**
+	 * Holds the magic number that every segment starts with: "THSJ", for Thoreau spill journal.
+	 */
+	static final int MAGIC = 0x5448534A;
+
+	/**
+	 * Holds the size of the segment header, in bytes.
+	 */
+	static final int SEGMENT_HEADER_SIZE = 4;
+
+	/**
+	 * Holds the size of the header in front of each record, in bytes.
+	 */
+	static final int RECORD_HEADER_SIZE = 8;
+
+	/**
+	 * Holds the sequence number of this segment within its journal.
+	 */
+	private final long _sequence;
+
+	/**
+	 * Holds the file backing this segment.
+	 */
+	private final File _file;
+
+	/**
+	 * Holds the mapping of the whole segment. Only ever written with absolute puts or via duplicates.
+	 */
+	private final MappedByteBuffer _mapping;
+
+	/**
+	 * Holds the offset of the next unclaimed byte.
+	 */
+	private final AtomicInteger _position = new AtomicInteger(SEGMENT_HEADER_SIZE);
+
+	/**
+	 * Holds the number of appenders currently inside {@link #tryAppend(java.nio.ByteBuffer)}.
+	 */
+	private final AtomicInteger _writers = new AtomicInteger();
+
+	/**
+	 * Indicates whether or not the segment has stopped accepting appends.
+	 */
+	private final AtomicBoolean _sealed = new AtomicBoolean();
+
+	/**
+	 * Indicates whether or not the segment has been closed, and so may no longer be touched.
+	 */
+	private volatile boolean _closed;
+
+	/**
+	 * Creates and maps a new, empty segment.
+	 *
+	 * @param file The file to create. Must not already exist.
+	 * @param sequence The sequence number of the segment within its journal.
+	 * @param size The size of the segment in bytes.
+	 *
+	 * @throws IOException If the file could not be created or mapped.
+	 */
+	JournalSegment(final File file, final long sequence, final int size) throws IOException
+	{
+		_file = file;
+		_sequence = sequence;
+
+		// The mapping outlives the channel it was made through, so there's no need to hold either open.
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw"))
+		{
+			randomAccessFile.setLength(size);
+			_mapping = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		_mapping.putInt(0, MAGIC);
+	}
+
+	/**
+	 * Gets the sequence number of this segment within its journal.
+	 *
+	 * @return The sequence number of the segment.
+	 */
+	long getSequence()
+	{
+		return _sequence;
+	}
+
+	/**
+	 * Gets the file backing this segment.
+	 *
+	 * @return The segment's file.
+	 */
+	File getFile()
+	{
+		return _file;
+	}
+
+	/**
+	 * Indicates whether or not anything has been appended to this segment.
+	 *
+	 * @return <code>True</code> if at least one record has been claimed, else <code>false</code>.
+	 */
+	boolean hasRecords()
+	{
+		return _position.get() > SEGMENT_HEADER_SIZE;
+	}
+
+	/**
+	 * Attempts to append a record to this segment.
+	 *
+	 * @param payload The record to append, between its position and limit. Must not be <code>null</code> or empty. It is
+	 * not modified.
+	 *
+	 * @return <code>True</code> if the record was appended, or <code>false</code> if the segment is full or sealed.
+	 */
+	boolean tryAppend(final ByteBuffer payload)
+	{
+		final int length = payload.remaining();
+		final int recordSize = RECORD_HEADER_SIZE + length;
+
+		// Announce ourselves before checking the seal, so that a sealer either turns us away or waits for us.
+		_writers.incrementAndGet();
+
+		try
+		{
+			if (_sealed.get())
+			{
+				return false;
+			}
+
+			int offset;
+
+			do
+			{
+				offset = _position.get();
+
+				if (offset + recordSize > _mapping.capacity())
+				{
+					return false;
+				}
+			}
+			while (!_position.compareAndSet(offset, offset + recordSize));
+
+			final CRC32 crc = new CRC32();
+			crc.update(payload.duplicate());
+
+			final ByteBuffer slot = _mapping.duplicate();
+			slot.position(offset + 4);
+			slot.putInt((int)crc.getValue());
+			slot.put(payload.duplicate());
+
+			// Publishing the length last is what makes a half-written record invisible.
+			_mapping.putInt(offset, length);
+			return true;
+		}
+		finally
+		{
+			_writers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Stops the segment accepting appends.
+	 *
+	 * @return <code>True</code> if this call sealed the segment, or <code>false</code> if it was already sealed.
+	 */
+	boolean seal()
+	{
+		return _sealed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Waits for appenders already inside {@link #tryAppend(java.nio.ByteBuffer)}, and callers already inside {@link
+	 * #force()}, to finish, then forces the segment to disk and unmaps it. Must only be called once, after {@link
+	 * #seal()}.
+	 */
+	void close()
+	{
+		// Announce the close before waiting, so that a forcer either sees it or is waited for.
+		_closed = true;
+
+		while (_writers.get() != 0)
+		{
+			Thread.yield();
+		}
+
+		_mapping.force();
+		unmap(_mapping);
+	}
+
+	/**
+	 * Forces whatever has been appended so far to disk. Does nothing once the segment is closed, which forces it anyway.
+	 */
+	void force()
+	{
+		_writers.incrementAndGet();
+
+		try
+		{
+			if (!_closed)
+			{
+				_mapping.force();
+			}
+		}
+		finally
+		{
+			_writers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Releases a mapping straight away. Java offers no supported way to do this, so it's done through the JDK's own
+	 * cleaner: <code>Unsafe.invokeCleaner</code> from Java 9 on, and the buffer's <code>Cleaner</code> before that. If
+	 * neither can be reached, the mapping is left for the garbage collector to release. Nothing may touch the mapping, or
+	 * any duplicate of it, afterwards.
+	 *
+	 * @param mapping The mapping to release.
+	 */
+	static void unmap(final MappedByteBuffer mapping)
+	{
+		try
+		{
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = null;
+
+			try
+			{
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			}
+			catch (final NoSuchMethodException ex)
+			{
+				// Java 8, which has no such method; the buffer's own cleaner is reachable instead.
+			}
+
+			if (invokeCleaner != null)
+			{
+				final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), mapping);
+				return;
+			}
+
+			final Method cleanerMethod = mapping.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			final Object cleaner = cleanerMethod.invoke(mapping);
+
+			if (cleaner != null)
+			{
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		}
+		catch (final ReflectiveOperationException | RuntimeException ex)
+		{
+			// A JDK that hides its cleaner; the garbage collector will release the mapping eventually.
+		}
+	}
+
+	/**
+	 * Reads every intact record from a segment file, stopping at the first record that was never completed or is
+	 * corrupt.
+	 *
+	 * @param file The segment file to read. Must not be <code>null</code>.
+	 *
+	 * @return The payloads of the intact records, in the order they were appended.
+	 *
+	 * @throws IOException If the file could not be read, or isn't a segment.
+	 */
+	static List<byte[]> readRecords(final File file) throws IOException
+	{
+		final List<byte[]> records = new ArrayList<>();
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"))
+		{
+			final FileChannel channel = randomAccessFile.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocate((int)channel.size());
+
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+			{
+				// Keep reading until the whole segment is on the heap.
+			}
+
+			buffer.flip();
+
+			if (buffer.remaining() < SEGMENT_HEADER_SIZE || buffer.getInt() != MAGIC)
+			{
+				throw new IOException("Not a spill journal segment: " + file);
+			}
+
+			final CRC32 crc = new CRC32();
+
+			while (buffer.remaining() >= RECORD_HEADER_SIZE)
+			{
+				final int length = buffer.getInt();
+				final int checksum = buffer.getInt();
+
+				if (length <= 0 || length > buffer.remaining())
+				{
+					break;
+				}
+
+				final byte[] payload = new byte[length];
+				buffer.get(payload);
+
+				crc.reset();
+				crc.update(payload, 0, length);
+
+				if ((int)crc.getValue() != checksum)
+				{
+					break;
+				}
+
+				records.add(payload);
+			}
+		}
+
+		return records;
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent, fixed-size latency histogram with log-linear buckets, in the style of HdrHistogram: values are bucketed
+ * by their power of two, and each power of two is split into {@link #SUB_BUCKET_COUNT} linear sub-buckets, so every
+ * recorded value is known to within about three percent regardless of its magnitude. Values below twice the sub-bucket
+ * count are recorded exactly.<p/>
+ *
+ * Counts live in a single {@link java.util.concurrent.atomic.AtomicLongArray} covering the full range of a
+ * <code>long</code>, so recording is one index computation and one atomic increment, and never allocates or locks.
+ * Reads are not atomic with respect to concurrent recording; callers that need a consistent view should stop
+ * recording into the histogram first, as {@link org.epiphanic.instrumentation.performance.AggregatingStatisticsLogger}
+ * does by double-buffering.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class LatencyHistogram
+{
+	/**
+	 * Holds the number of bits of each value kept within its power of two.
+	 */
+	static final int SUB_BUCKET_BITS = 5;
+
+	/**
+	 * Holds the number of linear sub-buckets per power of two.
+	 */
+	public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Holds the number of counts needed to cover every non-negative <code>long</code>.
+	 */
+	static final int BUCKET_COUNT = indexFor(Long.MAX_VALUE) + 1;
+
+	/**
+	 * Holds our counts, one per bucket.
+	 */
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value The value to record. Negative values are recorded as zero.
+	 */
+	public void recordValue(final long value)
+	{
+		_counts.incrementAndGet(indexFor(Math.max(0L, value)));
+	}
+
+	/**
+	 * Adds every count in another histogram to this one.
+	 *
+	 * @param other The histogram to add. Not changed.
+	 */
+	public void add(final LatencyHistogram other)
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			final long count = other._counts.get(i);
+
+			if (count != 0)
+			{
+				_counts.addAndGet(i, count);
+			}
+		}
+	}
+
+	/**
+	 * Clears every count.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			_counts.set(i, 0L);
+		}
+	}
+
+	/**
+	 * Gets the number of values recorded.
+	 *
+	 * @return The total count.
+	 */
+	public long getTotalCount()
+	{
+		long total = 0;
+
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			total += _counts.get(i);
+		}
+
+		return total;
+	}
+
+	/**
+	 * Gets the number of values recorded in the bucket the given value falls into.
+	 *
+	 * @param value The value to look up.
+	 *
+	 * @return The count of values equivalent to the given value.
+	 */
+	public long getCountAtValue(final long value)
+	{
+		return _counts.get(indexFor(Math.max(0L, value)));
+	}
+
+	/**
+	 * Gets the value at a given percentile: the highest value equivalent to the smallest recorded value that at least
+	 * that percentage of recorded values are at or below.
+	 *
+	 * @param percentile The percentile, from zero to one hundred.
+	 *
+	 * @return The value at the percentile, or zero if nothing has been recorded.
+	 */
+	public long getValueAtPercentile(final double percentile)
+	{
+		final long total = getTotalCount();
+
+		if (total == 0)
+		{
+			return 0L;
+		}
+
+		final double clamped = Math.min(100.0, Math.max(0.0, percentile));
+		final long target = Math.max(1L, (long)Math.ceil(clamped / 100.0 * total));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			seen += _counts.get(i);
+
+			if (seen >= target)
+			{
+				return highestEquivalentValue(i);
+			}
+		}
+
+		return getMaxValue();
+	}
+
+	/**
+	 * Gets the largest recorded value, to within the precision of its bucket.
+	 *
+	 * @return The highest value equivalent to the largest recorded value, or zero if nothing has been recorded.
+	 */
+	public long getMaxValue()
+	{
+		for (int i = BUCKET_COUNT - 1; i >= 0; i--)
+		{
+			if (_counts.get(i) != 0)
+			{
+				return highestEquivalentValue(i);
+			}
+		}
+
+		return 0L;
+	}
+
+	/**
+	 * Gets the smallest recorded value, to within the precision of its bucket.
+	 *
+	 * @return The lowest value equivalent to the smallest recorded value, or zero if nothing has been recorded.
+	 */
+	public long getMinValue()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			if (_counts.get(i) != 0)
+			{
+				return lowestEquivalentValue(i);
+			}
+		}
+
+		return 0L;
+	}
+
+	/**
+	 * Works out which bucket a value falls into. The first two powers of two's worth of values map one-to-one; after
+	 * that, each power of two gets {@link #SUB_BUCKET_COUNT} buckets.
+	 *
+	 * @param value A non-negative value.
+	 *
+	 * @return The index of the value's bucket.
+	 */
+	static int indexFor(final long value)
+	{
+		final int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return (shift << SUB_BUCKET_BITS) + (int)(value >>> shift);
+	}
+
+	/**
+	 * Gets the smallest value that falls into a bucket.
+	 *
+	 * @param index The index of the bucket.
+	 *
+	 * @return The lowest value equivalent to anything in the bucket.
+	 */
+	static long lowestEquivalentValue(final int index)
+	{
+		final int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+		return (long)(index - (shift << SUB_BUCKET_BITS)) << shift;
+	}
+
+	/**
+	 * Gets the largest value that falls into a bucket.
+	 *
+	 * @param index The index of the bucket.
+	 *
+	 * @return The highest value equivalent to anything in the bucket.
+	 */
+	static long highestEquivalentValue(final int index)
+	{
+		final int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+		return lowestEquivalentValue(index) + (1L << shift) - 1;
+	}
+}
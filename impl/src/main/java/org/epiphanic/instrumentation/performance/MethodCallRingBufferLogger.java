@@ -0,0 +1,17 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * This class acts as a type-specific wrapper around our {@link org.epiphanic.instrumentation.performance.RingBufferAsynchronousLogger},
+ * telling it to log {@link org.epiphanic.instrumentation.performance.MethodCallStatistic} types.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class MethodCallRingBufferLogger extends RingBufferAsynchronousLogger<MethodCallStatistic>
+{
+	// Same joke, different buffer.
+}
@@ -0,0 +1,295 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import java.util.Date;
+
+/**
+ * Holds a summary of every call to a given operation over an interval of time, as written by {@link
+ * org.epiphanic.instrumentation.performance.AggregatingStatisticsLogger}: success and failure counts, the estimated
+ * number of calls made once sample weights are taken into account, total time spent, and a handful of latency
+ * percentiles taken from a {@link org.epiphanic.instrumentation.performance.LatencyHistogram}. One row per operation
+ * per interval replaces one row per call in <code>METHOD_PERFORMANCE</code>. A serialized {@link
+ * org.epiphanic.instrumentation.performance.DDSketch} of the durations is kept too, so that quantiles can be combined
+ * across intervals and nodes with {@link org.epiphanic.instrumentation.performance.SketchMerger}.<p/>
+ *
+ * ID generation follows {@link org.epiphanic.instrumentation.performance.MethodCallStatistic}; see there for the
+ * caveats.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@Entity
+@Table(name = "METHOD_PERFORMANCE_ROLLUP")
+@SequenceGenerator(
+		name = "performanceRollupGenerator",
+		sequenceName = "METHOD_PERFORMANCE_ROLLUP_SEQ"
+)
+public class MethodCallRollup implements IMethodCallRollup
+{
+	/**
+	 * Our primary key.
+	 */
+	private Long _id;
+
+	/**
+	 * Holds the name of the operation summarized.
+	 */
+	private String _operationName;
+
+	/**
+	 * Holds the start of the interval summarized.
+	 */
+	private Date _intervalStart;
+
+	/**
+	 * Holds the end of the interval summarized.
+	 */
+	private Date _intervalEnd;
+
+	/**
+	 * Holds the number of calls recorded that succeeded.
+	 */
+	private long _successCount;
+
+	/**
+	 * Holds the number of calls recorded that failed.
+	 */
+	private long _failureCount;
+
+	/**
+	 * Holds the sum of the sample weights of the calls recorded.
+	 */
+	private double _estimatedCallCount;
+
+	/**
+	 * Holds the total time spent in the calls recorded, in nanoseconds.
+	 */
+	private long _totalDurationNanos;
+
+	/**
+	 * Holds the shortest call recorded, in nanoseconds.
+	 */
+	private long _minNanos;
+
+	/**
+	 * Holds the longest call recorded, in nanoseconds.
+	 */
+	private long _maxNanos;
+
+	/**
+	 * Holds the median duration of the calls recorded, in nanoseconds.
+	 */
+	private long _p50Nanos;
+
+	/**
+	 * Holds the 90th percentile duration of the calls recorded, in nanoseconds.
+	 */
+	private long _p90Nanos;
+
+	/**
+	 * Holds the 99th percentile duration of the calls recorded, in nanoseconds.
+	 */
+	private long _p99Nanos;
+
+	/**
+	 * Holds the 99.9th percentile duration of the calls recorded, in nanoseconds.
+	 */
+	private long _p999Nanos;
+
+	/**
+	 * Holds a serialized sketch of the durations of the calls recorded.
+	 */
+	private byte[] _latencySketch;
+
+	@Override
+	@Id
+	@Column(name = "ROLLUP_ID")
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "performanceRollupGenerator")
+	public Long getId()
+	{
+		return _id;
+	}
+
+	public void setId(final Long id)
+	{
+		_id = id;
+	}
+
+	@Override
+	@Column(name = "OPERATION_NAME")
+	public String getOperationName()
+	{
+		return _operationName;
+	}
+
+	public void setOperationName(final String operationName)
+	{
+		_operationName = operationName;
+	}
+
+	@Override
+	@Column(name = "INTERVAL_START")
+	public Date getIntervalStart()
+	{
+		return _intervalStart == null ? null : new Date(_intervalStart.getTime());
+	}
+
+	public void setIntervalStart(final Date intervalStart)
+	{
+		_intervalStart = intervalStart == null ? null : new Date(intervalStart.getTime());
+	}
+
+	@Override
+	@Column(name = "INTERVAL_END")
+	public Date getIntervalEnd()
+	{
+		return _intervalEnd == null ? null : new Date(_intervalEnd.getTime());
+	}
+
+	public void setIntervalEnd(final Date intervalEnd)
+	{
+		_intervalEnd = intervalEnd == null ? null : new Date(intervalEnd.getTime());
+	}
+
+	@Override
+	@Column(name = "SUCCESS_COUNT")
+	public long getSuccessCount()
+	{
+		return _successCount;
+	}
+
+	public void setSuccessCount(final long successCount)
+	{
+		_successCount = successCount;
+	}
+
+	@Override
+	@Column(name = "FAILURE_COUNT")
+	public long getFailureCount()
+	{
+		return _failureCount;
+	}
+
+	public void setFailureCount(final long failureCount)
+	{
+		_failureCount = failureCount;
+	}
+
+	@Override
+	@Column(name = "ESTIMATED_CALL_COUNT")
+	public double getEstimatedCallCount()
+	{
+		return _estimatedCallCount;
+	}
+
+	public void setEstimatedCallCount(final double estimatedCallCount)
+	{
+		_estimatedCallCount = estimatedCallCount;
+	}
+
+	@Override
+	@Column(name = "TOTAL_DURATION_NANOS")
+	public long getTotalDurationNanos()
+	{
+		return _totalDurationNanos;
+	}
+
+	public void setTotalDurationNanos(final long totalDurationNanos)
+	{
+		_totalDurationNanos = totalDurationNanos;
+	}
+
+	@Override
+	@Column(name = "MIN_NANOS")
+	public long getMinNanos()
+	{
+		return _minNanos;
+	}
+
+	public void setMinNanos(final long minNanos)
+	{
+		_minNanos = minNanos;
+	}
+
+	@Override
+	@Column(name = "MAX_NANOS")
+	public long getMaxNanos()
+	{
+		return _maxNanos;
+	}
+
+	public void setMaxNanos(final long maxNanos)
+	{
+		_maxNanos = maxNanos;
+	}
+
+	@Override
+	@Column(name = "P50_NANOS")
+	public long getP50Nanos()
+	{
+		return _p50Nanos;
+	}
+
+	public void setP50Nanos(final long p50Nanos)
+	{
+		_p50Nanos = p50Nanos;
+	}
+
+	@Override
+	@Column(name = "P90_NANOS")
+	public long getP90Nanos()
+	{
+		return _p90Nanos;
+	}
+
+	public void setP90Nanos(final long p90Nanos)
+	{
+		_p90Nanos = p90Nanos;
+	}
+
+	@Override
+	@Column(name = "P99_NANOS")
+	public long getP99Nanos()
+	{
+		return _p99Nanos;
+	}
+
+	public void setP99Nanos(final long p99Nanos)
+	{
+		_p99Nanos = p99Nanos;
+	}
+
+	@Override
+	@Column(name = "P999_NANOS")
+	public long getP999Nanos()
+	{
+		return _p999Nanos;
+	}
+
+	public void setP999Nanos(final long p999Nanos)
+	{
+		_p999Nanos = p999Nanos;
+	}
+
+	@Override
+	@Column(name = "LATENCY_SKETCH", length = 32768)
+	public byte[] getLatencySketch()
+	{
+		return _latencySketch;
+	}
+
+	public void setLatencySketch(final byte[] latencySketch)
+	{
+		_latencySketch = latencySketch;
+	}
+}
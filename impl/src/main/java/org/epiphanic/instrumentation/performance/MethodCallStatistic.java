@@ -12,7 +12,9 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Holds information about a given method call, including a name for the operation, a start and end time and metadata.
@@ -21,7 +23,29 @@ import java.util.Date;
  *
  * ID generation is set to "Auto" which should be the equivalent of "Native" - this should have the widest arity of
  * supported database back-ends, but you might have to tweak this a bit. You might also want to change the sequence name
- * to be something more in line with whatever you're using.<p/>
+ * to be something more in line with whatever you're using. On sequence-based databases "Native" costs a sequence round
+ * trip per row - writers that assign their own keys can use {@link
+ * org.epiphanic.instrumentation.performance.SequenceBlockIdentifierAllocator} to reserve them in blocks instead.<p/>
+ *
+ * Operations resolved through an {@link org.epiphanic.instrumentation.performance.OperationDictionary} also carry the
+ * integer ID of their name, which {@link org.epiphanic.instrumentation.performance.JdbcBatchWriter} can store in place of
+ * the name itself.<p/>
+ *
+ * Calls traced through a {@link org.epiphanic.instrumentation.performance.SpanStack} also carry a span ID, the span ID
+ * of the call they were made from, and their self time, so that the rows for a request form a call tree.<p/>
+ *
+ * Timing is held as primitives: the capture path records a single wall-clock anchor plus monotonic start and end
+ * readings via {@link #markOperationStart(long, long)} and {@link #markOperationCompletion(long)}, and the persisted
+ * start and end {@link java.util.Date}s are derived from those when asked for.<p/>
+ *
+ * Likewise, the capture path records a failure via {@link #setFailure(Throwable, FailureFormatter)}, and the metadata is
+ * only rendered from it when first asked for - by the writer, off the capture path. As the rendered metadata is kept,
+ * this isn't safe for several threads to ask for at once, which no writer does. Writers given {@link
+ * org.epiphanic.instrumentation.performance.FailureFingerprints} store a fingerprint ID in place of the metadata.<p/>
+ *
+ * Instances may belong to a {@link org.epiphanic.instrumentation.performance.MethodCallStatisticPool}, in which case
+ * writers hand them back via {@link #recycle()} once they have been persisted. Instances created with the public
+ * constructor - including everything Hibernate loads - belong to no pool and ignore {@link #recycle()}.<p/>
  *
  * This class is non-final for testing purposes.<p/>
  *
@@ -33,7 +57,7 @@ import java.util.Date;
 		name = "performanceInstrumentationGenerator",
 		sequenceName = "METHOD_PERFORMANCE_SEQ"
 )
-public class MethodCallStatistic implements IMethodCallStatistic
+public class MethodCallStatistic implements IMethodCallStatistic, IRecyclable
 {
 	/**
 	 * Our primary key.
@@ -51,26 +75,115 @@ public class MethodCallStatistic implements IMethodCallStatistic
 	private String _operationName;
 
 	/**
-	 * Holds when the operation started, useful for calculating execution time for the method.
+	 * Holds the ID of the operation in an {@link org.epiphanic.instrumentation.performance.OperationDictionary}, if any.
+	 */
+	private int _operationId = OperationDictionary.NO_OPERATION_ID;
+
+	/**
+	 * Holds the marker value for a time we don't know.
+	 */
+	public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+	/**
+	 * Holds the wall-clock time, in milliseconds since the epoch, that the operation started.
 	 */
-	private Date _operationStart;
+	private long _operationStartMillis = UNKNOWN_TIME;
 
 	/**
-	 * Holds when the operation completed, useful for calculating execution time for the method.
+	 * Holds the wall-clock time, in milliseconds since the epoch, that the operation completed.
 	 */
-	private Date _operationCompletion;
+	private long _operationCompletionMillis = UNKNOWN_TIME;
+
+	/**
+	 * Holds the monotonic clock reading, in nanoseconds, taken when the operation started.
+	 */
+	private long _operationStartNanos;
+
+	/**
+	 * Holds how long the operation took in nanoseconds, if measured with a monotonic clock.
+	 */
+	private long _durationNanos = UNKNOWN_TIME;
+
+	/**
+	 * Holds the width of the <code>METADATA</code> column, which is the JPA default.
+	 */
+	public static final int META_DATA_LENGTH = 255;
 
 	/**
 	 * Holds optional metadata about the operation. May include information such as a stack trace if the method fails.
 	 */
 	private String _metaData;
 
+	/**
+	 * Holds the ID of our failure's fingerprint in {@link org.epiphanic.instrumentation.performance.FailureFingerprints},
+	 * if any.
+	 */
+	private long _fingerprintId = FailureFingerprints.NO_FINGERPRINT;
+
+	/**
+	 * Holds the failure our metadata is yet to be rendered from, if any.
+	 */
+	private Throwable _failure;
+
+	/**
+	 * Holds the formatter to render our failure with, if we have one.
+	 */
+	private FailureFormatter _failureFormatter;
+
 	/**
 	 * Holds whether or not the method successfully completed, as defined by not throwing an exception (checked or
 	 * runtime).
 	 */
 	private boolean _successful;
 
+	/**
+	 * Holds the number of calls this statistic stands for, where calls are sampled.
+	 */
+	private double _sampleWeight = 1.0;
+
+	/**
+	 * Holds the ID of the span this call was traced as, if it was.
+	 */
+	private long _spanId = SpanStack.NO_SPAN;
+
+	/**
+	 * Holds the ID of the span this call was made from, if it was traced inside another.
+	 */
+	private long _parentSpanId = SpanStack.NO_SPAN;
+
+	/**
+	 * Holds the call's duration less that of the traced calls it made, if traced.
+	 */
+	private long _selfTimeNanos = UNKNOWN_TIME;
+
+	/**
+	 * Holds the pool this instance belongs to, if any. Not persisted, as there is no property for it.
+	 */
+	private final MethodCallStatisticPool _pool;
+
+	/**
+	 * Indicates whether this instance is currently sitting idle in its pool, to guard against recycling it twice.
+	 */
+	private boolean _idle;
+
+	/**
+	 * Creates a statistic that doesn't belong to any pool.
+	 */
+	public MethodCallStatistic()
+	{
+		this(null);
+	}
+
+	/**
+	 * Creates a statistic belonging to the given pool. This is package-protected, as only the pool should create these.
+	 *
+	 * @param pool The pool this instance belongs to, or <code>null</code> if none.
+	 */
+	MethodCallStatistic(final MethodCallStatisticPool pool)
+	{
+		_pool = pool;
+	}
+
 	@Override
 	@Id
 	@Column(name = "METRIC_ID")
@@ -119,40 +232,197 @@ public class MethodCallStatistic implements IMethodCallStatistic
 		_operationName = operationName;
 	}
 
+	/**
+	 * Gets the ID of the operation in an {@link org.epiphanic.instrumentation.performance.OperationDictionary}.
+	 *
+	 * @return The ID of the operation, or {@link OperationDictionary#NO_OPERATION_ID} if it wasn't resolved through a
+	 * dictionary.
+	 */
+	@Column(name = "OPERATION_ID")
+	public int getOperationId()
+	{
+		return _operationId;
+	}
+
+	/**
+	 * Sets the ID of the operation in an {@link org.epiphanic.instrumentation.performance.OperationDictionary}.
+	 *
+	 * @param operationId The ID of the operation, or {@link OperationDictionary#NO_OPERATION_ID} if none.
+	 */
+	public void setOperationId(final int operationId)
+	{
+		_operationId = operationId;
+	}
+
 	@Override
 	@Column(name = "START_TIME")
 	public Date getOperationStart()
 	{
-		return _operationStart;
+		return _operationStartMillis == UNKNOWN_TIME ? null : new Date(_operationStartMillis);
 	}
 
 	public void setOperationStart(final Date operationStart)
 	{
-		_operationStart = operationStart;
+		_operationStartMillis = operationStart == null ? UNKNOWN_TIME : operationStart.getTime();
 	}
 
 	@Override
 	@Column(name = "END_TIME")
 	public Date getOperationCompletion()
 	{
-		return _operationCompletion;
+		return _operationCompletionMillis == UNKNOWN_TIME ? null : new Date(_operationCompletionMillis);
 	}
 
 	public void setOperationCompletion(final Date operationCompletion)
 	{
-		_operationCompletion = operationCompletion;
+		_operationCompletionMillis = operationCompletion == null ? UNKNOWN_TIME : operationCompletion.getTime();
 	}
 
 	@Override
-	@Column(name="METADATA")
+	@Column(name = "DURATION_NANOS")
+	public long getDurationNanos()
+	{
+		if (_durationNanos != UNKNOWN_TIME)
+		{
+			return _durationNanos;
+		}
+
+		if (_operationStartMillis == UNKNOWN_TIME || _operationCompletionMillis == UNKNOWN_TIME)
+		{
+			return 0;
+		}
+
+		return TimeUnit.MILLISECONDS.toNanos(_operationCompletionMillis - _operationStartMillis);
+	}
+
+	public void setDurationNanos(final long durationNanos)
+	{
+		_durationNanos = durationNanos;
+	}
+
+	/**
+	 * Gets the wall-clock time that the operation started, without allocating a {@link java.util.Date}.
+	 *
+	 * @return The start of the operation in milliseconds since the epoch, or {@link #UNKNOWN_TIME} if unknown.
+	 */
+	@Transient
+	public long getOperationStartMillis()
+	{
+		return _operationStartMillis;
+	}
+
+	/**
+	 * Gets the wall-clock time that the operation completed, without allocating a {@link java.util.Date}.
+	 *
+	 * @return The completion of the operation in milliseconds since the epoch, or {@link #UNKNOWN_TIME} if unknown.
+	 */
+	@Transient
+	public long getOperationCompletionMillis()
+	{
+		return _operationCompletionMillis;
+	}
+
+	/**
+	 * Records the start of the operation. This is what the capture path should use instead of {@link
+	 * #setOperationStart(java.util.Date)}: it takes a single wall-clock reading to anchor the statistic in time, and a
+	 * monotonic reading to measure the duration against.
+	 *
+	 * @param wallClockMillis The current wall-clock time, as per {@link System#currentTimeMillis()}.
+	 * @param nanoTime The current monotonic time, as per {@link System#nanoTime()}.
+	 */
+	public void markOperationStart(final long wallClockMillis, final long nanoTime)
+	{
+		_operationStartMillis = wallClockMillis;
+		_operationStartNanos = nanoTime;
+		_operationCompletionMillis = UNKNOWN_TIME;
+		_durationNanos = UNKNOWN_TIME;
+	}
+
+	/**
+	 * Records the completion of an operation previously started via {@link #markOperationStart(long, long)}. The
+	 * completion {@link java.util.Date} is derived from the start anchor plus the measured duration, so the two never
+	 * disagree regardless of what the wall clock did in the meantime.
+	 *
+	 * @param nanoTime The current monotonic time, as per {@link System#nanoTime()}.
+	 */
+	public void markOperationCompletion(final long nanoTime)
+	{
+		_durationNanos = nanoTime - _operationStartNanos;
+		_operationCompletionMillis = _operationStartMillis + TimeUnit.NANOSECONDS.toMillis(_durationNanos);
+	}
+
+	/**
+	 * Gets the metadata about the operation, rendering it from our failure first if that hasn't been done yet.
+	 *
+	 * @return The metadata, or <code>null</code> if there is none.
+	 */
+	@Override
+	@Column(name="METADATA", length = META_DATA_LENGTH)
 	public String getMetaData()
 	{
+		if (_failure != null)
+		{
+			_metaData = _failureFormatter.format(_failure);
+			_failure = null;
+			_failureFormatter = null;
+		}
+
 		return _metaData;
 	}
 
 	public void setMetaData(final String metaData)
 	{
 		_metaData = metaData;
+		_failure = null;
+		_failureFormatter = null;
+	}
+
+	/**
+	 * Gets the ID of our failure's fingerprint in {@link org.epiphanic.instrumentation.performance.FailureFingerprints}.
+	 *
+	 * @return The ID of the fingerprint, or {@link FailureFingerprints#NO_FINGERPRINT} if the failure wasn't
+	 * fingerprinted, in which case any metadata is stored in the row.
+	 */
+	@Column(name = "FINGERPRINT_ID")
+	public long getFingerprintId()
+	{
+		return _fingerprintId;
+	}
+
+	/**
+	 * Sets the ID of our failure's fingerprint in {@link org.epiphanic.instrumentation.performance.FailureFingerprints}.
+	 *
+	 * @param fingerprintId The ID of the fingerprint, or {@link FailureFingerprints#NO_FINGERPRINT} if none.
+	 */
+	public void setFingerprintId(final long fingerprintId)
+	{
+		_fingerprintId = fingerprintId;
+	}
+
+	/**
+	 * Gets the failure our metadata is yet to be rendered from.
+	 *
+	 * @return The failure, or <code>null</code> if there is none or it has already been rendered.
+	 */
+	@Transient
+	public Throwable getFailure()
+	{
+		return _failure;
+	}
+
+	/**
+	 * Records why the operation failed, leaving the metadata to be rendered from it when first asked for. This is what
+	 * the capture path should use instead of {@link #setMetaData(String)}: it costs two field writes however large the
+	 * failure's message is.
+	 *
+	 * @param failure The failure. May not be <code>null</code>.
+	 * @param failureFormatter The formatter to render the failure with. May not be <code>null</code>.
+	 */
+	public void setFailure(final Throwable failure, final FailureFormatter failureFormatter)
+	{
+		_metaData = null;
+		_failure = failure;
+		_failureFormatter = failureFormatter;
 	}
 
 	@Override
@@ -166,4 +436,111 @@ public class MethodCallStatistic implements IMethodCallStatistic
 	{
 		_successful = !successful;
 	}
+
+	@Override
+	@Column(name="SAMPLE_WEIGHT")
+	public double getSampleWeight()
+	{
+		return _sampleWeight;
+	}
+
+	public void setSampleWeight(final double sampleWeight)
+	{
+		_sampleWeight = sampleWeight;
+	}
+
+	/**
+	 * Gets the ID of the span this call was traced as, as assigned by a {@link
+	 * org.epiphanic.instrumentation.performance.SpanStack}.
+	 *
+	 * @return The span ID, or {@link SpanStack#NO_SPAN} if the call wasn't traced.
+	 */
+	@Column(name = "SPAN_ID")
+	public long getSpanId()
+	{
+		return _spanId;
+	}
+
+	public void setSpanId(final long spanId)
+	{
+		_spanId = spanId;
+	}
+
+	/**
+	 * Gets the ID of the span this call was made from.
+	 *
+	 * @return The parent's span ID, or {@link SpanStack#NO_SPAN} if the call wasn't made from another traced call.
+	 */
+	@Column(name = "PARENT_SPAN_ID")
+	public long getParentSpanId()
+	{
+		return _parentSpanId;
+	}
+
+	public void setParentSpanId(final long parentSpanId)
+	{
+		_parentSpanId = parentSpanId;
+	}
+
+	/**
+	 * Gets how long the call spent in its own code, rather than in the traced calls it made.
+	 *
+	 * @return The self time in nanoseconds. Untraced calls are credited with their whole duration.
+	 */
+	@Column(name = "SELF_TIME_NANOS")
+	public long getSelfTimeNanos()
+	{
+		return _selfTimeNanos == UNKNOWN_TIME ? getDurationNanos() : _selfTimeNanos;
+	}
+
+	public void setSelfTimeNanos(final long selfTimeNanos)
+	{
+		_selfTimeNanos = selfTimeNanos;
+	}
+
+	/**
+	 * Returns this instance to its pool, if it belongs to one. Whoever calls this gives up the instance: it will be reset
+	 * and may be handed out again immediately.
+	 */
+	@Override
+	public void recycle()
+	{
+		if (_pool != null && !_idle)
+		{
+			_pool.release(this);
+		}
+	}
+
+	/**
+	 * Clears every field back to the state of a freshly created instance and marks it idle. Called by our pool.
+	 */
+	void reset()
+	{
+		_id = null;
+		_userId = null;
+		_operationName = null;
+		_operationId = OperationDictionary.NO_OPERATION_ID;
+		_operationStartMillis = UNKNOWN_TIME;
+		_operationCompletionMillis = UNKNOWN_TIME;
+		_operationStartNanos = 0;
+		_durationNanos = UNKNOWN_TIME;
+		_metaData = null;
+		_fingerprintId = FailureFingerprints.NO_FINGERPRINT;
+		_failure = null;
+		_failureFormatter = null;
+		_successful = false;
+		_sampleWeight = 1.0;
+		_spanId = SpanStack.NO_SPAN;
+		_parentSpanId = SpanStack.NO_SPAN;
+		_selfTimeNanos = UNKNOWN_TIME;
+		_idle = true;
+	}
+
+	/**
+	 * Marks this instance as in use again. Called by our pool when handing it out.
+	 */
+	void markAcquired()
+	{
+		_idle = false;
+	}
 }
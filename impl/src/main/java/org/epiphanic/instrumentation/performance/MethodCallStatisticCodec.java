@@ -0,0 +1,174 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds the constants and string handling shared by {@link org.epiphanic.instrumentation.performance.MethodCallStatisticEncoder}
+ * and {@link org.epiphanic.instrumentation.performance.MethodCallStatisticCursor}, which between them define our binary
+ * format for statistics. This is the format for anything that ships or stores statistics outside of the data store.<p/>
+ *
+ * Statistics are encoded into self-contained blocks. A block starts with a version byte and is followed by records
+ * until it ends; there is no record count, so blocks can be written as a stream and a reader simply stops at the end of
+ * its buffer. Each record is:
+ * <ol>
+ * <li>a flags byte, saying whether the call succeeded and which of the optional fields follow;</li>
+ * <li>the operation name, as a string reference;</li>
+ * <li>the identifier, if any, as a signed varint;</li>
+ * <li>the start time, if known, as a signed varint delta in milliseconds from the previous record's start time (or from
+ * zero, for the first record of a block);</li>
+ * <li>the completion time, if known, as a signed varint delta in milliseconds from the start time (or from zero, if the
+ * start time is unknown);</li>
+ * <li>the duration in nanoseconds, as a signed varint;</li>
+ * <li>the user ID, if any, as a signed varint;</li>
+ * <li>the metadata, if any, as a string reference;</li>
+ * <li>the sample weight, as an eight byte double, if it isn't one;</li>
+ * <li>the span ID, the parent span ID and the self time in nanoseconds, as an unsigned, unsigned and signed varint, if
+ * the call was traced as a span. Version one blocks predate spans, and never have them.</li>
+ * </ol>
+ * Strings are dictionary-referenced within the block: a reference is an unsigned varint holding the string's index in
+ * the block's dictionary shifted left by one, with the low bit set if this is the string's first appearance - in which
+ * case the varint length and UTF-8 bytes of the string follow, and the string takes the next index. A block therefore
+ * carries each distinct operation name (and stack trace) once, however many records refer to it.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class MethodCallStatisticCodec
+{
+	/**
+	 * Holds the version of the format, written as the first byte of every block.
+	 */
+	static final byte VERSION = 2;
+
+	/**
+	 * Holds the oldest version of the format we can still read.
+	 */
+	static final byte MINIMUM_VERSION = 1;
+
+	/**
+	 * Holds the flag set when the operation succeeded.
+	 */
+	static final int SUCCESSFUL = 1;
+
+	/**
+	 * Holds the flag set when an identifier follows.
+	 */
+	static final int HAS_ID = 1 << 1;
+
+	/**
+	 * Holds the flag set when the start time follows.
+	 */
+	static final int HAS_START = 1 << 2;
+
+	/**
+	 * Holds the flag set when the completion time follows.
+	 */
+	static final int HAS_COMPLETION = 1 << 3;
+
+	/**
+	 * Holds the flag set when a user ID follows.
+	 */
+	static final int HAS_USER_ID = 1 << 4;
+
+	/**
+	 * Holds the flag set when metadata follows.
+	 */
+	static final int HAS_META_DATA = 1 << 5;
+
+	/**
+	 * Holds the flag set when a sample weight other than one follows.
+	 */
+	static final int HAS_SAMPLE_WEIGHT = 1 << 6;
+
+	/**
+	 * Holds the flag set when span details follow.
+	 */
+	static final int HAS_SPAN = 1 << 7;
+
+	/**
+	 * Prevents instantiation; this is a static utility.
+	 */
+	private MethodCallStatisticCodec()
+	{
+	}
+
+	/**
+	 * Works out how many bytes a string takes in UTF-8, without encoding it.
+	 *
+	 * @param value The string. Must not be <code>null</code>.
+	 *
+	 * @return The length of the string's UTF-8 encoding.
+	 */
+	static int utf8Length(final String value)
+	{
+		int length = 0;
+
+		for (int i = 0; i < value.length(); i++)
+		{
+			final char c = value.charAt(i);
+
+			if (c < 0x80)
+			{
+				length++;
+			}
+			else if (c < 0x800)
+			{
+				length += 2;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1)))
+			{
+				length += 4;
+				i++;
+			}
+			else
+			{
+				length += 3;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Writes a string as UTF-8 straight into a buffer, without creating an intermediate byte array. Unpaired surrogates
+	 * are written as their three byte encoding, as per CESU-8, since they have nothing better to be.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The string to write. Must not be <code>null</code>.
+	 */
+	static void putUtf8(final ByteBuffer buffer, final String value)
+	{
+		for (int i = 0; i < value.length(); i++)
+		{
+			final char c = value.charAt(i);
+
+			if (c < 0x80)
+			{
+				buffer.put((byte)c);
+			}
+			else if (c < 0x800)
+			{
+				buffer.put((byte)(0xC0 | (c >> 6)));
+				buffer.put((byte)(0x80 | (c & 0x3F)));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1)))
+			{
+				final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer.put((byte)(0xF0 | (codePoint >> 18)));
+				buffer.put((byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+				buffer.put((byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+				buffer.put((byte)(0x80 | (codePoint & 0x3F)));
+			}
+			else
+			{
+				buffer.put((byte)(0xE0 | (c >> 12)));
+				buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte)(0x80 | (c & 0x3F)));
+			}
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Iterates over a block written by a {@link org.epiphanic.instrumentation.performance.MethodCallStatisticEncoder}
+ * without materializing an entity per record: the cursor itself is the current record, exposed as an {@link
+ * org.epiphanic.instrumentation.performance.IMethodCallStatistic} whose fields change with each call to {@link
+ * #next()}. Each distinct string in the block is decoded once, when it first appears; after that, records referring to
+ * it cost a varint.<p/>
+ *
+ * Callers that need to hold on to a record past the next call to {@link #next()} should use {@link #toStatistic()}.
+ * The primitive accessors such as {@link #getOperationStartMillis()} avoid the boxing and {@link java.util.Date}s of
+ * the interface's accessors.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class MethodCallStatisticCursor implements IMethodCallStatistic
+{
+	/**
+	 * Holds the block we're reading, positioned at the next record.
+	 */
+	private final ByteBuffer _block;
+
+	/**
+	 * Holds the block's dictionary, as far as we've read it.
+	 */
+	private final List<String> _dictionary = new ArrayList<>();
+
+	/**
+	 * Holds the start time of the previous record, which the next start time is relative to.
+	 */
+	private long _previousStartMillis;
+
+	/**
+	 * Holds the flags of the current record.
+	 */
+	private int _flags;
+
+	/**
+	 * Holds the operation name of the current record.
+	 */
+	private String _operationName;
+
+	/**
+	 * Holds the identifier of the current record, if it has one.
+	 */
+	private long _id;
+
+	/**
+	 * Holds the start time of the current record, or {@link MethodCallStatistic#UNKNOWN_TIME}.
+	 */
+	private long _operationStartMillis;
+
+	/**
+	 * Holds the completion time of the current record, or {@link MethodCallStatistic#UNKNOWN_TIME}.
+	 */
+	private long _operationCompletionMillis;
+
+	/**
+	 * Holds the duration of the current record.
+	 */
+	private long _durationNanos;
+
+	/**
+	 * Holds the user ID of the current record, if it has one.
+	 */
+	private long _userId;
+
+	/**
+	 * Holds the metadata of the current record, or <code>null</code>.
+	 */
+	private String _metaData;
+
+	/**
+	 * Holds the sample weight of the current record.
+	 */
+	private double _sampleWeight;
+
+	/**
+	 * Holds the span ID of the current record, or {@link SpanStack#NO_SPAN}.
+	 */
+	private long _spanId;
+
+	/**
+	 * Holds the parent span ID of the current record, or {@link SpanStack#NO_SPAN}.
+	 */
+	private long _parentSpanId;
+
+	/**
+	 * Holds the self time of the current record, or {@link MethodCallStatistic#UNKNOWN_TIME} if it wasn't traced.
+	 */
+	private long _selfTimeNanos;
+
+	/**
+	 * Creates a cursor over the block between the buffer's position and limit. The cursor reads from a duplicate, so the
+	 * buffer itself is left alone.
+	 *
+	 * @param block The block to read. Must not be <code>null</code>.
+	 *
+	 * @throws IllegalArgumentException If the block is empty or of a version we don't understand.
+	 */
+	public MethodCallStatisticCursor(final ByteBuffer block)
+	{
+		_block = block.duplicate();
+
+		if (!_block.hasRemaining())
+		{
+			throw new IllegalArgumentException("Empty statistic block");
+		}
+
+		final byte version = _block.get();
+
+		if (version < MethodCallStatisticCodec.MINIMUM_VERSION || version > MethodCallStatisticCodec.VERSION)
+		{
+			throw new IllegalArgumentException("Unknown statistic block version: " + version);
+		}
+	}
+
+	/**
+	 * Moves on to the next record in the block.
+	 *
+	 * @return <code>True</code> if the cursor is now on a record, or <code>false</code> if the block has ended.
+	 *
+	 * @throws BufferUnderflowException If the block ends part way through a record.
+	 */
+	public boolean next()
+	{
+		final ByteBuffer block = _block;
+
+		if (!block.hasRemaining())
+		{
+			return false;
+		}
+
+		_flags = block.get() & 0xFF;
+		_operationName = getString(block);
+		_id = has(MethodCallStatisticCodec.HAS_ID) ? Varints.getSignedVarLong(block) : 0;
+
+		long completionBase = 0;
+		_operationStartMillis = MethodCallStatistic.UNKNOWN_TIME;
+
+		if (has(MethodCallStatisticCodec.HAS_START))
+		{
+			_operationStartMillis = _previousStartMillis + Varints.getSignedVarLong(block);
+			_previousStartMillis = _operationStartMillis;
+			completionBase = _operationStartMillis;
+		}
+
+		_operationCompletionMillis = has(MethodCallStatisticCodec.HAS_COMPLETION)
+				? completionBase + Varints.getSignedVarLong(block) : MethodCallStatistic.UNKNOWN_TIME;
+		_durationNanos = Varints.getSignedVarLong(block);
+		_userId = has(MethodCallStatisticCodec.HAS_USER_ID) ? Varints.getSignedVarLong(block) : 0;
+		_metaData = has(MethodCallStatisticCodec.HAS_META_DATA) ? getString(block) : null;
+		_sampleWeight = has(MethodCallStatisticCodec.HAS_SAMPLE_WEIGHT) ? block.getDouble() : 1.0;
+
+		if (has(MethodCallStatisticCodec.HAS_SPAN))
+		{
+			_spanId = Varints.getVarLong(block);
+			_parentSpanId = Varints.getVarLong(block);
+			_selfTimeNanos = Varints.getSignedVarLong(block);
+		}
+		else
+		{
+			_spanId = SpanStack.NO_SPAN;
+			_parentSpanId = SpanStack.NO_SPAN;
+			_selfTimeNanos = MethodCallStatistic.UNKNOWN_TIME;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copies the current record into a new, unpooled {@link org.epiphanic.instrumentation.performance.MethodCallStatistic}.
+	 *
+	 * @return A new statistic holding the current record.
+	 */
+	public MethodCallStatistic toStatistic()
+	{
+		final MethodCallStatistic statistic = new MethodCallStatistic();
+		statistic.setId(getId());
+		statistic.setUserId(getUserId());
+		statistic.setOperationName(_operationName);
+		statistic.setOperationStart(getOperationStart());
+		statistic.setOperationCompletion(getOperationCompletion());
+		statistic.setDurationNanos(_durationNanos);
+		statistic.setMetaData(_metaData);
+		statistic.setOperationSuccessful(isOperationSuccessful());
+		statistic.setSampleWeight(_sampleWeight);
+		statistic.setSpanId(_spanId);
+		statistic.setParentSpanId(_parentSpanId);
+		statistic.setSelfTimeNanos(_selfTimeNanos);
+		return statistic;
+	}
+
+	@Override
+	public Long getId()
+	{
+		return has(MethodCallStatisticCodec.HAS_ID) ? _id : null;
+	}
+
+	@Override
+	public Long getUserId()
+	{
+		return has(MethodCallStatisticCodec.HAS_USER_ID) ? _userId : null;
+	}
+
+	@Override
+	public String getOperationName()
+	{
+		return _operationName;
+	}
+
+	@Override
+	public Date getOperationStart()
+	{
+		return _operationStartMillis == MethodCallStatistic.UNKNOWN_TIME ? null : new Date(_operationStartMillis);
+	}
+
+	@Override
+	public Date getOperationCompletion()
+	{
+		return _operationCompletionMillis == MethodCallStatistic.UNKNOWN_TIME ? null : new Date(_operationCompletionMillis);
+	}
+
+	/**
+	 * Gets the start time of the current record without allocating a {@link java.util.Date}.
+	 *
+	 * @return The start time in milliseconds since the epoch, or {@link MethodCallStatistic#UNKNOWN_TIME} if unknown.
+	 */
+	public long getOperationStartMillis()
+	{
+		return _operationStartMillis;
+	}
+
+	/**
+	 * Gets the completion time of the current record without allocating a {@link java.util.Date}.
+	 *
+	 * @return The completion time in milliseconds since the epoch, or {@link MethodCallStatistic#UNKNOWN_TIME} if unknown.
+	 */
+	public long getOperationCompletionMillis()
+	{
+		return _operationCompletionMillis;
+	}
+
+	@Override
+	public long getDurationNanos()
+	{
+		return _durationNanos;
+	}
+
+	@Override
+	public String getMetaData()
+	{
+		return _metaData;
+	}
+
+	@Override
+	public boolean isOperationSuccessful()
+	{
+		return has(MethodCallStatisticCodec.SUCCESSFUL);
+	}
+
+	@Override
+	public double getSampleWeight()
+	{
+		return _sampleWeight;
+	}
+
+	/**
+	 * Gets the span ID of the current record.
+	 *
+	 * @return The span ID, or {@link SpanStack#NO_SPAN} if the call wasn't traced.
+	 */
+	public long getSpanId()
+	{
+		return _spanId;
+	}
+
+	/**
+	 * Gets the parent span ID of the current record.
+	 *
+	 * @return The parent's span ID, or {@link SpanStack#NO_SPAN} if there was none.
+	 */
+	public long getParentSpanId()
+	{
+		return _parentSpanId;
+	}
+
+	/**
+	 * Gets the self time of the current record.
+	 *
+	 * @return The self time in nanoseconds. Untraced calls are credited with their whole duration.
+	 */
+	public long getSelfTimeNanos()
+	{
+		return _selfTimeNanos == MethodCallStatistic.UNKNOWN_TIME ? _durationNanos : _selfTimeNanos;
+	}
+
+	/**
+	 * Checks a flag of the current record.
+	 *
+	 * @param flag The flag to check.
+	 *
+	 * @return <code>True</code> if the flag is set, else <code>false</code>.
+	 */
+	private boolean has(final int flag)
+	{
+		return (_flags & flag) != 0;
+	}
+
+	/**
+	 * Reads a string reference, decoding and remembering the string if this is its first appearance.
+	 *
+	 * @param block The block to read from.
+	 *
+	 * @return The referenced string.
+	 *
+	 * @throws IllegalArgumentException If the reference is to a string we haven't seen.
+	 */
+	private String getString(final ByteBuffer block)
+	{
+		final long reference = Varints.getVarLong(block);
+		final int index = (int)(reference >>> 1);
+
+		if ((reference & 1) == 0)
+		{
+			if (index >= _dictionary.size())
+			{
+				throw new IllegalArgumentException("Reference to unknown string " + index);
+			}
+
+			return _dictionary.get(index);
+		}
+
+		final int length = (int)Varints.getVarLong(block);
+
+		if (length < 0 || length > block.remaining())
+		{
+			throw new BufferUnderflowException();
+		}
+
+		final String value;
+
+		if (block.hasArray())
+		{
+			value = new String(block.array(), block.arrayOffset() + block.position(), length, StandardCharsets.UTF_8);
+			block.position(block.position() + length);
+		}
+		else
+		{
+			final byte[] bytes = new byte[length];
+			block.get(bytes);
+			value = new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		_dictionary.add(value);
+		return value;
+	}
+}
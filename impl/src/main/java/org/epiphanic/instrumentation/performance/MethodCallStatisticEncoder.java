@@ -0,0 +1,265 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Encodes statistics into blocks of the binary format described by {@link
+ * org.epiphanic.instrumentation.performance.MethodCallStatisticCodec}, writing straight into a caller-supplied {@link
+ * java.nio.ByteBuffer}. Apart from adding each new string to the block's dictionary, encoding allocates nothing - in
+ * particular, strings are written as UTF-8 without an intermediate byte array, and {@link
+ * org.epiphanic.instrumentation.performance.MethodCallStatistic} timestamps are read without creating {@link
+ * java.util.Date}s.<p/>
+ *
+ * An encoder holds the state of the block being written, so it may be reused for block after block but must not be
+ * shared between threads.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class MethodCallStatisticEncoder
+{
+	/**
+	 * Holds a generous allowance for everything in a record apart from its strings.
+	 */
+	private static final int FIXED_FIELDS_BOUND = 128;
+
+	/**
+	 * Holds the dictionary of the current block, from each string to its index.
+	 */
+	private final Map<String, Integer> _dictionary = new HashMap<>();
+
+	/**
+	 * Holds the buffer the current block is being written to.
+	 */
+	private ByteBuffer _buffer;
+
+	/**
+	 * Holds the start time of the previous record in the block, which the next start time is written relative to.
+	 */
+	private long _previousStartMillis;
+
+	/**
+	 * Holds the number of records in the current block.
+	 */
+	private int _recordCount;
+
+	/**
+	 * Works out an upper bound on the size of a block holding nothing but the given statistic, so that a buffer of at
+	 * least this size is guaranteed to take it.
+	 *
+	 * @param statistic The statistic. Must not be <code>null</code>.
+	 *
+	 * @return An upper bound on the size of a single-record block, in bytes.
+	 */
+	public static int maximumBlockSize(final IMethodCallStatistic statistic)
+	{
+		final String metaData = statistic.getMetaData();
+
+		// No character takes more than three bytes in UTF-8; surrogate pairs take four between two characters.
+		return 1 + FIXED_FIELDS_BOUND + 3 * statistic.getOperationName().length()
+				+ (metaData == null ? 0 : FIXED_FIELDS_BOUND + 3 * metaData.length());
+	}
+
+	/**
+	 * Starts a new block at the buffer's position, forgetting the previous block's dictionary.
+	 *
+	 * @param buffer The buffer to write the block to. Must not be <code>null</code>, and must have room for at least the
+	 * version byte.
+	 */
+	public void begin(final ByteBuffer buffer)
+	{
+		_buffer = buffer;
+		_dictionary.clear();
+		_previousStartMillis = 0;
+		_recordCount = 0;
+		buffer.put(MethodCallStatisticCodec.VERSION);
+	}
+
+	/**
+	 * Gets the number of records written to the current block.
+	 *
+	 * @return The number of records in the block.
+	 */
+	public int getRecordCount()
+	{
+		return _recordCount;
+	}
+
+	/**
+	 * Appends a statistic to the current block. If it doesn't fit, the buffer and the block are left exactly as they were,
+	 * so the caller may finish the block and start another.
+	 *
+	 * @param statistic The statistic to encode. Must not be <code>null</code>, and must have an operation name.
+	 *
+	 * @return <code>True</code> if the statistic was appended, or <code>false</code> if there wasn't room for it.
+	 */
+	public boolean encode(final IMethodCallStatistic statistic)
+	{
+		final ByteBuffer buffer = _buffer;
+		final int mark = buffer.position();
+		final int dictionarySize = _dictionary.size();
+
+		try
+		{
+			write(buffer, statistic);
+			_recordCount++;
+			return true;
+		}
+		catch (final BufferOverflowException ex)
+		{
+			buffer.position(mark);
+
+			// Forget any strings this record introduced, since the block won't contain them after all.
+			final Iterator<Integer> indices = _dictionary.values().iterator();
+
+			while (indices.hasNext())
+			{
+				if (indices.next() >= dictionarySize)
+				{
+					indices.remove();
+				}
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Writes one record.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param statistic The statistic to write.
+	 *
+	 * @throws BufferOverflowException If the buffer runs out of room part way through.
+	 */
+	private void write(final ByteBuffer buffer, final IMethodCallStatistic statistic)
+	{
+		final long start;
+		final long completion;
+		final MethodCallStatistic traced;
+
+		if (statistic instanceof MethodCallStatistic)
+		{
+			final MethodCallStatistic methodCallStatistic = (MethodCallStatistic)statistic;
+			start = methodCallStatistic.getOperationStartMillis();
+			completion = methodCallStatistic.getOperationCompletionMillis();
+			traced = methodCallStatistic.getSpanId() == SpanStack.NO_SPAN ? null : methodCallStatistic;
+		}
+		else
+		{
+			start = millisOf(statistic.getOperationStart());
+			completion = millisOf(statistic.getOperationCompletion());
+			traced = null;
+		}
+
+		final Long id = statistic.getId();
+		final Long userId = statistic.getUserId();
+		final String metaData = statistic.getMetaData();
+		final double sampleWeight = statistic.getSampleWeight();
+
+		int flags = statistic.isOperationSuccessful() ? MethodCallStatisticCodec.SUCCESSFUL : 0;
+		flags |= id != null ? MethodCallStatisticCodec.HAS_ID : 0;
+		flags |= start != MethodCallStatistic.UNKNOWN_TIME ? MethodCallStatisticCodec.HAS_START : 0;
+		flags |= completion != MethodCallStatistic.UNKNOWN_TIME ? MethodCallStatisticCodec.HAS_COMPLETION : 0;
+		flags |= userId != null ? MethodCallStatisticCodec.HAS_USER_ID : 0;
+		flags |= metaData != null ? MethodCallStatisticCodec.HAS_META_DATA : 0;
+		flags |= sampleWeight != 1.0 ? MethodCallStatisticCodec.HAS_SAMPLE_WEIGHT : 0;
+		flags |= traced != null ? MethodCallStatisticCodec.HAS_SPAN : 0;
+
+		buffer.put((byte)flags);
+		putString(buffer, statistic.getOperationName());
+
+		if (id != null)
+		{
+			Varints.putSignedVarLong(buffer, id);
+		}
+
+		long completionBase = 0;
+
+		if (start != MethodCallStatistic.UNKNOWN_TIME)
+		{
+			Varints.putSignedVarLong(buffer, start - _previousStartMillis);
+			completionBase = start;
+		}
+
+		if (completion != MethodCallStatistic.UNKNOWN_TIME)
+		{
+			Varints.putSignedVarLong(buffer, completion - completionBase);
+		}
+
+		Varints.putSignedVarLong(buffer, statistic.getDurationNanos());
+
+		if (userId != null)
+		{
+			Varints.putSignedVarLong(buffer, userId);
+		}
+
+		if (metaData != null)
+		{
+			putString(buffer, metaData);
+		}
+
+		if (sampleWeight != 1.0)
+		{
+			buffer.putDouble(sampleWeight);
+		}
+
+		if (traced != null)
+		{
+			Varints.putVarLong(buffer, traced.getSpanId());
+			Varints.putVarLong(buffer, traced.getParentSpanId());
+			Varints.putSignedVarLong(buffer, traced.getSelfTimeNanos());
+		}
+
+		// Only now that the record is known to fit do we move our own state on.
+		if (start != MethodCallStatistic.UNKNOWN_TIME)
+		{
+			_previousStartMillis = start;
+		}
+	}
+
+	/**
+	 * Writes a string reference, adding the string to the block's dictionary if this is its first appearance.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The string to write. Must not be <code>null</code>.
+	 */
+	private void putString(final ByteBuffer buffer, final String value)
+	{
+		final Integer index = _dictionary.get(value);
+
+		if (index != null)
+		{
+			Varints.putVarLong(buffer, (long)index << 1);
+			return;
+		}
+
+		final int newIndex = _dictionary.size();
+		Varints.putVarLong(buffer, ((long)newIndex << 1) | 1);
+		Varints.putVarLong(buffer, MethodCallStatisticCodec.utf8Length(value));
+		MethodCallStatisticCodec.putUtf8(buffer, value);
+		_dictionary.put(value, newIndex);
+	}
+
+	/**
+	 * Gets the milliseconds of a possibly <code>null</code> {@link java.util.Date}.
+	 *
+	 * @param date The date, or <code>null</code>.
+	 *
+	 * @return The date in milliseconds since the epoch, or {@link MethodCallStatistic#UNKNOWN_TIME} if it was
+	 * <code>null</code>.
+	 */
+	private static long millisOf(final Date date)
+	{
+		return date == null ? MethodCallStatistic.UNKNOWN_TIME : date.getTime();
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * A bounded, lock-free pool of {@link org.epiphanic.instrumentation.performance.MethodCallStatistic} instances, so that
+ * an {@link org.epiphanic.instrumentation.performance.AOPMetricGatherer} can capture statistics without allocating. The
+ * free list is a {@link org.epiphanic.instrumentation.performance.ConcurrentRingBuffer}: request threads take instances
+ * out, and writers put them back via {@link org.epiphanic.instrumentation.performance.IRecyclable#recycle()} once the
+ * data store is done with them.<p/>
+ *
+ * If the pool runs dry, new instances are created (and will join the pool when recycled); if the pool is full when an
+ * instance is recycled, that instance is left for the garbage collector. Either way nothing blocks.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class MethodCallStatisticPool
+{
+	/**
+	 * Holds the default maximum number of idle instances the pool holds on to.
+	 */
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	/**
+	 * Holds our idle instances.
+	 */
+	private final ConcurrentRingBuffer<MethodCallStatistic> _idle;
+
+	/**
+	 * Creates a pool holding up to {@link #DEFAULT_CAPACITY} idle instances.
+	 */
+	public MethodCallStatisticPool()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a pool holding up to the given number of idle instances.
+	 *
+	 * @param capacity The maximum number of idle instances to keep. Rounded up to the next power of two.
+	 */
+	public MethodCallStatisticPool(final int capacity)
+	{
+		_idle = new ConcurrentRingBuffer<>(capacity);
+	}
+
+	/**
+	 * Fills the pool with fresh instances, so that even the first calls don't allocate.
+	 *
+	 * @param count The number of instances to create. Anything beyond the pool's capacity is discarded.
+	 */
+	public void prefill(final int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			if (!_idle.offer(new MethodCallStatistic(this)))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes an instance out of the pool, creating one if the pool is empty.
+	 *
+	 * @return A reset, non-<code>null</code> {@link org.epiphanic.instrumentation.performance.MethodCallStatistic}
+	 * belonging to this pool.
+	 */
+	public MethodCallStatistic acquire()
+	{
+		final MethodCallStatistic statistic = _idle.poll();
+
+		if (statistic == null)
+		{
+			return new MethodCallStatistic(this);
+		}
+
+		statistic.markAcquired();
+		return statistic;
+	}
+
+	/**
+	 * Resets an instance and puts it back in the pool. Called by {@link MethodCallStatistic#recycle()}.
+	 *
+	 * @param statistic The instance to return. Must belong to this pool and must not be referenced by anyone else.
+	 */
+	void release(final MethodCallStatistic statistic)
+	{
+		statistic.reset();
+		_idle.offer(statistic);
+	}
+
+	/**
+	 * Gets the number of idle instances currently held.
+	 *
+	 * @return The approximate number of instances available to {@link #acquire()} without allocating.
+	 */
+	public int getIdleCount()
+	{
+		return _idle.size();
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decorates another {@link org.epiphanic.instrumentation.performance.IBatchWriter} - a {@link
+ * org.epiphanic.instrumentation.performance.JdbcBatchWriter}, a {@link
+ * org.epiphanic.instrumentation.performance.HibernateStatelessBatchWriter}, or anything else - to count the batches it
+ * writes, their sizes and latencies, and its failures, and exposes them over JMX as an {@link
+ * org.epiphanic.instrumentation.performance.IBatchWriterMXBean}. Register it under a name of your choosing with Spring's
+ * <code>MBeanExporter</code>, or directly with an <code>MBeanServer</code>.<p/>
+ *
+ * Counting costs two clock readings and a handful of striped counter updates per batch, not per statistic.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class MonitoredBatchWriter<T> implements IBatchWriter<T>, IBatchWriterMXBean
+{
+	/**
+	 * Holds the writer we monitor.
+	 */
+	private IBatchWriter<T> _batchWriter;
+
+	/**
+	 * Holds the sizes of the batches written, successfully or not.
+	 */
+	private final StripedLatencyCounter _batchSizes = new StripedLatencyCounter();
+
+	/**
+	 * Holds the latencies of the batches written, successfully or not.
+	 */
+	private final StripedLatencyCounter _writeLatencies = new StripedLatencyCounter();
+
+	/**
+	 * Holds the number of batches that failed.
+	 */
+	private final LongAdder _failedBatches = new LongAdder();
+
+	/**
+	 * Holds the number of statistics in the batches that failed.
+	 */
+	private final LongAdder _failedStatistics = new LongAdder();
+
+	/**
+	 * Gets the writer we monitor.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public IBatchWriter<T> getBatchWriter()
+	{
+		return _batchWriter;
+	}
+
+	/**
+	 * Sets the writer we monitor.
+	 *
+	 * @param batchWriter A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public void setBatchWriter(final IBatchWriter<T> batchWriter)
+	{
+		_batchWriter = batchWriter;
+	}
+
+	@Override
+	public void writeBatch(final List<T> batch) throws Exception
+	{
+		// Writers may recycle what they've written, so take the size while the batch is still ours.
+		final int size = batch.size();
+		final long startNanos = System.nanoTime();
+		boolean written = false;
+
+		try
+		{
+			getBatchWriter().writeBatch(batch);
+			written = true;
+		}
+		finally
+		{
+			_writeLatencies.record(System.nanoTime() - startNanos);
+			_batchSizes.record(size);
+
+			if (!written)
+			{
+				_failedBatches.increment();
+				_failedStatistics.add(size);
+			}
+		}
+	}
+
+	@Override
+	public long getWrittenBatchCount()
+	{
+		return _batchSizes.getCount() - _failedBatches.sum();
+	}
+
+	@Override
+	public long getWrittenStatisticCount()
+	{
+		return _batchSizes.getTotal() - _failedStatistics.sum();
+	}
+
+	@Override
+	public long getFailedBatchCount()
+	{
+		return _failedBatches.sum();
+	}
+
+	@Override
+	public long getFailedStatisticCount()
+	{
+		return _failedStatistics.sum();
+	}
+
+	@Override
+	public double getMeanBatchSize()
+	{
+		return _batchSizes.getMean();
+	}
+
+	@Override
+	public long getMaxBatchSize()
+	{
+		return _batchSizes.getMax();
+	}
+
+	@Override
+	public double getMeanWriteNanos()
+	{
+		return _writeLatencies.getMean();
+	}
+
+	@Override
+	public long getMaxWriteNanos()
+	{
+		return _writeLatencies.getMax();
+	}
+
+	@Override
+	public void resetMaxima()
+	{
+		_batchSizes.resetMax();
+		_writeLatencies.resetMax();
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * An immutable implementation of {@link org.epiphanic.instrumentation.performance.IOperationAggregate}, as taken by
+ * {@link AggregatingStatisticsLogger#getOperationAggregates()}. Over JMX, each becomes a <code>CompositeData</code>
+ * with one item per getter.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class OperationAggregate implements IOperationAggregate
+{
+	/**
+	 * Holds the name of the operation.
+	 */
+	private final String _operationName;
+
+	/**
+	 * Holds the number of successful calls.
+	 */
+	private final long _successCount;
+
+	/**
+	 * Holds the number of failed calls.
+	 */
+	private final long _failureCount;
+
+	/**
+	 * Holds the number of calls the recorded calls stand for.
+	 */
+	private final double _estimatedCallCount;
+
+	/**
+	 * Holds the mean duration, in nanoseconds.
+	 */
+	private final double _meanNanos;
+
+	/**
+	 * Holds the longest duration, in nanoseconds.
+	 */
+	private final long _maxNanos;
+
+	/**
+	 * Holds the 99th percentile duration, in nanoseconds.
+	 */
+	private final long _p99Nanos;
+
+	/**
+	 * Creates an aggregate.
+	 *
+	 * @param operationName The name of the operation.
+	 * @param successCount The number of successful calls.
+	 * @param failureCount The number of failed calls.
+	 * @param estimatedCallCount The number of calls the recorded calls stand for.
+	 * @param meanNanos The mean duration, in nanoseconds.
+	 * @param maxNanos The longest duration, in nanoseconds.
+	 * @param p99Nanos The 99th percentile duration, in nanoseconds.
+	 */
+	public OperationAggregate(final String operationName, final long successCount, final long failureCount,
+			final double estimatedCallCount, final double meanNanos, final long maxNanos, final long p99Nanos)
+	{
+		_operationName = operationName;
+		_successCount = successCount;
+		_failureCount = failureCount;
+		_estimatedCallCount = estimatedCallCount;
+		_meanNanos = meanNanos;
+		_maxNanos = maxNanos;
+		_p99Nanos = p99Nanos;
+	}
+
+	@Override
+	public String getOperationName()
+	{
+		return _operationName;
+	}
+
+	@Override
+	public long getSuccessCount()
+	{
+		return _successCount;
+	}
+
+	@Override
+	public long getFailureCount()
+	{
+		return _failureCount;
+	}
+
+	@Override
+	public double getEstimatedCallCount()
+	{
+		return _estimatedCallCount;
+	}
+
+	@Override
+	public double getMeanNanos()
+	{
+		return _meanNanos;
+	}
+
+	@Override
+	public long getMaxNanos()
+	{
+		return _maxNanos;
+	}
+
+	@Override
+	public long getP99Nanos()
+	{
+		return _p99Nanos;
+	}
+
+	@Override
+	public String toString()
+	{
+		return _operationName + ": " + (_successCount + _failureCount) + " calls, " + _failureCount + " failed, mean "
+				+ Math.round(_meanNanos) + "ns, p99 " + _p99Nanos + "ns, max " + _maxNanos + "ns";
+	}
+}
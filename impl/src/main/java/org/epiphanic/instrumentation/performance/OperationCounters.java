@@ -0,0 +1,115 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds in-memory counters for a single operation: how many calls were kept only as counts, and how long they took in
+ * total, versus how many were forwarded as full statistics because they were slow or failed. Counters are {@link
+ * java.util.concurrent.atomic.LongAdder}s, so threads updating them don't contend.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class OperationCounters
+{
+	/**
+	 * Holds the number of calls counted but not forwarded.
+	 */
+	private final LongAdder _ordinaryCount = new LongAdder();
+
+	/**
+	 * Holds the total duration of the calls counted but not forwarded, in nanoseconds.
+	 */
+	private final LongAdder _ordinaryDurationNanos = new LongAdder();
+
+	/**
+	 * Holds the number of calls forwarded for being slow.
+	 */
+	private final LongAdder _slowCount = new LongAdder();
+
+	/**
+	 * Holds the number of calls forwarded for having failed.
+	 */
+	private final LongAdder _failedCount = new LongAdder();
+
+	/**
+	 * Counts a call that isn't being forwarded.
+	 *
+	 * @param durationNanos How long the call took, in nanoseconds.
+	 */
+	void recordOrdinary(final long durationNanos)
+	{
+		_ordinaryCount.increment();
+		_ordinaryDurationNanos.add(durationNanos);
+	}
+
+	/**
+	 * Counts a call forwarded for being slow.
+	 */
+	void recordSlow()
+	{
+		_slowCount.increment();
+	}
+
+	/**
+	 * Counts a call forwarded for having failed.
+	 */
+	void recordFailed()
+	{
+		_failedCount.increment();
+	}
+
+	/**
+	 * Gets the number of calls counted but not forwarded.
+	 *
+	 * @return The number of ordinary calls so far.
+	 */
+	public long getOrdinaryCount()
+	{
+		return _ordinaryCount.sum();
+	}
+
+	/**
+	 * Gets the total duration of the calls counted but not forwarded.
+	 *
+	 * @return The total duration of ordinary calls so far, in nanoseconds.
+	 */
+	public long getOrdinaryDurationNanos()
+	{
+		return _ordinaryDurationNanos.sum();
+	}
+
+	/**
+	 * Gets the number of calls forwarded for being slow.
+	 *
+	 * @return The number of slow, successful calls so far.
+	 */
+	public long getSlowCount()
+	{
+		return _slowCount.sum();
+	}
+
+	/**
+	 * Gets the number of calls forwarded for having failed.
+	 *
+	 * @return The number of failed calls so far, slow or not.
+	 */
+	public long getFailedCount()
+	{
+		return _failedCount.sum();
+	}
+
+	/**
+	 * Gets the total number of calls seen, forwarded or not.
+	 *
+	 * @return The number of calls so far.
+	 */
+	public long getTotalCount()
+	{
+		return getOrdinaryCount() + getSlowCount() + getFailedCount();
+	}
+}
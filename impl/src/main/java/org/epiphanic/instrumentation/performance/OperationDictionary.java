@@ -0,0 +1,427 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Interns operation names as small, dense integer IDs. Each {@link java.lang.reflect.Method} is described by its fully
+ * qualified signature - declaring class, name and parameter types - the first time it's seen, so overloads and
+ * same-named methods on different classes get IDs of their own. From then on, resolving the method costs a single hash
+ * lookup and hands back a primitive ID along with the one shared copy of its name.<p/>
+ *
+ * Given a {@link javax.sql.DataSource}, the dictionary is backed by the <code>OPERATION_DICTIONARY</code> table mapped
+ * by {@link org.epiphanic.instrumentation.performance.OperationDictionaryEntry}: {@link #start()} loads the IDs already
+ * handed out, and {@link #persist()} writes any handed out since. {@link
+ * org.epiphanic.instrumentation.performance.JdbcBatchWriter} calls the latter before each batch, so that rows in
+ * <code>METHOD_PERFORMANCE</code> can store the ID in place of the name.<p/>
+ *
+ * IDs are allocated in memory, so only one running dictionary should ever own a given table, and it should be started
+ * before it hands any out. Applications on several nodes sharing a database should each write through their own table,
+ * or leave names in the rows.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class OperationDictionary
+{
+	/**
+	 * Holds the ID meaning that an operation was never resolved through a dictionary. Real IDs start at one.
+	 */
+	public static final int NO_OPERATION_ID = 0;
+
+	/**
+	 * Holds the query we load our existing entries with.
+	 */
+	static final String SELECT_SQL = "select OPERATION_ID, OPERATION_NAME from OPERATION_DICTIONARY";
+
+	/**
+	 * Holds the statement we persist new entries with.
+	 */
+	static final String INSERT_SQL = "insert into OPERATION_DICTIONARY (OPERATION_ID, OPERATION_NAME) values (?, ?)";
+
+	/**
+	 * Holds the query we check an entry that's already in our table with.
+	 */
+	static final String SELECT_NAME_SQL = "select OPERATION_NAME from OPERATION_DICTIONARY where OPERATION_ID = ?";
+
+	/**
+	 * Holds the name of the savepoint we insert each entry under. Named, as not every driver supports unnamed ones.
+	 */
+	static final String SAVEPOINT_NAME = "OPERATION_DICTIONARY_INSERT";
+
+	/**
+	 * Holds the IDs of the methods we've described so far. This is all the capture path touches once warmed up.
+	 */
+	private final ConcurrentMap<Method, Integer> _methodIds = new ConcurrentHashMap<>();
+
+	/**
+	 * Holds the ID of every name we've interned.
+	 */
+	private final ConcurrentMap<String, Integer> _nameIds = new ConcurrentHashMap<>();
+
+	/**
+	 * Holds our names, indexed by ID. Replaced wholesale when it needs to grow.
+	 */
+	private volatile String[] _names = new String[64];
+
+	/**
+	 * Holds the highest ID handed out so far.
+	 */
+	private volatile int _highestId;
+
+	/**
+	 * Holds the highest ID known to be in our table.
+	 */
+	private volatile int _highestPersistedId;
+
+	/**
+	 * Serializes the interning of new names.
+	 */
+	private final ReentrantLock _internLock = new ReentrantLock();
+
+	/**
+	 * Serializes writes to our table.
+	 */
+	private final ReentrantLock _persistLock = new ReentrantLock();
+
+	/**
+	 * Holds our injected {@link javax.sql.DataSource}, if we're backed by a table.
+	 */
+	private DataSource _dataSource;
+
+	/**
+	 * Gets our injected {@link javax.sql.DataSource}.
+	 *
+	 * @return An implementation of {@link javax.sql.DataSource}, or <code>null</code> if we only live in memory.
+	 */
+	public DataSource getDataSource()
+	{
+		return _dataSource;
+	}
+
+	/**
+	 * Sets the {@link javax.sql.DataSource} holding our <code>OPERATION_DICTIONARY</code> table.
+	 *
+	 * @param dataSource A fully configured implementation of {@link javax.sql.DataSource}, or <code>null</code> (the
+	 * default) to keep the dictionary in memory only.
+	 */
+	public void setDataSource(final DataSource dataSource)
+	{
+		_dataSource = dataSource;
+	}
+
+	/**
+	 * Loads the entries already in our table, so that names keep their IDs across restarts. Does nothing if we have no
+	 * {@link javax.sql.DataSource}. Should be called before any IDs are handed out: IDs already handed out in memory are
+	 * kept only if the table agrees with every one of them, as statistics may already be carrying them.
+	 *
+	 * @throws SQLException If the table could not be read.
+	 * @throws IllegalStateException If the table gives an ID already handed out in memory to another name, or another ID
+	 * to a name already interned, or lacks an ID handed out in memory below the highest it holds. Nothing is loaded.
+	 */
+	public void start() throws SQLException
+	{
+		if (getDataSource() == null)
+		{
+			return;
+		}
+
+		_internLock.lock();
+
+		try (Connection connection = getDataSource().getConnection();
+			 PreparedStatement select = connection.prepareStatement(SELECT_SQL);
+			 ResultSet resultSet = select.executeQuery())
+		{
+			final Map<Integer, String> entries = new HashMap<>();
+			int highestPersistedId = NO_OPERATION_ID;
+
+			while (resultSet.next())
+			{
+				final int operationId = resultSet.getInt(1);
+				final String operationName = resultSet.getString(2);
+				final String inMemoryName = getOperationName(operationId);
+				final Integer inMemoryId = _nameIds.get(operationName);
+
+				if (inMemoryName != null && !inMemoryName.equals(operationName)
+						|| inMemoryId != null && inMemoryId != operationId)
+				{
+					throw new IllegalStateException("The table gives ID " + operationId + " to " + operationName
+							+ ", which disagrees with the IDs already handed out in memory.");
+				}
+
+				entries.put(operationId, operationName);
+				highestPersistedId = Math.max(highestPersistedId, operationId);
+			}
+
+			// Our own IDs are persisted from past the table's highest; any below it must already be there.
+			for (int operationId = 1; operationId <= Math.min(_highestId, highestPersistedId); operationId++)
+			{
+				if (!entries.containsKey(operationId))
+				{
+					throw new IllegalStateException("ID " + operationId + " was already handed out in memory, but is "
+							+ "missing from the table.");
+				}
+			}
+
+			for (final Map.Entry<Integer, String> entry : entries.entrySet())
+			{
+				add(entry.getKey(), entry.getValue());
+			}
+
+			_highestPersistedId = highestPersistedId;
+		}
+		finally
+		{
+			_internLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the ID of a method, describing and interning it the first time it's seen.
+	 *
+	 * @param method The method to resolve. Must not be <code>null</code>.
+	 *
+	 * @return The ID of the method's fully qualified signature.
+	 */
+	public int getOperationId(final Method method)
+	{
+		final Integer operationId = _methodIds.get(method);
+
+		if (operationId != null)
+		{
+			return operationId;
+		}
+
+		final int newOperationId = getOperationId(describe(method));
+		_methodIds.putIfAbsent(method, newOperationId);
+		return newOperationId;
+	}
+
+	/**
+	 * Gets the ID of an operation name, interning it the first time it's seen.
+	 *
+	 * @param operationName The name to resolve. Must not be <code>null</code>.
+	 *
+	 * @return The ID of the name.
+	 */
+	public int getOperationId(final String operationName)
+	{
+		final Integer operationId = _nameIds.get(operationName);
+
+		if (operationId != null)
+		{
+			return operationId;
+		}
+
+		_internLock.lock();
+
+		try
+		{
+			final Integer raced = _nameIds.get(operationName);
+			return raced != null ? raced : add(_highestId + 1, operationName);
+		}
+		finally
+		{
+			_internLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the name behind an ID.
+	 *
+	 * @param operationId The ID to look up.
+	 *
+	 * @return The interned name, or <code>null</code> if no such ID has been handed out.
+	 */
+	public String getOperationName(final int operationId)
+	{
+		final String[] names = _names;
+		return operationId > NO_OPERATION_ID && operationId < names.length ? names[operationId] : null;
+	}
+
+	/**
+	 * Gets the number of names we've interned.
+	 *
+	 * @return The number of entries in the dictionary.
+	 */
+	public int size()
+	{
+		return _nameIds.size();
+	}
+
+	/**
+	 * Writes every entry handed out since the last call to our table, in a transaction of its own. Does nothing if we
+	 * have no {@link javax.sql.DataSource}, or nothing is new - which, after warm up, is almost always. An entry that's
+	 * already in the table under the same name, as when an earlier commit went through but was reported as failed, is
+	 * left as it is rather than failing the lot.
+	 *
+	 * @return The number of entries written.
+	 *
+	 * @throws SQLException If the entries could not be written, or the table gives one of their IDs to another name.
+	 * They'll be tried again next time.
+	 */
+	public int persist() throws SQLException
+	{
+		if (getDataSource() == null || _highestPersistedId == _highestId)
+		{
+			return 0;
+		}
+
+		_persistLock.lock();
+
+		try (Connection connection = getDataSource().getConnection())
+		{
+			final int from = _highestPersistedId + 1;
+			final int to = _highestId;
+
+			if (from > to)
+			{
+				return 0;
+			}
+
+			final boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+
+			try (PreparedStatement insert = connection.prepareStatement(INSERT_SQL))
+			{
+				for (int operationId = from; operationId <= to; operationId++)
+				{
+					insert.setInt(1, operationId);
+					insert.setString(2, getOperationName(operationId));
+
+					final Savepoint savepoint = connection.setSavepoint(SAVEPOINT_NAME);
+
+					try
+					{
+						insert.executeUpdate();
+						connection.releaseSavepoint(savepoint);
+					}
+					catch (final SQLException ex)
+					{
+						if (!SqlStates.isDuplicateKey(ex))
+						{
+							throw ex;
+						}
+
+						// Rolled back first, as some databases refuse anything more in a transaction with a failed statement.
+						connection.rollback(savepoint);
+
+						if (!isPersisted(connection, operationId))
+						{
+							throw ex;
+						}
+					}
+				}
+
+				connection.commit();
+			}
+			catch (final SQLException ex)
+			{
+				connection.rollback();
+				throw ex;
+			}
+			finally
+			{
+				connection.setAutoCommit(autoCommit);
+			}
+
+			_highestPersistedId = to;
+			return to - from + 1;
+		}
+		finally
+		{
+			_persistLock.unlock();
+		}
+	}
+
+	/**
+	 * Indicates whether or not an entry is already in our table under the name we gave it.
+	 *
+	 * @param connection The connection to check on.
+	 * @param operationId The ID of the entry.
+	 *
+	 * @return <code>True</code> if the table holds the entry as we have it, else <code>false</code>.
+	 *
+	 * @throws SQLException If the table could not be read.
+	 */
+	private boolean isPersisted(final Connection connection, final int operationId) throws SQLException
+	{
+		try (PreparedStatement select = connection.prepareStatement(SELECT_NAME_SQL))
+		{
+			select.setInt(1, operationId);
+
+			try (ResultSet resultSet = select.executeQuery())
+			{
+				return resultSet.next() && getOperationName(operationId).equals(resultSet.getString(1));
+			}
+		}
+	}
+
+	/**
+	 * Adds an entry to the dictionary. Must be called holding our intern lock.
+	 *
+	 * @param operationId The ID of the entry.
+	 * @param operationName The name of the entry.
+	 *
+	 * @return The ID of the entry.
+	 */
+	private int add(final int operationId, final String operationName)
+	{
+		String[] names = _names;
+
+		if (operationId >= names.length)
+		{
+			names = Arrays.copyOf(names, Math.max(names.length * 2, operationId + 1));
+		}
+
+		names[operationId] = operationName;
+		_names = names;
+		_highestId = Math.max(_highestId, operationId);
+
+		// Published last: anyone who finds the ID here can read the name behind it.
+		_nameIds.put(operationName, operationId);
+		return operationId;
+	}
+
+	/**
+	 * Describes a method by its fully qualified signature, such as
+	 * <code>com.example.Service.find(java.lang.String, int[])</code>.
+	 *
+	 * @param method The method to describe.
+	 *
+	 * @return The method's signature.
+	 */
+	static String describe(final Method method)
+	{
+		final StringBuilder signature = new StringBuilder(method.getDeclaringClass().getName())
+				.append('.').append(method.getName()).append('(');
+		final Class<?>[] parameterTypes = method.getParameterTypes();
+
+		for (int i = 0; i < parameterTypes.length; i++)
+		{
+			if (i > 0)
+			{
+				signature.append(", ");
+			}
+
+			signature.append(parameterTypes[i].getTypeName());
+		}
+
+		return signature.append(')').toString();
+	}
+}
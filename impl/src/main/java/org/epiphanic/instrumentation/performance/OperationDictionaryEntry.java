@@ -0,0 +1,80 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Holds a single entry of an {@link org.epiphanic.instrumentation.performance.OperationDictionary}: the name behind an
+ * <code>OPERATION_ID</code> in <code>METHOD_PERFORMANCE</code>. Join the two on that column to get names back out of
+ * rows written without them.<p/>
+ *
+ * Entries are written by the dictionary itself over JDBC; this mapping exists so that the table can be created and
+ * queried alongside {@link org.epiphanic.instrumentation.performance.MethodCallStatistic}. IDs are assigned by the
+ * dictionary, never generated.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@Entity
+@Table(name = "OPERATION_DICTIONARY")
+public class OperationDictionaryEntry
+{
+	/**
+	 * Our primary key, as assigned by the dictionary.
+	 */
+	private Integer _operationId;
+
+	/**
+	 * Holds the fully qualified name of the operation.
+	 */
+	private String _operationName;
+
+	/**
+	 * Gets the ID of the operation.
+	 *
+	 * @return The ID of the operation.
+	 */
+	@Id
+	@Column(name = "OPERATION_ID")
+	public Integer getOperationId()
+	{
+		return _operationId;
+	}
+
+	/**
+	 * Sets the ID of the operation.
+	 *
+	 * @param operationId The ID of the operation.
+	 */
+	public void setOperationId(final Integer operationId)
+	{
+		_operationId = operationId;
+	}
+
+	/**
+	 * Gets the fully qualified name of the operation.
+	 *
+	 * @return The name of the operation.
+	 */
+	@Column(name = "OPERATION_NAME", length = 1024, nullable = false, unique = true)
+	public String getOperationName()
+	{
+		return _operationName;
+	}
+
+	/**
+	 * Sets the fully qualified name of the operation.
+	 *
+	 * @param operationName The name of the operation.
+	 */
+	public void setOperationName(final String operationName)
+	{
+		_operationName = operationName;
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.Date;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the calls to a single operation over one interval, for {@link
+ * org.epiphanic.instrumentation.performance.AggregatingStatisticsLogger}: a {@link
+ * org.epiphanic.instrumentation.performance.LatencyHistogram} of durations, a mergeable {@link
+ * org.epiphanic.instrumentation.performance.DDSketch} of the same, and striped counters, so that recording never takes
+ * a lock. Once writers have moved on to another instance, the interval is turned into a {@link
+ * org.epiphanic.instrumentation.performance.MethodCallRollup} and reset for reuse.<p/>
+ *
+ * Neither the histogram nor the sketch is sized to the durations actually seen, so each interval holds some 33 KB of
+ * counters at the default sketch accuracy, however few calls it records.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class OperationInterval
+{
+	/**
+	 * Holds the durations recorded, in nanoseconds.
+	 */
+	private final LatencyHistogram _histogram = new LatencyHistogram();
+
+	/**
+	 * Holds a mergeable sketch of the durations recorded, in nanoseconds.
+	 */
+	private final DDSketch _sketch;
+
+	/**
+	 * Holds the number of successful calls recorded.
+	 */
+	private final LongAdder _successCount = new LongAdder();
+
+	/**
+	 * Holds the number of failed calls recorded.
+	 */
+	private final LongAdder _failureCount = new LongAdder();
+
+	/**
+	 * Holds the total duration of the calls recorded, in nanoseconds.
+	 */
+	private final LongAdder _totalDurationNanos = new LongAdder();
+
+	/**
+	 * Holds the sum of the sample weights of the calls recorded.
+	 */
+	private final DoubleAdder _sampleWeight = new DoubleAdder();
+
+	/**
+	 * Creates an empty interval.
+	 *
+	 * @param sketchRelativeAccuracy The relative accuracy of our {@link org.epiphanic.instrumentation.performance.DDSketch}.
+	 */
+	OperationInterval(final double sketchRelativeAccuracy)
+	{
+		_sketch = new DDSketch(sketchRelativeAccuracy);
+	}
+
+	/**
+	 * Records a call.
+	 *
+	 * @param durationNanos How long the call took, in nanoseconds.
+	 * @param successful <code>True</code> if the call succeeded.
+	 * @param sampleWeight The number of calls this one stands for.
+	 */
+	void record(final long durationNanos, final boolean successful, final double sampleWeight)
+	{
+		_histogram.recordValue(durationNanos);
+		_sketch.recordValue(durationNanos);
+		(successful ? _successCount : _failureCount).increment();
+		_totalDurationNanos.add(durationNanos);
+		_sampleWeight.add(sampleWeight);
+	}
+
+	/**
+	 * Indicates whether anything has been recorded since we were last reset.
+	 *
+	 * @return <code>True</code> if we have nothing to report.
+	 */
+	boolean isEmpty()
+	{
+		return _successCount.sum() == 0 && _failureCount.sum() == 0;
+	}
+
+	/**
+	 * Gets our histogram of durations.
+	 *
+	 * @return Our non-<code>null</code> {@link org.epiphanic.instrumentation.performance.LatencyHistogram}.
+	 */
+	LatencyHistogram getHistogram()
+	{
+		return _histogram;
+	}
+
+	/**
+	 * Summarizes what we've recorded. Only meaningful once nobody is recording into us any more.
+	 *
+	 * @param operationName The name of the operation we've been recording.
+	 * @param intervalStartMillis The start of the interval, in milliseconds since the epoch.
+	 * @param intervalEndMillis The end of the interval, in milliseconds since the epoch.
+	 *
+	 * @return A new, unsaved {@link org.epiphanic.instrumentation.performance.MethodCallRollup}.
+	 */
+	MethodCallRollup toRollup(final String operationName, final long intervalStartMillis, final long intervalEndMillis)
+	{
+		final MethodCallRollup rollup = new MethodCallRollup();
+		rollup.setOperationName(operationName);
+		rollup.setIntervalStart(new Date(intervalStartMillis));
+		rollup.setIntervalEnd(new Date(intervalEndMillis));
+		rollup.setSuccessCount(_successCount.sum());
+		rollup.setFailureCount(_failureCount.sum());
+		rollup.setEstimatedCallCount(_sampleWeight.sum());
+		rollup.setTotalDurationNanos(_totalDurationNanos.sum());
+		rollup.setMinNanos(_histogram.getMinValue());
+		rollup.setMaxNanos(_histogram.getMaxValue());
+		rollup.setP50Nanos(_histogram.getValueAtPercentile(50.0));
+		rollup.setP90Nanos(_histogram.getValueAtPercentile(90.0));
+		rollup.setP99Nanos(_histogram.getValueAtPercentile(99.0));
+		rollup.setP999Nanos(_histogram.getValueAtPercentile(99.9));
+		rollup.setLatencySketch(_sketch.toByteArray());
+		return rollup;
+	}
+
+	/**
+	 * Summarizes what we've recorded so far, while calls may still be being recorded into us.
+	 *
+	 * @param operationName The name of the operation we're recording.
+	 *
+	 * @return A new, approximate {@link org.epiphanic.instrumentation.performance.OperationAggregate}.
+	 */
+	OperationAggregate toAggregate(final String operationName)
+	{
+		final long successCount = _successCount.sum();
+		final long failureCount = _failureCount.sum();
+		final long callCount = successCount + failureCount;
+		final double meanNanos = callCount == 0 ? 0.0 : (double)_totalDurationNanos.sum() / callCount;
+
+		return new OperationAggregate(operationName, successCount, failureCount, _sampleWeight.sum(), meanNanos,
+				_histogram.getMaxValue(), _histogram.getValueAtPercentile(99.0));
+	}
+
+	/**
+	 * Clears everything we've recorded. Only safe once nobody is recording into us any more.
+	 */
+	void reset()
+	{
+		_histogram.reset();
+		_sketch.reset();
+		_successCount.reset();
+		_failureCount.reset();
+		_totalDurationNanos.reset();
+		_sampleWeight.reset();
+	}
+}
@@ -0,0 +1,43 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Enumerates what a bounded asynchronous logger does with a statistic when its buffer is full - which is to say, when
+ * the data store has fallen far enough behind that keeping every statistic would mean either growing without bound or
+ * stalling the instrumented application indefinitely. Every policy here gives up on the statistic sooner or later; each
+ * statistic given up on is counted, so that the loss is visible.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public enum OverflowPolicy
+{
+	/**
+	 * Discards the statistic being written, leaving everything already pending alone. The cheapest policy: a full buffer
+	 * costs the caller a failed CAS and nothing more.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Evicts the oldest pending statistic to make room for the one being written, on the basis that recent data is more
+	 * interesting than stale data when the data store does eventually catch up.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Waits for room in the buffer for up to the configured block timeout, then discards the statistic being written. This
+	 * applies backpressure to the instrumented application, but never for longer than the timeout.
+	 */
+	BLOCK,
+
+	/**
+	 * Hands the statistic being written to an overflow logger - typically an {@link
+	 * org.epiphanic.instrumentation.performance.AggregatingStatisticsLogger} - so that it at least contributes to
+	 * interval rollups, even though its individual row is lost. Where no overflow logger is configured, the statistic is
+	 * discarded as with {@link #DROP_NEWEST}.
+	 */
+	AGGREGATE
+}
@@ -0,0 +1,78 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An implementation of {@link org.epiphanic.instrumentation.performance.ISampler} that selects each call independently
+ * with a fixed probability, giving every selected call a weight of one over that probability. Uses {@link
+ * java.util.concurrent.ThreadLocalRandom}, so there is no shared state between calling threads.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class ProbabilisticSampler implements ISampler
+{
+	/**
+	 * Holds the probability of selecting any given call.
+	 */
+	private volatile double _probability = 1.0;
+
+	/**
+	 * Creates a sampler that selects every call, until told otherwise.
+	 */
+	public ProbabilisticSampler()
+	{
+	}
+
+	/**
+	 * Creates a sampler with the given probability.
+	 *
+	 * @param probability The probability of selecting any given call, as per {@link #setProbability(double)}.
+	 */
+	public ProbabilisticSampler(final double probability)
+	{
+		setProbability(probability);
+	}
+
+	/**
+	 * Gets the probability of selecting any given call.
+	 *
+	 * @return A probability between zero and one.
+	 */
+	public double getProbability()
+	{
+		return _probability;
+	}
+
+	/**
+	 * Sets the probability of selecting any given call.
+	 *
+	 * @param probability A probability greater than zero and at most one.
+	 */
+	public void setProbability(final double probability)
+	{
+		if (!(probability > 0.0 && probability <= 1.0))
+		{
+			throw new IllegalArgumentException("Probability must be in (0, 1], was " + probability);
+		}
+
+		_probability = probability;
+	}
+
+	@Override
+	public double sample()
+	{
+		final double probability = _probability;
+
+		if (probability >= 1.0)
+		{
+			return 1.0;
+		}
+
+		return ThreadLocalRandom.current().nextDouble() < probability ? 1.0 / probability : 0.0;
+	}
+}
@@ -0,0 +1,288 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves the totals kept by a {@link org.epiphanic.instrumentation.performance.PrometheusStatisticsLogger} over HTTP,
+ * in the Prometheus text exposition format, for Prometheus or anything else that understands it to scrape. It is built
+ * on the JDK's own <code>com.sun.net.httpserver</code>, so needs no servlet container. Wire it up alongside an {@link
+ * org.epiphanic.instrumentation.performance.AOPMetricGatherer} whose statistics logger is that same {@link
+ * org.epiphanic.instrumentation.performance.PrometheusStatisticsLogger}, with <code>init-method="start"</code> and
+ * <code>destroy-method="stop"</code>.<p/>
+ *
+ * Every scrape is rendered into the same buffer, reused from one scrape to the next, so a scrape costs only what the
+ * HTTP server itself allocates. Scrapes are served one at a time on the server's dispatcher thread; with a scrape
+ * every few seconds, that's plenty.<p/>
+ *
+ * By default we listen on {@link #DEFAULT_HOST} only; set {@link #setHost(String)} to <code>0.0.0.0</code> for scrapers
+ * elsewhere on the network.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class PrometheusExporter
+{
+	/**
+	 * Holds the default host to listen on.
+	 */
+	public static final String DEFAULT_HOST = "localhost";
+
+	/**
+	 * Holds the default port to listen on.
+	 */
+	public static final int DEFAULT_PORT = 9404;
+
+	/**
+	 * Holds the default path metrics are served from.
+	 */
+	public static final String DEFAULT_PATH = "/metrics";
+
+	/**
+	 * Holds the content type of the text exposition format.
+	 */
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * Holds the logger whose totals we serve.
+	 */
+	private PrometheusStatisticsLogger _statisticsLogger;
+
+	/**
+	 * Holds the host we listen on.
+	 */
+	private String _host = DEFAULT_HOST;
+
+	/**
+	 * Holds the port we listen on, or zero for any free port.
+	 */
+	private int _port = DEFAULT_PORT;
+
+	/**
+	 * Holds the path metrics are served from.
+	 */
+	private String _path = DEFAULT_PATH;
+
+	/**
+	 * Holds the buffer every scrape is rendered into. Guarded by our scrape lock.
+	 */
+	private final PrometheusTextBuffer _buffer = new PrometheusTextBuffer(8192);
+
+	/**
+	 * Guards our buffer, should the server ever be given more than one thread.
+	 */
+	private final ReentrantLock _scrapeLock = new ReentrantLock();
+
+	/**
+	 * Guards starting and stopping.
+	 */
+	private final ReentrantLock _lifecycleLock = new ReentrantLock();
+
+	/**
+	 * Holds our server, created when we are started.
+	 */
+	private volatile HttpServer _server;
+
+	/**
+	 * Gets the logger whose totals we serve.
+	 *
+	 * @return A non-<code>null</code> {@link org.epiphanic.instrumentation.performance.PrometheusStatisticsLogger}.
+	 */
+	public PrometheusStatisticsLogger getStatisticsLogger()
+	{
+		return _statisticsLogger;
+	}
+
+	/**
+	 * Sets the logger whose totals we serve.
+	 *
+	 * @param statisticsLogger A non-<code>null</code> {@link org.epiphanic.instrumentation.performance.PrometheusStatisticsLogger}.
+	 */
+	public void setStatisticsLogger(final PrometheusStatisticsLogger statisticsLogger)
+	{
+		_statisticsLogger = statisticsLogger;
+	}
+
+	/**
+	 * Gets the host we listen on.
+	 *
+	 * @return The host name or address.
+	 */
+	public String getHost()
+	{
+		return _host;
+	}
+
+	/**
+	 * Sets the host to listen on. This only takes effect when the exporter is next started.
+	 *
+	 * @param host The host name or address. Defaults to {@link #DEFAULT_HOST}.
+	 */
+	public void setHost(final String host)
+	{
+		_host = host;
+	}
+
+	/**
+	 * Gets the port we listen on. Once started, this is the port actually bound, even if any free port was asked for.
+	 *
+	 * @return The port number.
+	 */
+	public int getPort()
+	{
+		final HttpServer server = _server;
+		return server == null ? _port : server.getAddress().getPort();
+	}
+
+	/**
+	 * Sets the port to listen on. This only takes effect when the exporter is next started.
+	 *
+	 * @param port The port number, or zero for any free port. Defaults to {@link #DEFAULT_PORT}.
+	 */
+	public void setPort(final int port)
+	{
+		_port = port;
+	}
+
+	/**
+	 * Gets the path metrics are served from.
+	 *
+	 * @return The path, starting with a slash.
+	 */
+	public String getPath()
+	{
+		return _path;
+	}
+
+	/**
+	 * Sets the path metrics are served from. This only takes effect when the exporter is next started.
+	 *
+	 * @param path The path, starting with a slash. Defaults to {@link #DEFAULT_PATH}.
+	 */
+	public void setPath(final String path)
+	{
+		_path = path;
+	}
+
+	/**
+	 * Starts serving metrics. Calling this on a started exporter does nothing.
+	 *
+	 * @throws IOException If we could not listen on our host and port.
+	 */
+	public void start() throws IOException
+	{
+		_lifecycleLock.lock();
+
+		try
+		{
+			if (_server != null)
+			{
+				return;
+			}
+
+			final HttpServer server = HttpServer.create(new InetSocketAddress(getHost(), _port), 0);
+			server.createContext(getPath(), new HttpHandler()
+			{
+				@Override
+				public void handle(final HttpExchange exchange) throws IOException
+				{
+					try
+					{
+						serve(exchange);
+					}
+					finally
+					{
+						exchange.close();
+					}
+				}
+			});
+
+			server.start();
+			_server = server;
+		}
+		finally
+		{
+			_lifecycleLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops serving metrics, waiting up to a second for scrapes in progress. Calling this on a stopped exporter does
+	 * nothing.
+	 */
+	public void stop()
+	{
+		_lifecycleLock.lock();
+
+		try
+		{
+			if (_server == null)
+			{
+				return;
+			}
+
+			_server.stop(1);
+			_server = null;
+		}
+		finally
+		{
+			_lifecycleLock.unlock();
+		}
+	}
+
+	/**
+	 * Answers a request: a scrape for <code>GET</code>, just the headers for <code>HEAD</code>, and a refusal for
+	 * anything else.
+	 *
+	 * @param exchange The request and its response.
+	 *
+	 * @throws IOException If the response could not be sent.
+	 */
+	private void serve(final HttpExchange exchange) throws IOException
+	{
+		final String method = exchange.getRequestMethod();
+
+		if (!"GET".equals(method) && !"HEAD".equals(method))
+		{
+			exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+			exchange.sendResponseHeaders(405, -1);
+			return;
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+
+		if ("HEAD".equals(method))
+		{
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+
+		_scrapeLock.lock();
+
+		try
+		{
+			_buffer.reset();
+			getStatisticsLogger().render(_buffer);
+			exchange.sendResponseHeaders(200, _buffer.size());
+
+			try (OutputStream body = exchange.getResponseBody())
+			{
+				_buffer.writeTo(body);
+			}
+		}
+		finally
+		{
+			_scrapeLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,392 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps running, in-process totals of every statistic it is given - per operation, a count of calls and of failed
+ * calls, and a histogram of their durations - for a {@link org.epiphanic.instrumentation.performance.PrometheusExporter}
+ * to serve. Unlike {@link org.epiphanic.instrumentation.performance.AggregatingStatisticsLogger}, nothing is ever reset
+ * or written anywhere: Prometheus scrapes counters that only go up, and works out rates itself.<p/>
+ *
+ * To keep writing statistics to a data store as well, set {@link #setStatisticsLogger(IStatisticsLogger)}: each
+ * statistic is counted, then handed on to it. Otherwise statistics are recycled as soon as they've been counted.
+ * Counting a statistic takes a map lookup and a handful of striped counter updates, and never locks.<p/>
+ *
+ * Every statistic counts as the number of calls its sample weight says it stands for, in the counters, the histogram
+ * buckets and the duration sum alike, so that sampling doesn't skew rates or quantiles. Weights are kept as fixed-point
+ * millionths, which keeps the counters exact, and integers, for unsampled calls.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class PrometheusStatisticsLogger implements IStatisticsLogger<MethodCallStatistic>
+{
+	/**
+	 * Holds the default upper bounds of our histogram buckets, in nanoseconds: from a hundred microseconds to ten
+	 * seconds.
+	 */
+	private static final long[] DEFAULT_BUCKET_BOUNDS_NANOS = {
+			TimeUnit.MICROSECONDS.toNanos(100), TimeUnit.MICROSECONDS.toNanos(250), TimeUnit.MICROSECONDS.toNanos(500),
+			TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(2) + TimeUnit.MICROSECONDS.toNanos(500),
+			TimeUnit.MILLISECONDS.toNanos(5), TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(25),
+			TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(250),
+			TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(1),
+			TimeUnit.SECONDS.toNanos(2) + TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(5),
+			TimeUnit.SECONDS.toNanos(10)};
+
+	/**
+	 * Holds the name of our call counter family.
+	 */
+	static final String CALLS = "thoreau_operation_calls_total";
+
+	/**
+	 * Holds the name of our failed call counter family.
+	 */
+	static final String ERRORS = "thoreau_operation_errors_total";
+
+	/**
+	 * Holds the name of our duration histogram family.
+	 */
+	static final String DURATION = "thoreau_operation_duration_seconds";
+
+	/**
+	 * Holds the number of units each call is counted in; weights are kept in millionths of a call.
+	 */
+	private static final long UNITS_PER_CALL = 1000000L;
+
+	/**
+	 * Holds the number of zeroes in {@link #UNITS_PER_CALL}.
+	 */
+	private static final int UNIT_DIGITS = 6;
+
+	/**
+	 * Holds the logger we hand statistics on to, if any.
+	 */
+	private IStatisticsLogger<MethodCallStatistic> _statisticsLogger;
+
+	/**
+	 * Holds the upper bounds of our histogram buckets, in nanoseconds, in ascending order.
+	 */
+	private volatile long[] _bucketBoundsNanos = DEFAULT_BUCKET_BOUNDS_NANOS;
+
+	/**
+	 * Holds the totals for each operation, keyed by operation name.
+	 */
+	private final ConcurrentMap<String, OperationMetrics> _metrics = new ConcurrentHashMap<>();
+
+	/**
+	 * Holds the totals for each operation in the order they were first seen, so that rendering them needs no iterator.
+	 * Replaced, never changed, as operations are added. Guarded by our registration lock for writes.
+	 */
+	private volatile OperationMetrics[] _metricsInOrder = new OperationMetrics[0];
+
+	/**
+	 * Guards adding an operation.
+	 */
+	private final ReentrantLock _registrationLock = new ReentrantLock();
+
+	/**
+	 * Gets the logger we hand statistics on to.
+	 *
+	 * @return An {@link org.epiphanic.instrumentation.performance.IStatisticsLogger}, or <code>null</code> if statistics
+	 *         are recycled once counted.
+	 */
+	public IStatisticsLogger<MethodCallStatistic> getStatisticsLogger()
+	{
+		return _statisticsLogger;
+	}
+
+	/**
+	 * Sets the logger to hand statistics on to once they've been counted, such as a {@link
+	 * org.epiphanic.instrumentation.performance.GenericAsynchronousLogger} writing them to a database.
+	 *
+	 * @param statisticsLogger An {@link org.epiphanic.instrumentation.performance.IStatisticsLogger}, or
+	 * <code>null</code> to recycle statistics once counted.
+	 */
+	public void setStatisticsLogger(final IStatisticsLogger<MethodCallStatistic> statisticsLogger)
+	{
+		_statisticsLogger = statisticsLogger;
+	}
+
+	/**
+	 * Gets the upper bounds of our histogram buckets.
+	 *
+	 * @return A copy of the bucket bounds, in nanoseconds, in ascending order.
+	 */
+	public long[] getBucketBoundsNanos()
+	{
+		return _bucketBoundsNanos.clone();
+	}
+
+	/**
+	 * Sets the upper bounds of our histogram buckets; a bucket for everything slower is always added. Operations keep
+	 * the bounds in place when they were first recorded, so set this before the first statistic is.
+	 *
+	 * @param bucketBoundsNanos The bucket bounds, in nanoseconds. Must be positive and strictly ascending.
+	 */
+	public void setBucketBoundsNanos(final long[] bucketBoundsNanos)
+	{
+		for (int i = 0; i < bucketBoundsNanos.length; i++)
+		{
+			if (bucketBoundsNanos[i] <= 0 || (i > 0 && bucketBoundsNanos[i] <= bucketBoundsNanos[i - 1]))
+			{
+				throw new IllegalArgumentException("Bucket bounds must be positive and strictly ascending: "
+						+ Arrays.toString(bucketBoundsNanos));
+			}
+		}
+
+		_bucketBoundsNanos = bucketBoundsNanos.clone();
+	}
+
+	/**
+	 * Counts a statistic, then hands it on to our logger, if we have one, or recycles it.
+	 *
+	 * @param statistic The statistic to count. Must not be <code>null</code>.
+	 */
+	@Override
+	public void writeStatistic(final MethodCallStatistic statistic)
+	{
+		getOrCreateMetrics(statistic.getOperationName())
+				.record(statistic.getDurationNanos(), statistic.isOperationSuccessful(), statistic.getSampleWeight());
+
+		final IStatisticsLogger<MethodCallStatistic> statisticsLogger = getStatisticsLogger();
+
+		if (statisticsLogger == null)
+		{
+			statistic.recycle();
+		}
+		else
+		{
+			statisticsLogger.writeStatistic(statistic);
+		}
+	}
+
+	/**
+	 * Renders our totals in the Prometheus text exposition format. Totals go on being updated as they're rendered, so
+	 * different lines may reflect slightly different moments; each histogram is made self-consistent, though, with its
+	 * count matching its last bucket.
+	 *
+	 * @param buffer The buffer to render into.
+	 */
+	void render(final PrometheusTextBuffer buffer)
+	{
+		final OperationMetrics[] metricsInOrder = _metricsInOrder;
+
+		writeHeader(buffer, CALLS, "counter", "Calls to each instrumented operation.");
+
+		for (final OperationMetrics metrics : metricsInOrder)
+		{
+			writeSampleStart(buffer, CALLS, "", metrics._operationName);
+			appendCalls(buffer.append("} "), metrics._successes.sum() + metrics._failures.sum()).append('\n');
+		}
+
+		writeHeader(buffer, ERRORS, "counter", "Calls to each instrumented operation that threw.");
+
+		for (final OperationMetrics metrics : metricsInOrder)
+		{
+			writeSampleStart(buffer, ERRORS, "", metrics._operationName);
+			appendCalls(buffer.append("} "), metrics._failures.sum()).append('\n');
+		}
+
+		writeHeader(buffer, DURATION, "histogram", "How long each instrumented operation took.");
+
+		for (final OperationMetrics metrics : metricsInOrder)
+		{
+			long cumulative = 0;
+
+			for (int i = 0; i < metrics._bucketBoundsNanos.length; i++)
+			{
+				cumulative += metrics._buckets[i].sum();
+				writeSampleStart(buffer, DURATION, "_bucket", metrics._operationName);
+				buffer.append(",le=\"").appendSeconds(metrics._bucketBoundsNanos[i]).append("\"} ");
+				appendCalls(buffer, cumulative).append('\n');
+			}
+
+			cumulative += metrics._buckets[metrics._bucketBoundsNanos.length].sum();
+			writeSampleStart(buffer, DURATION, "_bucket", metrics._operationName);
+			appendCalls(buffer.append(",le=\"+Inf\"} "), cumulative).append('\n');
+
+			writeSampleStart(buffer, DURATION, "_sum", metrics._operationName);
+			buffer.append("} ").appendSeconds(metrics._totalNanos.sum()).append('\n');
+
+			writeSampleStart(buffer, DURATION, "_count", metrics._operationName);
+			appendCalls(buffer.append("} "), cumulative).append('\n');
+		}
+	}
+
+	/**
+	 * Renders a weighted number of calls.
+	 *
+	 * @param buffer The buffer to render into.
+	 * @param units The number of calls, in millionths.
+	 *
+	 * @return The buffer.
+	 */
+	private static PrometheusTextBuffer appendCalls(final PrometheusTextBuffer buffer, final long units)
+	{
+		return buffer.appendDecimal(units, UNITS_PER_CALL, UNIT_DIGITS);
+	}
+
+	/**
+	 * Renders the help and type lines that start a family of metrics.
+	 *
+	 * @param buffer The buffer to render into.
+	 * @param family The name of the family.
+	 * @param type The Prometheus type of the family.
+	 * @param help A description of the family.
+	 */
+	private static void writeHeader(final PrometheusTextBuffer buffer, final String family, final String type,
+			final String help)
+	{
+		buffer.append("# HELP ").append(family).append(' ').append(help).append('\n');
+		buffer.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Renders the start of a sample line: its name, and its operation label, leaving the label set open for more.
+	 *
+	 * @param buffer The buffer to render into.
+	 * @param family The name of the family.
+	 * @param suffix The suffix of this sample within its family, if any.
+	 * @param operationName The name of the operation.
+	 */
+	private static void writeSampleStart(final PrometheusTextBuffer buffer, final String family, final String suffix,
+			final String operationName)
+	{
+		buffer.append(family).append(suffix).append("{operation=\"").appendLabelValue(operationName).append('"');
+	}
+
+	/**
+	 * Gets the totals for an operation, creating them if need be.
+	 *
+	 * @param operationName The name of the operation.
+	 *
+	 * @return The operation's non-<code>null</code> totals.
+	 */
+	private OperationMetrics getOrCreateMetrics(final String operationName)
+	{
+		final OperationMetrics metrics = _metrics.get(operationName);
+
+		if (metrics != null)
+		{
+			return metrics;
+		}
+
+		_registrationLock.lock();
+
+		try
+		{
+			final OperationMetrics existing = _metrics.get(operationName);
+
+			if (existing != null)
+			{
+				return existing;
+			}
+
+			final OperationMetrics created = new OperationMetrics(operationName, _bucketBoundsNanos);
+			final OperationMetrics[] metricsInOrder = Arrays.copyOf(_metricsInOrder, _metricsInOrder.length + 1);
+			metricsInOrder[metricsInOrder.length - 1] = created;
+
+			// Publish to the array first, so that nothing recorded can be missing from a render.
+			_metricsInOrder = metricsInOrder;
+			_metrics.put(operationName, created);
+			return created;
+		}
+		finally
+		{
+			_registrationLock.unlock();
+		}
+	}
+
+	/**
+	 * Holds the running totals for a single operation.
+	 */
+	private static final class OperationMetrics
+	{
+		/**
+		 * Holds the name of the operation.
+		 */
+		private final String _operationName;
+
+		/**
+		 * Holds the upper bounds of our buckets, in nanoseconds.
+		 */
+		private final long[] _bucketBoundsNanos;
+
+		/**
+		 * Holds the weighted number of calls, in millionths, that fell into each bucket, with everything slower in the
+		 * last one. Each bucket is striped on its own, as concurrent calls mostly land in the same few. Unlike
+		 * Prometheus's buckets, ours aren't cumulative; they're summed as they're rendered.
+		 */
+		private final LongAdder[] _buckets;
+
+		/**
+		 * Holds the weighted number of successful calls, in millionths.
+		 */
+		private final LongAdder _successes = new LongAdder();
+
+		/**
+		 * Holds the weighted number of failed calls, in millionths.
+		 */
+		private final LongAdder _failures = new LongAdder();
+
+		/**
+		 * Holds the weighted total duration of every call, in nanoseconds.
+		 */
+		private final LongAdder _totalNanos = new LongAdder();
+
+		/**
+		 * Creates totals for an operation.
+		 *
+		 * @param operationName The name of the operation.
+		 * @param bucketBoundsNanos The upper bounds of our buckets, in nanoseconds. Not changed.
+		 */
+		OperationMetrics(final String operationName, final long[] bucketBoundsNanos)
+		{
+			_operationName = operationName;
+			_bucketBoundsNanos = bucketBoundsNanos;
+			_buckets = new LongAdder[bucketBoundsNanos.length + 1];
+
+			for (int i = 0; i < _buckets.length; i++)
+			{
+				_buckets[i] = new LongAdder();
+			}
+		}
+
+		/**
+		 * Records a call.
+		 *
+		 * @param durationNanos How long it took, in nanoseconds.
+		 * @param successful Whether it succeeded.
+		 * @param sampleWeight The number of calls this one stands for.
+		 */
+		void record(final long durationNanos, final boolean successful, final double sampleWeight)
+		{
+			final long clamped = Math.max(0L, durationNanos);
+			final int index = Arrays.binarySearch(_bucketBoundsNanos, clamped);
+			final long units = Math.round(sampleWeight * UNITS_PER_CALL);
+
+			// Bounds are inclusive, so an exact match falls in its own bucket; otherwise, in the next bound up.
+			_buckets[index >= 0 ? index : -index - 1].add(units);
+			_totalNanos.add(sampleWeight == 1.0 ? clamped : Math.round(clamped * sampleWeight));
+
+			if (successful)
+			{
+				_successes.add(units);
+			}
+			else
+			{
+				_failures.add(units);
+			}
+		}
+	}
+}
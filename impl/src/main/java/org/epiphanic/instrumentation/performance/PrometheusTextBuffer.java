@@ -0,0 +1,283 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable buffer of UTF-8 bytes that the Prometheus text exposition format is rendered into. It is meant to be
+ * reset and reused for every scrape: once it has grown to the size of a typical scrape, rendering allocates nothing -
+ * numbers and strings are encoded straight into our bytes, rather than by way of <code>String</code>s or an encoder.
+ * Not thread-safe.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class PrometheusTextBuffer
+{
+	/**
+	 * Holds the number of nanoseconds in a second.
+	 */
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	/**
+	 * Holds our bytes.
+	 */
+	private byte[] _bytes;
+
+	/**
+	 * Holds the number of our bytes in use.
+	 */
+	private int _size;
+
+	/**
+	 * Creates a buffer.
+	 *
+	 * @param initialCapacity The number of bytes to start with. Must be positive.
+	 */
+	PrometheusTextBuffer(final int initialCapacity)
+	{
+		_bytes = new byte[initialCapacity];
+	}
+
+	/**
+	 * Empties the buffer, keeping its capacity.
+	 */
+	void reset()
+	{
+		_size = 0;
+	}
+
+	/**
+	 * Gets the number of bytes rendered.
+	 *
+	 * @return The size of our contents, in bytes.
+	 */
+	int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * Writes our contents.
+	 *
+	 * @param out The stream to write to.
+	 *
+	 * @throws IOException If the stream could not be written to.
+	 */
+	void writeTo(final OutputStream out) throws IOException
+	{
+		out.write(_bytes, 0, _size);
+	}
+
+	/**
+	 * Appends a string as UTF-8.
+	 *
+	 * @param text The string to append.
+	 *
+	 * @return This buffer.
+	 */
+	PrometheusTextBuffer append(final String text)
+	{
+		for (int i = 0; i < text.length(); i++)
+		{
+			i = appendCodePoint(text, i);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Appends a single ASCII character.
+	 *
+	 * @param character The character to append. Must be ASCII.
+	 *
+	 * @return This buffer.
+	 */
+	PrometheusTextBuffer append(final char character)
+	{
+		ensureCapacity(1);
+		_bytes[_size++] = (byte)character;
+		return this;
+	}
+
+	/**
+	 * Appends a label value, escaping backslashes, double quotes and line feeds as the exposition format requires.
+	 *
+	 * @param value The label value to append, without its surrounding quotes.
+	 *
+	 * @return This buffer.
+	 */
+	PrometheusTextBuffer appendLabelValue(final String value)
+	{
+		for (int i = 0; i < value.length(); i++)
+		{
+			final char character = value.charAt(i);
+
+			if (character == '\\' || character == '"')
+			{
+				append('\\').append(character);
+			}
+			else if (character == '\n')
+			{
+				append('\\').append('n');
+			}
+			else
+			{
+				i = appendCodePoint(value, i);
+			}
+		}
+
+		return this;
+	}
+
+	/**
+	 * Appends a whole number in decimal.
+	 *
+	 * @param value The number to append.
+	 *
+	 * @return This buffer.
+	 */
+	PrometheusTextBuffer appendLong(final long value)
+	{
+		if (value == Long.MIN_VALUE)
+		{
+			return append(Long.toString(value));
+		}
+
+		if (value < 0)
+		{
+			append('-');
+		}
+
+		final long magnitude = Math.abs(value);
+		int digits = 1;
+
+		for (long remaining = magnitude / 10; remaining != 0; remaining /= 10)
+		{
+			digits++;
+		}
+
+		ensureCapacity(digits);
+		long remaining = magnitude;
+
+		for (int i = _size + digits - 1; i >= _size; i--)
+		{
+			_bytes[i] = (byte)('0' + remaining % 10);
+			remaining /= 10;
+		}
+
+		_size += digits;
+		return this;
+	}
+
+	/**
+	 * Appends a number of nanoseconds as a decimal number of seconds, exactly, and without trailing zeroes - the unit
+	 * Prometheus expects durations in.
+	 *
+	 * @param nanos The number of nanoseconds to append. Must not be negative.
+	 *
+	 * @return This buffer.
+	 */
+	PrometheusTextBuffer appendSeconds(final long nanos)
+	{
+		return appendDecimal(nanos, NANOS_PER_SECOND, 9);
+	}
+
+	/**
+	 * Appends a fixed-point number as a decimal, exactly, and without trailing zeroes.
+	 *
+	 * @param units The number to append, in units of <code>1 / unitsPerWhole</code>. Must not be negative.
+	 * @param unitsPerWhole The number of units in one; a power of ten.
+	 * @param fractionDigits The number of zeroes in <code>unitsPerWhole</code>.
+	 *
+	 * @return This buffer.
+	 */
+	PrometheusTextBuffer appendDecimal(final long units, final long unitsPerWhole, final int fractionDigits)
+	{
+		appendLong(units / unitsPerWhole);
+		long fraction = units % unitsPerWhole;
+
+		if (fraction == 0)
+		{
+			return this;
+		}
+
+		int digits = fractionDigits;
+
+		while (fraction % 10 == 0)
+		{
+			fraction /= 10;
+			digits--;
+		}
+
+		ensureCapacity(digits + 1);
+		_bytes[_size++] = '.';
+
+		for (int i = _size + digits - 1; i >= _size; i--)
+		{
+			_bytes[i] = (byte)('0' + fraction % 10);
+			fraction /= 10;
+		}
+
+		_size += digits;
+		return this;
+	}
+
+	/**
+	 * Appends the code point starting at a given index of a string as UTF-8.
+	 *
+	 * @param text The string holding the code point.
+	 * @param index The index of its first character.
+	 *
+	 * @return The index of its last character: one past the given index for a surrogate pair, otherwise the same.
+	 */
+	private int appendCodePoint(final String text, final int index)
+	{
+		final int codePoint = text.codePointAt(index);
+		ensureCapacity(4);
+
+		if (codePoint < 0x80)
+		{
+			_bytes[_size++] = (byte)codePoint;
+		}
+		else if (codePoint < 0x800)
+		{
+			_bytes[_size++] = (byte)(0xC0 | codePoint >> 6);
+			_bytes[_size++] = (byte)(0x80 | codePoint & 0x3F);
+		}
+		else if (codePoint < 0x10000)
+		{
+			_bytes[_size++] = (byte)(0xE0 | codePoint >> 12);
+			_bytes[_size++] = (byte)(0x80 | codePoint >> 6 & 0x3F);
+			_bytes[_size++] = (byte)(0x80 | codePoint & 0x3F);
+		}
+		else
+		{
+			_bytes[_size++] = (byte)(0xF0 | codePoint >> 18);
+			_bytes[_size++] = (byte)(0x80 | codePoint >> 12 & 0x3F);
+			_bytes[_size++] = (byte)(0x80 | codePoint >> 6 & 0x3F);
+			_bytes[_size++] = (byte)(0x80 | codePoint & 0x3F);
+			return index + 1;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Makes sure there's room for some more bytes, doubling our capacity as needed.
+	 *
+	 * @param additional The number of bytes about to be appended.
+	 */
+	private void ensureCapacity(final int additional)
+	{
+		if (_size + additional > _bytes.length)
+		{
+			_bytes = Arrays.copyOf(_bytes, Math.max(_bytes.length * 2, _size + additional));
+		}
+	}
+}
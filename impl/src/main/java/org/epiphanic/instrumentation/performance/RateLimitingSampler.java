@@ -0,0 +1,142 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An implementation of {@link org.epiphanic.instrumentation.performance.ISampler} that selects at most a given number
+ * of calls per second, with bursts of up to a second's worth. Each selected call is weighted with the number of calls
+ * since the previous selection, itself included, so that the weights add up to the number of calls made.<p/>
+ *
+ * This is a token bucket kept as a single theoretical arrival time, so taking a token is one compare-and-set and there
+ * is no refill thread. Calls that aren't selected cost one atomic increment.<p/>
+ *
+ * This class is non-final for testing purposes.
+ *
+ * @author Greg Feigenson
+ */
+public class RateLimitingSampler implements ISampler
+{
+	/**
+	 * Holds the marker value for a bucket that hasn't seen a call yet, and so is full.
+	 */
+	private static final long UNSTARTED = Long.MIN_VALUE;
+
+	/**
+	 * Holds the time, on the monotonic clock, at which the bucket will next be completely empty; or rather, the time
+	 * up to which tokens have already been handed out. {@link #UNSTARTED} until the first call.
+	 */
+	private final AtomicLong _allowedAt = new AtomicLong(UNSTARTED);
+
+	/**
+	 * Holds the number of calls passed over since the last selection.
+	 */
+	private final AtomicLong _skipped = new AtomicLong();
+
+	/**
+	 * Holds the number of nanoseconds each token is worth.
+	 */
+	private volatile long _nanosPerRecord = TimeUnit.SECONDS.toNanos(1) / 100;
+
+	/**
+	 * Holds the number of nanoseconds worth of tokens the bucket can hold.
+	 */
+	private volatile long _burstNanos = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Holds the number of calls we select per second.
+	 */
+	private volatile double _recordsPerSecond = 100;
+
+	/**
+	 * Creates a sampler selecting up to one hundred calls per second, until told otherwise.
+	 */
+	public RateLimitingSampler()
+	{
+	}
+
+	/**
+	 * Creates a sampler selecting up to the given number of calls per second.
+	 *
+	 * @param recordsPerSecond The number of calls to select per second, as per {@link #setRecordsPerSecond(double)}.
+	 */
+	public RateLimitingSampler(final double recordsPerSecond)
+	{
+		setRecordsPerSecond(recordsPerSecond);
+	}
+
+	/**
+	 * Gets the number of calls we select per second.
+	 *
+	 * @return The maximum sustained number of calls selected per second.
+	 */
+	public double getRecordsPerSecond()
+	{
+		return _recordsPerSecond;
+	}
+
+	/**
+	 * Sets the number of calls we select per second. Up to a second's worth may be selected in a burst.
+	 *
+	 * @param recordsPerSecond A positive number of calls per second. Fractions are allowed, so 0.1 is one call every ten
+	 * seconds.
+	 */
+	public void setRecordsPerSecond(final double recordsPerSecond)
+	{
+		if (!(recordsPerSecond > 0.0))
+		{
+			throw new IllegalArgumentException("Records per second must be positive, was " + recordsPerSecond);
+		}
+
+		final long nanosPerRecord = Math.max(1L, (long)(TimeUnit.SECONDS.toNanos(1) / recordsPerSecond));
+
+		_recordsPerSecond = recordsPerSecond;
+		_nanosPerRecord = nanosPerRecord;
+		_burstNanos = Math.max(nanosPerRecord, TimeUnit.SECONDS.toNanos(1));
+	}
+
+	@Override
+	public double sample()
+	{
+		final long now = getNanoTime();
+		final long nanosPerRecord = _nanosPerRecord;
+		final long earliest = now - _burstNanos;
+
+		while (true)
+		{
+			final long allowedAt = _allowedAt.get();
+
+			// Don't let an idle period bank more than a burst's worth of tokens.
+			final long next = (allowedAt == UNSTARTED || allowedAt - earliest < 0 ? earliest : allowedAt) + nanosPerRecord;
+
+			if (next - now > 0)
+			{
+				// The bucket's empty.
+				_skipped.incrementAndGet();
+				return 0.0;
+			}
+
+			if (_allowedAt.compareAndSet(allowedAt, next))
+			{
+				return _skipped.getAndSet(0) + 1;
+			}
+		}
+	}
+
+	/**
+	 * A convenience method to aid in testing. Returns the current reading of the monotonic clock.<p/>
+	 *
+	 * This is package-protected for unit testing.
+	 *
+	 * @return The current monotonic time in nanoseconds.
+	 */
+	long getNanoTime()
+	{
+		return System.nanoTime();
+	}
+}
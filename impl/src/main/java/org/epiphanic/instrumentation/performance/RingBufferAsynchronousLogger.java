@@ -0,0 +1,452 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An alternative to {@link org.epiphanic.instrumentation.performance.GenericAsynchronousLogger} for heavily contended
+ * applications. Instead of wrapping every statistic in a write operation and handing it to an {@link
+ * java.util.concurrent.ExecutorService} (allocating a {@link java.util.concurrent.FutureTask} and contending on the
+ * executor's blocking queue), {@link #writeStatistic(Object)} claims a slot in a preallocated {@link
+ * org.epiphanic.instrumentation.performance.ConcurrentRingBuffer} and returns. A single dedicated drain thread then
+ * creates and runs the write operations via the injected {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory}.<p/>
+ *
+ * The hot path is therefore a CAS and a reference copy. When the buffer is full, the configured {@link
+ * org.epiphanic.instrumentation.performance.OverflowPolicy} decides what happens: by default the new statistic is
+ * dropped, so a stalled data store costs statistics rather than the instrumented application. Producers may instead be
+ * made to wait for the drain thread to free a slot, but never for longer than {@link #getBlockTimeoutMillis()}. Every
+ * statistic that doesn't make it into the buffer is
+ * counted by {@link #getDroppedStatisticCount()} or {@link #getAggregatedStatisticCount()}.<p/>
+ *
+ * This class must be started via {@link #start()} before use and should be stopped via {@link #stop()} - when wiring
+ * with Spring, use these as the <code>init-method</code> and <code>destroy-method</code> respectively. Statistics
+ * written while we're not running are dropped and counted, rather than thrown back at the instrumented application.
+ *
+ * @author Greg Feigenson
+ */
+public class RingBufferAsynchronousLogger<T> implements IStatisticsLogger<T>
+{
+	/**
+	 * Holds the default number of slots in our ring buffer.
+	 */
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	/**
+	 * Holds the default amount of time, in microseconds, that the drain thread parks for when it finds nothing to do.
+	 */
+	public static final long DEFAULT_IDLE_WAIT_MICROS = 1000;
+
+	/**
+	 * Holds the default amount of time, in milliseconds, that producers wait for room under {@link OverflowPolicy#BLOCK}.
+	 */
+	public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 10;
+
+	/**
+	 * Holds the requested capacity for our ring buffer.
+	 */
+	private int _capacity = DEFAULT_CAPACITY;
+
+	/**
+	 * Holds the amount of time, in microseconds, that the drain thread parks for when the buffer is empty.
+	 */
+	private long _idleWaitMicros = DEFAULT_IDLE_WAIT_MICROS;
+
+	/**
+	 * Holds what we do with statistics when our ring buffer is full.
+	 */
+	private volatile OverflowPolicy _overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+	/**
+	 * Holds how long, in nanoseconds, producers wait for room under {@link OverflowPolicy#BLOCK}.
+	 */
+	private volatile long _blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BLOCK_TIMEOUT_MILLIS);
+
+	/**
+	 * Holds the logger that statistics go to under {@link OverflowPolicy#AGGREGATE}, if any.
+	 */
+	private volatile IStatisticsLogger<T> _overflowLogger;
+
+	/**
+	 * Holds our {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory} that creates write operations
+	 * for the statistics we drain.
+	 */
+	private IWriteOperationFactory<T> _writeOperationFactory;
+
+	/**
+	 * Holds our ring buffer, created when we are started.
+	 */
+	private volatile BoundedStatisticBuffer<T> _ringBuffer;
+
+	/**
+	 * Holds our drain thread, created when we are started.
+	 */
+	private volatile Thread _drainThread;
+
+	/**
+	 * Indicates whether or not our drain thread should keep running.
+	 */
+	private volatile boolean _running;
+
+	/**
+	 * Holds the number of statistics dropped because we weren't running.
+	 */
+	private final LongAdder _droppedWhileStopped = new LongAdder();
+
+	/**
+	 * Holds the number of write operations that threw.
+	 */
+	private final LongAdder _failedWrites = new LongAdder();
+
+	/**
+	 * Wakes our drain thread, for producers waiting on it under {@link OverflowPolicy#BLOCK}; preallocated so that
+	 * waiting doesn't allocate.
+	 */
+	private final Runnable _drainHint = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			final Thread drainThread = _drainThread;
+
+			if (drainThread != null)
+			{
+				LockSupport.unpark(drainThread);
+			}
+		}
+	};
+
+	/**
+	 * Gets the capacity of the ring buffer.
+	 *
+	 * @return The number of statistics that may be pending at any one time.
+	 */
+	public int getCapacity()
+	{
+		return _capacity;
+	}
+
+	/**
+	 * Sets the capacity of the ring buffer. This will be rounded up to the next power of two, and only takes effect when
+	 * the logger is next started.
+	 *
+	 * @param capacity The number of statistics that may be pending at any one time. Must be positive.
+	 */
+	public void setCapacity(final int capacity)
+	{
+		_capacity = capacity;
+	}
+
+	/**
+	 * Gets the amount of time, in microseconds, that the drain thread waits for when it finds the buffer empty.
+	 *
+	 * @return The idle wait of the drain thread in microseconds.
+	 */
+	public long getIdleWaitMicros()
+	{
+		return _idleWaitMicros;
+	}
+
+	/**
+	 * Sets the amount of time, in microseconds, that the drain thread waits for when it finds the buffer empty. Lower
+	 * values reduce latency to the data store at the cost of a busier drain thread. Producers never signal the drain
+	 * thread, so this also bounds how long a statistic can sit in an otherwise idle buffer.
+	 *
+	 * @param idleWaitMicros The idle wait of the drain thread in microseconds. Must be positive.
+	 */
+	public void setIdleWaitMicros(final long idleWaitMicros)
+	{
+		_idleWaitMicros = idleWaitMicros;
+	}
+
+	/**
+	 * Gets what we do with statistics when our ring buffer is full.
+	 *
+	 * @return The {@link org.epiphanic.instrumentation.performance.OverflowPolicy} in effect. Defaults to {@link
+	 * OverflowPolicy#DROP_NEWEST}.
+	 */
+	public OverflowPolicy getOverflowPolicy()
+	{
+		return _overflowPolicy;
+	}
+
+	/**
+	 * Sets what we do with statistics when our ring buffer is full. This may be changed while we are running. Only opt in
+	 * to {@link OverflowPolicy#BLOCK} if losing statistics is worse than slowing the instrumented application down by up
+	 * to {@link #getBlockTimeoutMillis()} per call while the data store is stalled.
+	 *
+	 * @param overflowPolicy The {@link org.epiphanic.instrumentation.performance.OverflowPolicy} to apply. Must not be
+	 * <code>null</code>.
+	 */
+	public void setOverflowPolicy(final OverflowPolicy overflowPolicy)
+	{
+		_overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Gets how long producers wait for room in a full ring buffer under {@link OverflowPolicy#BLOCK}.
+	 *
+	 * @return The block timeout in milliseconds.
+	 */
+	public long getBlockTimeoutMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(_blockTimeoutNanos);
+	}
+
+	/**
+	 * Sets how long producers wait for room in a full ring buffer under {@link OverflowPolicy#BLOCK} before giving up on
+	 * their statistic. This bounds the latency that instrumentation can ever add to a call.
+	 *
+	 * @param blockTimeoutMillis The block timeout in milliseconds. Must not be negative. Defaults to {@link
+	 * #DEFAULT_BLOCK_TIMEOUT_MILLIS}.
+	 */
+	public void setBlockTimeoutMillis(final long blockTimeoutMillis)
+	{
+		_blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+	}
+
+	/**
+	 * Gets the logger that statistics go to under {@link OverflowPolicy#AGGREGATE}.
+	 *
+	 * @return The overflow {@link org.epiphanic.instrumentation.performance.IStatisticsLogger}, or <code>null</code> if
+	 * there is none.
+	 */
+	public IStatisticsLogger<T> getOverflowLogger()
+	{
+		return _overflowLogger;
+	}
+
+	/**
+	 * Sets the logger that statistics go to under {@link OverflowPolicy#AGGREGATE} - typically an {@link
+	 * org.epiphanic.instrumentation.performance.AggregatingStatisticsLogger}, which costs a few counter updates per
+	 * statistic and nothing from the data store until it flushes.
+	 *
+	 * @param overflowLogger The overflow {@link org.epiphanic.instrumentation.performance.IStatisticsLogger}. May be
+	 * <code>null</code>, in which case statistics that don't fit are dropped.
+	 */
+	public void setOverflowLogger(final IStatisticsLogger<T> overflowLogger)
+	{
+		_overflowLogger = overflowLogger;
+	}
+
+	/**
+	 * Gets the injected instance of {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory} to use when
+	 * generating write operations. Must not be <code>null</code>.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory}.
+	 */
+	public IWriteOperationFactory<T> getWriteOperationFactory()
+	{
+		return _writeOperationFactory;
+	}
+
+	/**
+	 * Sets the {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory} implementation to use when
+	 * creating the write operations run by our drain thread.
+	 *
+	 * @param writeOperationFactory A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory}.
+	 */
+	public void setWriteOperationFactory(final IWriteOperationFactory<T> writeOperationFactory)
+	{
+		_writeOperationFactory = writeOperationFactory;
+	}
+
+	/**
+	 * Gets the number of statistics currently waiting to be drained.
+	 *
+	 * @return The approximate number of pending statistics, or zero if we have not been started.
+	 */
+	public int getPendingStatisticCount()
+	{
+		final BoundedStatisticBuffer<T> ringBuffer = _ringBuffer;
+		return ringBuffer == null ? 0 : ringBuffer.size();
+	}
+
+	/**
+	 * Gets the number of statistics we have given up on, because our ring buffer was full or we weren't running.
+	 *
+	 * @return The number of statistics dropped because the buffer was full since we were last started, plus the number
+	 * ever written while we weren't running.
+	 */
+	public long getDroppedStatisticCount()
+	{
+		final BoundedStatisticBuffer<T> ringBuffer = _ringBuffer;
+		return _droppedWhileStopped.sum() + (ringBuffer == null ? 0 : ringBuffer.getDroppedCount());
+	}
+
+	/**
+	 * Gets the number of write operations that threw. Their statistics are lost.
+	 *
+	 * @return The number of failed writes.
+	 */
+	public long getFailedWriteCount()
+	{
+		return _failedWrites.sum();
+	}
+
+	/**
+	 * Gets the number of statistics handed to our overflow logger because our ring buffer was full.
+	 *
+	 * @return The number of statistics aggregated rather than written since we were last started.
+	 */
+	public long getAggregatedStatisticCount()
+	{
+		final BoundedStatisticBuffer<T> ringBuffer = _ringBuffer;
+		return ringBuffer == null ? 0 : ringBuffer.getAggregatedCount();
+	}
+
+	/**
+	 * Allocates our ring buffer and starts our drain thread. Calling this on a started logger does nothing.
+	 */
+	public synchronized void start()
+	{
+		if (_running)
+		{
+			return;
+		}
+
+		_ringBuffer = new BoundedStatisticBuffer<>(getCapacity());
+		_running = true;
+
+		_drainThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				drain();
+			}
+		}, "thoreau-ring-buffer-drain");
+		_drainThread.setDaemon(true);
+		_drainThread.start();
+	}
+
+	/**
+	 * Stops our drain thread, first writing any statistics that are still pending. A producer that was already past our
+	 * check when we stopped drops and counts whatever it finds left, rather than writing it on the application's thread
+	 * alongside the drain thread, so nothing published is stranded uncounted. Calling this on a stopped logger does
+	 * nothing.
+	 *
+	 * @throws InterruptedException If we're interrupted while waiting for the drain thread to finish.
+	 */
+	public synchronized void stop() throws InterruptedException
+	{
+		if (!_running)
+		{
+			return;
+		}
+
+		_running = false;
+		LockSupport.unpark(_drainThread);
+		_drainThread.join();
+		_drainThread = null;
+	}
+
+	@Override
+	public void writeStatistic(final T statistic)
+	{
+		final BoundedStatisticBuffer<T> ringBuffer = _ringBuffer;
+
+		if (ringBuffer == null || !_running)
+		{
+			dropWhileStopped(statistic);
+			return;
+		}
+
+		ringBuffer.offer(statistic, _overflowPolicy, _blockTimeoutNanos, _overflowLogger, _drainHint);
+
+		// Were we stopped while publishing, the drain thread may already have taken its last look. Writing here would
+		// put a second writer alongside it, so whatever is left is given up on instead.
+		if (!_running)
+		{
+			T leftover;
+
+			while ((leftover = ringBuffer.poll()) != null)
+			{
+				dropWhileStopped(leftover);
+			}
+		}
+	}
+
+	/**
+	 * Counts a statistic written while we weren't running as dropped, and recycles it if possible.
+	 *
+	 * @param statistic The statistic being given up on.
+	 */
+	private void dropWhileStopped(final T statistic)
+	{
+		_droppedWhileStopped.increment();
+
+		if (statistic instanceof IRecyclable)
+		{
+			((IRecyclable)statistic).recycle();
+		}
+	}
+
+	/**
+	 * The body of our drain thread: pulls statistics off the ring buffer and writes them until we are stopped, then
+	 * writes whatever is left.
+	 */
+	private void drain()
+	{
+		final BoundedStatisticBuffer<T> ringBuffer = _ringBuffer;
+		final long idleWaitNanos = TimeUnit.MICROSECONDS.toNanos(getIdleWaitMicros());
+
+		while (_running)
+		{
+			if (!drainAvailable(ringBuffer))
+			{
+				LockSupport.parkNanos(this, idleWaitNanos);
+			}
+		}
+
+		// Make sure nothing published before we were stopped is lost.
+		drainAvailable(ringBuffer);
+	}
+
+	/**
+	 * Writes every statistic currently available in the ring buffer.
+	 *
+	 * @param ringBuffer The ring buffer to drain.
+	 *
+	 * @return <code>True</code> if we wrote anything, else <code>false</code>.
+	 */
+	private boolean drainAvailable(final BoundedStatisticBuffer<T> ringBuffer)
+	{
+		boolean wroteAnything = false;
+		T statistic;
+
+		while ((statistic = ringBuffer.poll()) != null)
+		{
+			wroteAnything = true;
+			write(statistic);
+		}
+
+		return wroteAnything;
+	}
+
+	/**
+	 * Creates and immediately runs a write operation for the given statistic on the drain thread.<p/>
+	 *
+	 * This is package-protected for unit testing.
+	 *
+	 * @param statistic The statistic to write. Must not be <code>null</code>.
+	 */
+	void write(final T statistic)
+	{
+		try
+		{
+			getWriteOperationFactory().createWriteOperation(statistic).call();
+		}
+		catch (final Exception ex)
+		{
+			// Much like an ExecutorService swallowing a failed Future, there's nobody to report this to but our counters -
+			// and we must not let a single bad write take out the drain thread.
+			_failedWrites.increment();
+		}
+	}
+}
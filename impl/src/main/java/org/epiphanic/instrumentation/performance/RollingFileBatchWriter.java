@@ -0,0 +1,779 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An {@link org.epiphanic.instrumentation.performance.IBatchWriter} for environments without a database: writes raw
+ * statistics to files of newline-delimited JSON or CSV (see {@link
+ * org.epiphanic.instrumentation.performance.StatisticFileFormat}) for offline analysis, starting a new file whenever
+ * the current one reaches {@link #getMaxFileSizeBytes()} or has been open for {@link #getMaxFileAgeMillis()}. Closed
+ * files can be gzipped in the background as they're rolled. Files are named for our prefix, the time they were opened,
+ * a token picked at random by each writer and a sequence number, so that several writers - in one JVM or many - can
+ * share a directory and a prefix.<p/>
+ *
+ * Statistics are encoded straight into a ring of direct {@link java.nio.ByteBuffer}s, and those buffers are handed to
+ * a {@link java.nio.channels.FileChannel} together in one gathered write at the end of each batch, or whenever they're
+ * all full. That keeps system calls few and large, and no byte of a statistic is copied between the encoder and the
+ * kernel. Put this behind a {@link org.epiphanic.instrumentation.performance.BatchingWriteOperationFactory} with large
+ * batches - a thousand or more - driven by a {@link
+ * org.epiphanic.instrumentation.performance.RingBufferAsynchronousLogger}, and a single drain thread can write well over
+ * a million statistics a second.<p/>
+ *
+ * Once a batch has been written it is in the operating system's hands, not necessarily on disk. Writes are serialized,
+ * so this is safe to share between threads, but it is built for one. Call {@link #stop()} on shutdown (as a Spring
+ * <code>destroy-method</code>) to close the last file and finish any compression. Statistics are recycled once written.
+ * <p/>
+ *
+ * @author Greg Feigenson
+ */
+public class RollingFileBatchWriter implements IBatchWriter<MethodCallStatistic>
+{
+	/**
+	 * Holds the default prefix of our file names.
+	 */
+	public static final String DEFAULT_FILE_PREFIX = "statistics";
+
+	/**
+	 * Holds the default size, in bytes, at which we start a new file.
+	 */
+	public static final long DEFAULT_MAX_FILE_SIZE_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Holds the default age, in milliseconds, at which we start a new file.
+	 */
+	public static final long DEFAULT_MAX_FILE_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	/**
+	 * Holds the default size, in bytes, of each of our buffers.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Holds the default number of buffers filled before they're written together.
+	 */
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+
+	/**
+	 * Holds the extension added to compressed files.
+	 */
+	static final String COMPRESSED_EXTENSION = ".gz";
+
+	/**
+	 * Holds the directory our files are written to.
+	 */
+	private File _directory;
+
+	/**
+	 * Holds the prefix of our file names.
+	 */
+	private String _filePrefix = DEFAULT_FILE_PREFIX;
+
+	/**
+	 * Holds the format statistics are written in.
+	 */
+	private StatisticFileFormat _format = StatisticFileFormat.NDJSON;
+
+	/**
+	 * Holds the size, in bytes, at which we start a new file.
+	 */
+	private long _maxFileSizeBytes = DEFAULT_MAX_FILE_SIZE_BYTES;
+
+	/**
+	 * Holds the age, in milliseconds, at which we start a new file.
+	 */
+	private long _maxFileAgeMillis = DEFAULT_MAX_FILE_AGE_MILLIS;
+
+	/**
+	 * Holds whether closed files are gzipped.
+	 */
+	private boolean _compressClosedFiles;
+
+	/**
+	 * Holds the size, in bytes, of each of our buffers.
+	 */
+	private int _bufferSize = DEFAULT_BUFFER_SIZE;
+
+	/**
+	 * Holds the number of buffers filled before they're written together.
+	 */
+	private int _bufferCount = DEFAULT_BUFFER_COUNT;
+
+	/**
+	 * Serializes writes, rolls and stopping.
+	 */
+	private final ReentrantLock _lock = new ReentrantLock();
+
+	/**
+	 * Holds our buffers, allocated on the first write. Guarded by our lock.
+	 */
+	private ByteBuffer[] _buffers;
+
+	/**
+	 * Holds the index of the buffer being encoded into. Guarded by our lock.
+	 */
+	private int _current;
+
+	/**
+	 * Holds the file being written, if one is open. Guarded by our lock.
+	 */
+	private Path _file;
+
+	/**
+	 * Holds the channel to the file being written, if one is open. Guarded by our lock.
+	 */
+	private FileChannel _channel;
+
+	/**
+	 * Holds the number of bytes written to the current file. Guarded by our lock.
+	 */
+	private long _fileSize;
+
+	/**
+	 * Holds the time, in milliseconds since the epoch, that the current file was opened. Guarded by our lock.
+	 */
+	private long _fileOpenedMillis;
+
+	/**
+	 * Holds a token, picked at random, that keeps our file names apart from those of other writers.
+	 */
+	private final String _instanceToken = String.format("%08x", ThreadLocalRandom.current().nextInt());
+
+	/**
+	 * Holds a counter that keeps file names unique within a millisecond. Guarded by our lock.
+	 */
+	private int _fileSequence;
+
+	/**
+	 * Holds the header written at the top of every file. Guarded by our lock.
+	 */
+	private byte[] _header;
+
+	/**
+	 * Holds the background thread that rolls files once they're too old and compresses closed ones, created when the
+	 * first file is opened. Guarded by our lock.
+	 */
+	private ScheduledThreadPoolExecutor _background;
+
+	/**
+	 * Holds the check that rolls the current file once it's too old, if one is open. Guarded by our lock.
+	 */
+	private ScheduledFuture<?> _staleCheck;
+
+	/**
+	 * Holds the number of statistics written.
+	 */
+	private final LongAdder _written = new LongAdder();
+
+	/**
+	 * Holds the number of files closed.
+	 */
+	private final LongAdder _closedFiles = new LongAdder();
+
+	/**
+	 * Holds the number of closed files that could not be compressed, and were left as they were.
+	 */
+	private final LongAdder _failedCompressions = new LongAdder();
+
+	/**
+	 * Gets the directory our files are written to.
+	 *
+	 * @return The directory.
+	 */
+	public File getDirectory()
+	{
+		return _directory;
+	}
+
+	/**
+	 * Sets the directory our files are written to. It is created if need be.
+	 *
+	 * @param directory The directory. Must not be <code>null</code>.
+	 */
+	public void setDirectory(final File directory)
+	{
+		_directory = directory;
+	}
+
+	/**
+	 * Gets the prefix of our file names.
+	 *
+	 * @return The prefix.
+	 */
+	public String getFilePrefix()
+	{
+		return _filePrefix;
+	}
+
+	/**
+	 * Sets the prefix of our file names. Each file is named for the prefix, the time it was opened, a token unique to
+	 * this writer and a sequence number, with the extension of our format.
+	 *
+	 * @param filePrefix The prefix. Defaults to {@link #DEFAULT_FILE_PREFIX}.
+	 */
+	public void setFilePrefix(final String filePrefix)
+	{
+		_filePrefix = filePrefix;
+	}
+
+	/**
+	 * Gets the format statistics are written in.
+	 *
+	 * @return The format.
+	 */
+	public StatisticFileFormat getFormat()
+	{
+		return _format;
+	}
+
+	/**
+	 * Sets the format statistics are written in. This only takes effect when the next file is opened.
+	 *
+	 * @param format The format. Defaults to {@link StatisticFileFormat#NDJSON}.
+	 */
+	public void setFormat(final StatisticFileFormat format)
+	{
+		_format = format;
+	}
+
+	/**
+	 * Gets the size at which we start a new file.
+	 *
+	 * @return The maximum file size in bytes.
+	 */
+	public long getMaxFileSizeBytes()
+	{
+		return _maxFileSizeBytes;
+	}
+
+	/**
+	 * Sets the size at which we start a new file. A file only ever exceeds it when a single write does.
+	 *
+	 * @param maxFileSizeBytes The maximum file size in bytes. Defaults to {@link #DEFAULT_MAX_FILE_SIZE_BYTES}.
+	 */
+	public void setMaxFileSizeBytes(final long maxFileSizeBytes)
+	{
+		_maxFileSizeBytes = maxFileSizeBytes;
+	}
+
+	/**
+	 * Gets the age at which we start a new file.
+	 *
+	 * @return The maximum file age in milliseconds.
+	 */
+	public long getMaxFileAgeMillis()
+	{
+		return _maxFileAgeMillis;
+	}
+
+	/**
+	 * Sets the age at which we start a new file. Age is checked as batches are written, and by a background thread once
+	 * each file is due, so that a file that is written to rarely is still closed - and compressed, if we compress - on
+	 * time. This only takes effect when the next file is opened.
+	 *
+	 * @param maxFileAgeMillis The maximum file age in milliseconds. Defaults to {@link #DEFAULT_MAX_FILE_AGE_MILLIS}.
+	 */
+	public void setMaxFileAgeMillis(final long maxFileAgeMillis)
+	{
+		_maxFileAgeMillis = maxFileAgeMillis;
+	}
+
+	/**
+	 * Gets whether closed files are gzipped.
+	 *
+	 * @return <code>True</code> if closed files are compressed.
+	 */
+	public boolean isCompressClosedFiles()
+	{
+		return _compressClosedFiles;
+	}
+
+	/**
+	 * Sets whether closed files are gzipped. Compression runs on our background thread; each compressed file replaces
+	 * the original, with {@value #COMPRESSED_EXTENSION} added to its name.
+	 *
+	 * @param compressClosedFiles <code>True</code> to compress closed files. Defaults to <code>false</code>.
+	 */
+	public void setCompressClosedFiles(final boolean compressClosedFiles)
+	{
+		_compressClosedFiles = compressClosedFiles;
+	}
+
+	/**
+	 * Gets the size of each of our buffers.
+	 *
+	 * @return The buffer size in bytes.
+	 */
+	public int getBufferSize()
+	{
+		return _bufferSize;
+	}
+
+	/**
+	 * Sets the size of each of our buffers. This should be set before the first batch is written.
+	 *
+	 * @param bufferSize The buffer size in bytes. Defaults to {@link #DEFAULT_BUFFER_SIZE}.
+	 */
+	public void setBufferSize(final int bufferSize)
+	{
+		_bufferSize = bufferSize;
+	}
+
+	/**
+	 * Gets the number of buffers filled before they're written together.
+	 *
+	 * @return The buffer count.
+	 */
+	public int getBufferCount()
+	{
+		return _bufferCount;
+	}
+
+	/**
+	 * Sets the number of buffers filled before they're written together. This should be set before the first batch is
+	 * written.
+	 *
+	 * @param bufferCount The buffer count. Defaults to {@link #DEFAULT_BUFFER_COUNT}.
+	 */
+	public void setBufferCount(final int bufferCount)
+	{
+		_bufferCount = bufferCount;
+	}
+
+	/**
+	 * Gets the number of statistics written.
+	 *
+	 * @return The count of statistics written.
+	 */
+	public long getWrittenStatisticCount()
+	{
+		return _written.sum();
+	}
+
+	/**
+	 * Gets the number of files closed, whether by rolling or by stopping.
+	 *
+	 * @return The count of closed files.
+	 */
+	public long getClosedFileCount()
+	{
+		return _closedFiles.sum();
+	}
+
+	/**
+	 * Gets the number of closed files that could not be compressed, and were left uncompressed.
+	 *
+	 * @return The count of failed compressions.
+	 */
+	public long getFailedCompressionCount()
+	{
+		return _failedCompressions.sum();
+	}
+
+	@Override
+	public void writeBatch(final List<MethodCallStatistic> batch) throws Exception
+	{
+		if (batch.isEmpty())
+		{
+			return;
+		}
+
+		_lock.lock();
+
+		try
+		{
+			if (_buffers == null)
+			{
+				_buffers = new ByteBuffer[_bufferCount];
+
+				for (int i = 0; i < _bufferCount; i++)
+				{
+					_buffers[i] = ByteBuffer.allocateDirect(_bufferSize);
+				}
+			}
+
+			for (final MethodCallStatistic statistic : batch)
+			{
+				append(statistic);
+			}
+
+			flushBuffers();
+
+			if (_channel != null && System.currentTimeMillis() - _fileOpenedMillis >= _maxFileAgeMillis)
+			{
+				closeFile();
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+
+		_written.add(batch.size());
+
+		for (final MethodCallStatistic statistic : batch)
+		{
+			statistic.recycle();
+		}
+	}
+
+	/**
+	 * Closes the current file, if one is open, and waits for any compression in progress to finish. Writing again
+	 * afterwards opens a new file.
+	 *
+	 * @throws IOException If the current file could not be closed.
+	 * @throws InterruptedException If interrupted waiting for compression.
+	 */
+	public void stop() throws IOException, InterruptedException
+	{
+		final ScheduledThreadPoolExecutor background;
+		_lock.lock();
+
+		try
+		{
+			closeFile();
+			background = _background;
+			_background = null;
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+
+		if (background != null)
+		{
+			// Closing the file cancelled its age check, leaving only compressions to finish.
+			background.shutdown();
+			background.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	/**
+	 * Run by our background thread once a file is due to be rolled: closes it if it's still the one open.
+	 *
+	 * @param file The file that is due.
+	 */
+	private void rollIfStale(final Path file)
+	{
+		_lock.lock();
+
+		try
+		{
+			if (_channel != null && file.equals(_file))
+			{
+				closeFile();
+			}
+		}
+		catch (final IOException ex)
+		{
+			// Nobody to report this to; closeFile() has let go of the channel regardless, and the next batch opens a new
+			// file.
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes a statistic into our buffers, writing them out if they fill up.
+	 *
+	 * @param statistic The statistic to encode.
+	 *
+	 * @throws IOException If our buffers could not be written.
+	 */
+	private void append(final MethodCallStatistic statistic) throws IOException
+	{
+		while (!StatisticTextEncoder.encode(_buffers[_current], statistic, _format))
+		{
+			if (_buffers[_current].position() == 0)
+			{
+				// Bigger than a whole buffer; rare enough that it may as well have one of its own.
+				final ByteBuffer oversized = ByteBuffer.allocate(StatisticTextEncoder.maximumLineSize(statistic));
+				StatisticTextEncoder.encode(oversized, statistic, _format);
+				flushBuffers();
+				oversized.flip();
+				write(new ByteBuffer[] {oversized}, 1);
+				return;
+			}
+
+			if (++_current == _buffers.length)
+			{
+				flushBuffers();
+			}
+		}
+	}
+
+	/**
+	 * Writes out whatever is in our buffers and empties them.
+	 *
+	 * @throws IOException If our buffers could not be written.
+	 */
+	private void flushBuffers() throws IOException
+	{
+		final int count = Math.min(_current + 1, _buffers.length);
+
+		for (int i = 0; i < count; i++)
+		{
+			_buffers[i].flip();
+		}
+
+		try
+		{
+			write(_buffers, count);
+		}
+		finally
+		{
+			for (int i = 0; i < count; i++)
+			{
+				_buffers[i].clear();
+			}
+
+			_current = 0;
+		}
+	}
+
+	/**
+	 * Writes buffers to the current file in a single gathered write, rolling to a new file first if they'd take the
+	 * current one over its maximum size.
+	 *
+	 * @param buffers The buffers to write, flipped.
+	 * @param count The number of buffers, from the first, to write.
+	 *
+	 * @throws IOException If the buffers could not be written.
+	 */
+	private void write(final ByteBuffer[] buffers, final int count) throws IOException
+	{
+		long pending = 0;
+
+		for (int i = 0; i < count; i++)
+		{
+			pending += buffers[i].remaining();
+		}
+
+		if (pending == 0)
+		{
+			return;
+		}
+
+		if (_channel != null && _fileSize > _header.length && _fileSize + pending > _maxFileSizeBytes)
+		{
+			closeFile();
+		}
+
+		if (_channel == null)
+		{
+			openFile();
+		}
+
+		// Gathered writes may be partial, just like any other.
+		for (long remaining = pending; remaining > 0; )
+		{
+			remaining -= _channel.write(buffers, 0, count);
+		}
+
+		_fileSize += pending;
+	}
+
+	/**
+	 * Opens a new file and writes its header.
+	 *
+	 * @throws IOException If the file could not be created.
+	 */
+	private void openFile() throws IOException
+	{
+		final Path directory = getDirectory().toPath();
+		Files.createDirectories(directory);
+
+		final long now = System.currentTimeMillis();
+		Path file;
+		FileChannel channel = null;
+
+		// Our token keeps other writers out of the way; this is for one that happened to draw the same.
+		do
+		{
+			file = directory.resolve(String.format("%s-%d-%s-%04d.%s", getFilePrefix(), now, _instanceToken,
+					_fileSequence++, _format.getExtension()));
+
+			try
+			{
+				channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			}
+			catch (final FileAlreadyExistsException ex)
+			{
+				// Try the next sequence number.
+			}
+		}
+		while (channel == null);
+
+		_header = StatisticTextEncoder.header(_format);
+		final ByteBuffer header = ByteBuffer.wrap(_header);
+
+		try
+		{
+			while (header.hasRemaining())
+			{
+				channel.write(header);
+			}
+		}
+		catch (final IOException ex)
+		{
+			channel.close();
+			throw ex;
+		}
+
+		_file = file;
+		_channel = channel;
+		_fileSize = _header.length;
+		_fileOpenedMillis = now;
+
+		final Path openedFile = file;
+
+		_staleCheck = background().schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				rollIfStale(openedFile);
+			}
+		}, Math.max(0L, _maxFileAgeMillis), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes the current file, if one is open, and queues it for compression if we compress.
+	 *
+	 * @throws IOException If the file could not be closed.
+	 */
+	private void closeFile() throws IOException
+	{
+		if (_channel == null)
+		{
+			return;
+		}
+
+		final Path file = _file;
+
+		if (_staleCheck != null)
+		{
+			_staleCheck.cancel(false);
+			_staleCheck = null;
+		}
+
+		try
+		{
+			_channel.close();
+		}
+		finally
+		{
+			_channel = null;
+			_file = null;
+		}
+
+		_closedFiles.increment();
+
+		if (isCompressClosedFiles())
+		{
+			background().execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					compress(file);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Gets our background thread for rolling stale files and compressing closed ones, creating it if need be.
+	 *
+	 * @return A single-threaded scheduled executor.
+	 */
+	private ScheduledThreadPoolExecutor background()
+	{
+		if (_background == null)
+		{
+			_background = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					final Thread thread = new Thread(runnable, "thoreau-file-background");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+
+			// Closing a file cancels its age check, so that stopping doesn't wait it out along with the compressions.
+			_background.setRemoveOnCancelPolicy(true);
+		}
+
+		return _background;
+	}
+
+	/**
+	 * Gzips a closed file, replacing it with the compressed copy only once that is complete. If anything goes wrong,
+	 * the original is left in place and the failure counted.
+	 *
+	 * @param file The file to compress.
+	 */
+	private void compress(final Path file)
+	{
+		final Path compressed = file.resolveSibling(file.getFileName() + COMPRESSED_EXTENSION);
+		final Path partial = file.resolveSibling(compressed.getFileName() + ".tmp");
+
+		try
+		{
+			try (InputStream in = Files.newInputStream(file);
+				 OutputStream out = new GZIPOutputStream(Files.newOutputStream(partial), 64 * 1024))
+			{
+				final byte[] chunk = new byte[64 * 1024];
+
+				for (int read = in.read(chunk); read >= 0; read = in.read(chunk))
+				{
+					out.write(chunk, 0, read);
+				}
+			}
+
+			Files.move(partial, compressed, StandardCopyOption.ATOMIC_MOVE);
+			Files.delete(file);
+		}
+		catch (final IOException ex)
+		{
+			_failedCompressions.increment();
+
+			try
+			{
+				Files.deleteIfExists(partial);
+			}
+			catch (final IOException ignored)
+			{
+				// Nothing more to be done; the original is still there.
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An implementation of {@link org.epiphanic.instrumentation.performance.ICapturePolicy} that samples calls per
+ * operation name. Each operation may be given its own {@link org.epiphanic.instrumentation.performance.ISampler},
+ * such as a {@link org.epiphanic.instrumentation.performance.ProbabilisticSampler} for a fixed percentage or a {@link
+ * org.epiphanic.instrumentation.performance.RateLimitingSampler} for a maximum number of records per second; operations
+ * without one fall back to the default sampler, and are recorded in full if there's no default either.<p/>
+ *
+ * By default, failures are always recorded whether or not their call was selected. A failure that wasn't selected is
+ * given a weight of one. A failure that was selected keeps its sample weight (or one, if that's less), as that weight
+ * also stands for the calls passed over to select it; giving it one instead would lose those calls from every estimate
+ * of the operation's traffic. So the sample weights of all calls still add up to an estimate of the calls made, while
+ * those of failures may overstate failures by the calls their selections stood for.<p/>
+ *
+ * The samplers are looked up on every call, so configure them up front: the map is copied when set, and never changes
+ * afterwards.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class SamplingCapturePolicy implements ICapturePolicy
+{
+	/**
+	 * Holds our samplers, keyed by operation name.
+	 */
+	private volatile Map<String, ISampler> _samplers = Collections.emptyMap();
+
+	/**
+	 * Holds the sampler used for operations without one of their own, if any.
+	 */
+	private volatile ISampler _defaultSampler;
+
+	/**
+	 * Indicates whether failures are recorded regardless of sampling.
+	 */
+	private volatile boolean _alwaysRecordingFailures = true;
+
+	/**
+	 * Gets our samplers, keyed by operation name.
+	 *
+	 * @return An unmodifiable, non-<code>null</code> {@link java.util.Map} of operation names to samplers.
+	 */
+	public Map<String, ISampler> getSamplers()
+	{
+		return _samplers;
+	}
+
+	/**
+	 * Sets our samplers, keyed by operation name.
+	 *
+	 * @param samplers A {@link java.util.Map} of operation names to samplers. Copied, so later changes to it have no
+	 * effect.
+	 */
+	public void setSamplers(final Map<String, ISampler> samplers)
+	{
+		_samplers = Collections.unmodifiableMap(new HashMap<>(samplers));
+	}
+
+	/**
+	 * Gets the sampler used for operations without one of their own.
+	 *
+	 * @return Our default {@link org.epiphanic.instrumentation.performance.ISampler}, or <code>null</code> if such
+	 * operations are recorded in full.
+	 */
+	public ISampler getDefaultSampler()
+	{
+		return _defaultSampler;
+	}
+
+	/**
+	 * Sets the sampler used for operations without one of their own.
+	 *
+	 * @param defaultSampler An {@link org.epiphanic.instrumentation.performance.ISampler}, or <code>null</code> (the
+	 * default) to record such operations in full.
+	 */
+	public void setDefaultSampler(final ISampler defaultSampler)
+	{
+		_defaultSampler = defaultSampler;
+	}
+
+	/**
+	 * Indicates whether failures are recorded regardless of sampling.
+	 *
+	 * @return <code>True</code> if every failure is recorded.
+	 */
+	public boolean isAlwaysRecordingFailures()
+	{
+		return _alwaysRecordingFailures;
+	}
+
+	/**
+	 * Sets whether failures are recorded regardless of sampling.
+	 *
+	 * @param alwaysRecordingFailures <code>True</code> (the default) to record every failure, with a weight of at least
+	 * one; <code>false</code> to sample failures like everything else.
+	 */
+	public void setAlwaysRecordingFailures(final boolean alwaysRecordingFailures)
+	{
+		_alwaysRecordingFailures = alwaysRecordingFailures;
+	}
+
+	@Override
+	public double beforeInvocation(final String operationName)
+	{
+		ISampler sampler = _samplers.get(operationName);
+
+		if (sampler == null)
+		{
+			sampler = _defaultSampler;
+		}
+
+		return sampler == null ? 1.0 : sampler.sample();
+	}
+
+	@Override
+	public double afterInvocation(final String operationName, final long durationNanos, final boolean successful,
+			final double sampleWeight)
+	{
+		if (!successful && _alwaysRecordingFailures)
+		{
+			// Passed over gets one; selected keeps the weight of the calls it was picked from.
+			return Math.max(1.0, sampleWeight);
+		}
+
+		return sampleWeight;
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hi/lo implementation of {@link org.epiphanic.instrumentation.performance.IIdentifierAllocator}. Each value fetched
+ * from the database sequence reserves a whole block of {@link #getBlockSize()} identifiers, which are then handed out
+ * from memory. A single block is shared by every writer thread, which claim identifiers from it with an atomic
+ * increment; when it runs out, one thread fetches the next while the others wait for it. Sharing a block, rather than
+ * holding one per thread, wastes nothing however many threads come and go - as virtual threads do, one per write.<p/>
+ *
+ * A sequence value of <code>hi</code> reserves the identifiers <code>hi * blockSize</code> through <code>hi * blockSize
+ * + blockSize - 1</code> (skipping zero), which is exactly the scheme Hibernate's "seqhilo" generator uses with a
+ * <code>max_lo</code> of <code>blockSize - 1</code>. The two can therefore safely share <code>METHOD_PERFORMANCE_SEQ</code>.
+ * A block size of one degenerates into a plain sequence, one fetch per identifier.<p/>
+ *
+ * Each fetch checks out a connection of its own, so call this before checking out the connection the keys are for: on
+ * a pool at its limit, the fetch would otherwise wait on the very connection its caller is holding. {@link
+ * org.epiphanic.instrumentation.performance.JdbcBatchWriter} does. Identifiers left over in the block when the
+ * allocator is discarded are simply never used.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class SequenceBlockIdentifierAllocator implements IIdentifierAllocator
+{
+	/**
+	 * Holds the default number of identifiers reserved per sequence fetch. Matches the default JPA allocation size.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 50;
+
+	/**
+	 * Holds our injected {@link javax.sql.DataSource} that we read our sequence from.
+	 */
+	private DataSource _dataSource;
+
+	/**
+	 * Holds the query used to fetch the next value of our sequence.
+	 */
+	private String _sequenceQuery;
+
+	/**
+	 * Holds the number of identifiers reserved per sequence fetch.
+	 */
+	private int _blockSize = DEFAULT_BLOCK_SIZE;
+
+	/**
+	 * Holds the number of times we've gone to the database for a new block.
+	 */
+	private final AtomicLong _sequenceFetchCount = new AtomicLong();
+
+	/**
+	 * Holds the block we're handing identifiers out from. Starts out empty.
+	 */
+	private volatile Block _block = new Block(0, 0);
+
+	/**
+	 * Serializes fetches of new blocks, so that a block running out costs one fetch however many threads notice.
+	 */
+	private final ReentrantLock _fetchLock = new ReentrantLock();
+
+	/**
+	 * Gets our injected {@link javax.sql.DataSource}.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link javax.sql.DataSource}.
+	 */
+	public DataSource getDataSource()
+	{
+		return _dataSource;
+	}
+
+	/**
+	 * Sets the {@link javax.sql.DataSource} to read our sequence from.
+	 *
+	 * @param dataSource A non-<code>null</code>, fully configured implementation of {@link javax.sql.DataSource}.
+	 */
+	public void setDataSource(final DataSource dataSource)
+	{
+		_dataSource = dataSource;
+	}
+
+	/**
+	 * Gets the query used to fetch the next value of our sequence.
+	 *
+	 * @return A query returning a single row with a single numeric column.
+	 */
+	public String getSequenceQuery()
+	{
+		return _sequenceQuery;
+	}
+
+	/**
+	 * Sets the query used to fetch the next value of our sequence, for example <code>call next value for
+	 * METHOD_PERFORMANCE_SEQ</code> on HSQLDB or <code>select METHOD_PERFORMANCE_SEQ.nextval from dual</code> on Oracle.
+	 *
+	 * @param sequenceQuery A query returning a single row with a single numeric column. Must not be <code>null</code>.
+	 */
+	public void setSequenceQuery(final String sequenceQuery)
+	{
+		_sequenceQuery = sequenceQuery;
+	}
+
+	/**
+	 * Gets the number of identifiers reserved per sequence fetch.
+	 *
+	 * @return The block size.
+	 */
+	public int getBlockSize()
+	{
+		return _blockSize;
+	}
+
+	/**
+	 * Sets the number of identifiers reserved per sequence fetch. This must never change for a given sequence once
+	 * identifiers have been handed out from it, or blocks will overlap.
+	 *
+	 * @param blockSize The block size. Must be positive.
+	 */
+	public void setBlockSize(final int blockSize)
+	{
+		_blockSize = blockSize;
+	}
+
+	/**
+	 * Gets the number of times we've gone to the database for a new block.
+	 *
+	 * @return The number of sequence fetches made so far.
+	 */
+	public long getSequenceFetchCount()
+	{
+		return _sequenceFetchCount.get();
+	}
+
+	@Override
+	public long nextId() throws SQLException
+	{
+		while (true)
+		{
+			final Block block = _block;
+			final long id = block._next.getAndIncrement();
+
+			if (id < block._end)
+			{
+				return id;
+			}
+
+			_fetchLock.lock();
+
+			try
+			{
+				// Somebody else may have fetched a new block while we waited.
+				if (_block == block)
+				{
+					final long hi = fetchSequenceValue() * getBlockSize();
+
+					// Zero is never a valid identifier, so the very first block starts at one.
+					_block = new Block(hi == 0 ? 1 : hi, hi + getBlockSize());
+				}
+			}
+			finally
+			{
+				_fetchLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Fetches the next value of our sequence. This is package-protected for unit testing.
+	 *
+	 * @return The next value of the sequence.
+	 *
+	 * @throws SQLException If the sequence could not be read.
+	 */
+	long fetchSequenceValue() throws SQLException
+	{
+		_sequenceFetchCount.incrementAndGet();
+
+		try (Connection connection = getDataSource().getConnection();
+			 PreparedStatement sequence = connection.prepareStatement(getSequenceQuery());
+			 ResultSet resultSet = sequence.executeQuery())
+		{
+			if (!resultSet.next())
+			{
+				throw new SQLException("Sequence query returned no rows: " + getSequenceQuery());
+			}
+
+			return resultSet.getLong(1);
+		}
+	}
+
+	/**
+	 * A block of identifiers reserved by a single sequence fetch.
+	 */
+	private static final class Block
+	{
+		/**
+		 * Holds the next identifier to hand out. Claimed past the end by every thread that finds the block exhausted,
+		 * which is harmless.
+		 */
+		private final AtomicLong _next;
+
+		/**
+		 * Holds the first identifier beyond the block.
+		 */
+		private final long _end;
+
+		/**
+		 * Creates a block.
+		 *
+		 * @param first The first identifier in the block.
+		 * @param end The first identifier beyond the block.
+		 */
+		Block(final long first, final long end)
+		{
+			_next = new AtomicLong(first);
+			_end = end;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Merges serialized {@link org.epiphanic.instrumentation.performance.DDSketch}es, such as those persisted with each
+ * {@link org.epiphanic.instrumentation.performance.IMethodCallRollup}, into one. Select the rollups for an operation
+ * across whatever intervals and nodes are of interest, merge them here, and read off cluster-wide quantiles with the
+ * same relative error bound as each individual sketch - no scan of the raw statistics needed.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class SketchMerger
+{
+	/**
+	 * Prevents instantiation; this is a static utility.
+	 */
+	private SketchMerger()
+	{
+	}
+
+	/**
+	 * Merges serialized sketches.
+	 *
+	 * @param serializedSketches The sketches to merge, as serialized by {@link DDSketch#toByteArray()}. <code>null</code>
+	 * entries are skipped.
+	 *
+	 * @return A new sketch holding every count from every sketch given, or <code>null</code> if there were none.
+	 *
+	 * @throws IllegalArgumentException If any sketch is malformed, or the sketches' relative accuracies differ.
+	 */
+	public static DDSketch merge(final Iterable<byte[]> serializedSketches)
+	{
+		DDSketch merged = null;
+
+		for (final byte[] serialized : serializedSketches)
+		{
+			if (serialized == null)
+			{
+				continue;
+			}
+
+			if (merged == null)
+			{
+				merged = DDSketch.fromByteArray(serialized);
+			}
+			else
+			{
+				merged.merge(serialized);
+			}
+		}
+
+		return merged;
+	}
+
+	/**
+	 * Merges the latency sketches of a set of rollups.
+	 *
+	 * @param rollups The rollups whose sketches to merge. Rollups without a sketch are skipped.
+	 *
+	 * @return A new sketch holding every count from every rollup's sketch, or <code>null</code> if none had one.
+	 *
+	 * @throws IllegalArgumentException If any sketch is malformed, or the sketches' relative accuracies differ.
+	 */
+	public static DDSketch mergeRollups(final Iterable<? extends IMethodCallRollup> rollups)
+	{
+		DDSketch merged = null;
+
+		for (final IMethodCallRollup rollup : rollups)
+		{
+			final byte[] serialized = rollup.getLatencySketch();
+
+			if (serialized == null)
+			{
+				continue;
+			}
+
+			if (merged == null)
+			{
+				merged = DDSketch.fromByteArray(serialized);
+			}
+			else
+			{
+				merged.merge(serialized);
+			}
+		}
+
+		return merged;
+	}
+}
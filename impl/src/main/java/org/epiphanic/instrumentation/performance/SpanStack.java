@@ -0,0 +1,229 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the instrumented calls in progress on the current thread, so that each call can be linked to the call it was
+ * made from and credited with its self time: its own duration less that of the instrumented calls it made. Together,
+ * the span ID, parent span ID and self time of each statistic describe the call tree.<p/>
+ *
+ * Each thread has a stack of its own, holding nothing but primitive arrays that only grow when calls nest deeper than
+ * ever before, so pushing and popping allocate nothing in steady state. Span IDs are handed out from per-thread blocks
+ * of {@link #BLOCK_SIZE} reserved from a shared counter; whatever is left of a block when its thread dies is simply
+ * never used. Zero, {@link #NO_SPAN}, is never a span ID.<p/>
+ *
+ * Span IDs are unique within a JVM. So that the statistics of several JVMs can share a table, the {@link #NODE_BITS}
+ * bits of each ID below its sign bit are a node ID, and the counter below them starts at a random point. The node ID is
+ * taken from the <code>thoreau.spanNodeId</code> system property, if it's set to a number from zero to 32767, and is
+ * otherwise random. Give each JVM writing to the same table a node ID of its own and their IDs never collide; leave
+ * them random and a collision is merely very unlikely, so that call trees are only certain to be right within a JVM.
+ * <p/>
+ *
+ * Every {@link #push()} must be matched by a {@link #pop(long, long)} in a <code>finally</code> block. Should a pop
+ * ever be missed, the next pop of an outer span discards the frames left above it, so a pooled thread never carries a
+ * stale parent into the next task it runs. {@link #remove()} drops the current thread's stack altogether, for threads
+ * that outlive the application.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class SpanStack
+{
+	/**
+	 * Holds the span ID meaning no span: the parent of a call made outside any other.
+	 */
+	public static final long NO_SPAN = 0;
+
+	/**
+	 * Holds the number of span IDs reserved by a thread at a time.
+	 */
+	static final int BLOCK_SIZE = 4096;
+
+	/**
+	 * Holds the number of high bits of each span ID given to the node ID, below the sign bit, which is never set.
+	 */
+	static final int NODE_BITS = 15;
+
+	/**
+	 * Holds the name of the system property a node ID may be configured with.
+	 */
+	static final String NODE_ID_PROPERTY = "thoreau.spanNodeId";
+
+	/**
+	 * Holds the number of low bits of each span ID given to the counter.
+	 */
+	private static final int COUNTER_BITS = Long.SIZE - 1 - NODE_BITS;
+
+	/**
+	 * Holds the first span ID of the next block to be reserved.
+	 */
+	private static final AtomicLong NEXT_BLOCK = new AtomicLong(createSeed(new SecureRandom()));
+
+	/**
+	 * Holds each thread's stack.
+	 */
+	private static final ThreadLocal<SpanStack> STACKS = new ThreadLocal<SpanStack>()
+	{
+		@Override
+		protected SpanStack initialValue()
+		{
+			return new SpanStack();
+		}
+	};
+
+	/**
+	 * Holds the span ID of each call in progress, outermost first.
+	 */
+	private long[] _spanIds = new long[16];
+
+	/**
+	 * Holds the total duration of the calls made so far by each call in progress.
+	 */
+	private long[] _childNanos = new long[16];
+
+	/**
+	 * Holds the number of calls in progress.
+	 */
+	private int _depth;
+
+	/**
+	 * Holds the next span ID of our current block.
+	 */
+	private long _nextSpanId;
+
+	/**
+	 * Holds the first span ID beyond our current block.
+	 */
+	private long _blockEnd;
+
+	/**
+	 * Creates an empty stack. Only {@link #current()} should create these.
+	 */
+	private SpanStack()
+	{
+	}
+
+	/**
+	 * Works out the first span ID of this JVM: our node ID in the high bits, and a random point in the lower half of the
+	 * counter's range below them, so that the counter never reaches the node ID's bits.
+	 *
+	 * @param random The source of the random node ID, if none is configured, and of the counter's starting point.
+	 *
+	 * @return The first span ID to hand out. Never {@link #NO_SPAN}.
+	 */
+	static long createSeed(final Random random)
+	{
+		final Integer configuredNodeId = Integer.getInteger(NODE_ID_PROPERTY);
+		final long nodeId = configuredNodeId != null && configuredNodeId >= 0 && configuredNodeId < (1 << NODE_BITS)
+				? configuredNodeId : random.nextInt(1 << NODE_BITS);
+		final long counterStart = (random.nextLong() >>> (Long.SIZE - COUNTER_BITS + 1)) + 1;
+
+		return nodeId << COUNTER_BITS | counterStart;
+	}
+
+	/**
+	 * Gets the current thread's stack.
+	 *
+	 * @return The current thread's {@link org.epiphanic.instrumentation.performance.SpanStack}.
+	 */
+	public static SpanStack current()
+	{
+		return STACKS.get();
+	}
+
+	/**
+	 * Drops the current thread's stack, calls in progress and all. The next call to {@link #current()} on this thread
+	 * starts a fresh one.
+	 */
+	public static void remove()
+	{
+		STACKS.remove();
+	}
+
+	/**
+	 * Gets the span ID of the innermost call in progress.
+	 *
+	 * @return The span ID, or {@link #NO_SPAN} if no call is in progress.
+	 */
+	public long getCurrentSpanId()
+	{
+		return _depth == 0 ? NO_SPAN : _spanIds[_depth - 1];
+	}
+
+	/**
+	 * Gets the number of calls in progress.
+	 *
+	 * @return The depth of the stack.
+	 */
+	public int getDepth()
+	{
+		return _depth;
+	}
+
+	/**
+	 * Starts a span for a call, inside whatever call is currently in progress.
+	 *
+	 * @return The new span's ID.
+	 */
+	public long push()
+	{
+		if (_nextSpanId == _blockEnd)
+		{
+			_nextSpanId = NEXT_BLOCK.getAndAdd(BLOCK_SIZE);
+			_blockEnd = _nextSpanId + BLOCK_SIZE;
+		}
+
+		if (_depth == _spanIds.length)
+		{
+			_spanIds = Arrays.copyOf(_spanIds, _depth * 2);
+			_childNanos = Arrays.copyOf(_childNanos, _depth * 2);
+		}
+
+		final long spanId = _nextSpanId++;
+		_spanIds[_depth] = spanId;
+		_childNanos[_depth] = 0;
+		_depth++;
+		return spanId;
+	}
+
+	/**
+	 * Ends a span, crediting its duration to the span it was made from.
+	 *
+	 * @param spanId The ID returned by the matching {@link #push()}.
+	 * @param durationNanos How long the call took, in nanoseconds.
+	 *
+	 * @return The span's self time: its duration less that of the spans it contained.
+	 */
+	public long pop(final long spanId, final long durationNanos)
+	{
+		int index = _depth - 1;
+
+		// Normally the top of the stack; anything above it was never popped, and is discarded.
+		while (index >= 0 && _spanIds[index] != spanId)
+		{
+			index--;
+		}
+
+		if (index < 0)
+		{
+			// Our stack was removed while the call was in progress, so we know of nothing it contained.
+			return durationNanos;
+		}
+
+		_depth = index;
+
+		if (index > 0)
+		{
+			_childNanos[index - 1] += durationNanos;
+		}
+
+		return durationNanos - _childNanos[index];
+	}
+}
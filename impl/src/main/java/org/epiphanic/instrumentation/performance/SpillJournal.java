@@ -0,0 +1,557 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A write-ahead journal that statistics are spilled to when the data store can't take them, so that they can be replayed
+ * by a {@link org.epiphanic.instrumentation.performance.SpillJournalReplayer} once it recovers rather than being lost.
+ * Each record in the journal is a block of statistics written by a {@link
+ * org.epiphanic.instrumentation.performance.MethodCallStatisticEncoder}.
+ * The journal is a directory of fixed-size, memory-mapped {@link org.epiphanic.instrumentation.performance.JournalSegment
+ * segments}: records are appended to the active segment until it fills up, at which point the appender that notices
+ * seals it, forces it to disk, and starts the next one.<p/>
+ *
+ * Appends never take a lock. The only time an appender waits is for the moment it takes another appender to map the
+ * next segment. Sealed segments have been forced to disk, so they survive a crash of the JVM or the machine; the active
+ * segment survives a crash of the JVM (the operating system still holds its pages), and may be forced more often via
+ * {@link #force()}. Segments left behind by a previous run are picked up as sealed segments when the journal is started.
+ * <p/>
+ *
+ * This class must be started via {@link #start()} before use and should be stopped via {@link #stop()} - when wiring
+ * with Spring, use these as the <code>init-method</code> and <code>destroy-method</code> respectively.
+ *
+ * @author Greg Feigenson
+ */
+public class SpillJournal
+{
+	/**
+	 * Holds the default size of each segment, in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Holds the largest block of statistics that {@link #appendStatistics(java.util.List)} writes as one record, in bytes.
+	 */
+	private static final int MAXIMUM_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Holds the suffix of every segment file.
+	 */
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	/**
+	 * Holds the suffix added to a segment file that could not be read, so that it's no longer listed as a segment.
+	 */
+	static final String QUARANTINE_SUFFIX = ".corrupt";
+
+	/**
+	 * Holds the prefix of every segment file.
+	 */
+	private static final String SEGMENT_PREFIX = "spill-";
+
+	/**
+	 * Holds the directory our segments live in.
+	 */
+	private File _directory;
+
+	/**
+	 * Holds the size of each segment, in bytes.
+	 */
+	private int _segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	/**
+	 * Holds the segment currently being appended to, or <code>null</code> if we are stopped (or could not map a segment).
+	 */
+	private final AtomicReference<JournalSegment> _active = new AtomicReference<>();
+
+	/**
+	 * Holds the sequence numbers of segments that have been swapped out but may still have appenders finishing off their
+	 * records. These aren't ready to be replayed yet.
+	 */
+	private final Set<Long> _closing = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Holds the number of records appended.
+	 */
+	private final LongAdder _appended = new LongAdder();
+
+	/**
+	 * Holds the number of records we could not append.
+	 */
+	private final LongAdder _rejected = new LongAdder();
+
+	/**
+	 * Gets the directory our segments live in.
+	 *
+	 * @return The journal directory.
+	 */
+	public File getDirectory()
+	{
+		return _directory;
+	}
+
+	/**
+	 * Sets the directory our segments live in. It is created when we are started if it doesn't exist. This only takes
+	 * effect when the journal is next started.
+	 *
+	 * @param directory The journal directory. Must not be <code>null</code>.
+	 */
+	public void setDirectory(final File directory)
+	{
+		_directory = directory;
+	}
+
+	/**
+	 * Gets the size of each segment.
+	 *
+	 * @return The segment size in bytes.
+	 */
+	public int getSegmentSize()
+	{
+		return _segmentSize;
+	}
+
+	/**
+	 * Sets the size of each segment. Larger segments rotate less often; smaller ones are replayed (and so deleted) sooner.
+	 * No record may be bigger than a segment. This only takes effect when the journal is next started.
+	 *
+	 * @param segmentSize The segment size in bytes. Must be positive.
+	 */
+	public void setSegmentSize(final int segmentSize)
+	{
+		_segmentSize = segmentSize;
+	}
+
+	/**
+	 * Gets the number of records appended to the journal.
+	 *
+	 * @return The number of records appended since we were created.
+	 */
+	public long getAppendedRecordCount()
+	{
+		return _appended.sum();
+	}
+
+	/**
+	 * Gets the number of records we could not append, because they were too big for a segment, because we are stopped,
+	 * or because a segment could not be mapped.
+	 *
+	 * @return The number of records rejected since we were created.
+	 */
+	public long getRejectedRecordCount()
+	{
+		return _rejected.sum();
+	}
+
+	/**
+	 * Creates our directory if needed and maps a fresh active segment, numbered after any segments already there. Calling
+	 * this on a started journal does nothing.
+	 *
+	 * @throws IOException If the directory or segment could not be created.
+	 */
+	public synchronized void start() throws IOException
+	{
+		if (_active.get() != null)
+		{
+			return;
+		}
+
+		if (!_directory.isDirectory() && !_directory.mkdirs())
+		{
+			throw new IOException("Could not create spill journal directory: " + _directory);
+		}
+
+		final List<File> existing = listSegments();
+		final long sequence = existing.isEmpty() ? 1 : sequenceOf(existing.get(existing.size() - 1)) + 1;
+		_active.set(createSegment(sequence));
+	}
+
+	/**
+	 * Seals, forces and closes the active segment. Anything appended after this is rejected. Calling this on a stopped
+	 * journal does nothing.
+	 *
+	 * @throws IOException If the active segment could not be forced or closed.
+	 */
+	public synchronized void stop() throws IOException
+	{
+		final JournalSegment segment = _active.getAndSet(null);
+
+		if (segment != null && segment.seal())
+		{
+			closeOrDelete(segment);
+		}
+	}
+
+	/**
+	 * Appends a record to the journal.
+	 *
+	 * @param record The record to append. Must not be <code>null</code> or empty.
+	 *
+	 * @return <code>True</code> if the record is now in the journal, else <code>false</code>.
+	 */
+	public boolean append(final byte[] record)
+	{
+		return append(ByteBuffer.wrap(record));
+	}
+
+	/**
+	 * Appends a record to the journal, copying it straight from a buffer - typically a block written by a {@link
+	 * org.epiphanic.instrumentation.performance.MethodCallStatisticEncoder}.
+	 *
+	 * @param record The record to append, between its position and limit. Must not be <code>null</code> or empty. It is
+	 * not modified.
+	 *
+	 * @return <code>True</code> if the record is now in the journal, else <code>false</code>.
+	 */
+	public boolean append(final ByteBuffer record)
+	{
+		if (JournalSegment.SEGMENT_HEADER_SIZE + JournalSegment.RECORD_HEADER_SIZE + record.remaining() > _segmentSize)
+		{
+			_rejected.increment();
+			return false;
+		}
+
+		while (true)
+		{
+			final JournalSegment segment = _active.get();
+
+			if (segment == null)
+			{
+				_rejected.increment();
+				return false;
+			}
+
+			if (segment.tryAppend(record))
+			{
+				_appended.increment();
+				return true;
+			}
+
+			rotate(segment);
+		}
+	}
+
+	/**
+	 * Appends statistics to the journal, encoded by a {@link
+	 * org.epiphanic.instrumentation.performance.MethodCallStatisticEncoder} into as few records as possible so that they
+	 * share their blocks' dictionaries. A statistic too big to share a block gets one of its own.
+	 *
+	 * @param statistics The statistics to append. Must not be <code>null</code>.
+	 *
+	 * @return The number of statistics now in the journal. Anything less than the number given were rejected.
+	 */
+	public int appendStatistics(final List<? extends IMethodCallStatistic> statistics)
+	{
+		final int maximumRecordSize = _segmentSize - JournalSegment.SEGMENT_HEADER_SIZE - JournalSegment.RECORD_HEADER_SIZE;
+		final MethodCallStatisticEncoder encoder = new MethodCallStatisticEncoder();
+		final ByteBuffer block = ByteBuffer.allocate(Math.min(MAXIMUM_BLOCK_SIZE, maximumRecordSize));
+		int appended = 0;
+
+		encoder.begin(block);
+
+		for (final IMethodCallStatistic statistic : statistics)
+		{
+			if (encoder.encode(statistic))
+			{
+				continue;
+			}
+
+			if (encoder.getRecordCount() > 0)
+			{
+				appended += appendBlock(block, encoder.getRecordCount());
+				block.clear();
+				encoder.begin(block);
+
+				if (encoder.encode(statistic))
+				{
+					continue;
+				}
+			}
+
+			final ByteBuffer ownBlock = ByteBuffer.allocate(MethodCallStatisticEncoder.maximumBlockSize(statistic));
+			encoder.begin(ownBlock);
+			encoder.encode(statistic);
+			appended += appendBlock(ownBlock, 1);
+
+			block.clear();
+			encoder.begin(block);
+		}
+
+		if (encoder.getRecordCount() > 0)
+		{
+			appended += appendBlock(block, encoder.getRecordCount());
+		}
+
+		return appended;
+	}
+
+	/**
+	 * Appends a finished block of statistics as a record.
+	 *
+	 * @param block The block, with its position at the end of what was written.
+	 * @param recordCount The number of statistics in the block.
+	 *
+	 * @return The number of statistics now in the journal: either all of them or none.
+	 */
+	private int appendBlock(final ByteBuffer block, final int recordCount)
+	{
+		block.flip();
+		return append(block) ? recordCount : 0;
+	}
+
+	/**
+	 * Seals the active segment and starts a new one, if the active segment has anything in it. Used by replayers to get
+	 * at the most recent records once the older segments have been dealt with.
+	 */
+	public void rotate()
+	{
+		final JournalSegment segment = _active.get();
+
+		if (segment != null && segment.hasRecords())
+		{
+			rotate(segment);
+		}
+	}
+
+	/**
+	 * Forces the active segment to disk, so that what has been appended to it survives a crash of the machine as well as
+	 * of the JVM.
+	 */
+	public void force()
+	{
+		final JournalSegment segment = _active.get();
+
+		if (segment != null)
+		{
+			segment.force();
+		}
+	}
+
+	/**
+	 * Gets the segments that are no longer being appended to, oldest first. These are what a replayer should read.
+	 *
+	 * @return The sealed segment files. Will not be <code>null</code>.
+	 */
+	public List<File> getSealedSegments()
+	{
+		final JournalSegment active = _active.get();
+		final List<File> sealed = new ArrayList<>();
+
+		for (final File file : listSegments())
+		{
+			final long sequence = sequenceOf(file);
+
+			if ((active == null || sequence < active.getSequence()) && !_closing.contains(sequence))
+			{
+				sealed.add(file);
+			}
+		}
+
+		return sealed;
+	}
+
+	/**
+	 * Reads every intact record from a sealed segment.
+	 *
+	 * @param segment One of the files returned by {@link #getSealedSegments()}.
+	 *
+	 * @return The records in the segment, in the order they were appended.
+	 *
+	 * @throws IOException If the segment could not be read.
+	 */
+	public List<byte[]> readSegment(final File segment) throws IOException
+	{
+		return JournalSegment.readRecords(segment);
+	}
+
+	/**
+	 * Deletes a sealed segment, once everything in it has been dealt with.
+	 *
+	 * @param segment One of the files returned by {@link #getSealedSegments()}.
+	 *
+	 * @throws IOException If the segment could not be deleted.
+	 */
+	public void deleteSegment(final File segment) throws IOException
+	{
+		if (segment.exists() && !segment.delete())
+		{
+			throw new IOException("Could not delete spill journal segment: " + segment);
+		}
+	}
+
+	/**
+	 * Sets aside a sealed segment that could not be read, renaming it with a <code>.corrupt</code> suffix so that it's
+	 * left for someone to look at rather than read again. It's never listed as a segment after this.
+	 *
+	 * @param segment One of the files returned by {@link #getSealedSegments()}.
+	 *
+	 * @return The file the segment now lives in.
+	 *
+	 * @throws IOException If the segment could not be renamed.
+	 */
+	public File quarantineSegment(final File segment) throws IOException
+	{
+		final File quarantined = new File(segment.getPath() + QUARANTINE_SUFFIX);
+
+		if (!segment.renameTo(quarantined))
+		{
+			throw new IOException("Could not quarantine spill journal segment: " + segment);
+		}
+
+		return quarantined;
+	}
+
+	/**
+	 * Swaps out a full (or wanted) segment for the next one. Exactly one caller wins the right to seal the segment; it
+	 * maps the next segment, publishes it, and only then closes the old one so that other appenders can carry on. Everyone
+	 * else waits for the new segment to be published.
+	 *
+	 * @param segment The segment to swap out.
+	 */
+	private void rotate(final JournalSegment segment)
+	{
+		if (!segment.seal())
+		{
+			while (_active.get() == segment)
+			{
+				Thread.yield();
+			}
+
+			return;
+		}
+
+		JournalSegment next = null;
+
+		try
+		{
+			next = createSegment(segment.getSequence() + 1);
+		}
+		catch (final IOException ex)
+		{
+			// With nowhere to put records, appends are rejected until we're restarted.
+		}
+
+		_closing.add(segment.getSequence());
+
+		// Unless we were stopped in the meantime, in which case the new segment must not be published.
+		if (_active.compareAndSet(segment, next))
+		{
+			next = null;
+		}
+
+		try
+		{
+			closeOrDelete(segment);
+
+			if (next != null)
+			{
+				next.seal();
+				closeOrDelete(next);
+			}
+		}
+		catch (final IOException ex)
+		{
+			// The records are in the page cache regardless; they just aren't guaranteed to have reached the disk.
+		}
+		finally
+		{
+			_closing.remove(segment.getSequence());
+		}
+	}
+
+	/**
+	 * Closes a sealed segment, or deletes it if nothing was ever appended to it.
+	 *
+	 * @param segment The sealed segment.
+	 *
+	 * @throws IOException If the empty segment could not be deleted.
+	 */
+	private void closeOrDelete(final JournalSegment segment) throws IOException
+	{
+		segment.close();
+
+		if (!segment.hasRecords())
+		{
+			deleteSegment(segment.getFile());
+		}
+	}
+
+	/**
+	 * Creates and maps a new segment.
+	 *
+	 * @param sequence The sequence number of the new segment.
+	 *
+	 * @return The new segment.
+	 *
+	 * @throws IOException If the segment could not be created.
+	 */
+	private JournalSegment createSegment(final long sequence) throws IOException
+	{
+		final File file = new File(_directory, String.format("%s%019d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+		return new JournalSegment(file, sequence, _segmentSize);
+	}
+
+	/**
+	 * Lists every segment file in our directory, oldest first.
+	 *
+	 * @return The segment files. Will not be <code>null</code>.
+	 */
+	private List<File> listSegments()
+	{
+		final File[] files = _directory.listFiles(new FileFilter()
+		{
+			@Override
+			public boolean accept(final File file)
+			{
+				return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+
+		if (files == null)
+		{
+			return Collections.emptyList();
+		}
+
+		final List<File> segments = new ArrayList<>(Arrays.asList(files));
+		Collections.sort(segments, new Comparator<File>()
+		{
+			@Override
+			public int compare(final File first, final File second)
+			{
+				return Long.compare(sequenceOf(first), sequenceOf(second));
+			}
+		});
+
+		return segments;
+	}
+
+	/**
+	 * Gets the sequence number of a segment file from its name.
+	 *
+	 * @param file The segment file.
+	 *
+	 * @return The sequence number of the segment.
+	 */
+	private static long sequenceOf(final File file)
+	{
+		final String name = file.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+}
@@ -0,0 +1,407 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Drains a {@link org.epiphanic.instrumentation.performance.SpillJournal} back into an {@link
+ * org.epiphanic.instrumentation.performance.IBatchWriter} once the data store has recovered. On each run, the sealed
+ * segments are read oldest first and written in batches of {@link #getBatchSize()}; a segment is deleted once all of it
+ * has been written. The first failure of our writer ends the run, leaving that segment (and any after it) for the next
+ * one. A segment that can't be read, on the other hand - one that is empty, isn't a segment at all, or holds statistics
+ * in a version we don't understand - would fail every run the same way, so it's quarantined via {@link
+ * org.epiphanic.instrumentation.performance.SpillJournal#quarantineSegment(File)}, counted by {@link
+ * #getUnreadableSegmentCount()}, and skipped. Once every sealed segment has been replayed, the journal's active segment is rotated and replayed too, so that whatever was
+ * spilled most recently isn't left waiting for the active segment to fill up.<p/>
+ *
+ * Replay is at-least-once: if a segment fails partway through, the batches of it that did make it are written again on
+ * the next run.<p/>
+ *
+ * This class must be started via {@link #start()} for scheduled replays to happen, and should be stopped via {@link
+ * #stop()} - when wiring with Spring, use these as the <code>init-method</code> and <code>destroy-method</code>
+ * respectively. {@link #replay()} may also be called directly.
+ *
+ * @author Greg Feigenson
+ */
+public class SpillJournalReplayer
+{
+	/**
+	 * Holds the default number of statistics written per batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * Holds the default time, in milliseconds, between replay runs.
+	 */
+	public static final long DEFAULT_REPLAY_INTERVAL_MILLIS = 5000;
+
+	/**
+	 * Holds the journal we replay.
+	 */
+	private SpillJournal _spillJournal;
+
+	/**
+	 * Holds the writer we replay into.
+	 */
+	private IBatchWriter<MethodCallStatistic> _batchWriter;
+
+	/**
+	 * Holds the number of statistics written per batch.
+	 */
+	private int _batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * Holds the time, in milliseconds, between replay runs.
+	 */
+	private long _replayIntervalMillis = DEFAULT_REPLAY_INTERVAL_MILLIS;
+
+	/**
+	 * Makes sure only one replay runs at a time.
+	 */
+	private final ReentrantLock _replayLock = new ReentrantLock();
+
+	/**
+	 * Holds the number of statistics replayed.
+	 */
+	private final LongAdder _replayed = new LongAdder();
+
+	/**
+	 * Holds the number of segments we could not read.
+	 */
+	private final LongAdder _unreadableSegments = new LongAdder();
+
+	/**
+	 * Holds our timer for scheduled replays, created when we are started.
+	 */
+	private ScheduledExecutorService _replayTimer;
+
+	/**
+	 * Gets the journal we replay.
+	 *
+	 * @return A non-<code>null</code> {@link org.epiphanic.instrumentation.performance.SpillJournal}.
+	 */
+	public SpillJournal getSpillJournal()
+	{
+		return _spillJournal;
+	}
+
+	/**
+	 * Sets the journal we replay.
+	 *
+	 * @param spillJournal A non-<code>null</code> {@link org.epiphanic.instrumentation.performance.SpillJournal}.
+	 */
+	public void setSpillJournal(final SpillJournal spillJournal)
+	{
+		_spillJournal = spillJournal;
+	}
+
+	/**
+	 * Gets the writer we replay into.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public IBatchWriter<MethodCallStatistic> getBatchWriter()
+	{
+		return _batchWriter;
+	}
+
+	/**
+	 * Sets the writer we replay into. This should not be a {@link
+	 * org.epiphanic.instrumentation.performance.SpillingBatchWriter}, or failed replays would spill back into the journal.
+	 *
+	 * @param batchWriter A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public void setBatchWriter(final IBatchWriter<MethodCallStatistic> batchWriter)
+	{
+		_batchWriter = batchWriter;
+	}
+
+	/**
+	 * Gets the number of statistics written per batch.
+	 *
+	 * @return The replay batch size.
+	 */
+	public int getBatchSize()
+	{
+		return _batchSize;
+	}
+
+	/**
+	 * Sets the number of statistics written per batch.
+	 *
+	 * @param batchSize The replay batch size. Must be positive.
+	 */
+	public void setBatchSize(final int batchSize)
+	{
+		_batchSize = batchSize;
+	}
+
+	/**
+	 * Gets the time between replay runs.
+	 *
+	 * @return The replay interval in milliseconds.
+	 */
+	public long getReplayIntervalMillis()
+	{
+		return _replayIntervalMillis;
+	}
+
+	/**
+	 * Sets the time between replay runs. This only takes effect when the replayer is next started.
+	 *
+	 * @param replayIntervalMillis The replay interval in milliseconds. Must be positive.
+	 */
+	public void setReplayIntervalMillis(final long replayIntervalMillis)
+	{
+		_replayIntervalMillis = replayIntervalMillis;
+	}
+
+	/**
+	 * Gets the number of statistics replayed into our writer.
+	 *
+	 * @return The number of statistics replayed since we were created.
+	 */
+	public long getReplayedStatisticCount()
+	{
+		return _replayed.sum();
+	}
+
+	/**
+	 * Gets the number of segments we could not read, and quarantined rather than replayed. Any part of such a segment
+	 * that was written before the unreadable part was found stays written.
+	 *
+	 * @return The number of segments skipped since we were created.
+	 */
+	public long getUnreadableSegmentCount()
+	{
+		return _unreadableSegments.sum();
+	}
+
+	/**
+	 * Starts our timer for scheduled replays. Calling this on a started replayer does nothing.
+	 */
+	public synchronized void start()
+	{
+		if (_replayTimer != null)
+		{
+			return;
+		}
+
+		_replayTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				final Thread thread = new Thread(runnable, "thoreau-spill-replay");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		_replayTimer.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					replay();
+				}
+				catch (final RuntimeException ex)
+				{
+					// Nobody to report this to, and an exception would cancel the timer's future runs.
+				}
+			}
+		}, getReplayIntervalMillis(), getReplayIntervalMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops our timer, waiting for any replay in progress to finish. Calling this on a stopped replayer does nothing.
+	 *
+	 * @throws InterruptedException If we're interrupted while waiting for the timer to finish.
+	 */
+	public synchronized void stop() throws InterruptedException
+	{
+		if (_replayTimer == null)
+		{
+			return;
+		}
+
+		_replayTimer.shutdown();
+		_replayTimer.awaitTermination(getReplayIntervalMillis(), TimeUnit.MILLISECONDS);
+		_replayTimer = null;
+	}
+
+	/**
+	 * Replays as much of the journal as our writer will take. Does nothing if another replay is already running.
+	 *
+	 * @return The number of statistics replayed.
+	 */
+	public long replay()
+	{
+		if (!_replayLock.tryLock())
+		{
+			return 0;
+		}
+
+		try
+		{
+			final long replayedBefore = _replayed.sum();
+
+			if (replaySealedSegments())
+			{
+				// Everything sealed is done, so move on to what's been spilled since.
+				getSpillJournal().rotate();
+				replaySealedSegments();
+			}
+
+			return _replayed.sum() - replayedBefore;
+		}
+		finally
+		{
+			_replayLock.unlock();
+		}
+	}
+
+	/**
+	 * Replays every sealed segment, oldest first, until our writer fails. Segments that can't be read are quarantined
+	 * and skipped.
+	 *
+	 * @return <code>True</code> if every sealed segment was replayed or quarantined, else <code>false</code>.
+	 */
+	private boolean replaySealedSegments()
+	{
+		final SpillJournal spillJournal = getSpillJournal();
+
+		for (final File segment : spillJournal.getSealedSegments())
+		{
+			try
+			{
+				final List<byte[]> records;
+
+				try
+				{
+					records = spillJournal.readSegment(segment);
+				}
+				catch (final IOException ex)
+				{
+					quarantineSegment(segment);
+					continue;
+				}
+
+				if (replaySegment(records))
+				{
+					spillJournal.deleteSegment(segment);
+				}
+				else
+				{
+					quarantineSegment(segment);
+				}
+			}
+			catch (final Exception ex)
+			{
+				// The data store is still struggling; try again next time.
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Replays the records of a segment, decoding each record in full before writing any of it.
+	 *
+	 * @param records The records read from the segment.
+	 *
+	 * @return <code>True</code> if every record was replayed, or <code>false</code> if one could not be decoded.
+	 *
+	 * @throws Exception If our writer fails.
+	 */
+	private boolean replaySegment(final List<byte[]> records) throws Exception
+	{
+		List<MethodCallStatistic> batch = new ArrayList<>(getBatchSize());
+
+		for (final byte[] record : records)
+		{
+			final List<MethodCallStatistic> statistics = new ArrayList<>();
+
+			try
+			{
+				final MethodCallStatisticCursor cursor = new MethodCallStatisticCursor(ByteBuffer.wrap(record));
+
+				while (cursor.next())
+				{
+					statistics.add(cursor.toStatistic());
+				}
+			}
+			catch (final RuntimeException ex)
+			{
+				// A version we don't understand, or a block cut short; it will read no better next time.
+				return false;
+			}
+
+			for (final MethodCallStatistic statistic : statistics)
+			{
+				batch.add(statistic);
+
+				if (batch.size() >= getBatchSize())
+				{
+					writeBatch(batch);
+					batch = new ArrayList<>(getBatchSize());
+				}
+			}
+		}
+
+		writeBatch(batch);
+		return true;
+	}
+
+	/**
+	 * Sets aside a segment that can't be read, and counts it.
+	 *
+	 * @param segment The segment to set aside.
+	 */
+	private void quarantineSegment(final File segment)
+	{
+		_unreadableSegments.increment();
+
+		try
+		{
+			getSpillJournal().quarantineSegment(segment);
+		}
+		catch (final IOException ex)
+		{
+			// Left where it is, to be found (and counted) again next run; it no longer holds up the segments after it.
+		}
+	}
+
+	/**
+	 * Writes a batch of replayed statistics, if there are any.
+	 *
+	 * @param batch The statistics to write.
+	 *
+	 * @throws Exception If our writer fails.
+	 */
+	private void writeBatch(final List<MethodCallStatistic> batch) throws Exception
+	{
+		if (!batch.isEmpty())
+		{
+			getBatchWriter().writeBatch(batch);
+			_replayed.add(batch.size());
+		}
+	}
+}
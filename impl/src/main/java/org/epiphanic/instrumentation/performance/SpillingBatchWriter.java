@@ -0,0 +1,137 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decorates another {@link org.epiphanic.instrumentation.performance.IBatchWriter} so that batches it fails to write are
+ * appended to a {@link org.epiphanic.instrumentation.performance.SpillJournal} instead of being lost. A {@link
+ * org.epiphanic.instrumentation.performance.SpillJournalReplayer} then writes them once the data store recovers - and
+ * must be given the undecorated writer, so that a failed replay leaves the journal as it was rather than spilling the
+ * same statistics into it again.<p/>
+ *
+ * This writer never throws: a batch is either written, spilled, or - for any statistics even the journal won't take -
+ * counted by {@link #getDroppedStatisticCount()}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class SpillingBatchWriter implements IBatchWriter<MethodCallStatistic>
+{
+	/**
+	 * Holds the writer whose failures we spill.
+	 */
+	private IBatchWriter<MethodCallStatistic> _batchWriter;
+
+	/**
+	 * Holds the journal we spill to.
+	 */
+	private SpillJournal _spillJournal;
+
+	/**
+	 * Holds the number of statistics spilled.
+	 */
+	private final LongAdder _spilled = new LongAdder();
+
+	/**
+	 * Holds the number of statistics that could neither be written nor spilled.
+	 */
+	private final LongAdder _dropped = new LongAdder();
+
+	/**
+	 * Gets the writer whose failures we spill.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public IBatchWriter<MethodCallStatistic> getBatchWriter()
+	{
+		return _batchWriter;
+	}
+
+	/**
+	 * Sets the writer whose failures we spill.
+	 *
+	 * @param batchWriter A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IBatchWriter}.
+	 */
+	public void setBatchWriter(final IBatchWriter<MethodCallStatistic> batchWriter)
+	{
+		_batchWriter = batchWriter;
+	}
+
+	/**
+	 * Gets the journal we spill to.
+	 *
+	 * @return A non-<code>null</code>, started {@link org.epiphanic.instrumentation.performance.SpillJournal}.
+	 */
+	public SpillJournal getSpillJournal()
+	{
+		return _spillJournal;
+	}
+
+	/**
+	 * Sets the journal we spill to.
+	 *
+	 * @param spillJournal A non-<code>null</code>, started {@link org.epiphanic.instrumentation.performance.SpillJournal}.
+	 */
+	public void setSpillJournal(final SpillJournal spillJournal)
+	{
+		_spillJournal = spillJournal;
+	}
+
+	/**
+	 * Gets the number of statistics spilled to the journal because their batch failed.
+	 *
+	 * @return The number of statistics spilled.
+	 */
+	public long getSpilledStatisticCount()
+	{
+		return _spilled.sum();
+	}
+
+	/**
+	 * Gets the number of statistics that could neither be written nor spilled.
+	 *
+	 * @return The number of statistics lost.
+	 */
+	public long getDroppedStatisticCount()
+	{
+		return _dropped.sum();
+	}
+
+	@Override
+	public void writeBatch(final List<MethodCallStatistic> batch)
+	{
+		try
+		{
+			getBatchWriter().writeBatch(batch);
+			return;
+		}
+		catch (final Exception ex)
+		{
+			// Our writers roll back and hang on to their statistics when they fail, so the whole batch is ours to spill.
+		}
+
+		int spilled = 0;
+
+		try
+		{
+			spilled = getSpillJournal().appendStatistics(batch);
+		}
+		catch (final RuntimeException ex)
+		{
+			// Whatever made it into the journal before this is lost track of, and will be replayed regardless.
+		}
+
+		_spilled.add(spilled);
+		_dropped.add(batch.size() - spilled);
+
+		for (final MethodCallStatistic statistic : batch)
+		{
+			statistic.recycle();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decorates another {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory} so that statistics whose
+ * write operations fail are appended to a {@link org.epiphanic.instrumentation.performance.SpillJournal} instead of
+ * being lost inside the logger's executor. A {@link org.epiphanic.instrumentation.performance.SpillJournalReplayer}
+ * then writes them once the data store recovers.<p/>
+ *
+ * The write operations this factory creates never fail: a statistic is either written, spilled, or - if even the
+ * journal won't take it - counted by {@link #getDroppedStatisticCount()}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class SpillingWriteOperationFactory implements IWriteOperationFactory<MethodCallStatistic>
+{
+	/**
+	 * Holds the factory whose write operations we guard.
+	 */
+	private IWriteOperationFactory<MethodCallStatistic> _writeOperationFactory;
+
+	/**
+	 * Holds the journal we spill to.
+	 */
+	private SpillJournal _spillJournal;
+
+	/**
+	 * Holds the number of statistics spilled.
+	 */
+	private final LongAdder _spilled = new LongAdder();
+
+	/**
+	 * Holds the number of statistics that could neither be written nor spilled.
+	 */
+	private final LongAdder _dropped = new LongAdder();
+
+	/**
+	 * Gets the factory whose write operations we guard.
+	 *
+	 * @return A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory}.
+	 */
+	public IWriteOperationFactory<MethodCallStatistic> getWriteOperationFactory()
+	{
+		return _writeOperationFactory;
+	}
+
+	/**
+	 * Sets the factory whose write operations we guard.
+	 *
+	 * @param writeOperationFactory A non-<code>null</code> implementation of {@link org.epiphanic.instrumentation.performance.IWriteOperationFactory}.
+	 */
+	public void setWriteOperationFactory(final IWriteOperationFactory<MethodCallStatistic> writeOperationFactory)
+	{
+		_writeOperationFactory = writeOperationFactory;
+	}
+
+	/**
+	 * Gets the journal we spill to.
+	 *
+	 * @return A non-<code>null</code>, started {@link org.epiphanic.instrumentation.performance.SpillJournal}.
+	 */
+	public SpillJournal getSpillJournal()
+	{
+		return _spillJournal;
+	}
+
+	/**
+	 * Sets the journal we spill to.
+	 *
+	 * @param spillJournal A non-<code>null</code>, started {@link org.epiphanic.instrumentation.performance.SpillJournal}.
+	 */
+	public void setSpillJournal(final SpillJournal spillJournal)
+	{
+		_spillJournal = spillJournal;
+	}
+
+	/**
+	 * Gets the number of statistics spilled to the journal because their write failed.
+	 *
+	 * @return The number of statistics spilled.
+	 */
+	public long getSpilledStatisticCount()
+	{
+		return _spilled.sum();
+	}
+
+	/**
+	 * Gets the number of statistics that could neither be written nor spilled.
+	 *
+	 * @return The number of statistics lost.
+	 */
+	public long getDroppedStatisticCount()
+	{
+		return _dropped.sum();
+	}
+
+	@Override
+	public Callable<Void> createWriteOperation(final MethodCallStatistic statisticsEntity)
+	{
+		final Callable<Void> writeOperation = getWriteOperationFactory().createWriteOperation(statisticsEntity);
+
+		return new Callable<Void>()
+		{
+			@Override
+			public Void call()
+			{
+				try
+				{
+					writeOperation.call();
+				}
+				catch (final Exception ex)
+				{
+					spill(statisticsEntity);
+				}
+
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Appends a statistic whose write failed to our journal, and recycles it.
+	 *
+	 * @param statistic The statistic to spill.
+	 */
+	private void spill(final MethodCallStatistic statistic)
+	{
+		try
+		{
+			if (getSpillJournal().appendStatistics(Collections.singletonList(statistic)) == 1)
+			{
+				_spilled.increment();
+			}
+			else
+			{
+				_dropped.increment();
+			}
+		}
+		catch (final RuntimeException ex)
+		{
+			_dropped.increment();
+		}
+
+		statistic.recycle();
+	}
+}
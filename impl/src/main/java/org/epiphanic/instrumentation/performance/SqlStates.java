@@ -0,0 +1,52 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.sql.SQLException;
+
+/**
+ * Tells apart the failures our JDBC writers can recover from, by their standard SQLSTATE.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class SqlStates
+{
+	/**
+	 * Holds the SQLSTATE class of integrity constraint violations, duplicate keys among them.
+	 */
+	static final String INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
+	/**
+	 * Prevents instantiation; this is a static utility.
+	 */
+	private SqlStates()
+	{
+	}
+
+	/**
+	 * Indicates whether or not a failure was an integrity constraint violation - for an insert into a table whose only
+	 * constraint is its primary key, that the row was already there. Drivers that chain several failures, as on a batch,
+	 * are checked all the way down.
+	 *
+	 * @param failure The failure to check.
+	 *
+	 * @return <code>True</code> if the failure was an integrity constraint violation, else <code>false</code>.
+	 */
+	static boolean isDuplicateKey(final SQLException failure)
+	{
+		for (SQLException cause = failure; cause != null; cause = cause.getNextException())
+		{
+			final String sqlState = cause.getSQLState();
+
+			if (sqlState != null && sqlState.startsWith(INTEGRITY_CONSTRAINT_VIOLATION))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
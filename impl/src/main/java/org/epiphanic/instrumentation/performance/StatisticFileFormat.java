@@ -0,0 +1,53 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * Enumerates the text formats a {@link org.epiphanic.instrumentation.performance.RollingFileBatchWriter} can write
+ * statistics in. Both are UTF-8 with one statistic per line, and carry the same fields under the same names: those of
+ * {@link org.epiphanic.instrumentation.performance.MethodCallStatistic}, with times in milliseconds since the epoch and
+ * durations in nanoseconds.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public enum StatisticFileFormat
+{
+	/**
+	 * Newline-delimited JSON: one JSON object per line. Unknown values are <code>null</code>.
+	 */
+	NDJSON("ndjson"),
+
+	/**
+	 * Comma-separated values, with a header line at the top of every file. Strings are always quoted, so that an empty
+	 * field - an unknown value - can be told apart from an empty string.
+	 */
+	CSV("csv");
+
+	/**
+	 * Holds the extension of files written in this format.
+	 */
+	private final String _extension;
+
+	/**
+	 * Creates a format.
+	 *
+	 * @param extension The extension of files written in this format, without its dot.
+	 */
+	StatisticFileFormat(final String extension)
+	{
+		_extension = extension;
+	}
+
+	/**
+	 * Gets the extension of files written in this format.
+	 *
+	 * @return The extension, without its dot.
+	 */
+	public String getExtension()
+	{
+		return _extension;
+	}
+}
@@ -0,0 +1,447 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes statistics as lines of text in one of the {@link org.epiphanic.instrumentation.performance.StatisticFileFormat}s,
+ * writing UTF-8 straight into a caller-supplied {@link java.nio.ByteBuffer}. As with {@link
+ * org.epiphanic.instrumentation.performance.MethodCallStatisticEncoder}, nothing is allocated along the way for the
+ * usual statistic: numbers are written digit by digit and strings character by character. Only a sample weight with a
+ * fractional part goes by way of a <code>String</code>.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class StatisticTextEncoder
+{
+	/**
+	 * Holds a generous allowance for everything in a line apart from its strings.
+	 */
+	private static final int FIXED_FIELDS_BOUND = 512;
+
+	/**
+	 * Holds the names of our fields, in the order they're written.
+	 */
+	private static final String[] FIELDS = {"id", "userId", "operationName", "operationStart", "operationCompletion",
+			"durationNanos", "successful", "sampleWeight", "spanId", "parentSpanId", "selfTimeNanos", "metaData"};
+
+	/**
+	 * Holds each field's name as it starts a JSON member - quoted, followed by a colon, and preceded by a comma for all
+	 * but the first - as UTF-8, so that it can be written in one go.
+	 */
+	private static final byte[][] JSON_NAMES = jsonNames();
+
+	/**
+	 * Holds the hexadecimal digits, for escaping control characters in JSON.
+	 */
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Not for instantiation.
+	 */
+	private StatisticTextEncoder()
+	{
+	}
+
+	/**
+	 * Works out an upper bound on the size of the line a statistic is encoded as, in any format.
+	 *
+	 * @param statistic The statistic. Must not be <code>null</code>.
+	 *
+	 * @return An upper bound on the size of its line, in bytes.
+	 */
+	static int maximumLineSize(final IMethodCallStatistic statistic)
+	{
+		final String operationName = statistic.getOperationName();
+		final String metaData = statistic.getMetaData();
+
+		// Escaping a control character takes six bytes, the most any one character takes.
+		return FIXED_FIELDS_BOUND + 6 * ((operationName == null ? 0 : operationName.length())
+				+ (metaData == null ? 0 : metaData.length()));
+	}
+
+	/**
+	 * Works out how each field's name starts a JSON member.
+	 *
+	 * @return The contents of {@link #JSON_NAMES}.
+	 */
+	private static byte[][] jsonNames()
+	{
+		final byte[][] jsonNames = new byte[FIELDS.length][];
+
+		for (int i = 0; i < FIELDS.length; i++)
+		{
+			jsonNames[i] = ((i == 0 ? "" : ",") + '"' + FIELDS[i] + "\":").getBytes(StandardCharsets.UTF_8);
+		}
+
+		return jsonNames;
+	}
+
+	/**
+	 * Gets the header line that starts every file in a format, if it has one.
+	 *
+	 * @param format The format.
+	 *
+	 * @return The header line as UTF-8, including its line feed, or an empty array if the format has no header.
+	 */
+	static byte[] header(final StatisticFileFormat format)
+	{
+		if (format != StatisticFileFormat.CSV)
+		{
+			return new byte[0];
+		}
+
+		final StringBuilder header = new StringBuilder();
+
+		for (final String field : FIELDS)
+		{
+			header.append(header.length() == 0 ? "" : ",").append(field);
+		}
+
+		return header.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Appends a statistic as a line of text. If it doesn't fit, the buffer is left exactly as it was.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param statistic The statistic to encode. Must not be <code>null</code>.
+	 * @param format The format to encode it in.
+	 *
+	 * @return <code>True</code> if the statistic was appended, or <code>false</code> if there wasn't room for it.
+	 */
+	static boolean encode(final ByteBuffer buffer, final MethodCallStatistic statistic, final StatisticFileFormat format)
+	{
+		final int mark = buffer.position();
+
+		try
+		{
+			if (format == StatisticFileFormat.CSV)
+			{
+				writeCsv(buffer, statistic);
+			}
+			else
+			{
+				writeJson(buffer, statistic);
+			}
+
+			return true;
+		}
+		catch (final BufferOverflowException ex)
+		{
+			buffer.position(mark);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes a statistic as a JSON object on a line of its own.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param statistic The statistic to write.
+	 */
+	private static void writeJson(final ByteBuffer buffer, final MethodCallStatistic statistic)
+	{
+		buffer.put((byte)'{');
+		writeJsonName(buffer, 0);
+		writeNumber(buffer, statistic.getId());
+		writeJsonName(buffer, 1);
+		writeNumber(buffer, statistic.getUserId());
+		writeJsonName(buffer, 2);
+		writeJsonString(buffer, statistic.getOperationName());
+		writeJsonName(buffer, 3);
+		writeTime(buffer, statistic.getOperationStartMillis(), true);
+		writeJsonName(buffer, 4);
+		writeTime(buffer, statistic.getOperationCompletionMillis(), true);
+		writeJsonName(buffer, 5);
+		writeLong(buffer, statistic.getDurationNanos());
+		writeJsonName(buffer, 6);
+		writeAscii(buffer, statistic.isOperationSuccessful() ? "true" : "false");
+		writeJsonName(buffer, 7);
+		writeDouble(buffer, statistic.getSampleWeight());
+		writeJsonName(buffer, 8);
+		writeLong(buffer, statistic.getSpanId());
+		writeJsonName(buffer, 9);
+		writeLong(buffer, statistic.getParentSpanId());
+		writeJsonName(buffer, 10);
+		writeLong(buffer, statistic.getSelfTimeNanos());
+		writeJsonName(buffer, 11);
+		writeJsonString(buffer, statistic.getMetaData());
+		buffer.put((byte)'}').put((byte)'\n');
+	}
+
+	/**
+	 * Writes a statistic as a line of comma-separated values.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param statistic The statistic to write.
+	 */
+	private static void writeCsv(final ByteBuffer buffer, final MethodCallStatistic statistic)
+	{
+		if (statistic.getId() != null)
+		{
+			writeLong(buffer, statistic.getId());
+		}
+
+		buffer.put((byte)',');
+
+		if (statistic.getUserId() != null)
+		{
+			writeLong(buffer, statistic.getUserId());
+		}
+
+		buffer.put((byte)',');
+		writeCsvString(buffer, statistic.getOperationName());
+		buffer.put((byte)',');
+		writeTime(buffer, statistic.getOperationStartMillis(), false);
+		buffer.put((byte)',');
+		writeTime(buffer, statistic.getOperationCompletionMillis(), false);
+		buffer.put((byte)',');
+		writeLong(buffer, statistic.getDurationNanos());
+		buffer.put((byte)',');
+		writeAscii(buffer, statistic.isOperationSuccessful() ? "true" : "false");
+		buffer.put((byte)',');
+		writeDouble(buffer, statistic.getSampleWeight());
+		buffer.put((byte)',');
+		writeLong(buffer, statistic.getSpanId());
+		buffer.put((byte)',');
+		writeLong(buffer, statistic.getParentSpanId());
+		buffer.put((byte)',');
+		writeLong(buffer, statistic.getSelfTimeNanos());
+		buffer.put((byte)',');
+		writeCsvString(buffer, statistic.getMetaData());
+		buffer.put((byte)'\n');
+	}
+
+	/**
+	 * Writes the name of a field in a JSON object, preceded by a comma if it isn't the first.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param field The index of the field in {@link #FIELDS}.
+	 */
+	private static void writeJsonName(final ByteBuffer buffer, final int field)
+	{
+		buffer.put(JSON_NAMES[field]);
+	}
+
+	/**
+	 * Writes a string as a JSON string, or <code>null</code>.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The string to write, or <code>null</code>.
+	 */
+	private static void writeJsonString(final ByteBuffer buffer, final String value)
+	{
+		if (value == null)
+		{
+			writeAscii(buffer, "null");
+			return;
+		}
+
+		buffer.put((byte)'"');
+
+		for (int i = 0; i < value.length(); i++)
+		{
+			final char character = value.charAt(i);
+
+			if (character == '"' || character == '\\')
+			{
+				buffer.put((byte)'\\').put((byte)character);
+			}
+			else if (character < 0x20)
+			{
+				buffer.put((byte)'\\').put((byte)'u').put((byte)'0').put((byte)'0')
+						.put(HEX_DIGITS[character >> 4]).put(HEX_DIGITS[character & 0xF]);
+			}
+			else
+			{
+				i = writeCodePoint(buffer, value, i);
+			}
+		}
+
+		buffer.put((byte)'"');
+	}
+
+	/**
+	 * Writes a string as a quoted CSV field, doubling any quotes within it, or nothing at all for <code>null</code>.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The string to write, or <code>null</code>.
+	 */
+	private static void writeCsvString(final ByteBuffer buffer, final String value)
+	{
+		if (value == null)
+		{
+			return;
+		}
+
+		buffer.put((byte)'"');
+
+		for (int i = 0; i < value.length(); i++)
+		{
+			if (value.charAt(i) == '"')
+			{
+				buffer.put((byte)'"');
+			}
+
+			i = writeCodePoint(buffer, value, i);
+		}
+
+		buffer.put((byte)'"');
+	}
+
+	/**
+	 * Writes a time in milliseconds since the epoch, or nothing - <code>null</code>, in JSON - if it's unknown.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param millis The time, or {@link MethodCallStatistic#UNKNOWN_TIME}.
+	 * @param json Whether an unknown time is written as <code>null</code>.
+	 */
+	private static void writeTime(final ByteBuffer buffer, final long millis, final boolean json)
+	{
+		if (millis != MethodCallStatistic.UNKNOWN_TIME)
+		{
+			writeLong(buffer, millis);
+		}
+		else if (json)
+		{
+			writeAscii(buffer, "null");
+		}
+	}
+
+	/**
+	 * Writes a JSON number, or <code>null</code>.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The number to write, or <code>null</code>.
+	 */
+	private static void writeNumber(final ByteBuffer buffer, final Long value)
+	{
+		if (value == null)
+		{
+			writeAscii(buffer, "null");
+		}
+		else
+		{
+			writeLong(buffer, value);
+		}
+	}
+
+	/**
+	 * Writes a floating point number, without allocating if it's a whole number, as sample weights almost always are.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The number to write. Must be finite.
+	 */
+	private static void writeDouble(final ByteBuffer buffer, final double value)
+	{
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+		{
+			writeLong(buffer, (long)value);
+		}
+		else
+		{
+			writeAscii(buffer, Double.toString(value));
+		}
+	}
+
+	/**
+	 * Writes a whole number in decimal.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The number to write.
+	 */
+	private static void writeLong(final ByteBuffer buffer, final long value)
+	{
+		if (value == Long.MIN_VALUE)
+		{
+			writeAscii(buffer, Long.toString(value));
+			return;
+		}
+
+		if (value < 0)
+		{
+			buffer.put((byte)'-');
+		}
+
+		final long magnitude = Math.abs(value);
+		int digits = 1;
+
+		for (long remaining = magnitude / 10; remaining != 0; remaining /= 10)
+		{
+			digits++;
+		}
+
+		if (buffer.remaining() < digits)
+		{
+			throw new BufferOverflowException();
+		}
+
+		final int start = buffer.position();
+		long remaining = magnitude;
+
+		for (int i = start + digits - 1; i >= start; i--)
+		{
+			buffer.put(i, (byte)('0' + remaining % 10));
+			remaining /= 10;
+		}
+
+		buffer.position(start + digits);
+	}
+
+	/**
+	 * Writes a string known to be ASCII.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The string to write.
+	 */
+	private static void writeAscii(final ByteBuffer buffer, final String value)
+	{
+		for (int i = 0; i < value.length(); i++)
+		{
+			buffer.put((byte)value.charAt(i));
+		}
+	}
+
+	/**
+	 * Writes the code point starting at a given index of a string as UTF-8.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The string holding the code point.
+	 * @param index The index of its first character.
+	 *
+	 * @return The index of its last character: one past the given index for a surrogate pair, otherwise the same.
+	 */
+	private static int writeCodePoint(final ByteBuffer buffer, final String value, final int index)
+	{
+		final int codePoint = value.codePointAt(index);
+
+		if (codePoint < 0x80)
+		{
+			buffer.put((byte)codePoint);
+		}
+		else if (codePoint < 0x800)
+		{
+			buffer.put((byte)(0xC0 | codePoint >> 6)).put((byte)(0x80 | codePoint & 0x3F));
+		}
+		else if (codePoint < 0x10000)
+		{
+			buffer.put((byte)(0xE0 | codePoint >> 12)).put((byte)(0x80 | codePoint >> 6 & 0x3F))
+					.put((byte)(0x80 | codePoint & 0x3F));
+		}
+		else
+		{
+			buffer.put((byte)(0xF0 | codePoint >> 18)).put((byte)(0x80 | codePoint >> 12 & 0x3F))
+					.put((byte)(0x80 | codePoint >> 6 & 0x3F)).put((byte)(0x80 | codePoint & 0x3F));
+			return index + 1;
+		}
+
+		return index;
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Counts occurrences of something along with a running total and maximum of a value per occurrence - a latency, or a
+ * batch size - for our management interfaces. Everything is striped, so recording from many threads at once neither
+ * takes a lock nor contends on a single cache line, at the price of reads being a little more expensive and not quite
+ * simultaneous.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class StripedLatencyCounter
+{
+	/**
+	 * Keeps the larger of two values.
+	 */
+	private static final LongBinaryOperator MAX = new LongBinaryOperator()
+	{
+		@Override
+		public long applyAsLong(final long left, final long right)
+		{
+			return Math.max(left, right);
+		}
+	};
+
+	/**
+	 * Holds the number of occurrences.
+	 */
+	private final LongAdder _count = new LongAdder();
+
+	/**
+	 * Holds the total of the values recorded.
+	 */
+	private final LongAdder _total = new LongAdder();
+
+	/**
+	 * Holds the largest value recorded since we were created, or our maximum was last reset.
+	 */
+	private final LongAccumulator _max = new LongAccumulator(MAX, 0L);
+
+	/**
+	 * Records an occurrence.
+	 *
+	 * @param value The value it came with, such as its latency in nanoseconds.
+	 */
+	void record(final long value)
+	{
+		_count.increment();
+		_total.add(value);
+		_max.accumulate(value);
+	}
+
+	/**
+	 * Gets the number of occurrences recorded.
+	 *
+	 * @return The count, which only ever goes up.
+	 */
+	long getCount()
+	{
+		return _count.sum();
+	}
+
+	/**
+	 * Gets the total of the values recorded.
+	 *
+	 * @return The total, which only ever goes up for non-negative values.
+	 */
+	long getTotal()
+	{
+		return _total.sum();
+	}
+
+	/**
+	 * Gets the mean of the values recorded.
+	 *
+	 * @return The mean, or zero if nothing has been recorded.
+	 */
+	double getMean()
+	{
+		final long count = _count.sum();
+		return count == 0 ? 0.0 : (double)_total.sum() / count;
+	}
+
+	/**
+	 * Gets the largest value recorded since we were created, or our maximum was last reset.
+	 *
+	 * @return The maximum, or zero if nothing has been recorded since.
+	 */
+	long getMax()
+	{
+		return _max.get();
+	}
+
+	/**
+	 * Starts our maximum afresh. Counts and totals are left alone, so that rates can still be taken of them.
+	 */
+	void resetMax()
+	{
+		_max.reset();
+	}
+}
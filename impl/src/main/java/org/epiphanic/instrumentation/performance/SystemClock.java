@@ -0,0 +1,34 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+/**
+ * An {@link org.epiphanic.instrumentation.performance.IClock} that asks the operating system on every reading, via
+ * {@link System#currentTimeMillis()} and {@link System#nanoTime()}. Full resolution, at the cost of a clock call per
+ * reading - some tens of nanoseconds on Linux with a TSC clock source, and a great deal more under some virtualized
+ * clock sources. This is the default.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class SystemClock implements IClock
+{
+	/**
+	 * Holds the one instance anyone needs.
+	 */
+	public static final SystemClock INSTANCE = new SystemClock();
+
+	@Override
+	public long currentTimeMillis()
+	{
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public long nanoTime()
+	{
+		return System.nanoTime();
+	}
+}
@@ -0,0 +1,318 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An implementation of {@link org.epiphanic.instrumentation.performance.ICapturePolicy} that forwards only the calls
+ * worth investigating: every failure, and every call slower than its operation's latency threshold. Everything else
+ * only updates that operation's in-memory {@link org.epiphanic.instrumentation.performance.OperationCounters}, which
+ * cost a couple of uncontended additions rather than a row.<p/>
+ *
+ * An operation's threshold is, in order of preference:
+ * <ol>
+ * <li>its own static threshold, from {@link #setThresholdsMillis(java.util.Map)};</li>
+ * <li>if a percentile is set via {@link #setPercentile(double)}, a running estimate of that percentile of the
+ * operation's latency, kept by a {@link org.epiphanic.instrumentation.performance.FrugalPercentileEstimator} once it
+ * has seen {@link #getWarmUpCount()} calls;</li>
+ * <li>the default static threshold, from {@link #setDefaultThresholdMillis(long)}, if any.</li>
+ * </ol>
+ * Operations with none of those forward their failures only.<p/>
+ *
+ * Forwarded statistics have a sample weight of one: they are exactly the outliers, and the counters hold the rest.
+ * Nothing is decided before the call, so {@link #beforeInvocation(String)} always answers zero.<p/>
+ *
+ * Configure thresholds up front: the map is copied when set, and never changes afterwards.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public class TailCapturePolicy implements ICapturePolicy
+{
+	/**
+	 * Holds the value used for "no threshold".
+	 */
+	public static final long NO_THRESHOLD = -1L;
+
+	/**
+	 * Holds the default number of calls a running percentile needs to see before we trust it.
+	 */
+	public static final int DEFAULT_WARM_UP_COUNT = 1000;
+
+	/**
+	 * Holds the relative step size of our running percentile estimates.
+	 */
+	private static final double STEP_SIZE = 0.01;
+
+	/**
+	 * Holds our static thresholds in nanoseconds, keyed by operation name.
+	 */
+	private volatile Map<String, Long> _thresholdsNanos = Collections.emptyMap();
+
+	/**
+	 * Holds our default static threshold in nanoseconds, or {@link #NO_THRESHOLD}.
+	 */
+	private volatile long _defaultThresholdNanos = NO_THRESHOLD;
+
+	/**
+	 * Holds the percentile our running thresholds track, or zero if we don't keep any.
+	 */
+	private volatile double _percentile;
+
+	/**
+	 * Holds the number of calls a running percentile needs to see before we trust it.
+	 */
+	private volatile int _warmUpCount = DEFAULT_WARM_UP_COUNT;
+
+	/**
+	 * Holds our counters, keyed by operation name.
+	 */
+	private final ConcurrentMap<String, OperationCounters> _counters = new ConcurrentHashMap<>();
+
+	/**
+	 * Holds our running percentile estimates, keyed by operation name.
+	 */
+	private final ConcurrentMap<String, FrugalPercentileEstimator> _estimators = new ConcurrentHashMap<>();
+
+	/**
+	 * Gets our static thresholds.
+	 *
+	 * @return An unmodifiable, non-<code>null</code> {@link java.util.Map} of operation names to thresholds in
+	 * milliseconds.
+	 */
+	public Map<String, Long> getThresholdsMillis()
+	{
+		final Map<String, Long> thresholdsMillis = new HashMap<>();
+
+		for (final Map.Entry<String, Long> entry : _thresholdsNanos.entrySet())
+		{
+			thresholdsMillis.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+		}
+
+		return Collections.unmodifiableMap(thresholdsMillis);
+	}
+
+	/**
+	 * Sets our static thresholds. Calls taking longer than their operation's threshold are forwarded.
+	 *
+	 * @param thresholdsMillis A {@link java.util.Map} of operation names to thresholds in milliseconds. Copied, so later
+	 * changes to it have no effect.
+	 */
+	public void setThresholdsMillis(final Map<String, Long> thresholdsMillis)
+	{
+		final Map<String, Long> thresholdsNanos = new HashMap<>();
+
+		for (final Map.Entry<String, Long> entry : thresholdsMillis.entrySet())
+		{
+			thresholdsNanos.put(entry.getKey(), TimeUnit.MILLISECONDS.toNanos(entry.getValue()));
+		}
+
+		_thresholdsNanos = Collections.unmodifiableMap(thresholdsNanos);
+	}
+
+	/**
+	 * Gets our default static threshold.
+	 *
+	 * @return The threshold in milliseconds for operations without one of their own, or {@link #NO_THRESHOLD}.
+	 */
+	public long getDefaultThresholdMillis()
+	{
+		final long defaultThresholdNanos = _defaultThresholdNanos;
+		return defaultThresholdNanos == NO_THRESHOLD ? NO_THRESHOLD : TimeUnit.NANOSECONDS.toMillis(defaultThresholdNanos);
+	}
+
+	/**
+	 * Sets our default static threshold, used for operations with neither a threshold of their own nor a running
+	 * percentile.
+	 *
+	 * @param defaultThresholdMillis A threshold in milliseconds, or {@link #NO_THRESHOLD} (the default) for none.
+	 */
+	public void setDefaultThresholdMillis(final long defaultThresholdMillis)
+	{
+		_defaultThresholdNanos = defaultThresholdMillis < 0
+				? NO_THRESHOLD : TimeUnit.MILLISECONDS.toNanos(defaultThresholdMillis);
+	}
+
+	/**
+	 * Gets the percentile our running thresholds track.
+	 *
+	 * @return A percentile between zero and one, or zero if we don't keep running thresholds.
+	 */
+	public double getPercentile()
+	{
+		return _percentile;
+	}
+
+	/**
+	 * Sets the percentile our running thresholds track. With a percentile of 0.99, an operation forwards roughly the
+	 * slowest one percent of its calls.
+	 *
+	 * @param percentile A percentile between zero and one exclusive, or zero (the default) to keep no running thresholds.
+	 */
+	public void setPercentile(final double percentile)
+	{
+		if (!(percentile >= 0.0 && percentile < 1.0))
+		{
+			throw new IllegalArgumentException("Percentile must be in [0, 1), was " + percentile);
+		}
+
+		_percentile = percentile;
+		_estimators.clear();
+	}
+
+	/**
+	 * Gets the number of calls a running percentile needs to see before we trust it.
+	 *
+	 * @return The warm-up count for running thresholds.
+	 */
+	public int getWarmUpCount()
+	{
+		return _warmUpCount;
+	}
+
+	/**
+	 * Sets the number of calls a running percentile needs to see before we trust it. Until then, the default static
+	 * threshold applies.
+	 *
+	 * @param warmUpCount The warm-up count for running thresholds. Defaults to {@link #DEFAULT_WARM_UP_COUNT}.
+	 */
+	public void setWarmUpCount(final int warmUpCount)
+	{
+		_warmUpCount = warmUpCount;
+		_estimators.clear();
+	}
+
+	/**
+	 * Gets the counters for an operation.
+	 *
+	 * @param operationName The name of the operation.
+	 *
+	 * @return The operation's {@link org.epiphanic.instrumentation.performance.OperationCounters}, or <code>null</code>
+	 * if we haven't seen it yet.
+	 */
+	public OperationCounters getCounters(final String operationName)
+	{
+		return _counters.get(operationName);
+	}
+
+	/**
+	 * Gets the counters for every operation we've seen.
+	 *
+	 * @return An unmodifiable, live view of our counters, keyed by operation name.
+	 */
+	public Map<String, OperationCounters> getAllCounters()
+	{
+		return Collections.unmodifiableMap(_counters);
+	}
+
+	/**
+	 * Gets the threshold an operation is currently held to.
+	 *
+	 * @param operationName The name of the operation.
+	 *
+	 * @return The operation's current threshold in nanoseconds, or {@link #NO_THRESHOLD} if it has none.
+	 */
+	public long getCurrentThresholdNanos(final String operationName)
+	{
+		final Long staticThreshold = _thresholdsNanos.get(operationName);
+
+		if (staticThreshold != null)
+		{
+			return staticThreshold;
+		}
+
+		final FrugalPercentileEstimator estimator = _estimators.get(operationName);
+
+		if (estimator != null && estimator.isWarm())
+		{
+			return (long)estimator.getEstimate();
+		}
+
+		return _defaultThresholdNanos;
+	}
+
+	@Override
+	public double beforeInvocation(final String operationName)
+	{
+		return 0.0;
+	}
+
+	@Override
+	public double afterInvocation(final String operationName, final long durationNanos, final boolean successful,
+			final double sampleWeight)
+	{
+		final OperationCounters counters = getOrCreateCounters(operationName);
+		final long threshold = getCurrentThresholdNanos(operationName);
+
+		// Learn from this call only once we've judged it by what we knew before.
+		if (_percentile > 0.0 && !_thresholdsNanos.containsKey(operationName))
+		{
+			getOrCreateEstimator(operationName).update(durationNanos);
+		}
+
+		if (!successful)
+		{
+			counters.recordFailed();
+			return 1.0;
+		}
+
+		if (threshold != NO_THRESHOLD && durationNanos > threshold)
+		{
+			counters.recordSlow();
+			return 1.0;
+		}
+
+		counters.recordOrdinary(durationNanos);
+		return 0.0;
+	}
+
+	/**
+	 * Gets the counters for an operation, creating them if need be.
+	 *
+	 * @param operationName The name of the operation.
+	 *
+	 * @return The operation's non-<code>null</code> counters.
+	 */
+	private OperationCounters getOrCreateCounters(final String operationName)
+	{
+		final OperationCounters counters = _counters.get(operationName);
+
+		if (counters != null)
+		{
+			return counters;
+		}
+
+		final OperationCounters created = new OperationCounters();
+		final OperationCounters existing = _counters.putIfAbsent(operationName, created);
+		return existing == null ? created : existing;
+	}
+
+	/**
+	 * Gets the running percentile estimate for an operation, creating it if need be.
+	 *
+	 * @param operationName The name of the operation.
+	 *
+	 * @return The operation's non-<code>null</code> estimator.
+	 */
+	private FrugalPercentileEstimator getOrCreateEstimator(final String operationName)
+	{
+		final FrugalPercentileEstimator estimator = _estimators.get(operationName);
+
+		if (estimator != null)
+		{
+			return estimator;
+		}
+
+		final FrugalPercentileEstimator created = new FrugalPercentileEstimator(_percentile, STEP_SIZE, _warmUpCount);
+		final FrugalPercentileEstimator existing = _estimators.putIfAbsent(operationName, created);
+		return existing == null ? created : existing;
+	}
+}
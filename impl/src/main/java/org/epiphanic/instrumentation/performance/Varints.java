@@ -0,0 +1,122 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes variable-length integers, seven bits per byte with the high bit marking continuation, as used by
+ * protocol buffers. Small non-negative values take a single byte; use the zig-zag variants for values that may be
+ * negative.<p/>
+ *
+ * @author Greg Feigenson
+ */
+final class Varints
+{
+	/**
+	 * Prevents instantiation; this is a static utility.
+	 */
+	private Varints()
+	{
+	}
+
+	/**
+	 * Writes an unsigned variable-length integer.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The value to write, treated as unsigned.
+	 */
+	static void putVarLong(final ByteBuffer buffer, final long value)
+	{
+		long remaining = value;
+
+		while ((remaining & ~0x7FL) != 0)
+		{
+			buffer.put((byte)((remaining & 0x7F) | 0x80));
+			remaining >>>= 7;
+		}
+
+		buffer.put((byte)remaining);
+	}
+
+	/**
+	 * Reads an unsigned variable-length integer.
+	 *
+	 * @param buffer The buffer to read from.
+	 *
+	 * @return The value read.
+	 *
+	 * @throws IllegalArgumentException If the value runs on for more than ten bytes.
+	 * @throws BufferUnderflowException If the buffer ends part way through the value.
+	 */
+	static long getVarLong(final ByteBuffer buffer)
+	{
+		long value = 0;
+
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			final byte b = buffer.get();
+			value |= (long)(b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+
+		throw new IllegalArgumentException("Malformed variable-length integer");
+	}
+
+	/**
+	 * Writes a signed variable-length integer, zig-zag encoded so that small negative values stay small.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The value to write.
+	 */
+	static void putSignedVarLong(final ByteBuffer buffer, final long value)
+	{
+		putVarLong(buffer, (value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Reads a signed, zig-zag encoded variable-length integer.
+	 *
+	 * @param buffer The buffer to read from.
+	 *
+	 * @return The value read.
+	 */
+	static long getSignedVarLong(final ByteBuffer buffer)
+	{
+		final long encoded = getVarLong(buffer);
+		return (encoded >>> 1) ^ -(encoded & 1);
+	}
+
+	/**
+	 * Works out how many bytes an unsigned variable-length integer takes.
+	 *
+	 * @param value The value, treated as unsigned.
+	 *
+	 * @return The number of bytes {@link #putVarLong(java.nio.ByteBuffer, long)} would write, from one to ten.
+	 */
+	static int sizeOfVarLong(final long value)
+	{
+		final int bits = 64 - Long.numberOfLeadingZeros(value | 1);
+		return (bits + 6) / 7;
+	}
+
+	/**
+	 * Works out how many bytes a signed variable-length integer takes.
+	 *
+	 * @param value The value.
+	 *
+	 * @return The number of bytes {@link #putSignedVarLong(java.nio.ByteBuffer, long)} would write.
+	 */
+	static int sizeOfSignedVarLong(final long value)
+	{
+		return sizeOfVarLong((value << 1) ^ (value >> 63));
+	}
+}
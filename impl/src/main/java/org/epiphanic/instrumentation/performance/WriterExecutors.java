@@ -0,0 +1,153 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run our write operations, for use as the {@link
+ * GenericAsynchronousLogger#setMessageProcessor(java.util.concurrent.ExecutorService) message processor} of a {@link
+ * org.epiphanic.instrumentation.performance.GenericAsynchronousLogger}. From Spring:
+ * <pre>
+ * &lt;bean name="executor" class="org.epiphanic.instrumentation.performance.WriterExecutors"
+ *         factory-method="newWriterExecutor"&gt;
+ *     &lt;constructor-arg value="4"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * On a JVM with virtual threads, {@link #newWriterExecutor(int)} runs each write operation on a virtual thread of its
+ * own, so a write blocked on the database parks its virtual thread rather than tying up a platform thread, and there's
+ * no pool size to tune per environment. Bound the number of connections those writes take with a {@link
+ * org.epiphanic.instrumentation.performance.ConnectionLimitingBatchWriter} instead. Elsewhere it falls back to a fixed
+ * pool of daemon platform threads.<p/>
+ *
+ * Virtual threads only pay off if the write path never blocks while holding a monitor, which would pin the virtual
+ * thread to its carrier; ours uses {@link java.util.concurrent.locks.ReentrantLock}s and atomics instead. They also
+ * only pay off if there are writes to run concurrently: set the logger's {@link
+ * GenericAsynchronousLogger#setCapacity(int) capacity} to zero, as a buffering logger only ever runs one drain task at
+ * a time.<p/>
+ *
+ * We are compiled for Java 8, so virtual threads are found reflectively.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class WriterExecutors
+{
+	/**
+	 * Holds the prefix of the names of our writer threads.
+	 */
+	static final String THREAD_NAME_PREFIX = "thoreau-writer-";
+
+	/**
+	 * Holds <code>Executors.newThreadPerTaskExecutor(ThreadFactory)</code>, or <code>null</code> on JVMs without it.
+	 */
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR = findThreadPerTaskExecutor();
+
+	/**
+	 * Prevents instantiation; everything here is static.
+	 */
+	private WriterExecutors()
+	{
+	}
+
+	/**
+	 * Indicates whether or not this JVM has virtual threads.
+	 *
+	 * @return <code>True</code> if {@link #newVirtualThreadExecutor()} can be used.
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		return NEW_THREAD_PER_TASK_EXECUTOR != null;
+	}
+
+	/**
+	 * Creates an executor running each write operation on a virtual thread of its own if this JVM has them, or on a
+	 * fixed pool of platform threads if not.
+	 *
+	 * @param platformThreads The number of threads in the fallback pool. Must be positive.
+	 *
+	 * @return A new {@link java.util.concurrent.ExecutorService}, to be shut down by its owner.
+	 */
+	public static ExecutorService newWriterExecutor(final int platformThreads)
+	{
+		return isVirtualThreadSupported() ? newVirtualThreadExecutor() : newFixedWriterExecutor(platformThreads);
+	}
+
+	/**
+	 * Creates an executor running each write operation on a virtual thread of its own.
+	 *
+	 * @return A new {@link java.util.concurrent.ExecutorService}, to be shut down by its owner.
+	 *
+	 * @throws UnsupportedOperationException If this JVM doesn't have virtual threads.
+	 */
+	public static ExecutorService newVirtualThreadExecutor()
+	{
+		if (!isVirtualThreadSupported())
+		{
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or later; this is "
+					+ System.getProperty("java.version"));
+		}
+
+		try
+		{
+			// Thread.ofVirtual().name(THREAD_NAME_PREFIX, 0).factory()
+			final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			final Object namedBuilder = builderType.getMethod("name", String.class, long.class).invoke(builder,
+					THREAD_NAME_PREFIX, 0L);
+			final ThreadFactory threadFactory = (ThreadFactory)builderType.getMethod("factory").invoke(namedBuilder);
+			return (ExecutorService)NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory);
+		}
+		catch (final Exception ex)
+		{
+			throw new IllegalStateException("Could not create a virtual thread executor", ex);
+		}
+	}
+
+	/**
+	 * Creates an executor running write operations on a fixed pool of daemon platform threads.
+	 *
+	 * @param threads The number of threads in the pool. Must be positive.
+	 *
+	 * @return A new {@link java.util.concurrent.ExecutorService}, to be shut down by its owner.
+	 */
+	public static ExecutorService newFixedWriterExecutor(final int threads)
+	{
+		final AtomicInteger threadNumber = new AtomicInteger();
+
+		return Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				final Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Looks for <code>Executors.newThreadPerTaskExecutor(ThreadFactory)</code>, which comes with virtual threads.
+	 *
+	 * @return The method, or <code>null</code> if this JVM doesn't have it.
+	 */
+	private static Method findThreadPerTaskExecutor()
+	{
+		try
+		{
+			Thread.class.getMethod("ofVirtual");
+			return Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		}
+		catch (final NoSuchMethodException ex)
+		{
+			return null;
+		}
+	}
+}
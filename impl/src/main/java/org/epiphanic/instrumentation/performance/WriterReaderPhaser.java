@@ -0,0 +1,103 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coordinates wait-free writers with an occasional reader that swaps out the structure they write to, after Gil Tene's
+ * WriterReaderPhaser. Writers wrap each update in {@link #writerCriticalSectionEnter()} and {@link
+ * #writerCriticalSectionExit(long)}, which cost one atomic increment each and never wait. The reader, holding {@link
+ * #readerLock()}, swaps in a fresh structure and then calls {@link #flipPhase()}, which returns once every writer that
+ * might still be writing to the old structure has left; from then on the reader has the old structure to itself.<p/>
+ *
+ * Writers entering during an even phase count up from zero, and those entering during an odd phase count up from
+ * {@link Long#MIN_VALUE}, so the sign of the value returned on entry says which phase's exit counter to bump.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class WriterReaderPhaser
+{
+	/**
+	 * Holds the count of writers that have entered, offset by the phase they entered in.
+	 */
+	private final AtomicLong _startEpoch = new AtomicLong(0L);
+
+	/**
+	 * Holds the count of writers that have left, having entered during an even phase.
+	 */
+	private final AtomicLong _evenEndEpoch = new AtomicLong(0L);
+
+	/**
+	 * Holds the count of writers that have left, having entered during an odd phase.
+	 */
+	private final AtomicLong _oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * Serializes readers. Writers never touch it.
+	 */
+	private final ReentrantLock _readerLock = new ReentrantLock();
+
+	/**
+	 * Enters a writer critical section. Never blocks.
+	 *
+	 * @return A value to pass to {@link #writerCriticalSectionExit(long)}.
+	 */
+	public long writerCriticalSectionEnter()
+	{
+		return _startEpoch.getAndIncrement();
+	}
+
+	/**
+	 * Leaves a writer critical section. Never blocks.
+	 *
+	 * @param criticalValueAtEnter The value returned by the matching {@link #writerCriticalSectionEnter()}.
+	 */
+	public void writerCriticalSectionExit(final long criticalValueAtEnter)
+	{
+		(criticalValueAtEnter < 0 ? _oddEndEpoch : _evenEndEpoch).getAndIncrement();
+	}
+
+	/**
+	 * Gets the lock readers hold while swapping structures and flipping phases.
+	 *
+	 * @return Our reader {@link java.util.concurrent.locks.ReentrantLock}.
+	 */
+	public ReentrantLock readerLock()
+	{
+		return _readerLock;
+	}
+
+	/**
+	 * Flips the phase, waiting until every writer that entered before the flip has left. Must be called with {@link
+	 * #readerLock()} held, after the structure writers use has been swapped, so that writers entering after the flip
+	 * can only see the new one.
+	 */
+	public void flipPhase()
+	{
+		if (!_readerLock.isHeldByCurrentThread())
+		{
+			throw new IllegalStateException("flipPhase() may only be called while holding the reader lock");
+		}
+
+		final boolean nextPhaseIsEven = _startEpoch.get() < 0;
+
+		// Reset the end counter for the phase we're about to enter, before any writer can enter it.
+		final long initialStartValue = nextPhaseIsEven ? 0L : Long.MIN_VALUE;
+		(nextPhaseIsEven ? _evenEndEpoch : _oddEndEpoch).set(initialStartValue);
+
+		// Enter the next phase, learning how many writers entered the one we're leaving.
+		final long startValueAtFlip = _startEpoch.getAndSet(initialStartValue);
+		final AtomicLong endEpoch = nextPhaseIsEven ? _oddEndEpoch : _evenEndEpoch;
+
+		// Wait for them all to leave. Writers are only ever in for the length of a few increments.
+		while (endEpoch.get() != startValueAtFlip)
+		{
+			Thread.yield();
+		}
+	}
+}
@@ -99,6 +99,7 @@ public final class AOPMetricGathererIntegrationTest
             methodCallStatistic.setOperationName(rs.getString("operation_name"));
             methodCallStatistic.setOperationStart(rs.getDate("start_time"));
             methodCallStatistic.setOperationCompletion(rs.getDate("end_time"));
+            methodCallStatistic.setDurationNanos(rs.getLong("duration_nanos"));
             methodCallStatistic.setMetaData(rs.getString("metadata"));
             methodCallStatistic.setOperationSuccessful(rs.getBoolean("success"));
 
@@ -122,6 +123,9 @@ public final class AOPMetricGathererIntegrationTest
 		verifyEntity(stats.get(2), 3L, "voidReturningMethodThatDoesNothing", null, true);
 		verifyEntity(stats.get(3), 4L, "longRunningObjectCreatingMethod", null, true);
 		verifyEntity(stats.get(4), 5L, "exceptionThrowingMethod", "java.lang.Exception: I am the very modern model of a modern Major-General.", false);
+
+		// Our long running method sleeps for five seconds, which our monotonic timing should reflect.
+		Assert.assertTrue(stats.get(3).getDurationNanos() >= 5000000000L);
 	}
 
 	/**
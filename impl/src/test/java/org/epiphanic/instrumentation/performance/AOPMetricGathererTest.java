@@ -8,14 +8,22 @@ package org.epiphanic.instrumentation.performance;
 import org.aopalliance.intercept.MethodInvocation;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
-import java.util.Date;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -38,7 +46,7 @@ public final class AOPMetricGathererTest
 	public void testInvokeSucceeded() throws Throwable
 	{
 		// Create our mocks necessary for testing.
-		final Date now = new Date();
+		final long now = System.currentTimeMillis();
 		final AOPMetricGatherer aopMetricGatherer = spy(new AOPMetricGatherer());
 		final MethodInvocation invocation = mock(MethodInvocation.class);
 		final MethodCallStatistic methodStatistic = mock(MethodCallStatistic.class);
@@ -46,7 +54,8 @@ public final class AOPMetricGathererTest
 
 		doReturn("ASDF").when(aopMetricGatherer).getMethodName(invocation);
 		doReturn(methodStatistic).when(aopMetricGatherer).createMethodCallStatistic();
-		doReturn(now).when(aopMetricGatherer).getCurrentDate();
+		doReturn(now).when(aopMetricGatherer).getCurrentTimeMillis();
+		doReturn(100L).doReturn(250L).when(aopMetricGatherer).getNanoTime();
 		doReturn(logger).when(aopMetricGatherer).getStatisticsLogger();
 
 		// Run our method under test.
@@ -57,11 +66,16 @@ public final class AOPMetricGathererTest
 		verify(aopMetricGatherer, times(1)).createMethodCallStatistic();
 		verify(methodStatistic, times(1)).setOperationName("ASDF");
 		verify(aopMetricGatherer, times(1)).getMethodName(invocation);
-		verify(methodStatistic, times(1)).setOperationStart(now);
+		verify(aopMetricGatherer, times(1)).getCurrentTimeMillis();
+		verify(methodStatistic, times(1)).markOperationStart(now, 100L);
 		verify(invocation, times(1)).proceed();
-		verify(methodStatistic, times(1)).setOperationCompletion(now);
-		verify(aopMetricGatherer, times(2)).getCurrentDate();
+		verify(methodStatistic, times(1)).markOperationCompletion(250L);
+		verify(aopMetricGatherer, times(2)).getNanoTime();
 		verify(methodStatistic, times(1)).setOperationSuccessful(true);
+		verify(methodStatistic, times(1)).setSampleWeight(1.0);
+		verify(aopMetricGatherer, times(1)).getOperationDictionary();
+		verify(aopMetricGatherer, times(1)).getCapturePolicy();
+		verify(aopMetricGatherer, times(1)).isSpanTracing();
 		verify(aopMetricGatherer, times(1)).getStatisticsLogger();
 		verify(logger, times(1)).writeStatistic(any(MethodCallStatistic.class));
 
@@ -77,17 +91,20 @@ public final class AOPMetricGathererTest
 	public void testInvokeFailed() throws Throwable
 	{
 		// Create our mocks necessary for testing.
-		final Date now = new Date();
+		final long now = System.currentTimeMillis();
 		final Exception exception = new Exception("Danger Will Robinson.");
 		final AOPMetricGatherer aopMetricGatherer = spy(new AOPMetricGatherer());
 		final MethodInvocation invocation = mock(MethodInvocation.class);
 		final MethodCallStatistic methodStatistic = mock(MethodCallStatistic.class);
 		final IStatisticsLogger<MethodCallStatistic> logger = mock(IStatisticsLogger.class);
+		final FailureFormatter formatter = new FailureFormatter();
 
 		doReturn("ASDF").when(aopMetricGatherer).getMethodName(invocation);
 		doReturn(methodStatistic).when(aopMetricGatherer).createMethodCallStatistic();
-		doReturn(now).when(aopMetricGatherer).getCurrentDate();
+		doReturn(now).when(aopMetricGatherer).getCurrentTimeMillis();
+		doReturn(100L).doReturn(250L).when(aopMetricGatherer).getNanoTime();
 		doReturn(logger).when(aopMetricGatherer).getStatisticsLogger();
+		doReturn(formatter).when(aopMetricGatherer).getFailureFormatter();
 
 		Mockito.doThrow(exception).when(invocation).proceed();
 
@@ -106,17 +123,367 @@ public final class AOPMetricGathererTest
 		verify(aopMetricGatherer, times(1)).createMethodCallStatistic();
 		verify(methodStatistic, times(1)).setOperationName("ASDF");
 		verify(aopMetricGatherer, times(1)).getMethodName(invocation);
-		verify(methodStatistic, times(1)).setOperationStart(now);
+		verify(aopMetricGatherer, times(1)).getCurrentTimeMillis();
+		verify(methodStatistic, times(1)).markOperationStart(now, 100L);
 		verify(invocation, times(1)).proceed();
-		verify(methodStatistic, times(1)).setOperationCompletion(now);
-		verify(aopMetricGatherer, times(2)).getCurrentDate();
-		verify(methodStatistic, times(1)).setOperationSuccessful(true);
+		verify(methodStatistic, times(1)).markOperationCompletion(250L);
+		verify(aopMetricGatherer, times(2)).getNanoTime();
+		verify(methodStatistic, times(1)).setSampleWeight(1.0);
+		verify(aopMetricGatherer, times(1)).getOperationDictionary();
+		verify(aopMetricGatherer, times(1)).getCapturePolicy();
+		verify(aopMetricGatherer, times(1)).isSpanTracing();
 		verify(aopMetricGatherer, times(1)).getStatisticsLogger();
 		verify(methodStatistic, times(1)).setOperationSuccessful(false);
-		verify(methodStatistic, times(1)).setMetaData(anyString());
+		verify(aopMetricGatherer, times(1)).getFailureFormatter();
+		verify(methodStatistic, times(1)).setFailure(exception, formatter);
 		verify(logger, times(1)).writeStatistic(any(MethodCallStatistic.class));
 
 		// Make sure nothing else happened.
 		verifyNoMoreInteractions(aopMetricGatherer, methodStatistic, invocation, logger);
 	}
+
+	/**
+	 * Makes sure that a call our capture policy passes over is never turned into a statistic at all.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testInvokeNotSampled() throws Throwable
+	{
+		final AOPMetricGatherer aopMetricGatherer = spy(new AOPMetricGatherer());
+		final MethodInvocation invocation = mock(MethodInvocation.class);
+		final ICapturePolicy capturePolicy = mock(ICapturePolicy.class);
+		final IStatisticsLogger<MethodCallStatistic> logger = mock(IStatisticsLogger.class);
+
+		doReturn("ASDF").when(aopMetricGatherer).getMethodName(invocation);
+		doReturn(100L).doReturn(250L).when(aopMetricGatherer).getNanoTime();
+		doReturn(logger).when(aopMetricGatherer).getStatisticsLogger();
+		doReturn(0.0).when(capturePolicy).beforeInvocation("ASDF");
+		doReturn(0.0).when(capturePolicy).afterInvocation("ASDF", 150L, true, 0.0);
+		aopMetricGatherer.setCapturePolicy(capturePolicy);
+
+		aopMetricGatherer.invoke(invocation);
+
+		verify(invocation, times(1)).proceed();
+		verify(capturePolicy, times(1)).beforeInvocation("ASDF");
+		verify(capturePolicy, times(1)).afterInvocation("ASDF", 150L, true, 0.0);
+		verify(aopMetricGatherer, never()).createMethodCallStatistic();
+		verifyNoMoreInteractions(logger, capturePolicy);
+	}
+
+	/**
+	 * Makes sure that a call our capture policy keeps after the fact is recorded with the weight it was given.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testInvokeFailureKeptAfterTheFact() throws Throwable
+	{
+		final Exception exception = new Exception("Danger Will Robinson.");
+		final AOPMetricGatherer aopMetricGatherer = spy(new AOPMetricGatherer());
+		final MethodInvocation invocation = mock(MethodInvocation.class);
+		final ICapturePolicy capturePolicy = mock(ICapturePolicy.class);
+		final IStatisticsLogger<MethodCallStatistic> logger = mock(IStatisticsLogger.class);
+
+		doReturn("ASDF").when(aopMetricGatherer).getMethodName(invocation);
+		doReturn(100L).doReturn(250L).when(aopMetricGatherer).getNanoTime();
+		doReturn(logger).when(aopMetricGatherer).getStatisticsLogger();
+		doReturn(0.0).when(capturePolicy).beforeInvocation("ASDF");
+		doReturn(1.0).when(capturePolicy).afterInvocation("ASDF", 150L, false, 0.0);
+		Mockito.doThrow(exception).when(invocation).proceed();
+		aopMetricGatherer.setCapturePolicy(capturePolicy);
+
+		try
+		{
+			aopMetricGatherer.invoke(invocation);
+			Assert.fail();
+		}
+		catch (Exception ex)
+		{
+			Assert.assertEquals(ex, exception);
+		}
+
+		final ArgumentCaptor<MethodCallStatistic> captor = ArgumentCaptor.forClass(MethodCallStatistic.class);
+		verify(logger, times(1)).writeStatistic(captor.capture());
+
+		final MethodCallStatistic statistic = captor.getValue();
+		Assert.assertEquals("ASDF", statistic.getOperationName());
+		Assert.assertEquals(150L, statistic.getDurationNanos());
+		Assert.assertFalse(statistic.isOperationSuccessful());
+		Assert.assertEquals(1.0, statistic.getSampleWeight(), 0.0);
+		Assert.assertEquals(exception.toString(), statistic.getMetaData());
+	}
+
+	/**
+	 * Makes sure that with a dictionary, operations are named by their full signature and carry its ID.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testInvokeWithOperationDictionary() throws Throwable
+	{
+		final AOPMetricGatherer aopMetricGatherer = new AOPMetricGatherer();
+		final OperationDictionary operationDictionary = new OperationDictionary();
+		final MethodInvocation invocation = mock(MethodInvocation.class);
+		final IStatisticsLogger<MethodCallStatistic> logger = mock(IStatisticsLogger.class);
+		final Method method = String.class.getMethod("indexOf", String.class, int.class);
+
+		doReturn(method).when(invocation).getMethod();
+		aopMetricGatherer.setStatisticsLogger(logger);
+		aopMetricGatherer.setOperationDictionary(operationDictionary);
+
+		aopMetricGatherer.invoke(invocation);
+		aopMetricGatherer.invoke(invocation);
+
+		final ArgumentCaptor<MethodCallStatistic> captor = ArgumentCaptor.forClass(MethodCallStatistic.class);
+		verify(logger, times(2)).writeStatistic(captor.capture());
+
+		for (final MethodCallStatistic statistic : captor.getAllValues())
+		{
+			Assert.assertEquals("java.lang.String.indexOf(java.lang.String, int)", statistic.getOperationName());
+			Assert.assertEquals(operationDictionary.getOperationId(method), statistic.getOperationId());
+		}
+
+		// The same name each time, not a new string per call.
+		Assert.assertSame(captor.getAllValues().get(0).getOperationName(), captor.getAllValues().get(1).getOperationName());
+		Assert.assertEquals(1, operationDictionary.size());
+	}
+
+	/**
+	 * Makes sure that calls made through an interface, as through a JDK proxy, are named after the method of the target
+	 * class that runs them, so that implementations of the same interface are told apart.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testInvokeThroughInterface() throws Throwable
+	{
+		final AOPMetricGatherer aopMetricGatherer = new AOPMetricGatherer();
+		final OperationDictionary operationDictionary = new OperationDictionary();
+		final IStatisticsLogger<MethodCallStatistic> logger = mock(IStatisticsLogger.class);
+		final Method method = CharSequence.class.getMethod("length");
+
+		aopMetricGatherer.setStatisticsLogger(logger);
+		aopMetricGatherer.setOperationDictionary(operationDictionary);
+
+		for (final CharSequence target : Arrays.asList("ASDF", new StringBuffer("QWERTY"), "ZXCV"))
+		{
+			final MethodInvocation invocation = mock(MethodInvocation.class);
+			doReturn(method).when(invocation).getMethod();
+			doReturn(target).when(invocation).getThis();
+			aopMetricGatherer.invoke(invocation);
+		}
+
+		final ArgumentCaptor<MethodCallStatistic> captor = ArgumentCaptor.forClass(MethodCallStatistic.class);
+		verify(logger, times(3)).writeStatistic(captor.capture());
+
+		Assert.assertEquals("java.lang.String.length()", captor.getAllValues().get(0).getOperationName());
+		Assert.assertEquals("java.lang.StringBuffer.length()", captor.getAllValues().get(1).getOperationName());
+		Assert.assertEquals(captor.getAllValues().get(0).getOperationId(), captor.getAllValues().get(2).getOperationId());
+		Assert.assertEquals(2, operationDictionary.size());
+	}
+
+	/**
+	 * Makes sure that calls are timed by whatever clock we're given.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testClock() throws Throwable
+	{
+		final AOPMetricGatherer aopMetricGatherer = spy(new AOPMetricGatherer());
+		final MethodInvocation invocation = mock(MethodInvocation.class);
+		final IStatisticsLogger<MethodCallStatistic> logger = mock(IStatisticsLogger.class);
+		final IClock clock = mock(IClock.class);
+
+		doReturn("ASDF").when(aopMetricGatherer).getMethodName(invocation);
+		Mockito.when(clock.currentTimeMillis()).thenReturn(1234L);
+		Mockito.when(clock.nanoTime()).thenReturn(5000L).thenReturn(7000L);
+
+		Assert.assertSame(SystemClock.INSTANCE, aopMetricGatherer.getClock());
+		aopMetricGatherer.setClock(clock);
+		aopMetricGatherer.setStatisticsLogger(logger);
+		aopMetricGatherer.invoke(invocation);
+
+		final ArgumentCaptor<MethodCallStatistic> statistic = ArgumentCaptor.forClass(MethodCallStatistic.class);
+		verify(logger, times(1)).writeStatistic(statistic.capture());
+		Assert.assertEquals(1234L, statistic.getValue().getOperationStartMillis());
+		Assert.assertEquals(2000L, statistic.getValue().getDurationNanos());
+	}
+
+	/**
+	 * Makes sure that a call made from another is traced as its child, and that the outer call's self time leaves out
+	 * the time spent in the inner one.
+	 */
+	@Test
+	public void testSpanTracing() throws Throwable
+	{
+		final AOPMetricGatherer aopMetricGatherer = new AOPMetricGatherer();
+		final MethodInvocation outer = mock(MethodInvocation.class);
+		final MethodInvocation inner = mock(MethodInvocation.class);
+		final IStatisticsLogger<MethodCallStatistic> logger = mock(IStatisticsLogger.class);
+
+		doReturn(String.class.getMethod("trim")).when(outer).getMethod();
+		doReturn(String.class.getMethod("length")).when(inner).getMethod();
+		doReturn(null).when(inner).proceed();
+		Mockito.when(outer.proceed()).thenAnswer(call -> {
+			Thread.sleep(2);
+			return aopMetricGatherer.invoke(inner);
+		});
+
+		aopMetricGatherer.setStatisticsLogger(logger);
+		aopMetricGatherer.setSpanTracing(true);
+		aopMetricGatherer.invoke(outer);
+
+		final ArgumentCaptor<MethodCallStatistic> captor = ArgumentCaptor.forClass(MethodCallStatistic.class);
+		verify(logger, times(2)).writeStatistic(captor.capture());
+
+		// The inner call completes first.
+		final MethodCallStatistic innerStatistic = captor.getAllValues().get(0);
+		final MethodCallStatistic outerStatistic = captor.getAllValues().get(1);
+
+		Assert.assertFalse(outerStatistic.getSpanId() == SpanStack.NO_SPAN);
+		Assert.assertEquals(SpanStack.NO_SPAN, outerStatistic.getParentSpanId());
+		Assert.assertEquals(outerStatistic.getSpanId(), innerStatistic.getParentSpanId());
+		Assert.assertFalse(outerStatistic.getSpanId() == innerStatistic.getSpanId());
+
+		Assert.assertEquals(innerStatistic.getDurationNanos(), innerStatistic.getSelfTimeNanos());
+		Assert.assertEquals(outerStatistic.getDurationNanos() - innerStatistic.getDurationNanos(),
+				outerStatistic.getSelfTimeNanos());
+		Assert.assertTrue(outerStatistic.getSelfTimeNanos() >= 2000000L);
+
+		// Nothing is left on the stack for the next call.
+		Assert.assertEquals(0, SpanStack.current().getDepth());
+	}
+
+	/**
+	 * Makes sure that a call returning a {@link java.util.concurrent.CompletableFuture} is timed until the future
+	 * completes, and is recorded as a failure if it completes exceptionally.
+	 */
+	@Test
+	public void testCompletableFuture() throws Throwable
+	{
+		final AOPMetricGatherer aopMetricGatherer = new AOPMetricGatherer();
+		final MethodInvocation invocation = mock(MethodInvocation.class);
+		final IStatisticsLogger<MethodCallStatistic> logger = mock(IStatisticsLogger.class);
+		final CompletableFuture<String> succeeding = new CompletableFuture<>();
+		final CompletableFuture<String> failing = new CompletableFuture<>();
+
+		doReturn(String.class.getMethod("trim")).when(invocation).getMethod();
+		Mockito.when(invocation.proceed()).thenReturn(succeeding, failing.thenApply(String::trim));
+		aopMetricGatherer.setStatisticsLogger(logger);
+
+		Assert.assertSame(succeeding, aopMetricGatherer.invoke(invocation));
+		aopMetricGatherer.invoke(invocation);
+
+		// Nothing is recorded, and nobody waits, until the futures complete.
+		verify(logger, never()).writeStatistic(any(MethodCallStatistic.class));
+
+		Thread.sleep(5);
+		final Thread completer = new Thread(() -> {
+			succeeding.complete("ASDF");
+			failing.completeExceptionally(new IllegalStateException("The database is on fire."));
+		});
+		completer.start();
+		completer.join();
+
+		final ArgumentCaptor<MethodCallStatistic> captor = ArgumentCaptor.forClass(MethodCallStatistic.class);
+		verify(logger, times(2)).writeStatistic(captor.capture());
+
+		Assert.assertTrue(captor.getAllValues().get(0).isOperationSuccessful());
+		Assert.assertTrue(captor.getAllValues().get(0).getDurationNanos() >= 5000000L);
+
+		// Dependent stages wrap their source's failure; the original is what's recorded.
+		Assert.assertFalse(captor.getAllValues().get(1).isOperationSuccessful());
+		Assert.assertEquals(new IllegalStateException("The database is on fire.").toString(),
+				captor.getAllValues().get(1).getMetaData());
+		Assert.assertEquals(0, aopMetricGatherer.getFailedRecordingCount());
+	}
+
+	/**
+	 * Makes sure that a future with a Guava style <code>addListener(Runnable, Executor)</code> is timed until it
+	 * completes, and that a future completing after we've lost the ability to record is merely counted.
+	 */
+	@Test
+	public void testListenableFuture() throws Throwable
+	{
+		final AOPMetricGatherer aopMetricGatherer = new AOPMetricGatherer();
+		final MethodInvocation invocation = mock(MethodInvocation.class);
+		final IStatisticsLogger<MethodCallStatistic> logger = mock(IStatisticsLogger.class);
+		final ListenableFutureTask<String> future = new ListenableFutureTask<>(() -> {
+			throw new IllegalStateException("Danger Will Robinson.");
+		});
+
+		doReturn(String.class.getMethod("trim")).when(invocation).getMethod();
+		doReturn(future).when(invocation).proceed();
+		aopMetricGatherer.setStatisticsLogger(logger);
+
+		aopMetricGatherer.invoke(invocation);
+		verify(logger, never()).writeStatistic(any(MethodCallStatistic.class));
+
+		future.run();
+
+		final ArgumentCaptor<MethodCallStatistic> captor = ArgumentCaptor.forClass(MethodCallStatistic.class);
+		verify(logger, times(1)).writeStatistic(captor.capture());
+		Assert.assertFalse(captor.getValue().isOperationSuccessful());
+		Assert.assertEquals(new IllegalStateException("Danger Will Robinson.").toString(), captor.getValue().getMetaData());
+
+		// A plain Future can't tell us when it's done, so it's recorded as of its return.
+		doReturn(new FutureTask<>(() -> "ASDF")).when(invocation).proceed();
+		aopMetricGatherer.invoke(invocation);
+		verify(logger, times(2)).writeStatistic(any(MethodCallStatistic.class));
+
+		// Whoever completes the future never sees our logger's failures.
+		final ListenableFutureTask<String> another = new ListenableFutureTask<>(() -> "ASDF");
+		doReturn(another).when(invocation).proceed();
+		aopMetricGatherer.setStatisticsLogger(statistic -> {
+			throw new IllegalStateException("The database is on fire.");
+		});
+		aopMetricGatherer.invoke(invocation);
+		another.run();
+		Assert.assertEquals("ASDF", another.get());
+		Assert.assertEquals(1, aopMetricGatherer.getFailedRecordingCount());
+	}
+
+	/**
+	 * A stand-in for Guava's <code>ListenableFutureTask</code>, which we don't depend on.
+	 *
+	 * @param <T> The type of the result.
+	 */
+	private static final class ListenableFutureTask<T> extends FutureTask<T>
+	{
+		/**
+		 * Holds the listeners to run once we're done.
+		 */
+		private final List<Runnable> _listeners = new ArrayList<>();
+
+		/**
+		 * Creates a task.
+		 *
+		 * @param callable What the task does.
+		 */
+		ListenableFutureTask(final Callable<T> callable)
+		{
+			super(callable);
+		}
+
+		/**
+		 * Runs a listener once we're done, straight away if we already are.
+		 *
+		 * @param listener The listener to run.
+		 * @param executor The executor to run it on.
+		 */
+		public synchronized void addListener(final Runnable listener, final Executor executor)
+		{
+			if (isDone())
+			{
+				executor.execute(listener);
+			}
+			else
+			{
+				_listeners.add(() -> executor.execute(listener));
+			}
+		}
+
+		@Override
+		protected synchronized void done()
+		{
+			_listeners.forEach(Runnable::run);
+		}
+	}
 }
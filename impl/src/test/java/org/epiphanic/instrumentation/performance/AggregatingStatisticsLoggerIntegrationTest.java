@@ -0,0 +1,104 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides a database-connected integration test demonstrating that an {@link
+ * org.epiphanic.instrumentation.performance.AggregatingStatisticsLogger} writes one row per operation per interval to
+ * <code>METHOD_PERFORMANCE_ROLLUP</code>, however many statistics it was given.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+public final class AggregatingStatisticsLoggerIntegrationTest
+{
+	/**
+	 * Holds an instance of the class under test. This is injected from our Spring context set up in our beans file for the
+	 * test.
+	 */
+	@Autowired
+	private AggregatingStatisticsLogger _statisticsLogger;
+
+	/**
+	 * Holds an injected instance of our {@link javax.sql.DataSource} so that we can query our backing store.
+	 */
+	@Autowired
+	private DataSource _dataSource;
+
+	/**
+	 * Holds an instance of {@link org.springframework.jdbc.core.JdbcTemplate} that we create upon test setup, based on our
+	 * injected {@link javax.sql.DataSource}. Useful for querying things.
+	 */
+	private JdbcTemplate _jdbcTemplate;
+
+	/**
+	 * Runs any set up for our unit tests. In this case we create a {@link org.springframework.jdbc.core.JdbcTemplate} for
+	 * testing our database state later.
+	 */
+	@Before
+	public void setUp() throws Exception
+	{
+		_jdbcTemplate = new JdbcTemplate(_dataSource);
+	}
+
+	/**
+	 * Records ten thousand statistics across three operations over two intervals, and makes sure that only six rows come
+	 * out the other end, with the right counts and mergeable sketches in them.
+	 */
+	@Test
+	public void testRollupsWritten() throws Exception
+	{
+		for (int interval = 0; interval < 2; interval++)
+		{
+			for (int i = 0; i < 5000; i++)
+			{
+				final MethodCallStatistic stat = new MethodCallStatistic();
+				stat.setOperationName("operation" + (i % 3));
+				stat.markOperationStart(System.currentTimeMillis(), 0L);
+				stat.markOperationCompletion(1000L + i);
+				stat.setOperationSuccessful(i % 50 != 0);
+
+				_statisticsLogger.writeStatistic(stat);
+			}
+
+			_statisticsLogger.flush();
+		}
+
+		Assert.assertEquals(6, _jdbcTemplate.queryForInt("select count(*) from method_performance_rollup"));
+
+		final Map<String, Object> totals = _jdbcTemplate.queryForMap("select sum(success_count) as successes, "
+				+ "sum(failure_count) as failures, sum(estimated_call_count) as estimated, max(max_nanos) as slowest "
+				+ "from method_performance_rollup");
+
+		Assert.assertEquals(9800L, ((Number)totals.get("SUCCESSES")).longValue());
+		Assert.assertEquals(200L, ((Number)totals.get("FAILURES")).longValue());
+		Assert.assertEquals(10000.0, ((Number)totals.get("ESTIMATED")).doubleValue(), 0.0);
+		Assert.assertEquals(5999L, ((Number)totals.get("SLOWEST")).longValue(), 5999L / LatencyHistogram.SUB_BUCKET_COUNT);
+
+		// The sketches for one operation, across both intervals, should merge to cover all of its calls.
+		final List<byte[]> sketches = _jdbcTemplate.queryForList(
+				"select latency_sketch from method_performance_rollup where operation_name = 'operation0'", byte[].class);
+		Assert.assertEquals(2, sketches.size());
+
+		final DDSketch merged = SketchMerger.merge(sketches);
+		Assert.assertEquals(3334, merged.getCount());
+		Assert.assertEquals(1000.0 + 2499.0, merged.getValueAtQuantile(0.5), 3499.0 * merged.getRelativeAccuracy());
+	}
+}
@@ -0,0 +1,276 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.AggregatingStatisticsLogger}, making sure that statistics
+ * turn into one rollup per operation per interval, and that nothing is lost or counted twice when intervals are
+ * swapped while threads are recording. See {@link
+ * org.epiphanic.instrumentation.performance.AggregatingStatisticsLoggerIntegrationTest} for the database side.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class AggregatingStatisticsLoggerTest
+{
+	/**
+	 * Makes sure that an interval's statistics are summarized correctly, per operation, and that the next interval
+	 * starts from scratch.
+	 */
+	@Test
+	public void testRollupPerOperation() throws Exception
+	{
+		final List<List<MethodCallRollup>> batches = new CopyOnWriteArrayList<>();
+		final AggregatingStatisticsLogger testClass = createLogger(batches);
+
+		for (int i = 1; i <= 100; i++)
+		{
+			testClass.writeStatistic(createStatistic("ASDF", i * 1000L, i % 10 != 0, 2.0));
+		}
+
+		testClass.writeStatistic(createStatistic("QWERTY", 5000L, true, 1.0));
+		testClass.flush();
+
+		Assert.assertEquals(1, batches.size());
+		Assert.assertEquals(2, flatten(batches).size());
+
+		final MethodCallRollup asdf = findRollup(batches, "ASDF");
+		Assert.assertEquals(90, asdf.getSuccessCount());
+		Assert.assertEquals(10, asdf.getFailureCount());
+		Assert.assertEquals(200.0, asdf.getEstimatedCallCount(), 0.0);
+		Assert.assertEquals(5050000L, asdf.getTotalDurationNanos());
+		Assert.assertEquals(50000, asdf.getP50Nanos(), 50000 / LatencyHistogram.SUB_BUCKET_COUNT);
+		Assert.assertEquals(99000, asdf.getP99Nanos(), 99000 / LatencyHistogram.SUB_BUCKET_COUNT);
+		Assert.assertEquals(100000, asdf.getMaxNanos(), 100000 / LatencyHistogram.SUB_BUCKET_COUNT);
+		Assert.assertEquals(1000, asdf.getMinNanos(), 1000 / LatencyHistogram.SUB_BUCKET_COUNT);
+		Assert.assertFalse(asdf.getIntervalEnd().before(asdf.getIntervalStart()));
+
+		Assert.assertEquals(1, findRollup(batches, "QWERTY").getSuccessCount());
+
+		// An empty interval writes nothing, and the next one only has what's new.
+		testClass.flush();
+		Assert.assertEquals(1, batches.size());
+
+		testClass.writeStatistic(createStatistic("QWERTY", 5000L, true, 1.0));
+		testClass.flush();
+		Assert.assertEquals(2, batches.size());
+		Assert.assertEquals(1, batches.get(1).size());
+		Assert.assertEquals(1, batches.get(1).get(0).getSuccessCount());
+		Assert.assertFalse(batches.get(1).get(0).getIntervalStart().before(asdf.getIntervalEnd()));
+	}
+
+	/**
+	 * Makes sure that the intervals of operations no longer being called are dropped once they've sat empty for a whole
+	 * interval, and come back when they're called again.
+	 */
+	@Test
+	public void testIdleIntervalsDropped() throws Exception
+	{
+		final List<List<MethodCallRollup>> batches = new CopyOnWriteArrayList<>();
+		final AggregatingStatisticsLogger testClass = createLogger(batches);
+
+		for (int i = 0; i < 3; i++)
+		{
+			testClass.writeStatistic(createStatistic("ASDF", 1000L, true, 1.0));
+			testClass.writeStatistic(createStatistic("QWERTY", 1000L, true, 1.0));
+			testClass.flush();
+		}
+
+		// Both operations have an interval in each set.
+		Assert.assertEquals(4, testClass.getIntervalCount());
+
+		testClass.writeStatistic(createStatistic("ASDF", 1000L, true, 1.0));
+		testClass.flush();
+		Assert.assertEquals(3, testClass.getIntervalCount());
+
+		testClass.flush();
+		Assert.assertEquals(1, testClass.getIntervalCount());
+
+		testClass.flush();
+		Assert.assertEquals(0, testClass.getIntervalCount());
+
+		testClass.writeStatistic(createStatistic("QWERTY", 1000L, true, 1.0));
+		testClass.flush();
+		Assert.assertEquals(1, testClass.getIntervalCount());
+		Assert.assertEquals(5, batches.size());
+		Assert.assertEquals("QWERTY", batches.get(4).get(0).getOperationName());
+		Assert.assertEquals(1, batches.get(4).get(0).getSuccessCount());
+	}
+
+	/**
+	 * Makes sure that recorded statistics go back to their pool.
+	 */
+	@Test
+	public void testStatisticsRecycled() throws Exception
+	{
+		final MethodCallStatisticPool pool = new MethodCallStatisticPool(4);
+		final AggregatingStatisticsLogger testClass = createLogger(new CopyOnWriteArrayList<List<MethodCallRollup>>());
+
+		final MethodCallStatistic statistic = pool.acquire();
+		statistic.setOperationName("ASDF");
+		testClass.writeStatistic(statistic);
+
+		Assert.assertEquals(1, pool.getIdleCount());
+	}
+
+	/**
+	 * Hammers the logger from several threads while flushing as fast as we can, making sure that every statistic lands
+	 * in exactly one rollup.
+	 */
+	@Test
+	public void testConcurrentRecordingAndFlushing() throws Exception
+	{
+		final List<List<MethodCallRollup>> batches = new CopyOnWriteArrayList<>();
+		final AggregatingStatisticsLogger testClass = createLogger(batches);
+
+		final int threads = 4;
+		final int statisticsPerThread = 50000;
+		final AtomicBoolean done = new AtomicBoolean();
+		final Thread[] workers = new Thread[threads];
+
+		for (int t = 0; t < threads; t++)
+		{
+			final String operationName = "operation" + (t % 2);
+			workers[t] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < statisticsPerThread; i++)
+					{
+						testClass.writeStatistic(createStatistic(operationName, i, i % 100 != 0, 1.0));
+					}
+				}
+			});
+			workers[t].start();
+		}
+
+		final Thread flusher = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while (!done.get())
+				{
+					try
+					{
+						testClass.flush();
+					}
+					catch (final Exception ex)
+					{
+						throw new IllegalStateException(ex);
+					}
+				}
+			}
+		});
+		flusher.start();
+
+		for (final Thread worker : workers)
+		{
+			worker.join();
+		}
+
+		done.set(true);
+		flusher.join();
+		testClass.stop();
+
+		long successes = 0;
+		long failures = 0;
+
+		for (final MethodCallRollup rollup : flatten(batches))
+		{
+			successes += rollup.getSuccessCount();
+			failures += rollup.getFailureCount();
+		}
+
+		Assert.assertEquals(threads * statisticsPerThread / 100, failures);
+		Assert.assertEquals(threads * statisticsPerThread, successes + failures);
+		Assert.assertTrue(batches.size() > 1);
+	}
+
+	/**
+	 * Creates a statistic to record.
+	 *
+	 * @param operationName The name of the operation.
+	 * @param durationNanos How long the call took.
+	 * @param successful Whether the call succeeded.
+	 * @param sampleWeight How many calls it stands for.
+	 *
+	 * @return A new statistic.
+	 */
+	private static MethodCallStatistic createStatistic(final String operationName, final long durationNanos,
+			final boolean successful, final double sampleWeight)
+	{
+		final MethodCallStatistic statistic = new MethodCallStatistic();
+		statistic.setOperationName(operationName);
+		statistic.markOperationStart(System.currentTimeMillis(), 0L);
+		statistic.markOperationCompletion(durationNanos);
+		statistic.setOperationSuccessful(successful);
+		statistic.setSampleWeight(sampleWeight);
+		return statistic;
+	}
+
+	/**
+	 * Creates a logger whose rollup writer records the batches it's given.
+	 *
+	 * @param batches The list to record batches in.
+	 *
+	 * @return A configured, unstarted logger.
+	 */
+	private static AggregatingStatisticsLogger createLogger(final List<List<MethodCallRollup>> batches)
+	{
+		final AggregatingStatisticsLogger logger = new AggregatingStatisticsLogger();
+		logger.setRollupWriter(batch -> batches.add(new ArrayList<>(batch)));
+		return logger;
+	}
+
+	/**
+	 * Gets every rollup written, across all batches.
+	 *
+	 * @param batches The batches written.
+	 *
+	 * @return Every rollup, in order.
+	 */
+	private static List<MethodCallRollup> flatten(final List<List<MethodCallRollup>> batches)
+	{
+		final List<MethodCallRollup> rollups = new ArrayList<>();
+
+		for (final List<MethodCallRollup> batch : batches)
+		{
+			rollups.addAll(batch);
+		}
+
+		return rollups;
+	}
+
+	/**
+	 * Finds the rollup written for an operation.
+	 *
+	 * @param batches The batches written.
+	 * @param operationName The name of the operation.
+	 *
+	 * @return The first rollup for the operation, or <code>null</code> if there isn't one.
+	 */
+	private static MethodCallRollup findRollup(final List<List<MethodCallRollup>> batches, final String operationName)
+	{
+		for (final MethodCallRollup rollup : flatten(batches))
+		{
+			if (rollup.getOperationName().equals(operationName))
+			{
+				return rollup;
+			}
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.BatchingWriteOperationFactory}, making sure batches are
+ * written when they fill up, when they get stale, and when the factory is stopped.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class BatchingWriteOperationFactoryTest
+{
+	/**
+	 * Makes sure that a full batch gets written immediately, and a partial batch waits.
+	 */
+	@Test
+	public void testSizeTriggeredFlush() throws Exception
+	{
+		final List<List<MethodCallStatistic>> batches = new CopyOnWriteArrayList<>();
+		final BatchingWriteOperationFactory<MethodCallStatistic> testClass = createFactory(batches, 3, 60000);
+
+		for (int i = 0; i < 7; i++)
+		{
+			testClass.createWriteOperation(new MethodCallStatistic()).call();
+		}
+
+		Assert.assertEquals(2, batches.size());
+		Assert.assertEquals(3, batches.get(0).size());
+		Assert.assertEquals(3, batches.get(1).size());
+		Assert.assertEquals(1, testClass.getPendingStatisticCount());
+
+		// Stopping should flush our straggler.
+		testClass.stop();
+
+		Assert.assertEquals(3, batches.size());
+		Assert.assertEquals(1, batches.get(2).size());
+		Assert.assertEquals(0, testClass.getPendingStatisticCount());
+	}
+
+	/**
+	 * Makes sure that a partial batch gets written once it's waited for the flush interval.
+	 */
+	@Test
+	public void testTimeTriggeredFlush() throws Exception
+	{
+		final List<List<MethodCallStatistic>> batches = new CopyOnWriteArrayList<>();
+		final BatchingWriteOperationFactory<MethodCallStatistic> testClass = createFactory(batches, 100, 50);
+		testClass.start();
+
+		testClass.createWriteOperation(new MethodCallStatistic()).call();
+		testClass.createWriteOperation(new MethodCallStatistic()).call();
+
+		// Give the timer plenty of time to notice.
+		final long deadline = System.currentTimeMillis() + 5000;
+
+		while (batches.isEmpty() && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+
+		Assert.assertEquals(1, batches.size());
+		Assert.assertEquals(2, batches.get(0).size());
+
+		testClass.stop();
+		Assert.assertEquals(1, batches.size());
+	}
+
+	/**
+	 * Makes sure that a batch our timer fails to write goes to the fallback writer if there is one, and is counted as
+	 * lost otherwise.
+	 */
+	@Test
+	public void testFailedTimerFlush() throws Exception
+	{
+		final List<List<MethodCallStatistic>> fallbackBatches = new CopyOnWriteArrayList<>();
+		final BatchingWriteOperationFactory<MethodCallStatistic> testClass = createFactory(null, 100, 50);
+		testClass.setBatchWriter(batch -> {
+			throw new IllegalStateException("Simulated database failure");
+		});
+		testClass.setFallbackBatchWriter(batch -> fallbackBatches.add(new ArrayList<>(batch)));
+		testClass.start();
+
+		testClass.createWriteOperation(new MethodCallStatistic()).call();
+		testClass.createWriteOperation(new MethodCallStatistic()).call();
+		awaitFailedFlushes(testClass, 1);
+
+		Assert.assertEquals(1, fallbackBatches.size());
+		Assert.assertEquals(2, fallbackBatches.get(0).size());
+		Assert.assertEquals(0, testClass.getLostStatisticCount());
+
+		// Without a fallback, the batch can only be counted.
+		testClass.setFallbackBatchWriter(null);
+		testClass.createWriteOperation(new MethodCallStatistic()).call();
+		awaitFailedFlushes(testClass, 2);
+
+		Assert.assertEquals(1, fallbackBatches.size());
+		Assert.assertEquals(1, testClass.getLostStatisticCount());
+		testClass.stop();
+	}
+
+	/**
+	 * Makes sure that a full batch the batch writer fails to write goes to the fallback writer without failing the write
+	 * operation, and that without a fallback it's counted as lost, recycled and thrown.
+	 */
+	@Test
+	public void testFailedSizeFlush() throws Exception
+	{
+		final List<List<MethodCallStatistic>> fallbackBatches = new CopyOnWriteArrayList<>();
+		final BatchingWriteOperationFactory<MethodCallStatistic> testClass = createFactory(null, 2, 60000);
+		testClass.setBatchWriter(batch -> {
+			throw new IllegalStateException("Simulated database failure");
+		});
+		testClass.setFallbackBatchWriter(batch -> fallbackBatches.add(new ArrayList<>(batch)));
+
+		testClass.createWriteOperation(new MethodCallStatistic()).call();
+		testClass.createWriteOperation(new MethodCallStatistic()).call();
+
+		Assert.assertEquals(1, fallbackBatches.size());
+		Assert.assertEquals(1, testClass.getFailedFlushCount());
+		Assert.assertEquals(0, testClass.getLostStatisticCount());
+
+		final MethodCallStatisticPool pool = new MethodCallStatisticPool(4);
+		testClass.setFallbackBatchWriter(null);
+		testClass.createWriteOperation(pool.acquire()).call();
+
+		try
+		{
+			testClass.createWriteOperation(pool.acquire()).call();
+			Assert.fail("A batch written nowhere should fail its write operation.");
+		}
+		catch (final IllegalStateException ex)
+		{
+			// Expected.
+		}
+
+		Assert.assertEquals(2, testClass.getFailedFlushCount());
+		Assert.assertEquals(2, testClass.getLostStatisticCount());
+		Assert.assertEquals(2, pool.getIdleCount());
+	}
+
+	/**
+	 * Waits for the factory's timer to fail a number of flushes.
+	 *
+	 * @param factory The factory to watch.
+	 * @param failedFlushes The number of failed flushes to wait for.
+	 */
+	private static void awaitFailedFlushes(final BatchingWriteOperationFactory<MethodCallStatistic> factory,
+			final long failedFlushes) throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + 5000;
+
+		while (factory.getFailedFlushCount() < failedFlushes && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+
+		Assert.assertEquals(failedFlushes, factory.getFailedFlushCount());
+	}
+
+	/**
+	 * Creates a factory whose batch writer records the batches it's given.
+	 *
+	 * @param batches The list to record batches in.
+	 * @param batchSize The batch size to use.
+	 * @param flushIntervalMillis The flush interval to use.
+	 *
+	 * @return A configured, unstarted factory.
+	 */
+	private BatchingWriteOperationFactory<MethodCallStatistic> createFactory(final List<List<MethodCallStatistic>> batches,
+																			 final int batchSize,
+																			 final long flushIntervalMillis)
+	{
+		final BatchingWriteOperationFactory<MethodCallStatistic> factory = new BatchingWriteOperationFactory<>();
+
+		factory.setBatchSize(batchSize);
+		factory.setFlushIntervalMillis(flushIntervalMillis);
+		factory.setBatchWriter(batch -> batches.add(new ArrayList<>(batch)));
+
+		return factory;
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.CachedClock}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class CachedClockTest
+{
+	/**
+	 * Makes sure that readings keep up with the system clocks while started, never go backwards, and stand still once
+	 * stopped.
+	 */
+	@Test
+	public void testTicking() throws Exception
+	{
+		final CachedClock testClass = new CachedClock();
+		testClass.setTickMicros(100);
+		testClass.start();
+
+		try
+		{
+			final long startNanos = testClass.nanoTime();
+			final long startMillis = testClass.currentTimeMillis();
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+			long previous = startNanos;
+
+			while (System.nanoTime() < deadline)
+			{
+				final long reading = testClass.nanoTime();
+				Assert.assertTrue(reading >= previous);
+				previous = reading;
+			}
+
+			Thread.sleep(5);
+			Assert.assertTrue(testClass.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(20));
+			Assert.assertTrue(testClass.currentTimeMillis() > startMillis);
+			Assert.assertTrue(Math.abs(System.nanoTime() - testClass.nanoTime()) < TimeUnit.SECONDS.toNanos(1));
+			Assert.assertTrue(Math.abs(System.currentTimeMillis() - testClass.currentTimeMillis()) < 1000);
+		}
+		finally
+		{
+			testClass.stop();
+		}
+
+		final long stoppedNanos = testClass.nanoTime();
+		Thread.sleep(5);
+		Assert.assertEquals(stoppedNanos, testClass.nanoTime());
+
+		// Stopping twice is harmless, and a stopped clock can be started again.
+		testClass.stop();
+		testClass.start();
+		testClass.stop();
+	}
+
+	/**
+	 * Makes sure a tick has to take some time.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testTickMustBePositive()
+	{
+		new CachedClock().setTickMicros(0);
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.ConcurrentRingBuffer}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class ConcurrentRingBufferTest
+{
+	/**
+	 * Makes sure that we round our capacity up to a power of two.
+	 */
+	@Test
+	public void testCapacityRoundsUp()
+	{
+		Assert.assertEquals(8, new ConcurrentRingBuffer<Integer>(5).capacity());
+		Assert.assertEquals(8, new ConcurrentRingBuffer<Integer>(8).capacity());
+		Assert.assertEquals(1, new ConcurrentRingBuffer<Integer>(1).capacity());
+	}
+
+	/**
+	 * Makes sure that a single thread sees entries in FIFO order, and that we correctly report full and empty.
+	 */
+	@Test
+	public void testOfferAndPoll()
+	{
+		final ConcurrentRingBuffer<Integer> ringBuffer = new ConcurrentRingBuffer<>(4);
+
+		Assert.assertNull(ringBuffer.poll());
+
+		// Go around the ring a few times to make sure slots get reused properly.
+		for (int lap = 0; lap < 3; lap++)
+		{
+			for (int i = 0; i < 4; i++)
+			{
+				Assert.assertTrue(ringBuffer.offer(i));
+			}
+
+			Assert.assertFalse(ringBuffer.offer(42));
+			Assert.assertEquals(4, ringBuffer.size());
+
+			for (int i = 0; i < 4; i++)
+			{
+				Assert.assertEquals(Integer.valueOf(i), ringBuffer.poll());
+			}
+
+			Assert.assertNull(ringBuffer.poll());
+			Assert.assertEquals(0, ringBuffer.size());
+		}
+	}
+
+	/**
+	 * Hammers the buffer with many producers and a single consumer, making sure that every entry makes it through exactly
+	 * once.
+	 */
+	@Test
+	public void testManyProducersSingleConsumer() throws Exception
+	{
+		final int producerCount = 32;
+		final int entriesPerProducer = 20000;
+		final ConcurrentRingBuffer<Integer> ringBuffer = new ConcurrentRingBuffer<>(1024);
+		final CountDownLatch startingGun = new CountDownLatch(1);
+		final List<Thread> producers = new ArrayList<>();
+
+		for (int p = 0; p < producerCount; p++)
+		{
+			final int producer = p;
+			final Thread thread = new Thread(() -> {
+				try
+				{
+					startingGun.await();
+				}
+				catch (final InterruptedException ex)
+				{
+					return;
+				}
+
+				for (int i = 0; i < entriesPerProducer; i++)
+				{
+					while (!ringBuffer.offer(producer * entriesPerProducer + i))
+					{
+						Thread.yield();
+					}
+				}
+			});
+
+			thread.start();
+			producers.add(thread);
+		}
+
+		startingGun.countDown();
+
+		// Consume on this thread, checking each entry only shows up once.
+		final boolean[] seen = new boolean[producerCount * entriesPerProducer];
+		int consumed = 0;
+
+		while (consumed < seen.length)
+		{
+			final Integer entry = ringBuffer.poll();
+
+			if (entry == null)
+			{
+				Thread.yield();
+				continue;
+			}
+
+			Assert.assertFalse(seen[entry]);
+			seen[entry] = true;
+			consumed++;
+		}
+
+		for (final Thread producer : producers)
+		{
+			producer.join();
+		}
+
+		Assert.assertNull(ringBuffer.poll());
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.ConnectionLimitingBatchWriter}, along with the executors
+ * from {@link org.epiphanic.instrumentation.performance.WriterExecutors} it's meant to be used with.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class ConnectionLimitingBatchWriterTest
+{
+	/**
+	 * Makes sure that however many threads write at once, no more than the allowed number of batches are written
+	 * concurrently, and that every batch is written in the end.
+	 */
+	@Test
+	public void testConcurrencyIsBounded() throws Exception
+	{
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger peak = new AtomicInteger();
+		final AtomicInteger written = new AtomicInteger();
+
+		final ConnectionLimitingBatchWriter<String> testClass = new ConnectionLimitingBatchWriter<>();
+		testClass.setMaxConcurrentWrites(3);
+		testClass.setBatchWriter(batch -> {
+			peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+			Thread.sleep(2);
+			active.decrementAndGet();
+			written.addAndGet(batch.size());
+		});
+
+		final ExecutorService executor = WriterExecutors.newWriterExecutor(16);
+
+		try
+		{
+			final List<Future<?>> writes = new ArrayList<>();
+
+			for (int i = 0; i < 64; i++)
+			{
+				writes.add(executor.submit(() -> {
+					testClass.writeBatch(Collections.singletonList("ASDF"));
+					return null;
+				}));
+			}
+
+			for (final Future<?> write : writes)
+			{
+				write.get(10, TimeUnit.SECONDS);
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		Assert.assertEquals(64, written.get());
+		Assert.assertTrue(peak.get() <= 3);
+		Assert.assertEquals(0, testClass.getActiveWriteCount());
+		Assert.assertEquals(0, testClass.getTimedOutBatchCount());
+	}
+
+	/**
+	 * Makes sure that a writer gives up once it has waited long enough, and that a failed write gives its permit back.
+	 */
+	@Test
+	public void testTimeout() throws Exception
+	{
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final ConnectionLimitingBatchWriter<String> testClass = new ConnectionLimitingBatchWriter<>();
+		testClass.setMaxConcurrentWrites(1);
+		testClass.setAcquireTimeoutMillis(10);
+		testClass.setBatchWriter(batch -> {
+			writing.countDown();
+			release.await();
+			throw new IllegalStateException("The database is on fire.");
+		});
+
+		final Thread holder = new Thread(() -> {
+			try
+			{
+				testClass.writeBatch(Collections.singletonList("ASDF"));
+			}
+			catch (final Exception ex)
+			{
+				// Expected.
+			}
+		});
+		holder.start();
+		writing.await();
+		Assert.assertEquals(1, testClass.getActiveWriteCount());
+
+		try
+		{
+			testClass.writeBatch(Collections.singletonList("QWERTY"));
+			Assert.fail();
+		}
+		catch (final TimeoutException ex)
+		{
+			// Expected.
+		}
+
+		Assert.assertEquals(1, testClass.getTimedOutBatchCount());
+
+		release.countDown();
+		holder.join();
+		Assert.assertEquals(0, testClass.getActiveWriteCount());
+	}
+
+	/**
+	 * Makes sure that the writer executor runs on virtual threads where the JVM has them, and on our own named daemon
+	 * threads where it doesn't.
+	 */
+	@Test
+	public void testWriterExecutor() throws Exception
+	{
+		final ExecutorService executor = WriterExecutors.newWriterExecutor(2);
+
+		try
+		{
+			final Thread thread = executor.submit(Thread::currentThread).get();
+			Assert.assertTrue(thread.getName().startsWith(WriterExecutors.THREAD_NAME_PREFIX));
+
+			if (WriterExecutors.isVirtualThreadSupported())
+			{
+				final Method isVirtual = Thread.class.getMethod("isVirtual");
+				Assert.assertEquals(Boolean.TRUE, isVirtual.invoke(thread));
+			}
+			else
+			{
+				Assert.assertTrue(thread.isDaemon());
+
+				try
+				{
+					WriterExecutors.newVirtualThreadExecutor();
+					Assert.fail();
+				}
+				catch (final UnsupportedOperationException ex)
+				{
+					// Expected.
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+}
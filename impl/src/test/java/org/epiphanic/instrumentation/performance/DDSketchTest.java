@@ -0,0 +1,247 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.DDSketch} and {@link
+ * org.epiphanic.instrumentation.performance.SketchMerger} against exact quantiles on synthetic distributions, making
+ * sure the relative error bound holds both for single sketches and for sketches merged from their serialized forms.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class DDSketchTest
+{
+	/**
+	 * Holds the quantiles we check.
+	 */
+	private static final double[] QUANTILES = {0.0, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 1.0};
+
+	/**
+	 * Makes sure that quantiles of uniformly distributed values are within our bound.
+	 */
+	@Test
+	public void testUniformAccuracy()
+	{
+		final Random random = new Random(1L);
+		final long[] values = new long[100000];
+
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = 1 + random.nextInt(10000000);
+		}
+
+		assertAccurate(values, 0.01);
+	}
+
+	/**
+	 * Makes sure that quantiles of exponentially distributed values are within our bound.
+	 */
+	@Test
+	public void testExponentialAccuracy()
+	{
+		final Random random = new Random(2L);
+		final long[] values = new long[100000];
+
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = (long)(-250000.0 * Math.log(1.0 - random.nextDouble()));
+		}
+
+		assertAccurate(values, 0.01);
+	}
+
+	/**
+	 * Makes sure that quantiles of a heavy-tailed distribution, spanning many orders of magnitude, are within our bound,
+	 * including at a coarser accuracy.
+	 */
+	@Test
+	public void testParetoAccuracy()
+	{
+		final Random random = new Random(3L);
+		final long[] values = new long[100000];
+
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = (long)(1000.0 / Math.pow(1.0 - random.nextDouble(), 1.0 / 1.1));
+		}
+
+		assertAccurate(values, 0.01);
+		assertAccurate(values, 0.05);
+	}
+
+	/**
+	 * Makes sure that sketches built on separate nodes, serialized and merged, answer exactly as one sketch that saw
+	 * everything would, and that the answer is within our bound of the exact quantiles of the union.
+	 */
+	@Test
+	public void testMergeAcrossNodes()
+	{
+		final Random random = new Random(4L);
+		final int nodes = 10;
+		final long[] values = new long[nodes * 20000];
+		final DDSketch everything = new DDSketch();
+		final List<byte[]> serialized = new ArrayList<>();
+
+		for (int node = 0; node < nodes; node++)
+		{
+			// Each node sees a different latency profile.
+			final DDSketch sketch = new DDSketch();
+			final double mean = 10000.0 * (node + 1);
+
+			for (int i = 0; i < 20000; i++)
+			{
+				final long value = (long)(-mean * Math.log(1.0 - random.nextDouble()));
+				values[node * 20000 + i] = value;
+				sketch.recordValue(value);
+				everything.recordValue(value);
+			}
+
+			serialized.add(sketch.toByteArray());
+		}
+
+		serialized.add(null);
+		final DDSketch merged = SketchMerger.merge(serialized);
+
+		Assert.assertEquals(values.length, merged.getCount());
+
+		for (final double quantile : QUANTILES)
+		{
+			Assert.assertEquals(everything.getValueAtQuantile(quantile), merged.getValueAtQuantile(quantile), 0.0);
+		}
+
+		assertWithinBound(values, merged);
+
+		// And again, through rollups.
+		final List<MethodCallRollup> rollups = new ArrayList<>();
+
+		for (final byte[] sketch : serialized)
+		{
+			final MethodCallRollup rollup = new MethodCallRollup();
+			rollup.setLatencySketch(sketch);
+			rollups.add(rollup);
+		}
+
+		Assert.assertEquals(values.length, SketchMerger.mergeRollups(rollups).getCount());
+		Assert.assertNull(SketchMerger.merge(new ArrayList<byte[]>()));
+	}
+
+	/**
+	 * Makes sure that a sketch survives serialization unchanged, and that the serialized form is compact.
+	 */
+	@Test
+	public void testSerialization()
+	{
+		final Random random = new Random(5L);
+		final DDSketch testClass = new DDSketch();
+
+		testClass.recordValue(0L);
+		testClass.recordValue(-3L);
+
+		// Latencies between 100 microseconds and 10 milliseconds.
+		for (int i = 0; i < 100000; i++)
+		{
+			testClass.recordValue((long)(100000.0 * Math.pow(100.0, random.nextDouble())));
+		}
+
+		final byte[] serialized = testClass.toByteArray();
+		final DDSketch copy = DDSketch.fromByteArray(serialized);
+
+		Assert.assertEquals(testClass.getRelativeAccuracy(), copy.getRelativeAccuracy(), 0.0);
+		Assert.assertEquals(testClass.getCount(), copy.getCount());
+		Assert.assertEquals(0.0, copy.getValueAtQuantile(0.0), 0.0);
+		Assert.assertArrayEquals(serialized, copy.toByteArray());
+
+		for (final double quantile : QUANTILES)
+		{
+			Assert.assertEquals(testClass.getValueAtQuantile(quantile), copy.getValueAtQuantile(quantile), 0.0);
+		}
+
+		// Two orders of magnitude is about 230 bins at one percent, at a few bytes each.
+		Assert.assertTrue("Serialized size was " + serialized.length, serialized.length < 1024);
+
+		testClass.reset();
+		Assert.assertEquals(0, testClass.getCount());
+		Assert.assertEquals(0.0, testClass.getValueAtQuantile(0.5), 0.0);
+	}
+
+	/**
+	 * Makes sure that sketches whose bins don't line up refuse to merge.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testIncompatibleMerge()
+	{
+		new DDSketch(0.01).merge(new DDSketch(0.02).toByteArray());
+	}
+
+	/**
+	 * Makes sure that a truncated sketch is refused rather than half-merged silently.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testTruncatedSketch()
+	{
+		final DDSketch sketch = new DDSketch();
+		sketch.recordValue(12345L);
+		sketch.recordValue(67890L);
+
+		final byte[] serialized = sketch.toByteArray();
+		DDSketch.fromByteArray(Arrays.copyOf(serialized, serialized.length - 1));
+	}
+
+	/**
+	 * Records values in a sketch of the given accuracy, and checks every quantile we care about against the exact answer.
+	 *
+	 * @param values The values to record.
+	 * @param relativeAccuracy The accuracy of the sketch.
+	 */
+	private static void assertAccurate(final long[] values, final double relativeAccuracy)
+	{
+		final DDSketch sketch = new DDSketch(relativeAccuracy);
+
+		for (final long value : values)
+		{
+			sketch.recordValue(value);
+		}
+
+		Assert.assertEquals(values.length, sketch.getCount());
+		assertWithinBound(values, sketch);
+	}
+
+	/**
+	 * Checks a sketch's quantiles against the exact quantiles of the values it recorded.
+	 *
+	 * @param values The values recorded.
+	 * @param sketch The sketch they were recorded in.
+	 */
+	private static void assertWithinBound(final long[] values, final DDSketch sketch)
+	{
+		final long[] sorted = values.clone();
+		Arrays.sort(sorted);
+
+		for (final double quantile : QUANTILES)
+		{
+			final long exact = sorted[(int)Math.floor(quantile * (sorted.length - 1))];
+			final double estimate = sketch.getValueAtQuantile(quantile);
+
+			if (exact < 1)
+			{
+				Assert.assertEquals(0.0, estimate, 0.0);
+			}
+			else
+			{
+				// Allow a hair over the bound for floating point.
+				Assert.assertEquals("Quantile " + quantile, exact, estimate, exact * sketch.getRelativeAccuracy() * 1.0000001);
+			}
+		}
+	}
+}
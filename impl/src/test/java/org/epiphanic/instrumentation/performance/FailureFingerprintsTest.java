@@ -0,0 +1,176 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests how our {@link org.epiphanic.instrumentation.performance.FailureFingerprints} tell failures apart, in memory.
+ * See {@link org.epiphanic.instrumentation.performance.JdbcBatchWriterIntegrationTest} for the table.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class FailureFingerprintsTest
+{
+	/**
+	 * Makes sure that numbers and quoted literals are normalized away, and apostrophes aren't taken for quotes.
+	 */
+	@Test
+	public void testNormalize()
+	{
+		Assert.assertEquals("ORA-#: unique constraint (?) violated for id #",
+				FailureFingerprints.normalize("ORA-00001: unique constraint ('ORDERS_PK') violated for id 1234567"));
+		Assert.assertEquals("Value ? isn't valid", FailureFingerprints.normalize("Value \"abc 12\" isn't valid"));
+		Assert.assertEquals("Unbalanced 'quote #", FailureFingerprints.normalize("Unbalanced 'quote 7"));
+	}
+
+	/**
+	 * Makes sure that failures differing only in the values they mention share a fingerprint, and failures of different
+	 * classes or from different places don't.
+	 */
+	@Test
+	public void testRecordFailure()
+	{
+		final FailureFingerprints testClass = new FailureFingerprints();
+
+		// Only the top frame, which is where the failure was thrown; its callers differ from line to line here.
+		testClass.setStackFrames(1);
+
+		final long first = testClass.recordFailure(failed(createFailure("Duplicate order 1.")));
+		final long second = testClass.recordFailure(failed(createFailure("Duplicate order 2.")));
+		final long otherClass = testClass.recordFailure(failed(new IllegalArgumentException("Duplicate order 1.")));
+		final long otherPlace = testClass.recordFailure(failed(new IllegalStateException("Duplicate order 1.")));
+
+		Assert.assertTrue(first != FailureFingerprints.NO_FINGERPRINT);
+		Assert.assertEquals(first, second);
+		Assert.assertTrue(first != otherClass);
+		Assert.assertTrue(first != otherPlace);
+		Assert.assertEquals(3, testClass.size());
+
+		// Rendered metadata is fingerprinted by its text.
+		final MethodCallStatistic replayed = new MethodCallStatistic();
+		replayed.setOperationSuccessful(false);
+		replayed.setMetaData("java.lang.IllegalStateException: Duplicate order 3.");
+		Assert.assertEquals(FailureFingerprints.fingerprint("java.lang.IllegalStateException: Duplicate order #."),
+				testClass.recordFailure(replayed));
+
+		// Successes and bare failures have nothing to fingerprint.
+		final MethodCallStatistic success = new MethodCallStatistic();
+		success.setOperationSuccessful(true);
+		success.setMetaData("Not a failure.");
+		Assert.assertEquals(FailureFingerprints.NO_FINGERPRINT, testClass.recordFailure(success));
+
+		final MethodCallStatistic bare = new MethodCallStatistic();
+		bare.setOperationSuccessful(false);
+		Assert.assertEquals(FailureFingerprints.NO_FINGERPRINT, testClass.recordFailure(bare));
+	}
+
+	/**
+	 * Makes sure that only the most recently seen fingerprints are kept, and that one forgotten comes back with the same
+	 * ID.
+	 */
+	@Test
+	public void testCapacity()
+	{
+		final FailureFingerprints testClass = new FailureFingerprints();
+		testClass.setCapacity(2);
+		testClass.setStackFrames(1);
+
+		final long first = testClass.recordFailure(failed(createFailure("First.")));
+		testClass.recordFailure(failed(createFailure("Second.")));
+		testClass.recordFailure(failed(createFailure("Third.")));
+		Assert.assertEquals(2, testClass.size());
+
+		Assert.assertEquals(first, testClass.recordFailure(failed(createFailure("First."))));
+		Assert.assertEquals(2, testClass.size());
+
+		try
+		{
+			testClass.setCapacity(0);
+			Assert.fail("A zero capacity should be refused.");
+		}
+		catch (final IllegalArgumentException ex)
+		{
+			// Expected.
+		}
+	}
+
+	/**
+	 * Makes sure that a fingerprint inserted by another node between our update and our insert is updated instead, and
+	 * doesn't fail the rest.
+	 */
+	@Test
+	public void testInsertedElsewhere() throws Exception
+	{
+		final DataSource dataSource = mock(DataSource.class);
+		final Connection connection = mock(Connection.class);
+		final PreparedStatement update = mock(PreparedStatement.class);
+		final PreparedStatement insert = mock(PreparedStatement.class);
+		final Savepoint savepoint = mock(Savepoint.class);
+
+		doReturn(connection).when(dataSource).getConnection();
+		doReturn(update).when(connection).prepareStatement(FailureFingerprints.UPDATE_SQL);
+		doReturn(insert).when(connection).prepareStatement(FailureFingerprints.INSERT_SQL);
+		doReturn(savepoint).when(connection).setSavepoint(FailureFingerprints.SAVEPOINT_NAME);
+
+		// Not there to update at first, then there after all.
+		doReturn(0).doReturn(1).when(update).executeUpdate();
+		doThrow(new SQLException("Unique constraint violated.", "23505")).when(insert).executeUpdate();
+
+		final FailureFingerprints testClass = new FailureFingerprints();
+		testClass.setDataSource(dataSource);
+		testClass.recordFailure(failed(createFailure("Inserted elsewhere.")));
+
+		Assert.assertEquals(1, testClass.persist());
+
+		verify(connection).rollback(savepoint);
+		verify(connection).commit();
+		verify(update, times(2)).executeUpdate();
+
+		// Persisted, so there's nothing left to write.
+		Assert.assertEquals(0, testClass.persist());
+	}
+
+	/**
+	 * Creates a failure, always from the same place.
+	 *
+	 * @param message The failure's message.
+	 *
+	 * @return A new {@link IllegalStateException}.
+	 */
+	private static IllegalStateException createFailure(final String message)
+	{
+		return new IllegalStateException(message);
+	}
+
+	/**
+	 * Creates a failed statistic.
+	 *
+	 * @param failure Why it failed.
+	 *
+	 * @return A new statistic.
+	 */
+	private static MethodCallStatistic failed(final Throwable failure)
+	{
+		final MethodCallStatistic statistic = new MethodCallStatistic();
+		statistic.setOperationSuccessful(false);
+		statistic.setFailure(failure, new FailureFormatter());
+		return statistic;
+	}
+}
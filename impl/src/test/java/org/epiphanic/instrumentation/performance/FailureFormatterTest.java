@@ -0,0 +1,115 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.FailureFormatter}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class FailureFormatterTest
+{
+	/**
+	 * Makes sure that short failures are rendered as they describe themselves, and long ones are cut to fit the column.
+	 */
+	@Test
+	public void testTruncation()
+	{
+		final FailureFormatter testClass = new FailureFormatter();
+		final Exception shortFailure = new Exception("Danger Will Robinson.");
+
+		Assert.assertEquals(shortFailure.toString(), testClass.format(shortFailure));
+
+		final StringBuilder message = new StringBuilder();
+
+		for (int i = 0; i < 10000; i++)
+		{
+			message.append("ORA-00001: unique constraint violated. ");
+		}
+
+		final String rendered = testClass.format(new Exception(message.toString()));
+		Assert.assertEquals(MethodCallStatistic.META_DATA_LENGTH, rendered.length());
+		Assert.assertTrue(rendered.startsWith("java.lang.Exception: ORA-00001"));
+		Assert.assertTrue(rendered.endsWith(FailureFormatter.ELLIPSIS));
+
+		// A limit too small for an ellipsis just cuts, and surrogate pairs are never split.
+		Assert.assertEquals("ab", FailureFormatter.truncate("abcdef", 2));
+		Assert.assertEquals("a...", FailureFormatter.truncate("a\uD83D\uDE00cdef", 5));
+	}
+
+	/**
+	 * Makes sure that stack frames are rendered after the description, from the top of the stack.
+	 */
+	@Test
+	public void testStackFrames()
+	{
+		final FailureFormatter testClass = new FailureFormatter();
+		testClass.setStackFrames(2);
+		testClass.setMaxLength(10000);
+
+		final Exception failure = new Exception("Danger Will Robinson.");
+		final StackTraceElement[] stackTrace = failure.getStackTrace();
+
+		Assert.assertEquals(failure + " at " + stackTrace[0] + " at " + stackTrace[1], testClass.format(failure));
+
+		// A failure with no stack trace renders as its description.
+		failure.setStackTrace(new StackTraceElement[0]);
+		Assert.assertEquals(failure.toString(), testClass.format(failure));
+	}
+
+	/**
+	 * Makes sure that a failure that can't describe itself is described by its class name.
+	 */
+	@Test
+	public void testBrokenFailure()
+	{
+		final Exception failure = new Exception()
+		{
+			@Override
+			public String getMessage()
+			{
+				throw new IllegalStateException("I'm broken.");
+			}
+		};
+
+		Assert.assertEquals(failure.getClass().getName(), new FailureFormatter().format(failure));
+	}
+
+	/**
+	 * Makes sure that the settings are checked.
+	 */
+	@Test
+	public void testSettings()
+	{
+		final FailureFormatter testClass = new FailureFormatter();
+
+		try
+		{
+			testClass.setMaxLength(0);
+			Assert.fail("A zero maximum length should be refused.");
+		}
+		catch (final IllegalArgumentException ex)
+		{
+			// Expected.
+		}
+
+		try
+		{
+			testClass.setStackFrames(-1);
+			Assert.fail("A negative number of stack frames should be refused.");
+		}
+		catch (final IllegalArgumentException ex)
+		{
+			// Expected.
+		}
+
+		Assert.assertEquals(MethodCallStatistic.META_DATA_LENGTH, testClass.getMaxLength());
+		Assert.assertEquals(0, testClass.getStackFrames());
+	}
+}
@@ -5,13 +5,22 @@
  */
 package org.epiphanic.instrumentation.performance;
 
+import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -37,7 +46,8 @@ public final class GenericAsynchronousLoggerTest
 		final GenericAsynchronousLogger testClass = spy(new GenericAsynchronousLogger<>());
 		final MethodCallStatistic stat = new MethodCallStatistic();
 
-		// Wire up our class under test.
+		// Wire up our class under test, submitting each write straight to the executor.
+		testClass.setCapacity(0);
 		testClass.setMessageProcessor(executorService);
 		testClass.setWriteOperationFactory(writeOperationFactory);
 
@@ -49,4 +59,221 @@ public final class GenericAsynchronousLoggerTest
 		verify(writeOperationFactory, times(1)).createWriteOperation(stat);
 		verify(testClass, times(1)).writeStatistic(stat);
 	}
+
+	/**
+	 * Makes sure that an executor rejecting a write doesn't throw into the instrumented application, and is counted.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testRejectedWriteIsDropped()
+	{
+		final ExecutorService executorService = mock(ExecutorService.class);
+		final GenericAsynchronousLogger<MethodCallStatistic> testClass = new GenericAsynchronousLogger<>();
+		doThrow(new RejectedExecutionException("Full up.")).when(executorService).submit(any(Callable.class));
+
+		testClass.setCapacity(0);
+		testClass.setMessageProcessor(executorService);
+		testClass.setWriteOperationFactory(mock(IWriteOperationFactory.class));
+		testClass.writeStatistic(new MethodCallStatistic());
+
+		Assert.assertEquals(1, testClass.getDroppedStatisticCount());
+	}
+
+	/**
+	 * Makes sure that every statistic is counted as enqueued, however few of the enqueues are timed, and that the drain
+	 * task times and counts each write.
+	 */
+	@Test
+	public void testEnqueueSampling() throws Exception
+	{
+		final List<MethodCallStatistic> written = new CopyOnWriteArrayList<>();
+		final ExecutorService executorService = mock(ExecutorService.class);
+		final GenericAsynchronousLogger<MethodCallStatistic> testClass = createBoundedLogger(executorService, written);
+		testClass.setEnqueueSampleInterval(0);
+
+		writeStatistics(testClass, 2);
+		runDrainTask(executorService);
+
+		Assert.assertEquals(2, testClass.getEnqueuedStatisticCount());
+		Assert.assertEquals(0, testClass.getMaxEnqueueNanos());
+		Assert.assertEquals(2, testClass.getWrittenStatisticCount());
+		Assert.assertTrue(testClass.getMaxWriteNanos() > 0);
+
+		try
+		{
+			testClass.setEnqueueSampleInterval(-1);
+			Assert.fail("A negative interval should be refused.");
+		}
+		catch (final IllegalArgumentException ex)
+		{
+			// Expected.
+		}
+	}
+
+	/**
+	 * Makes sure that a bounded logger keeps what it already has when full under {@link OverflowPolicy#DROP_NEWEST}, and
+	 * only ever schedules one drain task at a time.
+	 */
+	@Test
+	public void testDropNewest() throws Exception
+	{
+		final List<MethodCallStatistic> written = new CopyOnWriteArrayList<>();
+		final ExecutorService executorService = mock(ExecutorService.class);
+		final GenericAsynchronousLogger<MethodCallStatistic> testClass = createBoundedLogger(executorService, written);
+		testClass.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+
+		final MethodCallStatistic[] statistics = writeStatistics(testClass, 4);
+
+		Assert.assertEquals(2, testClass.getDroppedStatisticCount());
+		Assert.assertEquals(2, testClass.getPendingStatisticCount());
+
+		runDrainTask(executorService);
+		Assert.assertEquals(Arrays.asList(statistics[0], statistics[1]), written);
+		Assert.assertEquals(0, testClass.getPendingStatisticCount());
+	}
+
+	/**
+	 * Makes sure that a bounded logger evicts what it already has when full under {@link OverflowPolicy#DROP_OLDEST}.
+	 */
+	@Test
+	public void testDropOldest() throws Exception
+	{
+		final List<MethodCallStatistic> written = new CopyOnWriteArrayList<>();
+		final ExecutorService executorService = mock(ExecutorService.class);
+		final GenericAsynchronousLogger<MethodCallStatistic> testClass = createBoundedLogger(executorService, written);
+		testClass.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+
+		final MethodCallStatistic[] statistics = writeStatistics(testClass, 4);
+
+		Assert.assertEquals(2, testClass.getDroppedStatisticCount());
+
+		runDrainTask(executorService);
+		Assert.assertEquals(Arrays.asList(statistics[2], statistics[3]), written);
+	}
+
+	/**
+	 * Makes sure that a bounded logger gives up on a statistic under {@link OverflowPolicy#BLOCK} once the timeout has
+	 * passed, rather than waiting for the data store indefinitely.
+	 */
+	@Test
+	public void testBlockTimesOut() throws Exception
+	{
+		final List<MethodCallStatistic> written = new CopyOnWriteArrayList<>();
+		final ExecutorService executorService = mock(ExecutorService.class);
+		final GenericAsynchronousLogger<MethodCallStatistic> testClass = createBoundedLogger(executorService, written);
+		testClass.setOverflowPolicy(OverflowPolicy.BLOCK);
+		testClass.setBlockTimeoutMillis(20);
+
+		final long start = System.nanoTime();
+		writeStatistics(testClass, 3);
+
+		Assert.assertTrue(System.nanoTime() - start >= 20000000L);
+		Assert.assertEquals(1, testClass.getDroppedStatisticCount());
+		Assert.assertEquals(2, testClass.getPendingStatisticCount());
+	}
+
+	/**
+	 * Makes sure that a producer blocked under {@link OverflowPolicy#BLOCK} gets the buffer drained itself when the drain
+	 * task couldn't be scheduled before, rather than waiting out the timeout for a drain that will never come.
+	 */
+	@Test
+	public void testBlockReschedulesDrain() throws Exception
+	{
+		final List<MethodCallStatistic> written = new CopyOnWriteArrayList<>();
+		final ExecutorService executorService = mock(ExecutorService.class);
+		final RejectedExecutionException rejected = new RejectedExecutionException("Full up.");
+		doThrow(rejected).doThrow(rejected).doAnswer(invocation -> {
+			((Runnable)invocation.getArguments()[0]).run();
+			return null;
+		}).when(executorService).execute(any(Runnable.class));
+
+		final GenericAsynchronousLogger<MethodCallStatistic> testClass = createBoundedLogger(executorService, written);
+		testClass.setOverflowPolicy(OverflowPolicy.BLOCK);
+		testClass.setBlockTimeoutMillis(10000);
+
+		final long start = System.nanoTime();
+		final MethodCallStatistic[] statistics = writeStatistics(testClass, 3);
+
+		Assert.assertTrue(System.nanoTime() - start < 5000000000L);
+		Assert.assertEquals(Arrays.asList(statistics), written);
+		Assert.assertEquals(0, testClass.getDroppedStatisticCount());
+	}
+
+	/**
+	 * Makes sure that a bounded logger hands statistics that don't fit to its overflow logger under {@link
+	 * OverflowPolicy#AGGREGATE}.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testAggregate() throws Exception
+	{
+		final List<MethodCallStatistic> written = new CopyOnWriteArrayList<>();
+		final ExecutorService executorService = mock(ExecutorService.class);
+		final IStatisticsLogger<MethodCallStatistic> overflowLogger = mock(IStatisticsLogger.class);
+		final GenericAsynchronousLogger<MethodCallStatistic> testClass = createBoundedLogger(executorService, written);
+		testClass.setOverflowPolicy(OverflowPolicy.AGGREGATE);
+		testClass.setOverflowLogger(overflowLogger);
+
+		final MethodCallStatistic[] statistics = writeStatistics(testClass, 3);
+
+		verify(overflowLogger, times(1)).writeStatistic(statistics[2]);
+		verify(overflowLogger, never()).writeStatistic(statistics[0]);
+		Assert.assertEquals(1, testClass.getAggregatedStatisticCount());
+		Assert.assertEquals(0, testClass.getDroppedStatisticCount());
+	}
+
+	/**
+	 * Creates a logger with a capacity of two, whose write operations add to the given list.
+	 *
+	 * @param executorService The executor to submit drain tasks to.
+	 * @param written The list to add written statistics to.
+	 *
+	 * @return A new bounded logger.
+	 */
+	private static GenericAsynchronousLogger<MethodCallStatistic> createBoundedLogger(
+			final ExecutorService executorService, final List<MethodCallStatistic> written)
+	{
+		final GenericAsynchronousLogger<MethodCallStatistic> testClass = new GenericAsynchronousLogger<>();
+		testClass.setMessageProcessor(executorService);
+		testClass.setWriteOperationFactory(statistic -> () -> {
+			written.add(statistic);
+			return null;
+		});
+		testClass.setCapacity(2);
+		return testClass;
+	}
+
+	/**
+	 * Writes the given number of new statistics to the logger.
+	 *
+	 * @param testClass The logger to write to.
+	 * @param count The number of statistics to write.
+	 *
+	 * @return The statistics written, in order.
+	 */
+	private static MethodCallStatistic[] writeStatistics(final GenericAsynchronousLogger<MethodCallStatistic> testClass,
+			final int count)
+	{
+		final MethodCallStatistic[] statistics = new MethodCallStatistic[count];
+
+		for (int i = 0; i < count; i++)
+		{
+			statistics[i] = new MethodCallStatistic();
+			testClass.writeStatistic(statistics[i]);
+		}
+
+		return statistics;
+	}
+
+	/**
+	 * Makes sure exactly one drain task was handed to the given executor, and runs it.
+	 *
+	 * @param executorService The mock executor the drain task was handed to.
+	 */
+	private static void runDrainTask(final ExecutorService executorService)
+	{
+		final ArgumentCaptor<Runnable> drainTask = ArgumentCaptor.forClass(Runnable.class);
+		verify(executorService, times(1)).execute(drainTask.capture());
+		drainTask.getValue().run();
+	}
 }
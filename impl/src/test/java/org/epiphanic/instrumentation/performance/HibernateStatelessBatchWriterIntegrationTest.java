@@ -0,0 +1,119 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.sql.DataSource;
+import java.util.Date;
+
+/**
+ * Provides a database-connected integration test demonstrating that a {@link
+ * org.epiphanic.instrumentation.performance.HibernateWriteOperationFactory} configured for stateless batching writes
+ * its statistics in batches through a {@link org.epiphanic.instrumentation.performance.HibernateStatelessBatchWriter}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+public final class HibernateStatelessBatchWriterIntegrationTest
+{
+	/**
+	 * Holds an instance of the class under test. This is injected from our Spring context set up in our beans file for the
+	 * test.
+	 */
+	@Autowired
+	private HibernateWriteOperationFactory _writeOperationFactory;
+
+	/**
+	 * Holds a {@link org.hibernate.SessionFactory} that we can use to read back what we've written.
+	 */
+	@Autowired
+	private SessionFactory _sessionFactory;
+
+	/**
+	 * Holds an injected instance of our {@link javax.sql.DataSource} so that we can query our backing store.
+	 */
+	@Autowired
+	private DataSource _dataSource;
+
+	/**
+	 * Holds an instance of {@link org.springframework.jdbc.core.JdbcTemplate} that we create upon test setup, based on our
+	 * injected {@link javax.sql.DataSource}. Useful for querying things.
+	 */
+	private JdbcTemplate _jdbcTemplate;
+
+	/**
+	 * Runs any set up for our unit tests. In this case we create a {@link org.springframework.jdbc.core.JdbcTemplate} for
+	 * testing our database state later.
+	 */
+	@Before
+	public void setUp() throws Exception
+	{
+		_jdbcTemplate = new JdbcTemplate(_dataSource);
+	}
+
+	/**
+	 * Writes two and a half batches worth of statistics, making sure full batches land immediately, the remainder lands
+	 * when we stop, and that what we wrote reads back through our mapping.
+	 */
+	@Test
+	public void testStatelessBatchedWrites() throws Exception
+	{
+		Assert.assertTrue(_writeOperationFactory.isStatelessBatching());
+
+		for (int i = 0; i < 25; i++)
+		{
+			final MethodCallStatistic stat = new MethodCallStatistic();
+			stat.setOperationName("operation" + i);
+			stat.setOperationStart(new Date());
+			stat.setOperationCompletion(new Date());
+			stat.setMetaData("arf");
+			stat.setUserId((long)i);
+
+			_writeOperationFactory.createWriteOperation(stat).call();
+		}
+
+		// Our two full batches should already be there.
+		Assert.assertEquals(20, countRows());
+
+		// Stopping the factory should flush the rest.
+		_writeOperationFactory.stop();
+		Assert.assertEquals(25, countRows());
+
+		// And what we wrote should come back through our mapping.
+		final Session session = _sessionFactory.openSession();
+
+		try
+		{
+			final Number count = (Number)session.createQuery("select count(*) from MethodCallStatistic where metaData = 'arf'").uniqueResult();
+			Assert.assertEquals(25, count.intValue());
+		}
+		finally
+		{
+			session.close();
+		}
+	}
+
+	/**
+	 * Counts the rows in our table.
+	 *
+	 * @return The number of rows in <code>METHOD_PERFORMANCE</code>.
+	 */
+	private int countRows()
+	{
+		return _jdbcTemplate.queryForInt("select count(*) from method_performance");
+	}
+}
@@ -0,0 +1,348 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Provides a database-connected integration test demonstrating that our {@link
+ * org.epiphanic.instrumentation.performance.JdbcBatchWriter} writes rows compatible with our Hibernate mapping, and that
+ * our {@link org.epiphanic.instrumentation.performance.BatchingWriteOperationFactory} flushes on both size and time.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+public final class JdbcBatchWriterIntegrationTest
+{
+	/**
+	 * Holds an instance of the class under test. This is injected from our Spring context set up in our beans file for the
+	 * test.
+	 */
+	@Autowired
+	private BatchingWriteOperationFactory<MethodCallStatistic> _writeOperationFactory;
+
+	/**
+	 * Holds a writer storing operation IDs in place of names.
+	 */
+	@Autowired
+	@Qualifier("dictionaryBatchWriter")
+	private JdbcBatchWriter _dictionaryBatchWriter;
+
+	/**
+	 * Holds the dictionary that writer uses.
+	 */
+	@Autowired
+	private OperationDictionary _operationDictionary;
+
+	/**
+	 * Holds a writer storing failure fingerprints in place of metadata.
+	 */
+	@Autowired
+	@Qualifier("fingerprintBatchWriter")
+	private JdbcBatchWriter _fingerprintBatchWriter;
+
+	/**
+	 * Holds an injected instance of our {@link javax.sql.DataSource} so that we can query our backing store.
+	 */
+	@Autowired
+	private DataSource _dataSource;
+
+	/**
+	 * Holds an instance of {@link org.springframework.jdbc.core.JdbcTemplate} that we create upon test setup, based on our
+	 * injected {@link javax.sql.DataSource}. Useful for querying things.
+	 */
+	private JdbcTemplate _jdbcTemplate;
+
+	/**
+	 * Runs any set up for our unit tests. In this case we create a {@link org.springframework.jdbc.core.JdbcTemplate} for
+	 * testing our database state later.
+	 */
+	@Before
+	public void setUp() throws Exception
+	{
+		_jdbcTemplate = new JdbcTemplate(_dataSource);
+	}
+
+	/**
+	 * Writes two and a half batches worth of statistics, making sure the full batches land immediately and the remainder
+	 * lands once the flush interval passes.
+	 */
+	@Test
+	public void testBatchedWrites() throws Exception
+	{
+		final Date start = new Date();
+
+		for (int i = 0; i < 25; i++)
+		{
+			final MethodCallStatistic stat = new MethodCallStatistic();
+			stat.setOperationName("operation" + i);
+			stat.setOperationStart(start);
+			stat.setOperationCompletion(new Date(start.getTime() + i));
+			stat.setOperationSuccessful(i % 5 != 0);
+			stat.setMetaData(i % 5 == 0 ? "failure" + i : null);
+			stat.setUserId(i % 2 == 0 ? (long)i : null);
+
+			_writeOperationFactory.createWriteOperation(stat).call();
+		}
+
+		// Our two full batches should already be there.
+		Assert.assertEquals(20, countRows());
+
+		// And the last five should show up once the timer notices them.
+		final long deadline = System.currentTimeMillis() + 5000;
+
+		while (countRows() < 25 && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(50);
+		}
+
+		Assert.assertEquals(25, countRows());
+
+		// Spot check a row.
+		final Map<String, Object> row = _jdbcTemplate.queryForMap("select * from method_performance where operation_name = 'operation10'");
+		Assert.assertEquals("failure10", row.get("METADATA"));
+		Assert.assertEquals(Boolean.FALSE, row.get("SUCCESS"));
+		Assert.assertEquals(10L, ((Number)row.get("USER_ID")).longValue());
+		Assert.assertEquals(start.getTime() + 10, ((Date)row.get("END_TIME")).getTime());
+
+		// And make sure every row got its own identifier.
+		Assert.assertEquals(25, _jdbcTemplate.queryForInt("select count(distinct metric_id) from method_performance"));
+	}
+
+	/**
+	 * Counts the rows in our table.
+	 *
+	 * @return The number of rows in <code>METHOD_PERFORMANCE</code>.
+	 */
+	private int countRows()
+	{
+		return _jdbcTemplate.queryForInt("select count(*) from method_performance");
+	}
+
+	/**
+	 * Writes statistics through an {@link org.epiphanic.instrumentation.performance.OperationDictionary}, making sure the
+	 * rows carry IDs rather than names, that the names can be joined back in, and that a fresh dictionary picks up where
+	 * the last one left off - unless it has already handed out IDs the table disagrees with.
+	 */
+	@Test
+	public void testDictionaryWrites() throws Exception
+	{
+		final Method method = String.class.getMethod("trim");
+		final List<MethodCallStatistic> batch = new ArrayList<>();
+
+		for (int i = 0; i < 3; i++)
+		{
+			final MethodCallStatistic stat = new MethodCallStatistic();
+			final int operationId = _operationDictionary.getOperationId(method);
+			stat.setOperationId(operationId);
+			stat.setOperationName(_operationDictionary.getOperationName(operationId));
+			stat.setOperationStart(new Date());
+			stat.setOperationCompletion(new Date());
+			stat.setOperationSuccessful(true);
+			batch.add(stat);
+		}
+
+		// One that never went through the dictionary, as though replayed from a spill journal.
+		final MethodCallStatistic replayed = new MethodCallStatistic();
+		replayed.setOperationName("replayedOperation");
+		batch.add(replayed);
+
+		try
+		{
+			_dictionaryBatchWriter.writeBatch(batch);
+			Assert.assertEquals(0, _dictionaryBatchWriter.getFailedDictionaryPersistCount());
+
+			Assert.assertEquals(0, _jdbcTemplate.queryForInt(
+					"select count(*) from method_performance where operation_id > 0 and operation_name is not null"));
+			Assert.assertEquals(3, _jdbcTemplate.queryForInt("select count(*) from method_performance m "
+					+ "join operation_dictionary d on m.operation_id = d.operation_id where d.operation_name = ?",
+					"java.lang.String.trim()"));
+			Assert.assertEquals(1, _jdbcTemplate.queryForInt("select count(*) from method_performance m "
+					+ "join operation_dictionary d on m.operation_id = d.operation_id where d.operation_name = ?",
+					"replayedOperation"));
+
+			// Nothing new, so nothing more to persist.
+			Assert.assertEquals(0, _operationDictionary.persist());
+
+			final OperationDictionary restarted = new OperationDictionary();
+			restarted.setDataSource(_dataSource);
+			restarted.start();
+			Assert.assertEquals(_operationDictionary.getOperationId(method), restarted.getOperationId(method));
+			Assert.assertEquals(_operationDictionary.getOperationId("replayedOperation"),
+					restarted.getOperationId("replayedOperation"));
+			Assert.assertEquals(_operationDictionary.size() + 1, restarted.getOperationId("brandNewOperation"));
+
+			// IDs already handed out survive a late start only if the table agrees with them.
+			final OperationDictionary agreeing = new OperationDictionary();
+			agreeing.getOperationId(restarted.getOperationName(1));
+			agreeing.setDataSource(_dataSource);
+			agreeing.start();
+			Assert.assertEquals(restarted.getOperationId(method), agreeing.getOperationId(method));
+
+			final OperationDictionary disagreeing = new OperationDictionary();
+			disagreeing.getOperationId("neverPersistedOperation");
+			disagreeing.setDataSource(_dataSource);
+
+			try
+			{
+				disagreeing.start();
+				Assert.fail("ID 1 is already taken in the table.");
+			}
+			catch (final IllegalStateException ex)
+			{
+				// Expected.
+			}
+
+			Assert.assertEquals(1, disagreeing.size());
+
+			// A dictionary that never loaded the table persists over entries already there under the same names.
+			final OperationDictionary unstarted = new OperationDictionary();
+			unstarted.setDataSource(_dataSource);
+
+			for (int operationId = 1; operationId <= restarted.size(); operationId++)
+			{
+				unstarted.getOperationId(restarted.getOperationName(operationId));
+			}
+
+			Assert.assertEquals(restarted.size(), unstarted.persist());
+		}
+		finally
+		{
+			// Leave the table as our other test expects to find it.
+			_jdbcTemplate.update("delete from method_performance where operation_id > 0");
+		}
+	}
+
+	/**
+	 * Makes sure that a batch is written even though neither side table can be, and that the failures are counted.
+	 */
+	@Test
+	public void testSideTableFailures() throws Exception
+	{
+		final DataSource brokenDataSource = mock(DataSource.class);
+		doThrow(new SQLException("The side tables are on fire.")).when(brokenDataSource).getConnection();
+
+		final OperationDictionary operationDictionary = new OperationDictionary();
+		operationDictionary.setDataSource(brokenDataSource);
+
+		final FailureFingerprints failureFingerprints = new FailureFingerprints();
+		failureFingerprints.setDataSource(brokenDataSource);
+
+		final JdbcBatchWriter testClass = new JdbcBatchWriter();
+		testClass.setDataSource(_dataSource);
+		testClass.setOperationDictionary(operationDictionary);
+		testClass.setFailureFingerprints(failureFingerprints);
+
+		final MethodCallStatistic stat = new MethodCallStatistic();
+		stat.setOperationName("sideTableOperation");
+		stat.setOperationStart(new Date());
+		stat.setOperationCompletion(new Date());
+		stat.setOperationSuccessful(false);
+		stat.setFailure(new IllegalStateException("Still worth a row."), new FailureFormatter());
+
+		try
+		{
+			testClass.writeBatch(Collections.singletonList(stat));
+
+			Assert.assertEquals(1, _jdbcTemplate.queryForInt("select count(*) from method_performance "
+					+ "where operation_id > 0 and fingerprint_id <> 0"));
+			Assert.assertEquals(1, testClass.getFailedDictionaryPersistCount());
+			Assert.assertEquals(1, testClass.getFailedFingerprintPersistCount());
+		}
+		finally
+		{
+			_jdbcTemplate.update("delete from method_performance where operation_id > 0");
+		}
+	}
+
+	/**
+	 * Writes a storm of failures through {@link org.epiphanic.instrumentation.performance.FailureFingerprints}, making
+	 * sure each distinct failure's text is written once, that the rows carry its fingerprint rather than the text, and
+	 * that counts and last seen times add up across batches.
+	 */
+	@Test
+	public void testFingerprintWrites() throws Exception
+	{
+		final long start = System.currentTimeMillis();
+
+		try
+		{
+			for (int batchNumber = 0; batchNumber < 2; batchNumber++)
+			{
+				final List<MethodCallStatistic> batch = new ArrayList<>();
+
+				for (int i = 0; i < 10; i++)
+				{
+					// The same failure, bar the order number, and now and then a different one.
+					final Exception failure = i % 5 == 4 ? new IllegalArgumentException("No such customer.")
+							: new IllegalStateException("Duplicate order " + (batchNumber * 10 + i) + ".");
+					final MethodCallStatistic stat = new MethodCallStatistic();
+					stat.setOperationName("fingerprintedOperation");
+					stat.markOperationStart(start + batchNumber, 0);
+					stat.markOperationCompletion(0);
+					stat.setOperationSuccessful(false);
+					stat.setFailure(failure, new FailureFormatter());
+					batch.add(stat);
+				}
+
+				final MethodCallStatistic success = new MethodCallStatistic();
+				success.setOperationName("fingerprintedOperation");
+				success.setOperationSuccessful(true);
+				success.setMetaData("Not a failure.");
+				batch.add(success);
+
+				_fingerprintBatchWriter.writeBatch(batch);
+				Assert.assertEquals(0, _fingerprintBatchWriter.getFailedFingerprintPersistCount());
+			}
+
+			Assert.assertEquals(2, _jdbcTemplate.queryForInt("select count(*) from failure_fingerprint"));
+			Assert.assertEquals(0, _jdbcTemplate.queryForInt("select count(*) from method_performance "
+					+ "where operation_name = 'fingerprintedOperation' and fingerprint_id <> 0 and metadata is not null"));
+			Assert.assertEquals(2, _jdbcTemplate.queryForInt("select count(*) from method_performance "
+					+ "where operation_name = 'fingerprintedOperation' and fingerprint_id = 0 and metadata = 'Not a failure.'"));
+
+			final Map<String, Object> duplicates = _jdbcTemplate.queryForMap("select f.failure_text, f.failure_count, "
+					+ "f.first_seen, f.last_seen, count(*) as row_count from method_performance m join failure_fingerprint f "
+					+ "on m.fingerprint_id = f.fingerprint_id where f.failure_text like 'java.lang.IllegalStateException%' "
+					+ "group by f.failure_text, f.failure_count, f.first_seen, f.last_seen");
+
+			// The text is the first failure's, with the top of its stack.
+			Assert.assertTrue(((String)duplicates.get("FAILURE_TEXT")).startsWith(
+					"java.lang.IllegalStateException: Duplicate order 0. at " + getClass().getName()));
+			Assert.assertEquals(16L, ((Number)duplicates.get("FAILURE_COUNT")).longValue());
+			Assert.assertEquals(16L, ((Number)duplicates.get("ROW_COUNT")).longValue());
+			Assert.assertEquals(start, ((Date)duplicates.get("FIRST_SEEN")).getTime());
+			Assert.assertEquals(start + 1, ((Date)duplicates.get("LAST_SEEN")).getTime());
+		}
+		finally
+		{
+			// Leave the tables as our other tests expect to find them.
+			_jdbcTemplate.update("delete from method_performance where operation_name = 'fingerprintedOperation'");
+			_jdbcTemplate.update("delete from failure_fingerprint");
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.LatencyHistogram}, making sure its buckets cover every
+ * value without gaps, keep their precision promise, and count correctly under concurrent recording.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class LatencyHistogramTest
+{
+	/**
+	 * Makes sure that bucket boundaries line up: each bucket starts right after the previous one ends, and values map
+	 * into the bucket whose bounds contain them.
+	 */
+	@Test
+	public void testBucketsAreContiguous()
+	{
+		Assert.assertEquals(0L, LatencyHistogram.lowestEquivalentValue(0));
+
+		for (int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++)
+		{
+			final long lowest = LatencyHistogram.lowestEquivalentValue(i);
+			final long highest = LatencyHistogram.highestEquivalentValue(i);
+
+			Assert.assertEquals(LatencyHistogram.highestEquivalentValue(i - 1) + 1, lowest);
+			Assert.assertEquals(i, LatencyHistogram.indexFor(lowest));
+			Assert.assertEquals(i, LatencyHistogram.indexFor(highest));
+		}
+
+		Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.highestEquivalentValue(LatencyHistogram.BUCKET_COUNT - 1));
+	}
+
+	/**
+	 * Makes sure that small values are exact, and that larger ones are known to within the promised relative precision.
+	 */
+	@Test
+	public void testPrecision()
+	{
+		for (long value = 0; value < 2 * LatencyHistogram.SUB_BUCKET_COUNT; value++)
+		{
+			final int index = LatencyHistogram.indexFor(value);
+			Assert.assertEquals(value, LatencyHistogram.lowestEquivalentValue(index));
+			Assert.assertEquals(value, LatencyHistogram.highestEquivalentValue(index));
+		}
+
+		for (long value = 64; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1)
+		{
+			final int index = LatencyHistogram.indexFor(value);
+			final long width = LatencyHistogram.highestEquivalentValue(index) - LatencyHistogram.lowestEquivalentValue(index);
+			Assert.assertTrue(width <= value / LatencyHistogram.SUB_BUCKET_COUNT);
+		}
+	}
+
+	/**
+	 * Makes sure that percentiles, min and max come out of a known set of values where they should.
+	 */
+	@Test
+	public void testPercentiles()
+	{
+		final LatencyHistogram testClass = new LatencyHistogram();
+		Assert.assertEquals(0L, testClass.getValueAtPercentile(50.0));
+		Assert.assertEquals(0L, testClass.getMaxValue());
+
+		// One through a hundred microseconds, in nanoseconds.
+		for (long micros = 1; micros <= 100; micros++)
+		{
+			testClass.recordValue(micros * 1000);
+		}
+
+		Assert.assertEquals(100, testClass.getTotalCount());
+		assertWithinPrecision(1000, testClass.getMinValue());
+		assertWithinPrecision(50000, testClass.getValueAtPercentile(50.0));
+		assertWithinPrecision(90000, testClass.getValueAtPercentile(90.0));
+		assertWithinPrecision(99000, testClass.getValueAtPercentile(99.0));
+		assertWithinPrecision(100000, testClass.getValueAtPercentile(100.0));
+		assertWithinPrecision(100000, testClass.getMaxValue());
+
+		final LatencyHistogram other = new LatencyHistogram();
+		other.add(testClass);
+		other.recordValue(-5L);
+		Assert.assertEquals(101, other.getTotalCount());
+		Assert.assertEquals(1, other.getCountAtValue(0L));
+		Assert.assertEquals(0L, other.getMinValue());
+
+		testClass.reset();
+		Assert.assertEquals(0, testClass.getTotalCount());
+	}
+
+	/**
+	 * Makes sure that nothing is lost when several threads record at once.
+	 */
+	@Test
+	public void testConcurrentRecording() throws Exception
+	{
+		final LatencyHistogram testClass = new LatencyHistogram();
+		final int threads = 4;
+		final int valuesPerThread = 100000;
+		final Thread[] workers = new Thread[threads];
+
+		for (int t = 0; t < threads; t++)
+		{
+			workers[t] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < valuesPerThread; i++)
+					{
+						testClass.recordValue(i % 1000);
+					}
+				}
+			});
+			workers[t].start();
+		}
+
+		for (final Thread worker : workers)
+		{
+			worker.join();
+		}
+
+		Assert.assertEquals(threads * valuesPerThread, testClass.getTotalCount());
+	}
+
+	/**
+	 * Asserts that a value read back from the histogram is within the histogram's precision of what we expected.
+	 *
+	 * @param expected The value recorded.
+	 * @param actual The value read back.
+	 */
+	private static void assertWithinPrecision(final long expected, final long actual)
+	{
+		Assert.assertEquals(expected, actual, expected / LatencyHistogram.SUB_BUCKET_COUNT);
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Tests our binary statistic format: {@link org.epiphanic.instrumentation.performance.MethodCallStatisticEncoder} and
+ * {@link org.epiphanic.instrumentation.performance.MethodCallStatisticCursor}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class MethodCallStatisticCodecTest
+{
+	/**
+	 * Makes sure that every field survives the round trip, whether present or not.
+	 */
+	@Test
+	public void testRoundTrip()
+	{
+		final MethodCallStatistic full = new MethodCallStatistic();
+		full.setId(-7L);
+		full.setUserId(42L);
+		full.setOperationName("café.中文.😀");
+		full.markOperationStart(1300000000000L, 0L);
+		full.markOperationCompletion(5123456L);
+		full.setMetaData("java.lang.IllegalStateException: The database is on fire.");
+		full.setOperationSuccessful(false);
+		full.setSampleWeight(12.5);
+		full.setSpanId(1300000000000L << 16);
+		full.setParentSpanId((1300000000000L << 16) - 1);
+		full.setSelfTimeNanos(5000000L);
+
+		final MethodCallStatistic bare = new MethodCallStatistic();
+		bare.setOperationName("ASDF");
+
+		final MethodCallStatistic earlier = new MethodCallStatistic();
+		earlier.setOperationName("ASDF");
+		earlier.setOperationStart(new Date(1299999999000L));
+		earlier.setOperationCompletion(new Date(1299999999002L));
+
+		final ByteBuffer block = ByteBuffer.allocate(1024);
+		final MethodCallStatisticEncoder encoder = new MethodCallStatisticEncoder();
+		encoder.begin(block);
+		Assert.assertTrue(encoder.encode(full));
+		Assert.assertTrue(encoder.encode(bare));
+		Assert.assertTrue(encoder.encode(earlier));
+		Assert.assertEquals(3, encoder.getRecordCount());
+		block.flip();
+
+		final MethodCallStatisticCursor testClass = new MethodCallStatisticCursor(block);
+		Assert.assertTrue(testClass.next());
+		assertSame(full, testClass);
+		assertSame(full, testClass.toStatistic());
+		Assert.assertEquals(full.getSpanId(), testClass.getSpanId());
+		Assert.assertEquals(full.getParentSpanId(), testClass.getParentSpanId());
+		Assert.assertEquals(full.getSelfTimeNanos(), testClass.getSelfTimeNanos());
+		Assert.assertEquals(full.getSpanId(), testClass.toStatistic().getSpanId());
+
+		Assert.assertTrue(testClass.next());
+		assertSame(bare, testClass);
+		Assert.assertNull(testClass.getId());
+		Assert.assertNull(testClass.getOperationStart());
+		Assert.assertEquals(SpanStack.NO_SPAN, testClass.getSpanId());
+		Assert.assertEquals(testClass.getDurationNanos(), testClass.getSelfTimeNanos());
+
+		Assert.assertTrue(testClass.next());
+		assertSame(earlier, testClass);
+
+		Assert.assertFalse(testClass.next());
+
+		// The cursor doesn't touch the buffer it was given.
+		Assert.assertEquals(0, block.position());
+	}
+
+	/**
+	 * Makes sure that repeated strings are only written once per block, and that blocks don't share dictionaries.
+	 */
+	@Test
+	public void testDictionary()
+	{
+		final String operationName = "org.epiphanic.instrumentation.performance.SomeService.someRatherLongMethodName";
+		final ByteBuffer block = ByteBuffer.allocate(8192);
+		final MethodCallStatisticEncoder encoder = new MethodCallStatisticEncoder();
+		encoder.begin(block);
+
+		for (int i = 0; i < 100; i++)
+		{
+			final MethodCallStatistic statistic = new MethodCallStatistic();
+			statistic.setOperationName(operationName);
+			statistic.markOperationStart(1300000000000L + i, 0L);
+			statistic.markOperationCompletion(250000L);
+			Assert.assertTrue(encoder.encode(statistic));
+		}
+
+		// The name once, then a handful of bytes per record.
+		Assert.assertTrue(block.position() < operationName.length() + 100 * 8);
+
+		block.flip();
+		final MethodCallStatisticCursor cursor = new MethodCallStatisticCursor(block);
+		int count = 0;
+
+		while (cursor.next())
+		{
+			Assert.assertEquals(operationName, cursor.getOperationName());
+			Assert.assertEquals(1300000000000L + count, cursor.getOperationStartMillis());
+			Assert.assertEquals(250000L, cursor.getDurationNanos());
+			count++;
+		}
+
+		Assert.assertEquals(100, count);
+
+		// A fresh block has to spell the name out again.
+		final ByteBuffer second = ByteBuffer.allocate(1024);
+		encoder.begin(second);
+		Assert.assertTrue(encoder.encode(cursor.toStatistic()));
+		Assert.assertTrue(second.position() > operationName.length());
+	}
+
+	/**
+	 * Makes sure that a statistic that doesn't fit leaves both the buffer and the block's dictionary as they were.
+	 */
+	@Test
+	public void testOverflowRollsBack()
+	{
+		final ByteBuffer block = ByteBuffer.allocate(32);
+		final MethodCallStatisticEncoder encoder = new MethodCallStatisticEncoder();
+		encoder.begin(block);
+
+		final MethodCallStatistic small = new MethodCallStatistic();
+		small.setOperationName("A");
+		Assert.assertTrue(encoder.encode(small));
+
+		// The name fits, but the metadata doesn't - so the name must not be left in the dictionary.
+		final MethodCallStatistic big = new MethodCallStatistic();
+		big.setOperationName("B");
+		big.setMetaData("This metadata is far too long to fit in what's left of the block.");
+
+		final int position = block.position();
+		Assert.assertFalse(encoder.encode(big));
+		Assert.assertEquals(position, block.position());
+		Assert.assertEquals(1, encoder.getRecordCount());
+
+		final MethodCallStatistic other = new MethodCallStatistic();
+		other.setOperationName("B");
+		Assert.assertTrue(encoder.encode(other));
+
+		block.flip();
+		final MethodCallStatisticCursor cursor = new MethodCallStatisticCursor(block);
+		Assert.assertTrue(cursor.next());
+		Assert.assertEquals("A", cursor.getOperationName());
+		Assert.assertTrue(cursor.next());
+		Assert.assertEquals("B", cursor.getOperationName());
+		Assert.assertNull(cursor.getMetaData());
+		Assert.assertFalse(cursor.next());
+
+		// And the bound on a single-record block really is enough.
+		final ByteBuffer ownBlock = ByteBuffer.allocate(MethodCallStatisticEncoder.maximumBlockSize(big));
+		encoder.begin(ownBlock);
+		Assert.assertTrue(encoder.encode(big));
+	}
+
+	/**
+	 * Makes sure that we write standard UTF-8, so that other readers of the format can get at our strings.
+	 */
+	@Test
+	public void testUtf8()
+	{
+		final String value = "aé中😀";
+		final ByteBuffer buffer = ByteBuffer.allocate(32);
+
+		MethodCallStatisticCodec.putUtf8(buffer, value);
+
+		Assert.assertEquals(value.getBytes(StandardCharsets.UTF_8).length, MethodCallStatisticCodec.utf8Length(value));
+		Assert.assertArrayEquals(value.getBytes(StandardCharsets.UTF_8), Arrays.copyOf(buffer.array(), buffer.position()));
+	}
+
+	/**
+	 * Makes sure that every field of a decoded statistic matches the original.
+	 *
+	 * @param expected The original statistic.
+	 * @param actual The decoded statistic.
+	 */
+	private static void assertSame(final IMethodCallStatistic expected, final IMethodCallStatistic actual)
+	{
+		Assert.assertEquals(expected.getId(), actual.getId());
+		Assert.assertEquals(expected.getUserId(), actual.getUserId());
+		Assert.assertEquals(expected.getOperationName(), actual.getOperationName());
+		Assert.assertEquals(expected.getOperationStart(), actual.getOperationStart());
+		Assert.assertEquals(expected.getOperationCompletion(), actual.getOperationCompletion());
+		Assert.assertEquals(expected.getDurationNanos(), actual.getDurationNanos());
+		Assert.assertEquals(expected.getMetaData(), actual.getMetaData());
+		Assert.assertEquals(expected.isOperationSuccessful(), actual.isOperationSuccessful());
+		Assert.assertEquals(expected.getSampleWeight(), actual.getSampleWeight(), 0.0);
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.classic.Session;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.MethodCallStatisticPool}, and the way our writers hand
+ * pooled statistics back to it.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class MethodCallStatisticPoolTest
+{
+	/**
+	 * Makes sure that recycled instances are reset and handed out again, rather than new ones being created.
+	 */
+	@Test
+	public void testAcquireAndRecycle()
+	{
+		final MethodCallStatisticPool testClass = new MethodCallStatisticPool(4);
+		testClass.prefill(2);
+		Assert.assertEquals(2, testClass.getIdleCount());
+
+		final MethodCallStatistic first = testClass.acquire();
+		first.setId(42L);
+		first.setUserId(7L);
+		first.setOperationName("ASDF");
+		first.markOperationStart(1000L, 0L);
+		first.markOperationCompletion(5000L);
+		first.setMetaData("arf");
+		first.setOperationSuccessful(false);
+
+		Assert.assertEquals(1, testClass.getIdleCount());
+
+		// Hand it back, and make sure it comes back out squeaky clean.
+		first.recycle();
+		Assert.assertEquals(2, testClass.getIdleCount());
+
+		final MethodCallStatistic second = testClass.acquire();
+		final MethodCallStatistic third = testClass.acquire();
+		Assert.assertTrue(second == first || third == first);
+
+		Assert.assertNull(first.getId());
+		Assert.assertNull(first.getUserId());
+		Assert.assertNull(first.getOperationName());
+		Assert.assertNull(first.getOperationStart());
+		Assert.assertNull(first.getOperationCompletion());
+		Assert.assertNull(first.getMetaData());
+		Assert.assertEquals(0, first.getDurationNanos());
+		Assert.assertTrue(first.isOperationSuccessful());
+
+		// Now we're dry, so we should get something new.
+		Assert.assertEquals(0, testClass.getIdleCount());
+		Assert.assertNotNull(testClass.acquire());
+	}
+
+	/**
+	 * Makes sure that recycling the same instance twice doesn't put it in the pool twice, and that unpooled instances
+	 * ignore recycling.
+	 */
+	@Test
+	public void testRecycleIsIdempotent()
+	{
+		final MethodCallStatisticPool testClass = new MethodCallStatisticPool(4);
+
+		final MethodCallStatistic pooled = testClass.acquire();
+		pooled.recycle();
+		pooled.recycle();
+		Assert.assertEquals(1, testClass.getIdleCount());
+
+		new MethodCallStatistic().recycle();
+		Assert.assertEquals(1, testClass.getIdleCount());
+	}
+
+	/**
+	 * Makes sure that a full pool just lets extra instances go.
+	 */
+	@Test
+	public void testFullPoolDropsInstances()
+	{
+		final MethodCallStatisticPool testClass = new MethodCallStatisticPool(2);
+		final MethodCallStatistic[] statistics = {testClass.acquire(), testClass.acquire(), testClass.acquire()};
+
+		for (final MethodCallStatistic statistic : statistics)
+		{
+			statistic.recycle();
+		}
+
+		Assert.assertEquals(2, testClass.getIdleCount());
+	}
+
+	/**
+	 * Makes sure that a write operation recycles its statistic once its session is closed, and lets go of it.
+	 */
+	@Test
+	public void testWriteOperationRecycles() throws Exception
+	{
+		final MethodCallStatisticPool pool = new MethodCallStatisticPool(4);
+		final MethodCallStatistic statistic = pool.acquire();
+		statistic.setOperationName("ASDF");
+
+		final SessionFactory sessionFactory = mock(SessionFactory.class);
+		final Session session = mock(Session.class);
+		doReturn(session).when(sessionFactory).openSession();
+
+		final HibernateWriteOperation<MethodCallStatistic> writeOperation = new HibernateWriteOperation<>();
+		writeOperation.setSessionFactory(sessionFactory);
+		writeOperation.setEntityToWrite(statistic);
+		writeOperation.call();
+
+		// Hibernate saw the statistic while it was still populated, and the pool got it back afterwards.
+		final InOrder inOrder = inOrder(session);
+		inOrder.verify(session).save(statistic);
+		inOrder.verify(session).close();
+
+		Assert.assertNull(writeOperation.getEntityToWrite());
+		Assert.assertNull(statistic.getOperationName());
+		Assert.assertEquals(1, pool.getIdleCount());
+	}
+
+	/**
+	 * Makes sure that a write that blows up doesn't recycle its statistic, since it may yet be retried.
+	 */
+	@Test
+	public void testFailedWriteDoesNotRecycle() throws Exception
+	{
+		final MethodCallStatisticPool pool = new MethodCallStatisticPool(4);
+		final MethodCallStatistic statistic = pool.acquire();
+		statistic.setOperationName("ASDF");
+
+		final SessionFactory sessionFactory = mock(SessionFactory.class);
+		final Session session = mock(Session.class);
+		doReturn(session).when(sessionFactory).openSession();
+		doThrow(new IllegalStateException("The database is on fire.")).when(session).flush();
+
+		final HibernateWriteOperation<MethodCallStatistic> writeOperation = new HibernateWriteOperation<>();
+		writeOperation.setSessionFactory(sessionFactory);
+		writeOperation.setEntityToWrite(statistic);
+
+		try
+		{
+			writeOperation.call();
+			Assert.fail();
+		}
+		catch (final IllegalStateException ex)
+		{
+			// We need this to fail.
+		}
+
+		Assert.assertEquals(0, pool.getIdleCount());
+		Assert.assertEquals("ASDF", statistic.getOperationName());
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Date;
+
+/**
+ * Tests how our {@link org.epiphanic.instrumentation.performance.MethodCallStatistic} derives its persisted start and
+ * end times and its duration from whatever it was given, and renders its metadata from a failure.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class MethodCallStatisticTest
+{
+	/**
+	 * Makes sure that a statistic captured with the monotonic clock keeps its full resolution, and derives its completion
+	 * date from its start anchor.
+	 */
+	@Test
+	public void testMonotonicCapture()
+	{
+		final MethodCallStatistic stat = new MethodCallStatistic();
+
+		// Start at some arbitrary (even negative) monotonic reading, and take 2.5 milliseconds.
+		stat.markOperationStart(1000000L, -5000000L);
+		stat.markOperationCompletion(-2500000L);
+
+		Assert.assertEquals(2500000L, stat.getDurationNanos());
+		Assert.assertEquals(new Date(1000000L), stat.getOperationStart());
+		Assert.assertEquals(new Date(1000002L), stat.getOperationCompletion());
+		Assert.assertEquals(1000002L, stat.getOperationCompletionMillis());
+	}
+
+	/**
+	 * Makes sure that a statistic built from dates, as when loaded by Hibernate without a duration, still reports a
+	 * duration.
+	 */
+	@Test
+	public void testDateCapture()
+	{
+		final MethodCallStatistic stat = new MethodCallStatistic();
+
+		Assert.assertNull(stat.getOperationStart());
+		Assert.assertNull(stat.getOperationCompletion());
+		Assert.assertEquals(0, stat.getDurationNanos());
+
+		stat.setOperationStart(new Date(5000L));
+		stat.setOperationCompletion(new Date(5007L));
+
+		Assert.assertEquals(7000000L, stat.getDurationNanos());
+
+		// Once a measured duration shows up, it wins.
+		stat.setDurationNanos(7123456L);
+		Assert.assertEquals(7123456L, stat.getDurationNanos());
+	}
+
+	/**
+	 * Makes sure that a failure is only rendered into metadata when the metadata is first read, that it's rendered once,
+	 * and that metadata set outright wins.
+	 */
+	@Test
+	public void testDeferredFailure()
+	{
+		final FailureFormatter formatter = new FailureFormatter();
+		final IllegalStateException failure = new IllegalStateException("The database is on fire.");
+		final MethodCallStatistic stat = new MethodCallStatistic();
+
+		stat.setFailure(failure, formatter);
+		Assert.assertSame(failure, stat.getFailure());
+
+		// Changing the formatter now still changes the rendering, as nothing has been rendered yet.
+		formatter.setMaxLength(20);
+		Assert.assertEquals("java.lang.Illegal...", stat.getMetaData());
+		Assert.assertNull(stat.getFailure());
+
+		formatter.setMaxLength(MethodCallStatistic.META_DATA_LENGTH);
+		Assert.assertEquals("java.lang.Illegal...", stat.getMetaData());
+
+		stat.setFailure(failure, formatter);
+		stat.setMetaData("arf");
+		Assert.assertNull(stat.getFailure());
+		Assert.assertEquals("arf", stat.getMetaData());
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.OperationDictionary} in memory. See {@link
+ * org.epiphanic.instrumentation.performance.JdbcBatchWriterIntegrationTest} for the dictionary backed by a table.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class OperationDictionaryTest
+{
+	/**
+	 * Makes sure that overloads and same-named methods on different classes are told apart, and that a method keeps its
+	 * ID.
+	 */
+	@Test
+	public void testSignatures() throws Exception
+	{
+		final OperationDictionary testClass = new OperationDictionary();
+		final Method indexOfString = String.class.getMethod("indexOf", String.class);
+		final Method indexOfChar = String.class.getMethod("indexOf", int.class);
+		final Method listIndexOf = List.class.getMethod("indexOf", Object.class);
+		final Method format = String.class.getMethod("format", String.class, Object[].class);
+
+		final int first = testClass.getOperationId(indexOfString);
+		Assert.assertEquals(1, first);
+		Assert.assertEquals(first, testClass.getOperationId(indexOfString));
+		Assert.assertEquals(first, testClass.getOperationId("java.lang.String.indexOf(java.lang.String)"));
+
+		final Set<Integer> operationIds = new HashSet<>();
+		operationIds.add(first);
+		operationIds.add(testClass.getOperationId(indexOfChar));
+		operationIds.add(testClass.getOperationId(listIndexOf));
+		operationIds.add(testClass.getOperationId(format));
+		Assert.assertEquals(4, operationIds.size());
+		Assert.assertEquals(4, testClass.size());
+
+		Assert.assertEquals("java.lang.String.indexOf(int)", testClass.getOperationName(testClass.getOperationId(indexOfChar)));
+		Assert.assertEquals("java.util.List.indexOf(java.lang.Object)", testClass.getOperationName(testClass.getOperationId(listIndexOf)));
+		Assert.assertEquals("java.lang.String.format(java.lang.String, java.lang.Object[])",
+				testClass.getOperationName(testClass.getOperationId(format)));
+
+		Assert.assertNull(testClass.getOperationName(OperationDictionary.NO_OPERATION_ID));
+		Assert.assertNull(testClass.getOperationName(5000));
+	}
+
+	/**
+	 * Races several threads interning the same names, making sure every name ends up with exactly one ID and that the
+	 * IDs are dense.
+	 */
+	@Test
+	public void testConcurrentInterning() throws Exception
+	{
+		final int threadCount = 8;
+		final int nameCount = 500;
+		final OperationDictionary testClass = new OperationDictionary();
+		final AtomicIntegerArray seen = new AtomicIntegerArray(nameCount);
+		final CountDownLatch startingGun = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<>();
+		final List<AssertionError> failures = new ArrayList<>();
+
+		for (int t = 0; t < threadCount; t++)
+		{
+			final Thread thread = new Thread(() -> {
+				try
+				{
+					startingGun.await();
+
+					for (int i = 0; i < nameCount; i++)
+					{
+						final int operationId = testClass.getOperationId("operation" + i);
+
+						if (!seen.compareAndSet(i, 0, operationId) && seen.get(i) != operationId)
+						{
+							throw new AssertionError("operation" + i + " was given two IDs.");
+						}
+					}
+				}
+				catch (final InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+				}
+				catch (final AssertionError ex)
+				{
+					synchronized (failures)
+					{
+						failures.add(ex);
+					}
+				}
+			});
+
+			thread.start();
+			threads.add(thread);
+		}
+
+		startingGun.countDown();
+
+		for (final Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		Assert.assertTrue(failures.toString(), failures.isEmpty());
+		Assert.assertEquals(nameCount, testClass.size());
+
+		for (int operationId = 1; operationId <= nameCount; operationId++)
+		{
+			Assert.assertNotNull(testClass.getOperationName(operationId));
+		}
+	}
+}
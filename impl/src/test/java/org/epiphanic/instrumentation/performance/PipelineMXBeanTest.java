@@ -0,0 +1,145 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Tests that our asynchronous logger, monitored batch writers and aggregating logger count what passes through them,
+ * and that those counts can be read over JMX.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class PipelineMXBeanTest
+{
+	/**
+	 * Runs a few statistics, one batch of which fails, through a logger and monitored writer, and reads back their
+	 * counts from an <code>MBeanServer</code>.
+	 */
+	@Test
+	public void testWritePathCounts() throws Exception
+	{
+		final MonitoredBatchWriter<MethodCallStatistic> batchWriter = new MonitoredBatchWriter<>();
+		batchWriter.setBatchWriter(batch -> {
+			for (final MethodCallStatistic statistic : batch)
+			{
+				if (!statistic.isOperationSuccessful())
+				{
+					throw new IllegalStateException("Simulated database failure");
+				}
+			}
+		});
+
+		final BatchingWriteOperationFactory<MethodCallStatistic> writeOperationFactory =
+				new BatchingWriteOperationFactory<>();
+		writeOperationFactory.setBatchSize(2);
+		writeOperationFactory.setBatchWriter(batchWriter);
+
+		final ExecutorService messageProcessor = Executors.newSingleThreadExecutor();
+
+		final GenericAsynchronousLogger<MethodCallStatistic> logger = new GenericAsynchronousLogger<>();
+		logger.setMessageProcessor(messageProcessor);
+		logger.setWriteOperationFactory(writeOperationFactory);
+
+		// Time every enqueue, rather than a sample, so that six are enough to see one.
+		logger.setEnqueueSampleInterval(1);
+
+		for (int i = 0; i < 6; i++)
+		{
+			logger.writeStatistic(createStatistic("ASDF", 1000L, i != 3));
+		}
+
+		messageProcessor.shutdown();
+		Assert.assertTrue(messageProcessor.awaitTermination(10, TimeUnit.SECONDS));
+
+		final MBeanServer server = MBeanServerFactory.newMBeanServer();
+		final ObjectName loggerName = new ObjectName("thoreau:type=AsynchronousLogger,name=test");
+		final ObjectName writerName = new ObjectName("thoreau:type=BatchWriter,name=test");
+		server.registerMBean(logger, loggerName);
+		server.registerMBean(batchWriter, writerName);
+
+		Assert.assertEquals(6L, server.getAttribute(loggerName, "EnqueuedStatisticCount"));
+		Assert.assertEquals(0, server.getAttribute(loggerName, "QueueDepth"));
+		Assert.assertEquals(5L, server.getAttribute(loggerName, "WrittenStatisticCount"));
+		Assert.assertEquals(1L, server.getAttribute(loggerName, "FailedWriteCount"));
+		Assert.assertTrue((Long)server.getAttribute(loggerName, "MaxEnqueueNanos") > 0);
+
+		Assert.assertEquals(2L, server.getAttribute(writerName, "WrittenBatchCount"));
+		Assert.assertEquals(4L, server.getAttribute(writerName, "WrittenStatisticCount"));
+		Assert.assertEquals(1L, server.getAttribute(writerName, "FailedBatchCount"));
+		Assert.assertEquals(2L, server.getAttribute(writerName, "FailedStatisticCount"));
+		Assert.assertEquals(2.0, (Double)server.getAttribute(writerName, "MeanBatchSize"), 0.0);
+		Assert.assertEquals(2L, server.getAttribute(writerName, "MaxBatchSize"));
+		Assert.assertTrue((Long)server.getAttribute(writerName, "MaxWriteNanos") > 0);
+
+		server.invoke(writerName, "resetMaxima", null, null);
+		Assert.assertEquals(0L, server.getAttribute(writerName, "MaxBatchSize"));
+		Assert.assertEquals(3L, batchWriter.getFailedBatchCount() + batchWriter.getWrittenBatchCount());
+	}
+
+	/**
+	 * Makes sure the aggregating logger's live aggregates come over JMX as composite data, and start afresh with each
+	 * interval.
+	 */
+	@Test
+	public void testOperationAggregates() throws Exception
+	{
+		final AggregatingStatisticsLogger logger = new AggregatingStatisticsLogger();
+		logger.setRollupWriter(batch -> { });
+
+		for (int i = 1; i <= 100; i++)
+		{
+			logger.writeStatistic(createStatistic("ASDF", i * 1000L, i % 10 != 0));
+		}
+
+		final MBeanServer server = MBeanServerFactory.newMBeanServer();
+		final ObjectName name = new ObjectName("thoreau:type=AggregatingLogger,name=test");
+		server.registerMBean(logger, name);
+
+		final CompositeData[] aggregates = (CompositeData[])server.getAttribute(name, "OperationAggregates");
+		Assert.assertEquals(1, aggregates.length);
+		Assert.assertEquals("ASDF", aggregates[0].get("operationName"));
+		Assert.assertEquals(90L, aggregates[0].get("successCount"));
+		Assert.assertEquals(10L, aggregates[0].get("failureCount"));
+		Assert.assertEquals(100.0, (Double)aggregates[0].get("estimatedCallCount"), 0.0);
+		Assert.assertEquals(50500.0, (Double)aggregates[0].get("meanNanos"), 1.0);
+		Assert.assertEquals(100000.0, (Long)aggregates[0].get("maxNanos"), 2000.0);
+		Assert.assertEquals(99000.0, (Long)aggregates[0].get("p99Nanos"), 2000.0);
+
+		logger.flush();
+
+		Assert.assertEquals(0, ((CompositeData[])server.getAttribute(name, "OperationAggregates")).length);
+	}
+
+	/**
+	 * Creates a statistic as if it had been gathered.
+	 *
+	 * @param operationName The operation name.
+	 * @param durationNanos The duration in nanoseconds.
+	 * @param successful Whether the operation succeeded.
+	 *
+	 * @return A new statistic.
+	 */
+	private static MethodCallStatistic createStatistic(final String operationName, final long durationNanos,
+			final boolean successful)
+	{
+		final MethodCallStatistic statistic = new MethodCallStatistic();
+		statistic.setOperationName(operationName);
+		statistic.markOperationStart(System.currentTimeMillis(), 0L);
+		statistic.markOperationCompletion(durationNanos);
+		statistic.setOperationSuccessful(successful);
+		return statistic;
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wires a {@link org.epiphanic.instrumentation.performance.PrometheusExporter} up next to an {@link
+ * org.epiphanic.instrumentation.performance.AOPMetricGatherer}, calls some instrumented methods, and scrapes the result
+ * over HTTP from localhost.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+public final class PrometheusExporterIntegrationTest
+{
+	/**
+	 * Holds our instrumented class, proxied so that its calls are counted.
+	 */
+	@Resource
+	private IBoringClassWithInstrumentableMethods instrumentedClass;
+
+	/**
+	 * Holds our exporter, started on any free port.
+	 */
+	@Autowired
+	private PrometheusExporter _exporter;
+
+	/**
+	 * Calls a few instrumented methods, one of which fails, and makes sure a scrape shows each with its call count,
+	 * error count and a self-consistent histogram.
+	 */
+	@Test
+	public void testScrape() throws Exception
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			instrumentedClass.fibonacciSequenceIterative(10);
+		}
+
+		try
+		{
+			instrumentedClass.exceptionThrowingMethod();
+			Assert.fail("Should have thrown.");
+		}
+		catch (final Exception ex)
+		{
+			// Expected.
+		}
+
+		final HttpURLConnection connection = open("GET");
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals(PrometheusExporter.CONTENT_TYPE, connection.getContentType());
+
+		final String body = read(connection);
+		Assert.assertTrue(body.contains("# TYPE thoreau_operation_calls_total counter\n"));
+		Assert.assertTrue(body.contains("# TYPE thoreau_operation_duration_seconds histogram\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_calls_total{operation=\"fibonacciSequenceIterative\"} 3\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_errors_total{operation=\"fibonacciSequenceIterative\"} 0\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_calls_total{operation=\"exceptionThrowingMethod\"} 1\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_errors_total{operation=\"exceptionThrowingMethod\"} 1\n"));
+		Assert.assertTrue(body.contains(
+				"thoreau_operation_duration_seconds_bucket{operation=\"fibonacciSequenceIterative\",le=\"+Inf\"} 3\n"));
+		Assert.assertTrue(body.contains(
+				"thoreau_operation_duration_seconds_count{operation=\"fibonacciSequenceIterative\"} 3\n"));
+		Assert.assertTrue(body.contains(
+				"thoreau_operation_duration_seconds_bucket{operation=\"fibonacciSequenceIterative\",le=\"0.0001\"} "));
+		Assert.assertTrue(body.endsWith("\n"));
+
+		// Counters only go up: a second scrape sees the same totals plus whatever happened since.
+		instrumentedClass.fibonacciSequenceIterative(10);
+		Assert.assertTrue(read(open("GET")).contains(
+				"thoreau_operation_calls_total{operation=\"fibonacciSequenceIterative\"} 4\n"));
+	}
+
+	/**
+	 * Makes sure we only answer reads.
+	 */
+	@Test
+	public void testMethods() throws Exception
+	{
+		Assert.assertEquals(200, open("HEAD").getResponseCode());
+		Assert.assertEquals(405, open("POST").getResponseCode());
+	}
+
+	/**
+	 * Makes sure operation names are escaped as label values, and that bucket bounds and sums come out as exact
+	 * decimal seconds.
+	 */
+	@Test
+	public void testRendering() throws Exception
+	{
+		final PrometheusStatisticsLogger logger = new PrometheusStatisticsLogger();
+		logger.setBucketBoundsNanos(new long[] {1500L, 2000000000L});
+		logger.writeStatistic(createStatistic("say \"hi\"\\\né", 1500L, true));
+		logger.writeStatistic(createStatistic("say \"hi\"\\\né", 2500000000L, false));
+
+		final PrometheusTextBuffer buffer = new PrometheusTextBuffer(16);
+		logger.render(buffer);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		buffer.writeTo(out);
+
+		final String body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		final String labels = "{operation=\"say \\\"hi\\\"\\\\\\né\"";
+		Assert.assertTrue(body.contains("thoreau_operation_calls_total" + labels + "} 2\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_errors_total" + labels + "} 1\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_duration_seconds_bucket" + labels + ",le=\"0.0000015\"} 1\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_duration_seconds_bucket" + labels + ",le=\"2\"} 1\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_duration_seconds_bucket" + labels + ",le=\"+Inf\"} 2\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_duration_seconds_sum" + labels + "} 2.5000015\n"));
+	}
+
+	/**
+	 * Makes sure that sampled statistics count for as many calls as their sample weight says, everywhere, and that
+	 * fractional counts come out as exact decimals.
+	 */
+	@Test
+	public void testSampleWeights() throws Exception
+	{
+		final PrometheusStatisticsLogger logger = new PrometheusStatisticsLogger();
+		logger.setBucketBoundsNanos(new long[] {1000L});
+
+		final MethodCallStatistic sampled = createStatistic("sampled", 500L, true);
+		sampled.setSampleWeight(4.0);
+		logger.writeStatistic(sampled);
+
+		final MethodCallStatistic rateLimited = createStatistic("sampled", 2000L, false);
+		rateLimited.setSampleWeight(2.5);
+		logger.writeStatistic(rateLimited);
+
+		final PrometheusTextBuffer buffer = new PrometheusTextBuffer(16);
+		logger.render(buffer);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		buffer.writeTo(out);
+
+		final String body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		final String labels = "{operation=\"sampled\"";
+		Assert.assertTrue(body.contains("thoreau_operation_calls_total" + labels + "} 6.5\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_errors_total" + labels + "} 2.5\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_duration_seconds_bucket" + labels + ",le=\"0.000001\"} 4\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_duration_seconds_bucket" + labels + ",le=\"+Inf\"} 6.5\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_duration_seconds_sum" + labels + "} 0.000007\n"));
+		Assert.assertTrue(body.contains("thoreau_operation_duration_seconds_count" + labels + "} 6.5\n"));
+	}
+
+	/**
+	 * Opens a request to our exporter.
+	 *
+	 * @param method The HTTP method to use.
+	 *
+	 * @return The connection, not yet read from.
+	 */
+	private HttpURLConnection open(final String method) throws Exception
+	{
+		final URL url = new URL("http://localhost:" + _exporter.getPort() + PrometheusExporter.DEFAULT_PATH);
+		final HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		connection.setRequestMethod(method);
+		return connection;
+	}
+
+	/**
+	 * Reads the body of a response.
+	 *
+	 * @param connection The connection to read from.
+	 *
+	 * @return The body as UTF-8 text.
+	 */
+	private static String read(final HttpURLConnection connection) throws Exception
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		try (InputStream in = connection.getInputStream())
+		{
+			final byte[] chunk = new byte[4096];
+
+			for (int read = in.read(chunk); read >= 0; read = in.read(chunk))
+			{
+				out.write(chunk, 0, read);
+			}
+		}
+
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Creates a statistic as if it had been gathered.
+	 *
+	 * @param operationName The operation name.
+	 * @param durationNanos The duration in nanoseconds.
+	 * @param successful Whether the operation succeeded.
+	 *
+	 * @return A new statistic.
+	 */
+	private static MethodCallStatistic createStatistic(final String operationName, final long durationNanos,
+			final boolean successful)
+	{
+		final MethodCallStatistic statistic = new MethodCallStatistic();
+		statistic.setOperationName(operationName);
+		statistic.markOperationStart(System.currentTimeMillis(), 0L);
+		statistic.markOperationCompletion(durationNanos);
+		statistic.setOperationSuccessful(successful);
+		return statistic;
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests that our {@link org.epiphanic.instrumentation.performance.RingBufferAsynchronousLogger} works as expected.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class RingBufferAsynchronousLoggerTest
+{
+	/**
+	 * Runs 32 producer threads against the logger and makes sure every single statistic is written exactly once by the
+	 * time the logger is stopped.
+	 */
+	@Test
+	public void testManyProducers() throws Exception
+	{
+		final int producerCount = 32;
+		final int statisticsPerProducer = 5000;
+		final Set<MethodCallStatistic> written = ConcurrentHashMap.newKeySet();
+
+		final RingBufferAsynchronousLogger<MethodCallStatistic> testClass = new MethodCallRingBufferLogger();
+		testClass.setCapacity(256);
+		testClass.setOverflowPolicy(OverflowPolicy.BLOCK);
+		testClass.setBlockTimeoutMillis(10000);
+		testClass.setWriteOperationFactory(statistic -> () -> {
+			Assert.assertTrue(written.add(statistic));
+			return null;
+		});
+		testClass.start();
+
+		final CountDownLatch startingGun = new CountDownLatch(1);
+		final List<Thread> producers = new ArrayList<>();
+
+		for (int p = 0; p < producerCount; p++)
+		{
+			final Thread thread = new Thread(() -> {
+				try
+				{
+					startingGun.await();
+				}
+				catch (final InterruptedException ex)
+				{
+					return;
+				}
+
+				for (int i = 0; i < statisticsPerProducer; i++)
+				{
+					testClass.writeStatistic(new MethodCallStatistic());
+				}
+			});
+
+			thread.start();
+			producers.add(thread);
+		}
+
+		startingGun.countDown();
+
+		for (final Thread producer : producers)
+		{
+			producer.join();
+		}
+
+		testClass.stop();
+
+		Assert.assertEquals(producerCount * statisticsPerProducer, written.size());
+		Assert.assertEquals(0, testClass.getPendingStatisticCount());
+	}
+
+	/**
+	 * Makes sure that a write operation blowing up doesn't take the drain thread with it.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFailedWriteDoesNotStopDraining() throws Exception
+	{
+		final IWriteOperationFactory<MethodCallStatistic> writeOperationFactory = mock(IWriteOperationFactory.class);
+		final Callable<Void> failingWrite = mock(Callable.class);
+		final RingBufferAsynchronousLogger<MethodCallStatistic> testClass = new MethodCallRingBufferLogger();
+
+		doThrow(new IllegalStateException("The database is on fire.")).when(failingWrite).call();
+		doReturn(failingWrite).when(writeOperationFactory).createWriteOperation(any(MethodCallStatistic.class));
+
+		testClass.setWriteOperationFactory(writeOperationFactory);
+		testClass.start();
+
+		testClass.writeStatistic(new MethodCallStatistic());
+		testClass.writeStatistic(new MethodCallStatistic());
+		testClass.stop();
+
+		verify(writeOperationFactory, times(2)).createWriteOperation(any(MethodCallStatistic.class));
+		verify(failingWrite, times(2)).call();
+		Assert.assertEquals(2, testClass.getFailedWriteCount());
+	}
+
+	/**
+	 * Makes sure that statistics written before we're started or after we're stopped are dropped and counted, rather
+	 * than thrown back at the caller, and that everything written in between is.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testWriteWhileStopped() throws Exception
+	{
+		final IWriteOperationFactory<MethodCallStatistic> writeOperationFactory = mock(IWriteOperationFactory.class);
+		final Callable<Void> write = mock(Callable.class);
+		final RingBufferAsynchronousLogger<MethodCallStatistic> testClass = new MethodCallRingBufferLogger();
+
+		doReturn(write).when(writeOperationFactory).createWriteOperation(any(MethodCallStatistic.class));
+		testClass.setWriteOperationFactory(writeOperationFactory);
+
+		testClass.writeStatistic(new MethodCallStatistic());
+		Assert.assertEquals(1, testClass.getDroppedStatisticCount());
+
+		testClass.start();
+		testClass.writeStatistic(new MethodCallStatistic());
+		testClass.writeStatistic(new MethodCallStatistic());
+		testClass.stop();
+
+		testClass.writeStatistic(new MethodCallStatistic());
+
+		verify(write, times(2)).call();
+		Assert.assertEquals(2, testClass.getDroppedStatisticCount());
+		Assert.assertEquals(0, testClass.getPendingStatisticCount());
+	}
+
+	/**
+	 * Makes sure that producers give up on their statistics once the block timeout passes when the data store has
+	 * stalled, and that everything is accounted for as either written or dropped.
+	 */
+	@Test
+	public void testStalledWriterDropsAfterTimeout() throws Exception
+	{
+		final int statisticCount = 6;
+		final CountDownLatch stall = new CountDownLatch(1);
+		final Set<MethodCallStatistic> written = ConcurrentHashMap.newKeySet();
+
+		final RingBufferAsynchronousLogger<MethodCallStatistic> testClass = new MethodCallRingBufferLogger();
+		testClass.setCapacity(2);
+		testClass.setOverflowPolicy(OverflowPolicy.BLOCK);
+		testClass.setBlockTimeoutMillis(10);
+		testClass.setWriteOperationFactory(statistic -> () -> {
+			stall.await();
+			written.add(statistic);
+			return null;
+		});
+		testClass.start();
+
+		for (int i = 0; i < statisticCount; i++)
+		{
+			testClass.writeStatistic(new MethodCallStatistic());
+		}
+
+		// One statistic can be stuck with the drain thread, and two in the buffer; the rest must have been given up on.
+		Assert.assertTrue(testClass.getDroppedStatisticCount() >= statisticCount - 3);
+
+		stall.countDown();
+		testClass.stop();
+
+		Assert.assertEquals(statisticCount, written.size() + testClass.getDroppedStatisticCount());
+	}
+}
@@ -0,0 +1,276 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.RollingFileBatchWriter}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class RollingFileBatchWriterTest
+{
+	/**
+	 * Holds a scratch directory for our files, removed after each test.
+	 */
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	/**
+	 * Makes sure every field comes out as JSON, with strings escaped and unknown values as <code>null</code>.
+	 */
+	@Test
+	public void testNdjson() throws Exception
+	{
+		final RollingFileBatchWriter testClass = createWriter(StatisticFileFormat.NDJSON);
+
+		final MethodCallStatistic statistic = createStatistic(1);
+		statistic.setUserId(42L);
+		statistic.setMetaData("said \"hi\"\\\n\u0001é");
+
+		testClass.writeBatch(new ArrayList<>(Arrays.asList(statistic, new MethodCallStatistic())));
+		testClass.stop();
+
+		final File[] files = _folder.getRoot().listFiles();
+		Assert.assertEquals(1, files.length);
+		Assert.assertTrue(files[0].getName().matches("statistics-\\d+-[0-9a-f]{8}-0000\\.ndjson"));
+
+		final List<String> lines = Files.readAllLines(files[0].toPath(), StandardCharsets.UTF_8);
+		Assert.assertEquals(2, lines.size());
+		Assert.assertEquals("{\"id\":null,\"userId\":42,\"operationName\":\"operation1\",\"operationStart\":1000,"
+				+ "\"operationCompletion\":1000,\"durationNanos\":1000,\"successful\":true,\"sampleWeight\":1,"
+				+ "\"spanId\":0,\"parentSpanId\":0,\"selfTimeNanos\":1000,"
+				+ "\"metaData\":\"said \\\"hi\\\"\\\\\\u000a\\u0001é\"}", lines.get(0));
+		Assert.assertTrue(lines.get(1).startsWith("{\"id\":null,\"userId\":null,\"operationName\":null,"
+				+ "\"operationStart\":null,\"operationCompletion\":null,"));
+		Assert.assertEquals(2, testClass.getWrittenStatisticCount());
+		Assert.assertEquals(1, testClass.getClosedFileCount());
+	}
+
+	/**
+	 * Makes sure CSV files start with a header, quote their strings and leave unknown values empty.
+	 */
+	@Test
+	public void testCsv() throws Exception
+	{
+		final RollingFileBatchWriter testClass = createWriter(StatisticFileFormat.CSV);
+
+		final MethodCallStatistic statistic = createStatistic(1);
+		statistic.setSampleWeight(2.5);
+		statistic.setMetaData("a, \"b\"");
+
+		testClass.writeBatch(new ArrayList<>(Arrays.asList(statistic)));
+		testClass.stop();
+
+		final File[] files = _folder.getRoot().listFiles();
+		Assert.assertEquals(1, files.length);
+		Assert.assertTrue(files[0].getName().endsWith(".csv"));
+
+		final List<String> lines = Files.readAllLines(files[0].toPath(), StandardCharsets.UTF_8);
+		Assert.assertEquals(Arrays.asList("id,userId,operationName,operationStart,operationCompletion,durationNanos,"
+				+ "successful,sampleWeight,spanId,parentSpanId,selfTimeNanos,metaData",
+				",,\"operation1\",1000,1000,1000,true,2.5,0,0,1000,\"a, \"\"b\"\"\""), lines);
+	}
+
+	/**
+	 * Makes sure we roll to a new file once the current one is full, spread a batch bigger than our buffers over several
+	 * gathered writes, and lose nothing on the way.
+	 */
+	@Test
+	public void testRollingBySize() throws Exception
+	{
+		final RollingFileBatchWriter testClass = createWriter(StatisticFileFormat.NDJSON);
+		testClass.setBufferSize(1024);
+		testClass.setBufferCount(2);
+		testClass.setMaxFileSizeBytes(16 * 1024);
+
+		for (int batch = 0; batch < 10; batch++)
+		{
+			final List<MethodCallStatistic> statistics = new ArrayList<>();
+
+			for (int i = 0; i < 100; i++)
+			{
+				statistics.add(createStatistic(batch * 100 + i));
+			}
+
+			testClass.writeBatch(statistics);
+		}
+
+		testClass.stop();
+
+		final File[] files = _folder.getRoot().listFiles();
+		Assert.assertTrue(files.length > 1);
+		Assert.assertEquals(files.length, testClass.getClosedFileCount());
+
+		final List<String> lines = new ArrayList<>();
+
+		for (final File file : files)
+		{
+			Assert.assertTrue(file.length() <= 16 * 1024);
+			lines.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+		}
+
+		Assert.assertEquals(1000, lines.size());
+
+		for (final String line : lines)
+		{
+			Assert.assertTrue(line.startsWith("{") && line.endsWith("}"));
+		}
+	}
+
+	/**
+	 * Makes sure a statistic too big for any one buffer still makes it out whole.
+	 */
+	@Test
+	public void testOversizedStatistic() throws Exception
+	{
+		final RollingFileBatchWriter testClass = createWriter(StatisticFileFormat.CSV);
+		testClass.setBufferSize(256);
+
+		final char[] metaData = new char[10000];
+		Arrays.fill(metaData, 'x');
+
+		final MethodCallStatistic statistic = createStatistic(2);
+		statistic.setMetaData(new String(metaData));
+
+		testClass.writeBatch(new ArrayList<>(Arrays.asList(createStatistic(1), statistic, createStatistic(3))));
+		testClass.stop();
+
+		final List<String> lines =
+				Files.readAllLines(_folder.getRoot().listFiles()[0].toPath(), StandardCharsets.UTF_8);
+		Assert.assertEquals(4, lines.size());
+		Assert.assertTrue(lines.get(1).contains("operation1"));
+		Assert.assertTrue(lines.get(2).endsWith("\"" + new String(metaData) + "\""));
+		Assert.assertTrue(lines.get(3).contains("operation3"));
+	}
+
+	/**
+	 * Makes sure a file that stops being written to is still rolled once it's too old, and that two writers sharing a
+	 * directory and a prefix keep out of each other's way.
+	 */
+	@Test
+	public void testRollingByAgeWhileIdle() throws Exception
+	{
+		final RollingFileBatchWriter first = createWriter(StatisticFileFormat.NDJSON);
+		final RollingFileBatchWriter second = createWriter(StatisticFileFormat.NDJSON);
+		first.setMaxFileAgeMillis(100);
+		first.setCompressClosedFiles(true);
+		second.setMaxFileAgeMillis(100);
+
+		first.writeBatch(new ArrayList<>(Arrays.asList(createStatistic(1))));
+		second.writeBatch(new ArrayList<>(Arrays.asList(createStatistic(2))));
+
+		// No more batches are coming, so only the background thread can roll them.
+		final long deadline = System.currentTimeMillis() + 5000;
+
+		while ((first.getClosedFileCount() == 0 || second.getClosedFileCount() == 0)
+				&& System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+
+		Assert.assertEquals(1, first.getClosedFileCount());
+		Assert.assertEquals(1, second.getClosedFileCount());
+
+		// Wait for the compression the roll queued.
+		first.stop();
+		second.stop();
+
+		final File[] files = _folder.getRoot().listFiles();
+		Arrays.sort(files);
+		Assert.assertEquals(2, files.length);
+		Assert.assertTrue(files[0].getName().endsWith(RollingFileBatchWriter.COMPRESSED_EXTENSION)
+				!= files[1].getName().endsWith(RollingFileBatchWriter.COMPRESSED_EXTENSION));
+		Assert.assertEquals(2, first.getClosedFileCount() + second.getClosedFileCount());
+		Assert.assertEquals(0, first.getFailedCompressionCount());
+	}
+
+	/**
+	 * Makes sure closed files are replaced by gzipped copies, and that those copies hold what was written.
+	 */
+	@Test
+	public void testCompression() throws Exception
+	{
+		final RollingFileBatchWriter testClass = createWriter(StatisticFileFormat.NDJSON);
+		testClass.setCompressClosedFiles(true);
+		testClass.setMaxFileAgeMillis(0);
+
+		testClass.writeBatch(new ArrayList<>(Arrays.asList(createStatistic(1))));
+		testClass.writeBatch(new ArrayList<>(Arrays.asList(createStatistic(2))));
+		testClass.stop();
+
+		final File[] files = _folder.getRoot().listFiles();
+		Arrays.sort(files);
+		Assert.assertEquals(2, files.length);
+		Assert.assertEquals(0, testClass.getFailedCompressionCount());
+
+		for (int i = 0; i < files.length; i++)
+		{
+			Assert.assertTrue(files[i].getName().endsWith(".ndjson" + RollingFileBatchWriter.COMPRESSED_EXTENSION));
+
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			try (InputStream in = new GZIPInputStream(Files.newInputStream(files[i].toPath())))
+			{
+				final byte[] chunk = new byte[4096];
+
+				for (int read = in.read(chunk); read >= 0; read = in.read(chunk))
+				{
+					out.write(chunk, 0, read);
+				}
+			}
+
+			Assert.assertTrue(new String(out.toByteArray(), StandardCharsets.UTF_8)
+					.contains("\"operationName\":\"operation" + (i + 1) + "\""));
+		}
+	}
+
+	/**
+	 * Creates a writer into our scratch directory.
+	 *
+	 * @param format The format to write.
+	 *
+	 * @return A new writer.
+	 */
+	private RollingFileBatchWriter createWriter(final StatisticFileFormat format)
+	{
+		final RollingFileBatchWriter writer = new RollingFileBatchWriter();
+		writer.setDirectory(_folder.getRoot());
+		writer.setFormat(format);
+		return writer;
+	}
+
+	/**
+	 * Creates a statistic as if it had been gathered.
+	 *
+	 * @param index A number to tell it apart by, in its operation name.
+	 *
+	 * @return A new statistic.
+	 */
+	private static MethodCallStatistic createStatistic(final int index)
+	{
+		final MethodCallStatistic statistic = new MethodCallStatistic();
+		statistic.setOperationName("operation" + index);
+		statistic.markOperationStart(1000L, 0L);
+		statistic.markOperationCompletion(1000L);
+		statistic.setOperationSuccessful(true);
+		return statistic;
+	}
+}
@@ -0,0 +1,213 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.SamplingCapturePolicy}, along with the samplers it
+ * delegates to, making sure that sample weights scale back up to the number of calls actually made.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class SamplingCapturePolicyTest
+{
+	/**
+	 * Makes sure that operations get their own sampler, fall back to the default, and are recorded in full when there's
+	 * no default.
+	 */
+	@Test
+	public void testSamplerLookup()
+	{
+		final SamplingCapturePolicy testClass = new SamplingCapturePolicy();
+		Assert.assertEquals(1.0, testClass.beforeInvocation("ASDF"), 0.0);
+
+		testClass.setSamplers(Collections.<String, ISampler>singletonMap("ASDF", new ISampler()
+		{
+			@Override
+			public double sample()
+			{
+				return 7.0;
+			}
+		}));
+
+		Assert.assertEquals(7.0, testClass.beforeInvocation("ASDF"), 0.0);
+		Assert.assertEquals(1.0, testClass.beforeInvocation("QWERTY"), 0.0);
+
+		testClass.setDefaultSampler(new ISampler()
+		{
+			@Override
+			public double sample()
+			{
+				return 0.0;
+			}
+		});
+
+		Assert.assertEquals(7.0, testClass.beforeInvocation("ASDF"), 0.0);
+		Assert.assertEquals(0.0, testClass.beforeInvocation("QWERTY"), 0.0);
+	}
+
+	/**
+	 * Makes sure that failures are always recorded, with a weight of one if they weren't selected and their sample weight
+	 * if they were, unless we've asked for them to be sampled.
+	 */
+	@Test
+	public void testFailuresAlwaysRecorded()
+	{
+		final SamplingCapturePolicy testClass = new SamplingCapturePolicy();
+		Assert.assertTrue(testClass.isAlwaysRecordingFailures());
+
+		Assert.assertEquals(0.0, testClass.afterInvocation("ASDF", 10L, true, 0.0), 0.0);
+		Assert.assertEquals(4.0, testClass.afterInvocation("ASDF", 10L, true, 4.0), 0.0);
+		Assert.assertEquals(1.0, testClass.afterInvocation("ASDF", 10L, false, 0.0), 0.0);
+		Assert.assertEquals(4.0, testClass.afterInvocation("ASDF", 10L, false, 4.0), 0.0);
+		Assert.assertEquals(1.0, testClass.afterInvocation("ASDF", 10L, false, 0.5), 0.0);
+
+		testClass.setAlwaysRecordingFailures(false);
+
+		Assert.assertEquals(0.0, testClass.afterInvocation("ASDF", 10L, false, 0.0), 0.0);
+		Assert.assertEquals(4.0, testClass.afterInvocation("ASDF", 10L, false, 4.0), 0.0);
+	}
+
+	/**
+	 * Makes sure that a probabilistic sampler selects roughly the share of calls we asked for, and that its weights add up
+	 * to roughly the number of calls made.
+	 */
+	@Test
+	public void testProbabilisticSampler()
+	{
+		final ProbabilisticSampler testClass = new ProbabilisticSampler(0.1);
+		final int calls = 100000;
+
+		int selected = 0;
+		double total = 0.0;
+
+		for (int i = 0; i < calls; i++)
+		{
+			final double weight = testClass.sample();
+
+			if (weight > 0.0)
+			{
+				Assert.assertEquals(10.0, weight, 1e-9);
+				selected++;
+				total += weight;
+			}
+		}
+
+		// Our standard deviation here is under a hundred selections, so five percent is plenty of slack.
+		Assert.assertEquals(calls / 10, selected, calls / 200);
+		Assert.assertEquals(calls, total, calls * 0.05);
+
+		Assert.assertEquals(1.0, new ProbabilisticSampler().sample(), 0.0);
+	}
+
+	/**
+	 * Makes sure that bad probabilities are refused.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testProbabilisticSamplerRefusesZero()
+	{
+		new ProbabilisticSampler(0.0);
+	}
+
+	/**
+	 * Makes sure that a rate-limiting sampler lets a burst through, then one call per interval, and that each selected
+	 * call is weighted with the calls passed over before it.
+	 */
+	@Test
+	public void testRateLimitingSampler()
+	{
+		final RateLimitingSampler testClass = spy(new RateLimitingSampler(10.0));
+		final long interval = TimeUnit.MILLISECONDS.toNanos(100);
+		final long[] now = {TimeUnit.SECONDS.toNanos(5)};
+
+		doReturn(now[0]).when(testClass).getNanoTime();
+
+		// A full bucket holds one second's worth of calls.
+		for (int i = 0; i < 10; i++)
+		{
+			Assert.assertEquals(1.0, testClass.sample(), 0.0);
+		}
+
+		// Then the bucket's empty until time moves on.
+		for (int i = 0; i < 5; i++)
+		{
+			Assert.assertEquals(0.0, testClass.sample(), 0.0);
+		}
+
+		now[0] += interval;
+		doReturn(now[0]).when(testClass).getNanoTime();
+
+		// The five we passed over plus this one.
+		Assert.assertEquals(6.0, testClass.sample(), 0.0);
+		Assert.assertEquals(0.0, testClass.sample(), 0.0);
+
+		// An idle spell only refills up to one burst.
+		now[0] += TimeUnit.SECONDS.toNanos(60);
+		doReturn(now[0]).when(testClass).getNanoTime();
+
+		Assert.assertEquals(2.0, testClass.sample(), 0.0);
+
+		for (int i = 0; i < 9; i++)
+		{
+			Assert.assertEquals(1.0, testClass.sample(), 0.0);
+		}
+
+		Assert.assertEquals(0.0, testClass.sample(), 0.0);
+	}
+
+	/**
+	 * Makes sure that a rate-limiting sampler's weights add up to the number of calls made, when hammered from several
+	 * threads at once.
+	 */
+	@Test
+	public void testRateLimitingSamplerWeightsAddUp() throws Exception
+	{
+		final RateLimitingSampler testClass = new RateLimitingSampler(1000.0);
+		final int threads = 4;
+		final int callsPerThread = 250000;
+		final double[] totals = new double[threads];
+		final Thread[] workers = new Thread[threads];
+
+		for (int t = 0; t < threads; t++)
+		{
+			final int index = t;
+			workers[t] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < callsPerThread; i++)
+					{
+						totals[index] += testClass.sample();
+					}
+				}
+			});
+			workers[t].start();
+		}
+
+		double total = 0.0;
+
+		for (int t = 0; t < threads; t++)
+		{
+			workers[t].join();
+			total += totals[t];
+		}
+
+		// Anything passed over since the last selection is owed to the next one, so once a token's free again, the next
+		// selection settles the account exactly.
+		Thread.sleep(10L);
+
+		Assert.assertEquals(threads * callsPerThread, total + testClass.sample() - 1.0, 0.0);
+	}
+}
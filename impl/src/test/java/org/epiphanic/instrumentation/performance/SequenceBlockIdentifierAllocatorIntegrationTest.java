@@ -0,0 +1,237 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Provides a database-connected integration test for our {@link
+ * org.epiphanic.instrumentation.performance.SequenceBlockIdentifierAllocator}, demonstrating how many sequence round
+ * trips it saves per 10,000 rows written through a {@link org.epiphanic.instrumentation.performance.JdbcBatchWriter}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+public final class SequenceBlockIdentifierAllocatorIntegrationTest
+{
+	/**
+	 * Holds the number of rows we write per test.
+	 */
+	private static final int ROW_COUNT = 10000;
+
+	/**
+	 * Holds the number of rows we write per batch.
+	 */
+	private static final int BATCH_SIZE = 500;
+
+	/**
+	 * Holds a writer that allocates one key per sequence call.
+	 */
+	@Autowired
+	@Qualifier("rowAllocatingWriter")
+	private JdbcBatchWriter _rowAllocatingWriter;
+
+	/**
+	 * Holds the allocator used by {@link #_rowAllocatingWriter}.
+	 */
+	@Autowired
+	@Qualifier("rowAllocator")
+	private SequenceBlockIdentifierAllocator _rowAllocator;
+
+	/**
+	 * Holds a writer that allocates a block of keys per sequence call.
+	 */
+	@Autowired
+	@Qualifier("blockAllocatingWriter")
+	private JdbcBatchWriter _blockAllocatingWriter;
+
+	/**
+	 * Holds the allocator used by {@link #_blockAllocatingWriter}.
+	 */
+	@Autowired
+	@Qualifier("blockAllocator")
+	private SequenceBlockIdentifierAllocator _blockAllocator;
+
+	/**
+	 * Holds a writer whose allocator shares its pool of a single connection.
+	 */
+	@Autowired
+	@Qualifier("singleConnectionWriter")
+	private JdbcBatchWriter _singleConnectionWriter;
+
+	/**
+	 * Holds an injected instance of our {@link javax.sql.DataSource} so that we can query our backing store.
+	 */
+	@Autowired
+	@Qualifier("dataSource")
+	private DataSource _dataSource;
+
+	/**
+	 * Holds an instance of {@link org.springframework.jdbc.core.JdbcTemplate} that we create upon test setup, based on our
+	 * injected {@link javax.sql.DataSource}. Useful for querying things.
+	 */
+	private JdbcTemplate _jdbcTemplate;
+
+	/**
+	 * Runs any set up for our unit tests. Our mapping uses identity columns on HSQLDB, so we create the sequence here -
+	 * fresh for every test so that we can read off how many times it was called.
+	 */
+	@Before
+	public void setUp() throws Exception
+	{
+		_jdbcTemplate = new JdbcTemplate(_dataSource);
+		_jdbcTemplate.execute("delete from method_performance");
+		_jdbcTemplate.execute("drop sequence METHOD_PERFORMANCE_SEQ if exists");
+		_jdbcTemplate.execute("create sequence METHOD_PERFORMANCE_SEQ");
+	}
+
+	/**
+	 * Establishes our baseline: a plain sequence costs a round trip per row.
+	 */
+	@Test
+	public void testOneSequenceCallPerRow() throws Exception
+	{
+		writeRows(_rowAllocatingWriter, 1);
+
+		Assert.assertEquals(ROW_COUNT, countDistinctIds());
+
+		// The very first value is zero, which we skip, hence the extra call.
+		Assert.assertEquals(ROW_COUNT + 1, _rowAllocator.getSequenceFetchCount());
+		Assert.assertEquals(ROW_COUNT + 1, sequenceCallsSoFar());
+	}
+
+	/**
+	 * Shows that block allocation from several writer threads costs one round trip per block, and still produces unique
+	 * keys.
+	 */
+	@Test
+	public void testOneSequenceCallPerBlock() throws Exception
+	{
+		final int writerThreads = 4;
+
+		writeRows(_blockAllocatingWriter, writerThreads);
+
+		Assert.assertEquals(ROW_COUNT, countDistinctIds());
+
+		// The threads share their blocks, so 10,000 rows are exactly 200 blocks of 50 - except for the block starting at
+		// zero, which is one short and needs one more.
+		final long expectedCalls = ROW_COUNT / _blockAllocator.getBlockSize() + 1;
+
+		Assert.assertEquals(expectedCalls, _blockAllocator.getSequenceFetchCount());
+		Assert.assertEquals(expectedCalls, sequenceCallsSoFar());
+		Assert.assertTrue(_blockAllocator.getSequenceFetchCount() * 40 < ROW_COUNT);
+	}
+
+	/**
+	 * Makes sure that a writer whose allocator draws on the same pool doesn't wait on itself when the pool has a single
+	 * connection: keys must be allocated before the insert takes it.
+	 */
+	@Test
+	public void testSharedSingleConnectionPool() throws Exception
+	{
+		_singleConnectionWriter.writeBatch(createBatch());
+
+		Assert.assertEquals(BATCH_SIZE, countDistinctIds());
+	}
+
+	/**
+	 * Writes {@link #ROW_COUNT} rows in batches of {@link #BATCH_SIZE}, split across the given number of threads.
+	 *
+	 * @param writer The writer to use.
+	 * @param threadCount The number of threads to write with.
+	 */
+	private void writeRows(final JdbcBatchWriter writer, final int threadCount) throws Exception
+	{
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final List<Thread> threads = new ArrayList<>();
+
+		for (int t = 0; t < threadCount; t++)
+		{
+			final Thread thread = new Thread(() -> {
+				try
+				{
+					for (int written = 0; written < ROW_COUNT / threadCount; written += BATCH_SIZE)
+					{
+						writer.writeBatch(createBatch());
+					}
+				}
+				catch (final Exception ex)
+				{
+					failure.set(ex);
+				}
+			});
+
+			thread.start();
+			threads.add(thread);
+		}
+
+		for (final Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		if (failure.get() != null)
+		{
+			throw failure.get();
+		}
+	}
+
+	/**
+	 * Creates a batch of {@link #BATCH_SIZE} statistics.
+	 *
+	 * @return A batch of statistics ready to write.
+	 */
+	private List<MethodCallStatistic> createBatch()
+	{
+		final List<MethodCallStatistic> batch = new ArrayList<>(BATCH_SIZE);
+
+		for (int i = 0; i < BATCH_SIZE; i++)
+		{
+			final MethodCallStatistic stat = new MethodCallStatistic();
+			stat.setOperationName("operation" + i);
+			stat.setOperationStart(new Date());
+			stat.setOperationCompletion(new Date());
+			batch.add(stat);
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Counts the distinct primary keys in our table.
+	 *
+	 * @return The number of distinct <code>METRIC_ID</code> values.
+	 */
+	private int countDistinctIds()
+	{
+		return _jdbcTemplate.queryForInt("select count(distinct metric_id) from method_performance");
+	}
+
+	/**
+	 * Reads off how many values have been taken from our sequence since it was created. This takes one more value.
+	 *
+	 * @return The number of sequence calls made before this one.
+	 */
+	private long sequenceCallsSoFar()
+	{
+		return _jdbcTemplate.queryForLong("call next value for METHOD_PERFORMANCE_SEQ");
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.SpanStack}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class SpanStackTest
+{
+	/**
+	 * Leaves the next test a fresh stack.
+	 */
+	@After
+	public void tearDown()
+	{
+		SpanStack.remove();
+	}
+
+	/**
+	 * Makes sure that nested spans are linked to their parents, and credited with their self time.
+	 */
+	@Test
+	public void testNesting()
+	{
+		final SpanStack testClass = SpanStack.current();
+		Assert.assertSame(testClass, SpanStack.current());
+		Assert.assertEquals(SpanStack.NO_SPAN, testClass.getCurrentSpanId());
+
+		final long outer = testClass.push();
+		Assert.assertEquals(outer, testClass.getCurrentSpanId());
+
+		final long first = testClass.push();
+		Assert.assertEquals(2, testClass.getDepth());
+		Assert.assertEquals(100L, testClass.pop(first, 100L));
+
+		final long second = testClass.push();
+		final long grandchild = testClass.push();
+		Assert.assertEquals(30L, testClass.pop(grandchild, 30L));
+		Assert.assertEquals(50L, testClass.pop(second, 80L));
+
+		Assert.assertEquals(outer, testClass.getCurrentSpanId());
+		Assert.assertEquals(820L, testClass.pop(outer, 1000L));
+		Assert.assertEquals(0, testClass.getDepth());
+
+		Assert.assertTrue(first > outer);
+		Assert.assertTrue(second > first);
+	}
+
+	/**
+	 * Makes sure that the stack grows past its initial size.
+	 */
+	@Test
+	public void testDeepNesting()
+	{
+		final SpanStack testClass = SpanStack.current();
+		final long[] spanIds = new long[100];
+
+		for (int i = 0; i < spanIds.length; i++)
+		{
+			spanIds[i] = testClass.push();
+		}
+
+		for (int i = spanIds.length - 1; i >= 0; i--)
+		{
+			Assert.assertEquals(1L, testClass.pop(spanIds[i], spanIds.length - i));
+		}
+
+		Assert.assertEquals(0, testClass.getDepth());
+	}
+
+	/**
+	 * Makes sure that spans never popped are discarded when an outer span is, so they can't become anyone's parent.
+	 */
+	@Test
+	public void testMissedPop()
+	{
+		final SpanStack testClass = SpanStack.current();
+		final long outer = testClass.push();
+		testClass.push();
+		testClass.push();
+
+		Assert.assertEquals(10L, testClass.pop(outer, 10L));
+		Assert.assertEquals(0, testClass.getDepth());
+		Assert.assertEquals(SpanStack.NO_SPAN, testClass.getCurrentSpanId());
+	}
+
+	/**
+	 * Makes sure that a span outliving its stack is credited with its whole duration.
+	 */
+	@Test
+	public void testRemove()
+	{
+		final long spanId = SpanStack.current().push();
+		SpanStack.remove();
+
+		final SpanStack testClass = SpanStack.current();
+		Assert.assertEquals(0, testClass.getDepth());
+		Assert.assertEquals(25L, testClass.pop(spanId, 25L));
+	}
+
+	/**
+	 * Makes sure that threads never hand out the same span ID.
+	 */
+	@Test
+	public void testUniqueAcrossThreads() throws InterruptedException
+	{
+		final Set<Long> spanIds = ConcurrentHashMap.newKeySet();
+		final int perThread = SpanStack.BLOCK_SIZE * 2 + 1;
+		final Thread[] threads = new Thread[4];
+
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(() -> {
+				final SpanStack stack = SpanStack.current();
+
+				for (int j = 0; j < perThread; j++)
+				{
+					final long spanId = stack.push();
+					Assert.assertFalse(spanId == SpanStack.NO_SPAN);
+					spanIds.add(spanId);
+					stack.pop(spanId, 0L);
+				}
+			});
+			threads[i].start();
+		}
+
+		for (final Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		Assert.assertEquals(threads.length * perThread, spanIds.size());
+	}
+
+	/**
+	 * Makes sure that span IDs carry a configured node ID in their high bits, a random one otherwise, and are never
+	 * negative or {@link SpanStack#NO_SPAN}.
+	 */
+	@Test
+	public void testNodeId()
+	{
+		final int counterBits = Long.SIZE - 1 - SpanStack.NODE_BITS;
+
+		try
+		{
+			System.setProperty(SpanStack.NODE_ID_PROPERTY, "12345");
+
+			for (int i = 0; i < 100; i++)
+			{
+				final long seed = SpanStack.createSeed(new Random(i));
+				Assert.assertEquals(12345L, seed >>> counterBits);
+				Assert.assertTrue(seed > (12345L << counterBits));
+			}
+
+			// Out of range, so ignored.
+			System.setProperty(SpanStack.NODE_ID_PROPERTY, "32768");
+			final long ignoring = SpanStack.createSeed(new Random(7L));
+			System.clearProperty(SpanStack.NODE_ID_PROPERTY);
+			Assert.assertEquals(SpanStack.createSeed(new Random(7L)), ignoring);
+		}
+		finally
+		{
+			System.clearProperty(SpanStack.NODE_ID_PROPERTY);
+		}
+
+		final Set<Long> nodeIds = new HashSet<>();
+
+		for (int i = 0; i < 100; i++)
+		{
+			final long seed = SpanStack.createSeed(new Random(i));
+			Assert.assertTrue(seed > SpanStack.NO_SPAN);
+
+			// Well short of the node ID's bits, however many IDs this JVM hands out.
+			Assert.assertTrue((seed & ((1L << counterBits) - 1)) <= 1L << (counterBits - 1));
+			nodeIds.add(seed >>> counterBits);
+		}
+
+		Assert.assertTrue(nodeIds.size() > 90);
+	}
+}
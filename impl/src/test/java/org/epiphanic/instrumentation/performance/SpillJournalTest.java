@@ -0,0 +1,397 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.SpillJournal}, along with the decorators that spill to it
+ * and the {@link org.epiphanic.instrumentation.performance.SpillJournalReplayer} that drains it.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class SpillJournalTest
+{
+	/**
+	 * Gives each test a directory of its own.
+	 */
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	/**
+	 * Makes sure that records come back out in order across several rotated segments.
+	 */
+	@Test
+	public void testAppendAcrossSegments() throws Exception
+	{
+		final SpillJournal testClass = createJournal(256);
+
+		for (int i = 0; i < 50; i++)
+		{
+			Assert.assertTrue(testClass.append(record(i)));
+		}
+
+		Assert.assertTrue(testClass.getSealedSegments().size() > 1);
+		testClass.rotate();
+
+		final List<byte[]> records = readAll(testClass);
+		Assert.assertEquals(50, records.size());
+
+		for (int i = 0; i < 50; i++)
+		{
+			Assert.assertEquals(i, ByteBuffer.wrap(records.get(i)).getInt());
+		}
+
+		// Records bigger than a segment can never fit, so they're turned away rather than rotating forever.
+		Assert.assertFalse(testClass.append(new byte[256]));
+		Assert.assertEquals(1, testClass.getRejectedRecordCount());
+		testClass.stop();
+	}
+
+	/**
+	 * Makes sure that a closed segment, whose mapping has been released, can still be forced harmlessly, read back and
+	 * deleted.
+	 */
+	@Test
+	public void testClosedSegment() throws Exception
+	{
+		final File file = new File(_folder.getRoot(), "closed.seg");
+		final JournalSegment testClass = new JournalSegment(file, 0L, 256);
+
+		Assert.assertTrue(testClass.tryAppend(ByteBuffer.wrap(record(7))));
+		Assert.assertTrue(testClass.seal());
+		testClass.close();
+
+		// A journal forcing its active segment may race the rotation that closes it.
+		testClass.force();
+		Assert.assertFalse(testClass.tryAppend(ByteBuffer.wrap(record(8))));
+
+		final List<byte[]> records = JournalSegment.readRecords(file);
+		Assert.assertEquals(1, records.size());
+		Assert.assertEquals(7, ByteBuffer.wrap(records.get(0)).getInt());
+		Assert.assertTrue(file.delete());
+	}
+
+	/**
+	 * Makes sure that the active segment of a journal that was never stopped is recovered by the next one, and that a
+	 * record torn by the crash is left out.
+	 */
+	@Test
+	public void testRecoverAfterCrash() throws Exception
+	{
+		final SpillJournal crashed = createJournal(4096);
+
+		for (int i = 0; i < 3; i++)
+		{
+			crashed.append(record(i));
+		}
+
+		// Tear the last record, as though we'd died while copying it.
+		final File segment = _folder.getRoot().listFiles()[0];
+
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+		{
+			file.seek(JournalSegment.SEGMENT_HEADER_SIZE + 2 * (JournalSegment.RECORD_HEADER_SIZE + 8)
+					+ JournalSegment.RECORD_HEADER_SIZE);
+			file.writeInt(-1);
+		}
+
+		final SpillJournal testClass = createJournal(4096);
+		Assert.assertEquals(Collections.singletonList(segment), testClass.getSealedSegments());
+
+		final List<byte[]> records = readAll(testClass);
+		Assert.assertEquals(2, records.size());
+		Assert.assertEquals(1, ByteBuffer.wrap(records.get(1)).getInt());
+		Assert.assertTrue(testClass.getSealedSegments().isEmpty());
+		testClass.stop();
+	}
+
+	/**
+	 * Runs several appenders against a journal with small segments, so that they race each other for rotations, and makes
+	 * sure every record is there exactly once.
+	 */
+	@Test
+	public void testConcurrentAppends() throws Exception
+	{
+		final int appenderCount = 8;
+		final int recordsPerAppender = 2000;
+		final SpillJournal testClass = createJournal(4096);
+		final CountDownLatch startingGun = new CountDownLatch(1);
+		final List<Thread> appenders = new ArrayList<>();
+
+		for (int a = 0; a < appenderCount; a++)
+		{
+			final int appender = a;
+			final Thread thread = new Thread(() -> {
+				try
+				{
+					startingGun.await();
+				}
+				catch (final InterruptedException ex)
+				{
+					return;
+				}
+
+				for (int i = 0; i < recordsPerAppender; i++)
+				{
+					Assert.assertTrue(testClass.append(record(appender * recordsPerAppender + i)));
+				}
+			});
+
+			thread.start();
+			appenders.add(thread);
+		}
+
+		startingGun.countDown();
+
+		for (final Thread appender : appenders)
+		{
+			appender.join();
+		}
+
+		testClass.rotate();
+
+		final Set<Integer> seen = ConcurrentHashMap.newKeySet();
+
+		for (final byte[] record : readAll(testClass))
+		{
+			Assert.assertTrue(seen.add(ByteBuffer.wrap(record).getInt()));
+		}
+
+		Assert.assertEquals(appenderCount * recordsPerAppender, seen.size());
+		Assert.assertEquals(appenderCount * recordsPerAppender, testClass.getAppendedRecordCount());
+		testClass.stop();
+	}
+
+	/**
+	 * Makes sure that a failed batch is spilled rather than lost, and is replayed once the writer recovers.
+	 */
+	@Test
+	public void testSpillAndReplay() throws Exception
+	{
+		final SpillJournal journal = createJournal(SpillJournal.DEFAULT_SEGMENT_SIZE);
+		final AtomicBoolean databaseDown = new AtomicBoolean(true);
+		final List<MethodCallStatistic> written = new CopyOnWriteArrayList<>();
+
+		final IBatchWriter<MethodCallStatistic> batchWriter = batch -> {
+			if (databaseDown.get())
+			{
+				throw new IllegalStateException("The database is on fire.");
+			}
+
+			written.addAll(batch);
+		};
+
+		final SpillingBatchWriter spillingWriter = new SpillingBatchWriter();
+		spillingWriter.setBatchWriter(batchWriter);
+		spillingWriter.setSpillJournal(journal);
+
+		final MethodCallStatistic statistic = new MethodCallStatistic();
+		statistic.setOperationName("ASDF");
+		statistic.setUserId(42L);
+		statistic.setOperationStart(new Date(1000L));
+		statistic.setOperationCompletion(new Date(1005L));
+		statistic.setDurationNanos(5123456L);
+		statistic.setMetaData("arf");
+		statistic.setOperationSuccessful(false);
+		statistic.setSampleWeight(4.0);
+
+		final MethodCallStatistic bare = new MethodCallStatistic();
+		bare.setOperationName("QWER");
+
+		spillingWriter.writeBatch(Arrays.asList(statistic, bare));
+		Assert.assertEquals(2, spillingWriter.getSpilledStatisticCount());
+		Assert.assertEquals(0, spillingWriter.getDroppedStatisticCount());
+
+		final SpillJournalReplayer testClass = new SpillJournalReplayer();
+		testClass.setSpillJournal(journal);
+		testClass.setBatchWriter(batchWriter);
+
+		// Still down, so nothing happens and nothing is lost.
+		Assert.assertEquals(0, testClass.replay());
+
+		databaseDown.set(false);
+		Assert.assertEquals(2, testClass.replay());
+		Assert.assertEquals(0, testClass.replay());
+		Assert.assertTrue(journal.getSealedSegments().isEmpty());
+
+		final MethodCallStatistic replayed = written.get(0);
+		Assert.assertNull(replayed.getId());
+		Assert.assertEquals("ASDF", replayed.getOperationName());
+		Assert.assertEquals(Long.valueOf(42L), replayed.getUserId());
+		Assert.assertEquals(new Date(1000L), replayed.getOperationStart());
+		Assert.assertEquals(new Date(1005L), replayed.getOperationCompletion());
+		Assert.assertEquals(5123456L, replayed.getDurationNanos());
+		Assert.assertEquals("arf", replayed.getMetaData());
+		Assert.assertFalse(replayed.isOperationSuccessful());
+		Assert.assertEquals(4.0, replayed.getSampleWeight(), 0.0);
+
+		final MethodCallStatistic replayedBare = written.get(1);
+		Assert.assertEquals("QWER", replayedBare.getOperationName());
+		Assert.assertNull(replayedBare.getUserId());
+		Assert.assertNull(replayedBare.getOperationStart());
+		Assert.assertNull(replayedBare.getMetaData());
+		Assert.assertTrue(replayedBare.isOperationSuccessful());
+
+		journal.stop();
+	}
+
+	/**
+	 * Makes sure that segments that can't be read are quarantined and skipped, rather than holding up replay for good,
+	 * while a failing writer still leaves its segment for the next run.
+	 */
+	@Test
+	public void testReplayUnreadableSegments() throws Exception
+	{
+		// Left behind empty by a crash, before the journal starts.
+		final File empty = new File(_folder.getRoot(), String.format("spill-%019d.journal", 0));
+		Assert.assertTrue(empty.createNewFile());
+
+		final SpillJournal journal = createJournal(4096);
+
+		// Not a statistic block of any version we know.
+		Assert.assertTrue(journal.append(record(1)));
+		journal.rotate();
+
+		final MethodCallStatistic statistic = new MethodCallStatistic();
+		statistic.setOperationName("ASDF");
+		Assert.assertEquals(1, journal.appendStatistics(Collections.singletonList(statistic)));
+		journal.rotate();
+
+		final List<File> sealed = journal.getSealedSegments();
+		Assert.assertEquals(3, sealed.size());
+
+		final AtomicBoolean databaseDown = new AtomicBoolean(true);
+		final List<MethodCallStatistic> written = new CopyOnWriteArrayList<>();
+
+		final SpillJournalReplayer testClass = new SpillJournalReplayer();
+		testClass.setSpillJournal(journal);
+		testClass.setBatchWriter(batch -> {
+			if (databaseDown.get())
+			{
+				throw new IllegalStateException("The database is on fire.");
+			}
+
+			written.addAll(batch);
+		});
+
+		Assert.assertEquals(0, testClass.replay());
+		Assert.assertEquals(2, testClass.getUnreadableSegmentCount());
+		Assert.assertEquals(Collections.singletonList(sealed.get(2)), journal.getSealedSegments());
+
+		for (int i = 0; i < 2; i++)
+		{
+			Assert.assertFalse(sealed.get(i).exists());
+			Assert.assertTrue(new File(sealed.get(i).getPath() + SpillJournal.QUARANTINE_SUFFIX).exists());
+		}
+
+		databaseDown.set(false);
+		Assert.assertEquals(1, testClass.replay());
+		Assert.assertEquals("ASDF", written.get(0).getOperationName());
+		Assert.assertEquals(2, testClass.getUnreadableSegmentCount());
+		Assert.assertTrue(journal.getSealedSegments().isEmpty());
+
+		journal.stop();
+	}
+
+	/**
+	 * Makes sure that a failing write operation spills its statistic instead of throwing into the executor.
+	 */
+	@Test
+	public void testSpillingWriteOperation() throws Exception
+	{
+		final SpillJournal journal = createJournal(4096);
+		final SpillingWriteOperationFactory testClass = new SpillingWriteOperationFactory();
+		testClass.setSpillJournal(journal);
+		testClass.setWriteOperationFactory(statistic -> () -> {
+			throw new IllegalStateException("The database is on fire.");
+		});
+
+		final MethodCallStatistic statistic = new MethodCallStatistic();
+		statistic.setOperationName("ASDF");
+		testClass.createWriteOperation(statistic).call();
+
+		Assert.assertEquals(1, testClass.getSpilledStatisticCount());
+
+		journal.rotate();
+		final List<byte[]> records = readAll(journal);
+		Assert.assertEquals(1, records.size());
+		final MethodCallStatisticCursor cursor = new MethodCallStatisticCursor(ByteBuffer.wrap(records.get(0)));
+		Assert.assertTrue(cursor.next());
+		Assert.assertEquals("ASDF", cursor.getOperationName());
+		Assert.assertFalse(cursor.next());
+
+		// Once stopped, the journal turns everything away and we count the loss.
+		journal.stop();
+		testClass.createWriteOperation(statistic).call();
+		Assert.assertEquals(1, testClass.getDroppedStatisticCount());
+	}
+
+	/**
+	 * Creates and starts a journal in our temporary folder.
+	 *
+	 * @param segmentSize The segment size to use.
+	 *
+	 * @return A started journal.
+	 */
+	private SpillJournal createJournal(final int segmentSize) throws Exception
+	{
+		final SpillJournal journal = new SpillJournal();
+		journal.setDirectory(_folder.getRoot());
+		journal.setSegmentSize(segmentSize);
+		journal.start();
+		return journal;
+	}
+
+	/**
+	 * Reads and deletes every sealed segment of a journal.
+	 *
+	 * @param journal The journal to read.
+	 *
+	 * @return Every record in the journal's sealed segments, oldest first.
+	 */
+	private static List<byte[]> readAll(final SpillJournal journal) throws Exception
+	{
+		final List<byte[]> records = new ArrayList<>();
+
+		for (final File segment : journal.getSealedSegments())
+		{
+			records.addAll(journal.readSegment(segment));
+			journal.deleteSegment(segment);
+		}
+
+		return records;
+	}
+
+	/**
+	 * Creates an eight byte record holding the given number.
+	 *
+	 * @param value The number to put in the record.
+	 *
+	 * @return The record.
+	 */
+	private static byte[] record(final int value)
+	{
+		return ByteBuffer.allocate(8).putInt(value).putInt(~value).array();
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests our {@link org.epiphanic.instrumentation.performance.TailCapturePolicy}, making sure that failures and slow
+ * calls are forwarded while everything else is only counted, and our {@link
+ * org.epiphanic.instrumentation.performance.FrugalPercentileEstimator}, making sure its running thresholds land where
+ * they should.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class TailCapturePolicyTest
+{
+	/**
+	 * Makes sure that static thresholds decide what's slow, per operation and by default, and that failures are always
+	 * forwarded.
+	 */
+	@Test
+	public void testStaticThresholds()
+	{
+		final TailCapturePolicy testClass = new TailCapturePolicy();
+		testClass.setThresholdsMillis(Collections.singletonMap("ASDF", 10L));
+
+		final long fast = TimeUnit.MILLISECONDS.toNanos(5);
+		final long slow = TimeUnit.MILLISECONDS.toNanos(50);
+
+		Assert.assertEquals(0.0, testClass.beforeInvocation("ASDF"), 0.0);
+		Assert.assertEquals(0.0, testClass.afterInvocation("ASDF", fast, true, 0.0), 0.0);
+		Assert.assertEquals(1.0, testClass.afterInvocation("ASDF", slow, true, 0.0), 0.0);
+		Assert.assertEquals(1.0, testClass.afterInvocation("ASDF", fast, false, 0.0), 0.0);
+
+		// No threshold at all, so only failures get through.
+		Assert.assertEquals(0.0, testClass.afterInvocation("QWERTY", slow, true, 0.0), 0.0);
+		Assert.assertEquals(1.0, testClass.afterInvocation("QWERTY", fast, false, 0.0), 0.0);
+
+		testClass.setDefaultThresholdMillis(20L);
+		Assert.assertEquals(1.0, testClass.afterInvocation("QWERTY", slow, true, 0.0), 0.0);
+
+		final OperationCounters counters = testClass.getCounters("ASDF");
+		Assert.assertEquals(1, counters.getOrdinaryCount());
+		Assert.assertEquals(fast, counters.getOrdinaryDurationNanos());
+		Assert.assertEquals(1, counters.getSlowCount());
+		Assert.assertEquals(1, counters.getFailedCount());
+		Assert.assertEquals(3, counters.getTotalCount());
+
+		Assert.assertEquals(2, testClass.getAllCounters().size());
+		Assert.assertEquals(Long.valueOf(10L), testClass.getThresholdsMillis().get("ASDF"));
+		Assert.assertEquals(20L, testClass.getDefaultThresholdMillis());
+	}
+
+	/**
+	 * Makes sure that running thresholds forward roughly the slowest calls we asked for once warmed up, and that the
+	 * default threshold applies until then.
+	 */
+	@Test
+	public void testRunningPercentileThreshold()
+	{
+		final TailCapturePolicy testClass = new TailCapturePolicy();
+		testClass.setPercentile(0.99);
+		testClass.setWarmUpCount(1000);
+		testClass.setDefaultThresholdMillis(TailCapturePolicy.NO_THRESHOLD);
+
+		final Random random = new Random(42L);
+		final int calls = 200000;
+		int forwarded = 0;
+
+		for (int i = 0; i < calls; i++)
+		{
+			// Call durations uniformly spread between zero and one millisecond.
+			final long durationNanos = random.nextInt(1000000);
+			final double weight = testClass.afterInvocation("ASDF", durationNanos, true, 0.0);
+
+			if (i < 1000)
+			{
+				Assert.assertEquals(0.0, weight, 0.0);
+			}
+
+			if (weight > 0.0)
+			{
+				forwarded++;
+			}
+		}
+
+		// We should be forwarding about one percent, with the threshold within a few percent of 990 microseconds.
+		Assert.assertEquals(calls / 100, forwarded, calls / 200);
+		Assert.assertEquals(990000, testClass.getCurrentThresholdNanos("ASDF"), 30000);
+
+		final OperationCounters counters = testClass.getCounters("ASDF");
+		Assert.assertEquals(forwarded, counters.getSlowCount());
+		Assert.assertEquals(calls, counters.getTotalCount());
+	}
+
+	/**
+	 * Makes sure that our estimator finds a high percentile of a skewed distribution, and follows the distribution when
+	 * it shifts.
+	 */
+	@Test
+	public void testFrugalPercentileEstimator()
+	{
+		final FrugalPercentileEstimator testClass = new FrugalPercentileEstimator(0.95, 0.002, 100);
+		final Random random = new Random(7L);
+
+		// The estimator's own coin flips are seeded too, so that the test never lands on an unlucky run.
+		final Random nudges = new Random(11L);
+
+		Assert.assertTrue(Double.isNaN(testClass.getEstimate()));
+		Assert.assertFalse(testClass.isWarm());
+
+		// Exponentially distributed with a mean of 100 microseconds: the 95th percentile is 100 * ln(20), about 300.
+		for (int i = 0; i < 200000; i++)
+		{
+			testClass.update((long)(-100000.0 * Math.log(1.0 - random.nextDouble())), nudges.nextDouble());
+		}
+
+		Assert.assertTrue(testClass.isWarm());
+		Assert.assertEquals(299573.0, testClass.getEstimate(), 299573.0 * 0.05);
+
+		// Everything just got ten times slower.
+		for (int i = 0; i < 200000; i++)
+		{
+			testClass.update((long)(-1000000.0 * Math.log(1.0 - random.nextDouble())), nudges.nextDouble());
+		}
+
+		Assert.assertEquals(2995732.0, testClass.getEstimate(), 2995732.0 * 0.05);
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Thoreau: a demonstration library for performance instrumentation.
+ *
+ * This source is licensed under the MIT license. Please see the distributed license.txt for details.
+ */
+package org.epiphanic.instrumentation.performance;
+
+import javassist.ClassPool;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.Opcode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Makes sure that nothing on the path from a logged statistic to a JDBC batch holds a monitor, by reading the bytecode
+ * of every class on it - nested and anonymous classes included - for <code>synchronized</code> methods and
+ * <code>monitorenter</code> instructions. A virtual thread that blocks on the database while holding a monitor pins its
+ * carrier thread, which would quietly undo the point of {@link WriterExecutors#newVirtualThreadExecutor()}.<p/>
+ *
+ * @author Greg Feigenson
+ */
+public final class WritePathPinningTest
+{
+	/**
+	 * Holds the classes a statistic passes through on its way to the database.
+	 */
+	private static final List<Class<?>> WRITE_PATH = Arrays.<Class<?>>asList(GenericAsynchronousLogger.class,
+			BoundedStatisticBuffer.class, BatchingWriteOperationFactory.class, SpillingBatchWriter.class,
+			ConnectionLimitingBatchWriter.class, JdbcBatchWriter.class, OperationDictionary.class,
+			SequenceBlockIdentifierAllocator.class, MethodCallStatisticPool.class);
+
+	/**
+	 * Reads every method of every class on the write path.
+	 */
+	@Test
+	public void testNoMonitors() throws Exception
+	{
+		final ClassPool classPool = createClassPool();
+		final List<String> offenders = new ArrayList<>();
+
+		for (final Class<?> type : WRITE_PATH)
+		{
+			for (final CtClass ctClass : withNestedClasses(classPool, type))
+			{
+				for (final CtBehavior behavior : ctClass.getDeclaredBehaviors())
+				{
+					if (Modifier.isSynchronized(behavior.getModifiers()) || entersMonitor(behavior))
+					{
+						offenders.add(ctClass.getName() + "." + behavior.getName());
+					}
+				}
+			}
+		}
+
+		Assert.assertEquals("Monitors on the write path", new ArrayList<String>(), offenders);
+	}
+
+	/**
+	 * Makes sure that we'd notice a monitor if there were one.
+	 */
+	@Test
+	public void testMonitorsAreFound() throws Exception
+	{
+		final ClassPool classPool = createClassPool();
+		final CtClass ctClass = classPool.get(AggregatingStatisticsLogger.class.getName());
+		Assert.assertTrue(Modifier.isSynchronized(ctClass.getDeclaredMethod("start").getModifiers()));
+		Assert.assertTrue(entersMonitor(classPool.get(getClass().getName()).getDeclaredMethod("lock")));
+	}
+
+	/**
+	 * Creates a pool that reads classes from wherever our test classes were loaded, which needn't be the system class
+	 * path.
+	 *
+	 * @return A new {@link javassist.ClassPool}.
+	 */
+	private static ClassPool createClassPool()
+	{
+		final ClassPool classPool = new ClassPool(true);
+		classPool.appendClassPath(new LoaderClassPath(WritePathPinningTest.class.getClassLoader()));
+		return classPool;
+	}
+
+	/**
+	 * Indicates whether or not a method or constructor contains a <code>monitorenter</code> instruction.
+	 *
+	 * @param behavior The method or constructor to read.
+	 *
+	 * @return <code>True</code> if it enters a monitor.
+	 */
+	private static boolean entersMonitor(final CtBehavior behavior) throws Exception
+	{
+		final CodeAttribute code = behavior.getMethodInfo().getCodeAttribute();
+
+		if (code == null)
+		{
+			return false;
+		}
+
+		final CodeIterator instructions = code.iterator();
+
+		while (instructions.hasNext())
+		{
+			if (instructions.byteAt(instructions.next()) == Opcode.MONITORENTER)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Gets a class along with its nested and anonymous classes, which are compiled to classes of their own.
+	 *
+	 * @param classPool The pool to read classes from.
+	 * @param type The outer class.
+	 *
+	 * @return The class and every class nested in it.
+	 */
+	private static List<CtClass> withNestedClasses(final ClassPool classPool, final Class<?> type) throws Exception
+	{
+		final List<CtClass> classes = new ArrayList<>();
+		classes.add(classPool.get(type.getName()));
+
+		for (final Class<?> nested : type.getDeclaredClasses())
+		{
+			classes.addAll(withNestedClasses(classPool, nested));
+		}
+
+		// Reflection doesn't list anonymous classes, but they're numbered from one.
+		for (int i = 1; ; i++)
+		{
+			try
+			{
+				classes.add(classPool.get(type.getName() + "$" + i));
+			}
+			catch (final NotFoundException ex)
+			{
+				return classes;
+			}
+		}
+	}
+
+	/**
+	 * Enters a monitor, for {@link #testMonitorsAreFound()} to find.
+	 *
+	 * @return Our monitor's hash code, so that the block isn't empty.
+	 */
+	@SuppressWarnings("unused")
+	private int lock()
+	{
+		synchronized (this)
+		{
+			return hashCode();
+		}
+	}
+}